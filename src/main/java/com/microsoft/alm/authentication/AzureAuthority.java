@@ -63,12 +63,17 @@ class AzureAuthority implements IAzureAuthority
     }
 
     AzureAuthority(final String authorityHostUrl, final UserAgent userAgent, final AzureDeviceFlow azureDeviceFlow)
+    {
+        this(authorityHostUrl, userAgent, azureDeviceFlow, null);
+    }
+
+    AzureAuthority(final String authorityHostUrl, final UserAgent userAgent, final AzureDeviceFlow azureDeviceFlow, final VsoAdalTokenCache adalTokenCache)
     {
         Debug.Assert(UriHelper.isWellFormedUriString(authorityHostUrl), "The authorityHostUrl parameter is invalid.");
         Debug.Assert(userAgent != null, "The userAgent parameter is null.");
 
         this.authorityHostUrl = authorityHostUrl;
-        _adalTokenCache = /* TODO: 449201: consider new InsecureStore("adalTokenCache.xml");*/null;
+        _adalTokenCache = adalTokenCache;
         _userAgent = userAgent;
         _azureDeviceFlow = azureDeviceFlow;
     }
@@ -83,6 +88,15 @@ class AzureAuthority implements IAzureAuthority
      */
     public String getAuthorityHostUrl() { return authorityHostUrl; }
 
+    /**
+     * @return The cache of access tokens to use: the one this authority was created with,
+     * or else the default one, if any.
+     */
+    VsoAdalTokenCache getAdalTokenCache()
+    {
+        return _adalTokenCache != null ? _adalTokenCache : VsoAdalTokenCache.getDefault();
+    }
+
     /**
      * Acquires a {@link TokenPair} from the authority via an interactive user logon
      * prompt.
@@ -109,8 +123,6 @@ class AzureAuthority implements IAzureAuthority
         TokenPair tokens = null;
         queryParameters = ObjectExtensions.coalesce(queryParameters, StringHelper.Empty);
 
-        // TODO: 449243: check _adalTokenCache first, then attempt to acquire token from refresh token
-
         final String authorizationCode = acquireAuthorizationCode(resource, clientId, redirectUri, queryParameters);
         if (authorizationCode == null)
         {
@@ -123,18 +135,10 @@ class AzureAuthority implements IAzureAuthority
         {
             final URI tokenEndpoint = createTokenEndpointUri(authorityHostUrl);
             final StringContent requestContent = createTokenRequest(resource, clientId, authorizationCode, redirectUri, correlationId);
-            final HttpURLConnection connection = client.post(tokenEndpoint, requestContent, new Action<HttpURLConnection>()
-            {
-                @Override public void call(final HttpURLConnection conn)
-                {
-                    conn.setUseCaches(false);
-                }
-            });
+            final HttpURLConnection connection = sendTokenRequest(client, tokenEndpoint, requestContent);
             client.ensureOK(connection);
-            final String responseContent = HttpClient.readToString(connection);
-            tokens = new TokenPair(responseContent);
-
-            // TODO: 449201: store access + refresh tokens to _adalTokenCache
+            tokens = new TokenPair(JsonFieldExtractor.readTopLevelFields(connection));
+            storeTokens(clientId, resource, null, tokens);
 
             Trace.writeLine("   token acquisition succeeded.");
         }
@@ -183,6 +187,7 @@ class AzureAuthority implements IAzureAuthority
         try
         {
             tokens = _azureDeviceFlow.requestToken(tokenEndpoint, clientId, response);
+            storeTokens(clientId, resource, null, tokens);
 
             Trace.writeLine("   token acquisition succeeded.");
         }
@@ -204,7 +209,79 @@ class AzureAuthority implements IAzureAuthority
      */
     public TokenPair acquireTokenByRefreshToken(final URI targetUri, final String clientId, final String resource, final Token refreshToken)
     {
-        throw new NotImplementedException(449243);
+        Debug.Assert(targetUri != null && targetUri.isAbsolute(), "The targetUri parameter is null or invalid");
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(clientId), "The clientId parameter is null or empty");
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(resource), "The resource parameter is null or empty");
+        Debug.Assert(refreshToken != null && refreshToken.Type == TokenType.Refresh, "The refreshToken parameter is null or invalid");
+
+        Trace.writeLine("AzureAuthority::acquireTokenByRefreshToken");
+
+        // an access token issued alongside this refresh token may still be good
+        final VsoAdalTokenCache adalTokenCache = getAdalTokenCache();
+        TokenPair tokens = adalTokenCache != null ? adalTokenCache.find(authorityHostUrl, resource, clientId, refreshToken.Value) : null;
+        if (tokens != null)
+        {
+            Trace.writeLine("   token found in cache.");
+            return tokens;
+        }
+
+        final HttpClient client = new HttpClient(Global.getUserAgent());
+        try
+        {
+            final URI tokenEndpoint = createTokenEndpointUri(authorityHostUrl);
+            final StringContent requestContent = createRefreshTokenRequest(resource, clientId, refreshToken.Value);
+            final HttpURLConnection connection = sendTokenRequest(client, tokenEndpoint, requestContent);
+            final int httpStatus = connection.getResponseCode();
+            if (httpStatus == HttpURLConnection.HTTP_OK)
+            {
+                tokens = new TokenPair(JsonFieldExtractor.readTopLevelFields(connection));
+                storeTokens(clientId, resource, refreshToken.Value, tokens);
+
+                Trace.writeLine("   token acquisition succeeded.");
+            }
+            else
+            {
+                // an expired or revoked refresh token is expected to end up here; the caller decides what's next
+                final String errorResponseText = HttpClient.readErrorToString(connection);
+                Trace.writeLine("   token endpoint returned HTTP " + httpStatus + ": " + errorResponseText);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new Error("   token acquisition failed.", e);
+        }
+        return tokens;
+    }
+
+    private void storeTokens(final String clientId, final String resource, final String redeemedRefreshToken, final TokenPair tokens)
+    {
+        final VsoAdalTokenCache adalTokenCache = getAdalTokenCache();
+        if (adalTokenCache != null && tokens != null)
+        {
+            adalTokenCache.store(authorityHostUrl, resource, clientId, redeemedRefreshToken, tokens);
+        }
+    }
+
+    /**
+     * Posts to the token endpoint.  Authorization codes and refresh tokens can only be
+     * redeemed once, so the request is only retried when it can't have reached the server.
+     */
+    static HttpURLConnection sendTokenRequest(final HttpClient client, final URI tokenEndpoint, final StringContent requestContent) throws IOException
+    {
+        return RequestPolicy.send(RequestPolicy.Endpoint.Token, tokenEndpoint, RequestPolicy.RetryMode.UnsentOnly, new RequestPolicy.Request()
+        {
+            @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
+            {
+                return client.post(tokenEndpoint, requestContent, new Action<HttpURLConnection>()
+                {
+                    @Override public void call(final HttpURLConnection conn)
+                    {
+                        configure.call(conn);
+                        conn.setUseCaches(false);
+                    }
+                });
+            }
+        });
     }
 
     String acquireAuthorizationCode(final String resource, final String clientId, final URI redirectUri, final String queryParameters)
@@ -332,6 +409,17 @@ class AzureAuthority implements IAzureAuthority
         return result;
     }
 
+    static StringContent createRefreshTokenRequest(final String resource, final String clientId, final String refreshToken)
+    {
+        final QueryString qs = new QueryString();
+        qs.put(OAuthParameter.RESOURCE, resource);
+        qs.put(OAuthParameter.CLIENT_ID, clientId);
+        qs.put(OAuthParameter.GRANT_TYPE, OAuthParameter.REFRESH_TOKEN);
+        qs.put(OAuthParameter.REFRESH_TOKEN, refreshToken);
+        final StringContent result = StringContent.createUrlEncoded(qs);
+        return result;
+    }
+
     public static String getAuthorityUrl(final UUID tenantId)
     {
         return String.format("%1$s/%2$s", AuthorityHostUrlBase, tenantId.toString());
@@ -3,6 +3,7 @@
 
 package com.microsoft.alm.authentication;
 
+import com.microsoft.alm.helpers.Metrics;
 import com.microsoft.alm.helpers.Trace;
 import com.microsoft.alm.secret.Credential;
 import com.microsoft.alm.secret.Token;
@@ -13,6 +14,11 @@ public abstract class BaseSecureStore
 {
     public static final char[] IllegalCharacters = { ':', ';', '\\', '?', '@', '=', '&', '%', '$' };
 
+    private static final String BackendCalls = "gcm_secret_store_backend_calls_total";
+    static final String BackendDeletes = Metrics.series(BackendCalls, "operation", "delete");
+    static final String BackendReads = Metrics.series(BackendCalls, "operation", "read");
+    static final String BackendWrites = Metrics.series(BackendCalls, "operation", "write");
+
     private final ISecureStore delegate;
 
     protected BaseSecureStore(final ISecureStore delegate)
@@ -23,6 +29,7 @@ public abstract class BaseSecureStore
     protected void delete(final String targetName)
     {
         Trace.writeLine("BaseSecureStore::delete");
+        Metrics.increment(BackendDeletes);
 
         try
         {
@@ -39,6 +46,7 @@ public abstract class BaseSecureStore
     protected Credential readCredentials(final String targetName)
     {
         Trace.writeLine("BaseSecureStore::readCredentials");
+        Metrics.increment(BackendReads);
 
         return delegate.readCredentials(targetName);
     }
@@ -46,6 +54,7 @@ public abstract class BaseSecureStore
     protected Token readToken(final String targetName)
     {
         Trace.writeLine("BaseSecureStore::readToken");
+        Metrics.increment(BackendReads);
 
         return delegate.readToken(targetName);
     }
@@ -53,6 +62,7 @@ public abstract class BaseSecureStore
     protected void writeCredential(final String targetName, final Credential credentials)
     {
         Trace.writeLine("BaseSecureStore::writeCredential");
+        Metrics.increment(BackendWrites);
 
         delegate.writeCredential(targetName,  credentials);
     }
@@ -60,10 +70,35 @@ public abstract class BaseSecureStore
     protected void writeToken(final String targetName, final Token token)
     {
         Trace.writeLine("BaseSecureStore::writeToken");
+        Metrics.increment(BackendWrites);
 
         delegate.writeToken(targetName, token);
     }
 
+    /**
+     * Appends the path of the target, if any, to the name produced by a
+     * {@link com.microsoft.alm.secret.Secret.IUriNameConversion}, which only considers the
+     * scheme, host and port, so that secrets for different repositories on the same host
+     * don't overwrite each other when credential.useHttpPath is set.
+     *
+     * @param targetName The name of the target's host.
+     * @param targetUri  The target, possibly including a path.
+     * @return The target name, unchanged for targets without a path.
+     */
+    static String appendPath(final String targetName, final URI targetUri)
+    {
+        if (!TargetPathIndex.hasPath(targetUri))
+            return targetName;
+
+        final String path = targetUri.getRawPath();
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/')
+        {
+            end--;
+        }
+        return targetName + path.substring(0, end);
+    }
+
     static void validateTargetUri(final URI targetUri)
     {
         if (targetUri == null)
@@ -9,6 +9,7 @@ import com.microsoft.alm.helpers.Guid;
 import com.microsoft.alm.helpers.HttpClient;
 import com.microsoft.alm.helpers.StringHelper;
 import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.helpers.TraceSpan;
 import com.microsoft.alm.secret.Credential;
 import com.microsoft.alm.secret.Token;
 import com.microsoft.alm.secret.TokenPair;
@@ -17,7 +18,13 @@ import com.microsoft.alm.secret.VsoTokenScope;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -30,6 +37,11 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
     public static final URI RedirectUri = URI.create("https://java.visualstudio.com");
 
     protected static final String AdalRefreshPrefix = "ada";
+    /**
+     * Whether a VSO host is backed by MSA or by an AAD tenant doesn't change, so it's only
+     * detected once per process; hosts that turned out not to be VSO aren't remembered.
+     */
+    private static final ConcurrentMap<String, UUID> DetectedTenants = new ConcurrentHashMap<String, UUID>();
 
     private BaseVsoAuthentication(final VsoTokenScope tokenScope, final ICredentialStore personalAccessTokenStore, final ITokenStore vsoIdeTokenCache, final ITokenStore adaRefreshTokenStore, final IVsoAuthority vsoAuthority)
     {
@@ -93,6 +105,44 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
     ITokenStore AdaRefreshTokenStore;
     IVsoAuthority VsoAuthority;
     UUID TenantId;
+    RenewalIndex TokenRenewalIndex;
+
+    /**
+     * Sets the index in which the expiry of acquired personal access tokens is recorded,
+     * so they can be renewed ahead of time.
+     *
+     * @param renewalIndex The index to update; null to disable tracking.
+     */
+    public void setRenewalIndex(final RenewalIndex renewalIndex)
+    {
+        this.TokenRenewalIndex = renewalIndex;
+    }
+
+    TenantIndex TokenTenantIndex;
+
+    /**
+     * Sets the index in which the Azure Directory tenant of each host is recorded, so that
+     * a tenant's refresh token can be used for any of its hosts.
+     *
+     * @param tenantIndex The index to use; null to only use the tenant detected for this object.
+     */
+    public void setTenantIndex(final TenantIndex tenantIndex)
+    {
+        this.TokenTenantIndex = tenantIndex;
+    }
+
+    LogonCoordinator TokenLogonCoordinator;
+
+    /**
+     * Sets the coordinator used to make sure concurrent instances don't all perform
+     * a logon for the same host at the same time.
+     *
+     * @param logonCoordinator The coordinator to use; null to disable coordination.
+     */
+    public void setLogonCoordinator(final LogonCoordinator logonCoordinator)
+    {
+        this.TokenLogonCoordinator = logonCoordinator;
+    }
 
     /**
      * Deletes a set of stored credentials by their target resource.
@@ -115,6 +165,11 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
         {
             this.AdaRefreshTokenStore.deleteToken(targetUri);
         }
+
+        if (this.TokenRenewalIndex != null)
+        {
+            this.TokenRenewalIndex.remove(targetUri);
+        }
     }
 
     /**
@@ -158,15 +213,39 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
             TokenPair tokens = null;
 
             AtomicReference<Token> refreshToken = new AtomicReference<Token>();
-            // attempt to read from the local store
-            if (this.AdaRefreshTokenStore.readToken(targetUri, refreshToken))
+            // attempt to read from the local store, then fall back to the token shared by the tenant
+            URI refreshTokenTarget = targetUri;
+            boolean found = this.AdaRefreshTokenStore.readToken(targetUri, refreshToken);
+            if (!found)
+            {
+                final UUID tenantId = findTenant(targetUri);
+                if (tenantId != null && this.AdaRefreshTokenStore.readToken(getTenantTarget(tenantId), refreshToken))
+                {
+                    Trace.writeLine("   using the refresh token of tenant " + tenantId);
+                    refreshTokenTarget = getTenantTarget(tenantId);
+                    found = true;
+                }
+            }
+            if (found)
             {
                 if ((tokens = this.VsoAuthority.acquireTokenByRefreshToken(targetUri, this.ClientId, this.Resource, refreshToken.get())) !=
                         null)
                 {
                     Trace.writeLine("   Azure token found in primary cache.");
 
-                    this.TenantId = tokens.AccessToken.getTargetIdentity();
+                    // the authority may have rotated the refresh token; keep the newest one
+                    if (tokens.RefreshToken != null && !StringHelper.isNullOrWhiteSpace(tokens.RefreshToken.Value))
+                    {
+                        if (refreshTokenTarget == targetUri)
+                        {
+                            this.storeRefreshToken(targetUri, tokens.RefreshToken);
+                        }
+                        else
+                        {
+                            // don't leave a copy with every host; it would go stale as the tenant's rotates
+                            this.AdaRefreshTokenStore.writeToken(refreshTokenTarget, tokens.RefreshToken);
+                        }
+                    }
 
                     return this.generatePersonalAccessToken(targetUri, tokens.AccessToken, requireCompactToken);
                 }
@@ -226,12 +305,74 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
         if ((personalAccessToken = this.VsoAuthority.generatePersonalAccessToken(targetUri, accessToken, TokenScope, requestCompactToken)) != null)
         {
             this.PersonalAccessTokenStore.writeCredentials(targetUri, Token.toCredential(personalAccessToken));
+
+            if (this.TokenRenewalIndex != null)
+            {
+                final Calendar validTo = personalAccessToken instanceof PersonalAccessToken
+                        ? ((PersonalAccessToken) personalAccessToken).getValidTo()
+                        : null;
+                final String authority = this instanceof VsoAadAuthentication
+                        ? RenewalIndex.AzureDirectory
+                        : RenewalIndex.MicrosoftAccount;
+                this.TokenRenewalIndex.record(new RenewalIndex.Entry(
+                        targetUri,
+                        authority,
+                        this.TenantId,
+                        validTo != null ? validTo.getTimeInMillis() : RenewalIndex.Entry.Unknown));
+            }
         }
 
         return personalAccessToken != null;
 
     }
 
+    /**
+     * Performs a logon, unless another instance completes one for the same host while
+     * this one waits for its turn, in which case the credentials it stored are used.
+     *
+     * @param targetUri The resource for which the logon is being performed.
+     * @param logon     The logon to perform.
+     * @return True if credentials were acquired, by this logon or another; false otherwise.
+     */
+    protected boolean coordinateLogon(final URI targetUri, final Callable<Boolean> logon)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+        Debug.Assert(logon != null, "The logon parameter is null");
+
+        Trace.writeLine("BaseVsoAuthentication::coordinateLogon");
+
+        final AtomicReference<Credential> credentials = new AtomicReference<Credential>();
+        this.PersonalAccessTokenStore.readCredentials(targetUri, credentials);
+        final Credential existing = credentials.get();
+        final Callable<Boolean> completed = new Callable<Boolean>()
+        {
+            @Override public Boolean call()
+            {
+                final AtomicReference<Credential> current = new AtomicReference<Credential>();
+                // credentials different from those found before waiting were stored by the other logon
+                return PersonalAccessTokenStore.readCredentials(targetUri, current)
+                        && (existing == null || !existing.Password.equals(current.get().Password));
+            }
+        };
+
+        if (this.TokenLogonCoordinator == null)
+        {
+            try
+            {
+                return logon.call();
+            }
+            catch (final RuntimeException e)
+            {
+                throw e;
+            }
+            catch (final Exception e)
+            {
+                throw new Error(e);
+            }
+        }
+        return this.TokenLogonCoordinator.run(targetUri, completed, logon);
+    }
+
     /**
      * Stores an Azure Directory refresh token.
      *
@@ -246,6 +387,44 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
         Trace.writeLine("BaseVsoAuthentication::storeRefreshToken");
 
         this.AdaRefreshTokenStore.writeToken(targetUri, refreshToken);
+
+        // an Azure Directory refresh token works for every resource in the tenant
+        final UUID tenantId = findTenant(targetUri);
+        if (tenantId != null)
+        {
+            this.AdaRefreshTokenStore.writeToken(getTenantTarget(tenantId), refreshToken);
+            if (this.TokenTenantIndex != null)
+            {
+                this.TokenTenantIndex.record(targetUri, tenantId);
+            }
+        }
+    }
+
+    /**
+     * The target under which the refresh token of an Azure Directory tenant is shared by
+     * all the hosts that belong to it.
+     *
+     * @param tenantId The tenant.
+     * @return The URI of the tenant's authority.
+     */
+    public static URI getTenantTarget(final UUID tenantId)
+    {
+        Debug.Assert(tenantId != null, "The tenantId parameter is null");
+
+        return URI.create(AzureAuthority.getAuthorityUrl(tenantId));
+    }
+
+    /**
+     * @return The Azure Directory tenant of the target, or null if it's not known or not
+     * applicable, as with Microsoft Accounts.
+     */
+    UUID findTenant(final URI targetUri)
+    {
+        if (!(this instanceof VsoAadAuthentication))
+            return null;
+        if (this.TenantId != null && !Guid.Empty.equals(this.TenantId))
+            return this.TenantId;
+        return this.TokenTenantIndex != null ? this.TokenTenantIndex.find(targetUri) : null;
     }
 
     /**
@@ -256,6 +435,61 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
      * @return True if the authority is Visual Studio Online; false otherwise.
      */
     public static boolean detectAuthority(final URI targetUri, final AtomicReference<UUID> tenantId)
+    {
+        final String key = TenantIndex.toKey(targetUri);
+        final UUID detectedTenant = DetectedTenants.get(key);
+        if (detectedTenant != null)
+        {
+            Trace.writeLine("   authority of " + key + " was detected before");
+            tenantId.set(detectedTenant);
+            return true;
+        }
+
+        final TraceSpan span = TraceSpan.start("authority.detection");
+        try
+        {
+            final boolean detected = detectResourceTenant(targetUri, tenantId);
+            span.end(!detected ? "basic" : Guid.Empty.equals(tenantId.get()) ? "msa" : "aad");
+            if (detected)
+            {
+                DetectedTenants.put(key, tenantId.get());
+            }
+            return detected;
+        }
+        finally
+        {
+            span.close();
+        }
+    }
+
+    /**
+     * @return the tenants detected so far, by scheme, host and port; the empty GUID stands
+     * for MSA.
+     */
+    static Map<String, UUID> getDetectedTenants()
+    {
+        return new HashMap<String, UUID>(DetectedTenants);
+    }
+
+    /**
+     * Adds detection results, such as the ones of a snapshot, to those of this process.
+     *
+     * @return how many were added.
+     */
+    static int addDetectedTenants(final Map<String, UUID> tenants)
+    {
+        int result = 0;
+        for (final Map.Entry<String, UUID> entry : tenants.entrySet())
+        {
+            if (DetectedTenants.putIfAbsent(entry.getKey(), entry.getValue()) == null)
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    private static boolean detectResourceTenant(final URI targetUri, final AtomicReference<UUID> tenantId)
     {
         final String VsoBaseUrlHost = "visualstudio.com";
         final String VsoResourceTenantHeader = "X-VSS-ResourceTenant";
@@ -274,11 +508,18 @@ public abstract class BaseVsoAuthentication extends BaseAuthentication
             final HttpClient client = new HttpClient(Global.getUserAgent());
             try
             {
-                connection = client.head(targetUri, new Action<HttpURLConnection>()
+                connection = RequestPolicy.send(RequestPolicy.Endpoint.AuthorityDetection, targetUri, RequestPolicy.RetryMode.All, new RequestPolicy.Request()
                 {
-                    @Override public void call(final HttpURLConnection conn)
+                    @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
                     {
-                        conn.setInstanceFollowRedirects(false);
+                        return client.head(targetUri, new Action<HttpURLConnection>()
+                        {
+                            @Override public void call(final HttpURLConnection conn)
+                            {
+                                configure.call(conn);
+                                conn.setInstanceFollowRedirects(false);
+                            }
+                        });
                     }
                 });
 
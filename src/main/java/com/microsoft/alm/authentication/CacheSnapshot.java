@@ -0,0 +1,494 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Secret;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * What a long-lived process learned and would otherwise have to learn again after a restart:
+ * the secrets of the {@link SecretCache}, the authority detected for each VSO host and where
+ * each account's identity service is.
+ * <p>
+ * The file starts with a header in the clear: the "GCMS" magic, the format version and when
+ * the snapshot was taken.  The entries follow, encrypted with AES-128 in CBC mode, and the
+ * file ends with an HMAC-SHA256 of everything before it, which both checks that the file is
+ * complete and that it was written by whoever holds the key.  Both keys are derived from the
+ * one given, which is meant to be kept in the secure store, so that the snapshot is of no use
+ * to anybody who can only read the file.
+ * <p>
+ * The file is mapped into memory to be read, so that the checksum and the decryption run over
+ * it without copying it first.
+ */
+public final class CacheSnapshot
+{
+    public static final int KeyLength = 32;
+    /** The version of the layout written; snapshots of any other version are discarded. */
+    static final int FormatVersion = 1;
+    /** Older snapshots are discarded, since whatever they hold may have changed since. */
+    static final long MaxAgeMillis = 24L * 60 * 60 * 1000;
+    static final String Restores = "gcm_cache_snapshot_restores_total";
+
+    private static final byte[] Magic = {'G', 'C', 'M', 'S'};
+    private static final int IvLength = 16;
+    private static final int MacLength = 32;
+    private static final int HeaderLength = Magic.length + 4 + 8 + IvLength + 4;
+    private static final byte CredentialKind = 0;
+    private static final byte TokenKind = 1;
+    private static final String Charset = "UTF-8";
+    private static final String CipherAlgorithm = "AES/CBC/PKCS5Padding";
+    private static final String MacAlgorithm = "HmacSHA256";
+    // only the password of the credential holding a key is used
+    private static final String KeyUsername = "key";
+
+    private CacheSnapshot()
+    {
+    }
+
+    /**
+     * @return a new random key for {@link #write} and {@link #read}.
+     */
+    public static byte[] createKey()
+    {
+        final byte[] result = new byte[KeyLength];
+        new SecureRandom().nextBytes(result);
+        return result;
+    }
+
+    /**
+     * Reads the key kept in the secure store under the target name or, if there's none,
+     * creates it there.  Processes creating it at the same time take turns on the lock of the
+     * specified file, so that they don't encrypt it with keys the others don't have.
+     *
+     * @param lockedFile The file the key is for.
+     * @throws IOException if the secure store can't be reached.
+     */
+    public static byte[] readOrCreateKey(final ISecureStore secureStore, final String targetName, final File lockedFile) throws IOException
+    {
+        final byte[] existing = readKey(secureStore, targetName);
+        if (existing != null)
+            return existing;
+        final Closeable lock = FileHelper.lock(lockedFile);
+        try
+        {
+            final byte[] raced = readKey(secureStore, targetName);
+            if (raced != null)
+                return raced;
+            Trace.writeLine("   creating the key of " + lockedFile);
+            final byte[] result = createKey();
+            try
+            {
+                secureStore.writeCredential(targetName, new Credential(KeyUsername, toHex(result)));
+            }
+            catch (final RuntimeException e)
+            {
+                throw toIOException(e);
+            }
+            return result;
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    private static byte[] readKey(final ISecureStore secureStore, final String targetName) throws IOException
+    {
+        final Credential stored;
+        try
+        {
+            stored = secureStore.readCredentials(targetName);
+        }
+        catch (final RuntimeException e)
+        {
+            throw toIOException(e);
+        }
+        final byte[] result = stored != null ? fromHex(stored.Password) : null;
+        return result != null && result.length == KeyLength ? result : null;
+    }
+
+    private static IOException toIOException(final RuntimeException e)
+    {
+        final IOException result = new IOException("Unable to access the key in the secure store: " + e.getMessage());
+        result.initCause(e);
+        return result;
+    }
+
+    public static String toHex(final byte[] bytes)
+    {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+        {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the bytes, or null if the string isn't an even number of hex digits.
+     */
+    public static byte[] fromHex(final String hex)
+    {
+        if (hex == null || hex.length() % 2 != 0)
+            return null;
+        final byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++)
+        {
+            final int high = Character.digit(hex.charAt(2 * i), 16);
+            final int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1)
+                return null;
+            result[i] = (byte) ((high << 4) | low);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the caches of this process to the file, replacing it.
+     *
+     * @return how many entries were written.
+     */
+    public static int write(final File file, final byte[] key) throws IOException
+    {
+        Trace.writeLine("CacheSnapshot::write");
+
+        final Map<String, Secret> secrets = SecretCache.getEntries();
+        final Map<String, UUID> tenants = BaseVsoAuthentication.getDetectedTenants();
+        final Map<String, URI> locations = VsoAzureAuthority.getIdentityServiceLocations();
+
+        final ByteArrayOutputStream plainBytes = new ByteArrayOutputStream();
+        final DataOutputStream plain = new DataOutputStream(plainBytes);
+        int count = 0;
+        int secretCount = 0;
+        for (final Secret secret : secrets.values())
+        {
+            if (secret instanceof Credential || secret instanceof Token)
+            {
+                secretCount++;
+            }
+        }
+        plain.writeInt(secretCount);
+        for (final Map.Entry<String, Secret> entry : secrets.entrySet())
+        {
+            final Secret secret = entry.getValue();
+            if (secret instanceof Credential)
+            {
+                final Credential credential = (Credential) secret;
+                writeString(plain, entry.getKey());
+                plain.writeByte(CredentialKind);
+                writeString(plain, credential.Username);
+                writeString(plain, credential.Password);
+            }
+            else if (secret instanceof Token)
+            {
+                final Token token = (Token) secret;
+                writeString(plain, entry.getKey());
+                plain.writeByte(TokenKind);
+                writeString(plain, token.Type.name());
+                writeString(plain, token.Value);
+                writeString(plain, token.getTargetIdentity() != null ? token.getTargetIdentity().toString() : null);
+            }
+        }
+        count += secretCount;
+        plain.writeInt(tenants.size());
+        for (final Map.Entry<String, UUID> entry : tenants.entrySet())
+        {
+            writeString(plain, entry.getKey());
+            writeString(plain, entry.getValue().toString());
+        }
+        count += tenants.size();
+        plain.writeInt(locations.size());
+        for (final Map.Entry<String, URI> entry : locations.entrySet())
+        {
+            writeString(plain, entry.getKey());
+            writeString(plain, entry.getValue().toString());
+        }
+        count += locations.size();
+        plain.flush();
+
+        final byte[] iv = new byte[IvLength];
+        new SecureRandom().nextBytes(iv);
+        final byte[] cipherText;
+        final Mac mac;
+        try
+        {
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, deriveKey(key, "encryption", "AES", 16), new IvParameterSpec(iv));
+            cipherText = cipher.doFinal(plainBytes.toByteArray());
+            mac = Mac.getInstance(MacAlgorithm);
+            mac.init(deriveKey(key, "authentication", MacAlgorithm, 32));
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(HeaderLength);
+        header.put(Magic).putInt(FormatVersion).putLong(System.currentTimeMillis()).put(iv).putInt(cipherText.length);
+        mac.update(header.array());
+        mac.update(cipherText);
+        final byte[] checksum = mac.doFinal();
+
+        FileHelper.replace(file, true, new FileHelper.Content()
+        {
+            @Override public void writeTo(final OutputStream stream) throws IOException
+            {
+                stream.write(header.array());
+                stream.write(cipherText);
+                stream.write(checksum);
+            }
+        });
+        Trace.writeLine("   wrote " + count + " entries to " + file);
+        return count;
+    }
+
+    /**
+     * Adds the entries of the snapshot to the caches of this process, leaving alone the ones
+     * the process already has.  A snapshot that is too old, of another version, damaged or
+     * written with another key is ignored.
+     *
+     * @return how many entries were added; -1 if the snapshot was ignored or there was none.
+     */
+    public static int read(final File file, final byte[] key) throws IOException
+    {
+        Trace.writeLine("CacheSnapshot::read");
+
+        if (!file.isFile())
+        {
+            Metrics.increment(Metrics.series(Restores, "result", "missing"));
+            return -1;
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try
+        {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final String rejection = validate(mapped, key);
+            if (rejection != null)
+            {
+                Trace.writeLine("   ignoring " + file + ": " + rejection);
+                Metrics.increment(Metrics.series(Restores, "result", "rejected"));
+                return -1;
+            }
+            final int result = restore(decrypt(mapped, key));
+            Trace.writeLine("   restored " + result + " entries from " + file);
+            Metrics.increment(Metrics.series(Restores, "result", "restored"));
+            return result;
+        }
+        finally
+        {
+            IOHelper.closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * @return why the snapshot can't be used; null if it can.
+     */
+    private static String validate(final ByteBuffer snapshot, final byte[] key)
+    {
+        if (snapshot.capacity() < HeaderLength + MacLength)
+            return "it's truncated";
+        final byte[] magic = new byte[Magic.length];
+        snapshot.get(magic);
+        if (!MessageDigest.isEqual(Magic, magic))
+            return "it isn't a snapshot";
+        final int version = snapshot.getInt();
+        if (version != FormatVersion)
+            return "it's of version " + version;
+        final long age = System.currentTimeMillis() - snapshot.getLong();
+        if (age < 0 || age > MaxAgeMillis)
+            return "it's " + age / 1000 + " seconds old";
+        snapshot.position(HeaderLength - 4);
+        final int cipherTextLength = snapshot.getInt();
+        if (cipherTextLength < 0 || cipherTextLength != snapshot.capacity() - HeaderLength - MacLength)
+            return "it's truncated";
+
+        final byte[] expected;
+        try
+        {
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(deriveKey(key, "authentication", MacAlgorithm, 32));
+            final ByteBuffer covered = snapshot.duplicate();
+            covered.position(0).limit(HeaderLength + cipherTextLength);
+            mac.update(covered);
+            expected = mac.doFinal();
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+        final byte[] actual = new byte[MacLength];
+        snapshot.position(HeaderLength + cipherTextLength);
+        snapshot.get(actual);
+        if (!MessageDigest.isEqual(expected, actual))
+            return "its checksum doesn't match";
+        return null;
+    }
+
+    private static ByteBuffer decrypt(final ByteBuffer snapshot, final byte[] key)
+    {
+        final byte[] iv = new byte[IvLength];
+        snapshot.position(Magic.length + 4 + 8);
+        snapshot.get(iv);
+        final int cipherTextLength = snapshot.getInt();
+        final ByteBuffer cipherText = snapshot.duplicate();
+        cipherText.position(HeaderLength).limit(HeaderLength + cipherTextLength);
+        try
+        {
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.DECRYPT_MODE, deriveKey(key, "encryption", "AES", 16), new IvParameterSpec(iv));
+            final ByteBuffer result = ByteBuffer.allocate(cipher.getOutputSize(cipherTextLength));
+            cipher.doFinal(cipherText, result);
+            result.flip();
+            return result;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            // the checksum matched, so whoever wrote it had the key
+            throw new Error(e);
+        }
+    }
+
+    private static int restore(final ByteBuffer plain) throws IOException
+    {
+        final Map<String, Secret> secrets = new TreeMap<String, Secret>(String.CASE_INSENSITIVE_ORDER);
+        final Map<String, UUID> tenants = new HashMap<String, UUID>();
+        final Map<String, URI> locations = new HashMap<String, URI>();
+        try
+        {
+            final int secretCount = plain.getInt();
+            for (int i = 0; i < secretCount; i++)
+            {
+                final String targetName = readString(plain);
+                final byte kind = plain.get();
+                if (kind == CredentialKind)
+                {
+                    final String username = readString(plain);
+                    secrets.put(targetName, new Credential(username, readString(plain)));
+                }
+                else
+                {
+                    final TokenType type = TokenType.valueOf(readString(plain));
+                    final Token token = new Token(readString(plain), type);
+                    final String targetIdentity = readString(plain);
+                    if (targetIdentity != null)
+                    {
+                        token.setTargetIdentity(UUID.fromString(targetIdentity));
+                    }
+                    secrets.put(targetName, token);
+                }
+            }
+            final int tenantCount = plain.getInt();
+            for (int i = 0; i < tenantCount; i++)
+            {
+                final String host = readString(plain);
+                tenants.put(host, UUID.fromString(readString(plain)));
+            }
+            final int locationCount = plain.getInt();
+            for (int i = 0; i < locationCount; i++)
+            {
+                final String host = readString(plain);
+                locations.put(host, new URI(readString(plain)));
+            }
+        }
+        catch (final BufferUnderflowException e)
+        {
+            throw new IOException("The snapshot ends too soon.");
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw new IOException("The snapshot holds a bogus entry: " + e.getMessage());
+        }
+        catch (final URISyntaxException e)
+        {
+            throw new IOException("The snapshot holds a bogus location: " + e.getMessage());
+        }
+
+        return SecretCache.addEntries(secrets)
+            + BaseVsoAuthentication.addDetectedTenants(tenants)
+            + VsoAzureAuthority.addIdentityServiceLocations(locations);
+    }
+
+    static SecretKeySpec deriveKey(final byte[] key, final String purpose, final String algorithm, final int length) throws GeneralSecurityException
+    {
+        if (key == null || key.length != KeyLength)
+            throw new IllegalArgumentException("The `key` parameter must be " + KeyLength + " bytes long.");
+        final Mac mac = Mac.getInstance(MacAlgorithm);
+        mac.init(new SecretKeySpec(key, MacAlgorithm));
+        final byte[] derived = mac.doFinal(toBytes(purpose));
+        return new SecretKeySpec(derived, 0, length, algorithm);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string; -1 stands for null.
+     */
+    private static void writeString(final DataOutputStream destination, final String value) throws IOException
+    {
+        if (value == null)
+        {
+            destination.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = toBytes(value);
+        destination.writeInt(bytes.length);
+        destination.write(bytes);
+    }
+
+    private static String readString(final ByteBuffer source) throws UnsupportedEncodingException
+    {
+        final int length = source.getInt();
+        if (length == -1)
+            return null;
+        if (length < 0 || length > source.remaining())
+            throw new BufferUnderflowException();
+        final String result = new String(source.array(), source.arrayOffset() + source.position(), length, Charset);
+        source.position(source.position() + length);
+        return result;
+    }
+
+    private static byte[] toBytes(final String value)
+    {
+        try
+        {
+            return value.getBytes(Charset);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,410 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Action;
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.Func;
+import com.microsoft.alm.helpers.HttpClient;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Stops sending requests to a host that keeps failing, so that every invocation of the
+ * credential helper doesn't have to wait out the network timeouts to find out it's down.
+ *
+ * After {@code failureThreshold} consecutive failed requests to a host, its circuit opens:
+ * requests fail immediately.  Once {@code openMillis} have passed the circuit is half-open
+ * and a single probe is sent in the background; the circuit closes if the host answers and
+ * stays open for another period otherwise.
+ *
+ * The state of each circuit is kept in a properties file, re-read before every decision,
+ * so that it is shared by all the processes Git starts; they take turns to change it.
+ */
+public final class CircuitBreaker
+{
+    public enum State
+    {
+        Closed,
+        Open,
+        HalfOpen
+    }
+
+    public static final int DefaultFailureThreshold = 3;
+    public static final long DefaultOpenMillis = 60 * 1000;
+    public static final int ProbeTimeoutMillis = 5 * 1000;
+
+    private static final String ValueSeparator = ",";
+
+    private final File file;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final Func<URI, Boolean> probe;
+    private final List<Thread> probes = new ArrayList<Thread>();
+
+    /**
+     * @param file             The properties file in which to keep the state of the circuits.
+     * @param failureThreshold How many consecutive failures open a circuit.
+     * @param openMillis       How long a circuit stays open before it is probed.
+     */
+    public CircuitBreaker(final File file, final int failureThreshold, final long openMillis)
+    {
+        this(file, failureThreshold, openMillis, new Func<URI, Boolean>()
+        {
+            @Override public Boolean call(final URI uri)
+            {
+                return probe(uri);
+            }
+        });
+    }
+
+    CircuitBreaker(final File file, final int failureThreshold, final long openMillis, final Func<URI, Boolean> probe)
+    {
+        if (file == null)
+            throw new IllegalArgumentException("The `file` parameter is null.");
+        if (failureThreshold < 1)
+            throw new IllegalArgumentException("The `failureThreshold` parameter must be positive.");
+        if (openMillis < 0)
+            throw new IllegalArgumentException("The `openMillis` parameter is negative.");
+
+        this.file = file;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+        this.probe = probe;
+    }
+
+    /**
+     * @param uri Any URI on the host.
+     * @return The state of the host's circuit.
+     */
+    public synchronized State getState(final URI uri)
+    {
+        Debug.Assert(uri != null, "The uri parameter is null");
+
+        return readCircuit(load(), getKey(uri)).getState(System.currentTimeMillis());
+    }
+
+    /**
+     * @return True if a request can be sent to the host; false if it should fail right away.
+     */
+    public boolean allowRequest(final URI uri)
+    {
+        return getState(uri) == State.Closed;
+    }
+
+    public synchronized void recordSuccess(final URI uri)
+    {
+        Debug.Assert(uri != null, "The uri parameter is null");
+
+        final String key = getKey(uri);
+        // most requests succeed to a host whose circuit is closed; they needn't wait for the lock
+        if (!load().containsKey(key))
+            return;
+
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            if (properties.remove(key) != null)
+            {
+                Trace.writeLine("CircuitBreaker::recordSuccess");
+                Trace.writeLine("   closing the circuit for " + key);
+                save(properties);
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    public synchronized void recordFailure(final URI uri)
+    {
+        Debug.Assert(uri != null, "The uri parameter is null");
+
+        Trace.writeLine("CircuitBreaker::recordFailure");
+
+        final String key = getKey(uri);
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            final Circuit circuit = readCircuit(properties, key);
+            circuit.Failures++;
+            if (circuit.Failures >= failureThreshold)
+            {
+                // (re-)open the circuit for another period
+                Trace.writeLine("   opening the circuit for " + key + " after " + circuit.Failures + " consecutive failure(s)");
+                circuit.OpenedAt = System.currentTimeMillis();
+            }
+            circuit.write(properties, key);
+            save(properties);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Starts a probe of the host on a background thread if its circuit is half-open and
+     * nobody (in this or another process) has probed it during the last period.
+     *
+     * @return True if a probe was started.
+     */
+    public synchronized boolean probeInBackground(final URI uri)
+    {
+        Debug.Assert(uri != null, "The uri parameter is null");
+
+        final String key = getKey(uri);
+        final long now = System.currentTimeMillis();
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            final Circuit circuit = readCircuit(properties, key);
+            if (circuit.getState(now) != State.HalfOpen || now - circuit.ProbedAt < openMillis)
+                return false;
+
+            Trace.writeLine("CircuitBreaker::probeInBackground");
+            Trace.writeLine("   probing " + key);
+
+            circuit.ProbedAt = now;
+            circuit.write(properties, key);
+            save(properties);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+
+        final URI probeUri = URI.create(key + "/");
+        final Thread thread = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                boolean reachable = false;
+                try
+                {
+                    final Boolean result = probe.call(probeUri);
+                    reachable = result != null && result;
+                }
+                catch (final Throwable t)
+                {
+                    Trace.writeLine("   probe of " + probeUri + " failed", t);
+                }
+                if (reachable)
+                {
+                    recordSuccess(probeUri);
+                }
+                else
+                {
+                    recordFailure(probeUri);
+                }
+            }
+        }, "CircuitBreaker probe");
+        thread.setDaemon(true);
+        probes.add(thread);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * @return True if a probe started by this instance is still running.
+     */
+    public synchronized boolean isProbing()
+    {
+        for (final Thread thread : probes)
+        {
+            if (thread.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits for the probes started by this instance to complete, so their outcome
+     * can be recorded before the process exits.
+     *
+     * @param timeoutMillis The longest to wait, in total.
+     */
+    public void awaitProbes(final long timeoutMillis)
+    {
+        final List<Thread> threads;
+        synchronized (this)
+        {
+            threads = new ArrayList<Thread>(probes);
+        }
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        try
+        {
+            for (final Thread thread : threads)
+            {
+                final long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    break;
+                thread.join(remaining);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Circuits are per scheme and authority, i.e. {@code https://dev.azure.com}.
+     */
+    static String getKey(final URI uri)
+    {
+        return (uri.getScheme() + "://" + uri.getAuthority()).toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Any response short of a server error means the host is back.
+     */
+    static boolean probe(final URI uri)
+    {
+        final HttpClient client = new HttpClient(Global.getUserAgent());
+        try
+        {
+            final HttpURLConnection connection = client.head(uri, new Action<HttpURLConnection>()
+            {
+                @Override public void call(final HttpURLConnection conn)
+                {
+                    conn.setConnectTimeout(ProbeTimeoutMillis);
+                    conn.setReadTimeout(ProbeTimeoutMillis);
+                    conn.setInstanceFollowRedirects(false);
+                }
+            });
+            final int httpStatus = connection.getResponseCode();
+            Trace.writeLine("   probe of " + uri + " returned HTTP " + httpStatus);
+            return httpStatus < HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   probe of " + uri + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Keeps other processes from changing the circuits until the result is closed, so that
+     * none of their changes is lost; a lock that can't be taken is done without.
+     */
+    private Closeable lock()
+    {
+        try
+        {
+            return FileHelper.lock(file);
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to lock " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private Properties load()
+    {
+        final Properties properties = new Properties();
+        if (file.isFile())
+        {
+            FileInputStream stream = null;
+            try
+            {
+                stream = new FileInputStream(file);
+                properties.load(stream);
+            }
+            catch (final IOException e)
+            {
+                // forgetting about failures only costs us some timeouts; start over
+                Trace.writeLine("   unable to read " + file + ": " + e.getMessage());
+                properties.clear();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+        return properties;
+    }
+
+    private void save(final Properties properties)
+    {
+        try
+        {
+            FileHelper.replace(file, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    properties.store(stream, null);
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            // the breaker is an optimization; failing to persist it must not fail the operation
+            Trace.writeLine("   unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private final class Circuit
+    {
+        int Failures;
+        long OpenedAt;
+        long ProbedAt;
+
+        State getState(final long now)
+        {
+            if (Failures < failureThreshold)
+                return State.Closed;
+            return now - OpenedAt < openMillis ? State.Open : State.HalfOpen;
+        }
+
+        void write(final Properties properties, final String key)
+        {
+            properties.setProperty(key, Failures + ValueSeparator + OpenedAt + ValueSeparator + ProbedAt);
+        }
+
+    }
+
+    private Circuit readCircuit(final Properties properties, final String key)
+    {
+        final Circuit result = new Circuit();
+        final String value = properties.getProperty(key);
+        if (value != null)
+        {
+            final String[] parts = value.split(ValueSeparator);
+            if (parts.length == 3)
+            {
+                try
+                {
+                    result.Failures = Integer.parseInt(parts[0], 10);
+                    result.OpenedAt = Long.parseLong(parts[1], 10);
+                    result.ProbedAt = Long.parseLong(parts[2], 10);
+                }
+                catch (final NumberFormatException ignored)
+                {
+                    // treat a corrupt entry as a closed circuit
+                    result.Failures = 0;
+                }
+            }
+        }
+        return result;
+    }
+}
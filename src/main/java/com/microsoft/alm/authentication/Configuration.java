@@ -5,6 +5,7 @@ package com.microsoft.alm.authentication;
 
 import com.microsoft.alm.helpers.Debug;
 import com.microsoft.alm.helpers.Environment;
+import com.microsoft.alm.helpers.FlightEvents;
 import com.microsoft.alm.helpers.Path;
 import com.microsoft.alm.helpers.StringHelper;
 import com.microsoft.alm.helpers.Trace;
@@ -13,6 +14,7 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.net.URI;
 import java.util.Map;
 import java.util.TreeMap;
@@ -60,6 +62,23 @@ public final class Configuration
         parseGitConfig(configReader, _values);
     }
 
+    /**
+     * Reads a single file in Git's config format, such as a repository's .gitmodules,
+     * without Git's system, global and local configuration.
+     *
+     * @param configPath The path to the file.
+     * @return The configuration in the file; empty if the file doesn't exist.
+     * @throws IOException if reading from the file fails.
+     */
+    public static Configuration fromFile(final String configPath) throws IOException
+    {
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(configPath), "The configPath parameter is null or invalid.");
+
+        final Configuration result = new Configuration(new BufferedReader(new StringReader(StringHelper.Empty)));
+        result.parseGitConfig(configPath);
+        return result;
+    }
+
     private final Map<String, String> _values = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 
     public String get(final String key)
@@ -72,6 +91,35 @@ public final class Configuration
         return _values.containsKey(key);
     }
 
+    /**
+     * Lists the values of a key in every subsection of a section, such as the url of each
+     * [remote "name"] section.
+     *
+     * @param section The name of the section, such as remote.
+     * @param key     The name of the key, such as url.
+     * @return The values, by subsection name, in alphabetical order; possibly empty.
+     */
+    public Map<String, String> getSubsectionValues(final String section, final String key)
+    {
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(section), "The section parameter is null or invalid");
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(key), "The key parameter is null or invalid");
+
+        final String prefix = section + HostSplitCharacter;
+        final String suffix = HostSplitCharacter + key;
+        final Map<String, String> result = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (final Map.Entry<String, String> pair : _values.entrySet())
+        {
+            final String name = pair.getKey();
+            if (name.length() > prefix.length() + suffix.length()
+                    && name.regionMatches(true, 0, prefix, 0, prefix.length())
+                    && name.regionMatches(true, name.length() - suffix.length(), suffix, 0, suffix.length()))
+            {
+                result.put(name.substring(prefix.length(), name.length() - suffix.length()), pair.getValue());
+            }
+        }
+        return result;
+    }
+
     public boolean tryGetEntry(final String prefix, final String key, final String suffix, final AtomicReference<Entry> entry)
     {
         Debug.Assert(prefix != null, "The prefix parameter is null");
@@ -177,6 +225,8 @@ public final class Configuration
         if (!Path.fileExists(configPath))
             return;
 
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginConfigurationParse();
         final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(configPath)));
         try
         {
@@ -185,6 +235,10 @@ public final class Configuration
         finally
         {
             br.close();
+            if (event != null)
+            {
+                jfr.commitConfigurationParse(event, configPath, _values.size());
+            }
         }
     }
 
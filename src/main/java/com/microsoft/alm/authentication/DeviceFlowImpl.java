@@ -3,21 +3,38 @@
 
 package com.microsoft.alm.authentication;
 
+import com.microsoft.alm.helpers.Action;
+import com.microsoft.alm.helpers.FlightEvents;
 import com.microsoft.alm.helpers.HttpClient;
+import com.microsoft.alm.helpers.Metrics;
 import com.microsoft.alm.helpers.PropertyBag;
 import com.microsoft.alm.helpers.QueryString;
 import com.microsoft.alm.helpers.StringContent;
 import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
 import com.microsoft.alm.oauth2.useragent.AuthorizationException;
 import com.microsoft.alm.secret.TokenPair;
 
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
-import java.util.Calendar;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DeviceFlowImpl implements DeviceFlow
 {
+    static final String Polls = "gcm_device_flow_polls_total";
+    static final String TimesToToken = "gcm_device_flow_time_to_token_seconds";
+    static final String TokenOutcome = "token";
+    static final String ExpiredOutcome = "expired";
+    static final String CancelledOutcome = "cancelled";
+    static final String ErrorOutcome = "error";
+
     @Override
     public DeviceFlowResponse requestAuthorization(final URI deviceEndpoint, final String clientId, final String scope)
     {
@@ -33,7 +50,11 @@ public class DeviceFlowImpl implements DeviceFlow
         final HttpClient client = new HttpClient(Global.getUserAgent());
         final String responseText;
         try {
-            final HttpURLConnection response = client.post(deviceEndpoint, requestBody);
+            final HttpURLConnection response = RequestPolicy.send(RequestPolicy.Endpoint.DeviceCode, deviceEndpoint, RequestPolicy.RetryMode.All, new RequestPolicy.Request() {
+                @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException {
+                    return client.post(deviceEndpoint, requestBody, configure);
+                }
+            });
             final int httpStatus = response.getResponseCode();
             if (httpStatus == HttpURLConnection.HTTP_OK) {
                 responseText = HttpClient.readToString(response);
@@ -81,54 +102,42 @@ public class DeviceFlowImpl implements DeviceFlow
         contributeTokenRequestParameters(bodyParameters);
         final StringContent requestBody = StringContent.createUrlEncoded(bodyParameters);
 
-        final int intervalSeconds = deviceFlowResponse.getInterval();
-        int intervalMilliseconds = intervalSeconds * 1000;
-        final HttpClient client = new HttpClient(Global.getUserAgent());
-        String responseText = null;
-        final Calendar expiresAt = deviceFlowResponse.getExpiresAt();
-        while (Calendar.getInstance().compareTo(expiresAt) <= 0) {
-            try {
-                final HttpURLConnection response = client.post(tokenEndpoint, requestBody);
-                final int httpStatus = response.getResponseCode();
-                if (httpStatus == HttpURLConnection.HTTP_OK) {
-                    responseText = HttpClient.readToString(response);
-                    break;
-                }
-                else {
-                    final String errorResponseText = HttpClient.readErrorToString(response);
-                    if (httpStatus == HttpURLConnection.HTTP_BAD_REQUEST) {
-                        final PropertyBag bag = PropertyBag.fromJson(errorResponseText);
-                        final String errorCode = bag.readOptionalString(OAuthParameter.ERROR_CODE, "unknown_error");
-                        if (OAuthParameter.ERROR_AUTHORIZATION_PENDING.equals(errorCode)) {
-                            try {
-                                Thread.sleep(intervalMilliseconds);
-                            } catch (final InterruptedException e) {
-                                throw new Error(e);
-                            }
-                            continue;
-                        }
-                        else if (OAuthParameter.ERROR_SLOW_DOWN.equals(errorCode)) {
-                            intervalMilliseconds *= 2;
-                            try {
-                                Thread.sleep(intervalMilliseconds);
-                            } catch (final InterruptedException e) {
-                                throw new Error(e);
-                            }
-                            continue;
-                        }
-                        final String errorDescription = bag.readOptionalString(OAuthParameter.ERROR_DESCRIPTION, null);
-                        final String errorUriString = bag.readOptionalString(OAuthParameter.ERROR_URI, null);
-                        final URI errorUri = errorUriString == null ? null : URI.create(errorUriString);
-                        throw new AuthorizationException(errorCode, errorDescription, errorUri, null);
-                    }
-                    else {
-                        throw new Error("Token endpoint returned HTTP " + httpStatus + ":\n" + errorResponseText);
-                    }
-                }
+        Trace.writeLine("DeviceFlowImpl::requestToken");
+
+        final long remainingMillis = deviceFlowResponse.getExpiresAt().getTimeInMillis() - System.currentTimeMillis();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(remainingMillis);
+        final TokenPoller poller = new TokenPoller(tokenEndpoint, requestBody, deviceFlowResponse.getInterval() * 1000L, deadline);
+        // if Git kills us while the user is still busy in the browser, stop polling right away
+        final Thread shutdownHook = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                poller.cancel();
+            }
+        }, "DeviceFlowImpl shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        final String responseText;
+        String outcome = ErrorOutcome;
+        try
+        {
+            responseText = poller.await();
+            outcome = responseText == null ? ExpiredOutcome : TokenOutcome;
+        }
+        finally
+        {
+            try
+            {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            }
+            catch (final IllegalStateException ignored)
+            {
+                // the JVM is already shutting down
             }
-            catch (final IOException e) {
-                throw new Error(e);
+            if (poller.cancelled || Thread.currentThread().isInterrupted())
+            {
+                outcome = CancelledOutcome;
             }
+            reportPolling(poller, outcome);
         }
 
         if (responseText == null) {
@@ -138,6 +147,215 @@ public class DeviceFlowImpl implements DeviceFlow
         return tokenPair;
     }
 
+    private void reportPolling(final TokenPoller poller, final String outcome) {
+        final long pollingNanos = System.nanoTime() - poller.startTime;
+        lastPollCount = poller.pollCount.get();
+        lastPollingMillis = TimeUnit.NANOSECONDS.toMillis(pollingNanos);
+        Trace.writeLine("   " + lastPollCount + " poll(s) over " + lastPollingMillis + " ms, outcome: " + outcome);
+
+        Metrics.add(Metrics.series(Polls, "outcome", outcome), lastPollCount);
+        Metrics.recordNanos(Metrics.series(TimesToToken, "outcome", outcome), pollingNanos);
+    }
+
+    /**
+     * @return the number of requests sent to the token endpoint by the last call to
+     *         {@link #requestToken(URI, String, DeviceFlowResponse)}.
+     */
+    public int getLastPollCount() {
+        return lastPollCount;
+    }
+
+    /**
+     * @return how long, in milliseconds, the last call to
+     *         {@link #requestToken(URI, String, DeviceFlowResponse)} spent polling,
+     *         which is the time the user took to authorize the request when successful.
+     */
+    public long getLastPollingMillis() {
+        return lastPollingMillis;
+    }
+
+    private volatile int lastPollCount;
+    private volatile long lastPollingMillis;
+
+    static long parseRetryAfterMillis(final String retryAfter) {
+        if (StringHelper.isNullOrWhiteSpace(retryAfter)) {
+            return -1;
+        }
+        try {
+            // only the delta-seconds form; an HTTP-date is treated as absent
+            return Long.parseLong(retryAfter.trim(), 10) * 1000L;
+        }
+        catch (final NumberFormatException ignored) {
+            return -1;
+        }
+    }
+
+    /**
+     * Polls the token endpoint from a scheduler thread, so the calling thread only has to
+     * wait for the outcome and can be interrupted (or the poller cancelled) at any time.
+     */
+    private final class TokenPoller implements Runnable {
+        private final URI tokenEndpoint;
+        private final StringContent requestBody;
+        private final long deadline;
+        private final long startTime = System.nanoTime();
+        private final HttpClient client = new HttpClient(Global.getUserAgent());
+        private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "DeviceFlowImpl poller");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger pollCount = new AtomicInteger();
+        private long intervalMilliseconds;
+        private volatile String responseText;
+        private volatile Throwable failure;
+        private volatile boolean cancelled;
+
+        TokenPoller(final URI tokenEndpoint, final StringContent requestBody, final long intervalMilliseconds, final long deadline) {
+            this.tokenEndpoint = tokenEndpoint;
+            this.requestBody = requestBody;
+            this.intervalMilliseconds = intervalMilliseconds;
+            this.deadline = deadline;
+        }
+
+        String await() throws AuthorizationException {
+            scheduler.execute(this);
+            try {
+                // the poller gives up by itself at the deadline; the extra second covers an in-flight request
+                final long timeoutNanos = Math.max(0, deadline - System.nanoTime()) + TimeUnit.SECONDS.toNanos(1);
+                done.await(timeoutNanos, TimeUnit.NANOSECONDS);
+            }
+            catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AuthorizationException("interrupted", "Polling for the token was interrupted.", null, e);
+            }
+            finally {
+                scheduler.shutdownNow();
+            }
+            if (cancelled) {
+                throw new AuthorizationException("cancelled", "Polling for the token was cancelled.", null, null);
+            }
+            final Throwable throwable = failure;
+            if (throwable instanceof AuthorizationException) {
+                throw (AuthorizationException) throwable;
+            }
+            if (throwable instanceof Error) {
+                throw (Error) throwable;
+            }
+            if (throwable instanceof RuntimeException) {
+                throw (RuntimeException) throwable;
+            }
+            if (throwable != null) {
+                // an IOException, once RequestPolicy has given up on the token endpoint
+                throw new Error(throwable);
+            }
+            return responseText;
+        }
+
+        void cancel() {
+            cancelled = true;
+            scheduler.shutdownNow();
+            done.countDown();
+        }
+
+        @Override public void run() {
+            final FlightEvents.Sink jfr = FlightEvents.active();
+            final Object event = jfr == null ? null : jfr.beginDeviceFlowPoll();
+            String outcome = "error";
+            try {
+                final long nextDelay = poll();
+                outcome = nextDelay < 0 ? "token" : "pending";
+                if (nextDelay < 0) {
+                    done.countDown();
+                }
+                else if (System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(nextDelay) >= deadline) {
+                    // the code will have expired by the time we'd poll again
+                    done.countDown();
+                }
+                else {
+                    scheduler.schedule(this, nextDelay, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (final RejectedExecutionException ignored) {
+                // cancelled
+                done.countDown();
+            }
+            catch (final Throwable t) {
+                outcome = t.getClass().getName();
+                failure = t;
+                done.countDown();
+            }
+            finally {
+                if (event != null) {
+                    jfr.commitDeviceFlowPoll(event, pollCount.get(), outcome);
+                }
+            }
+        }
+
+        /**
+         * @return how long to wait before polling again; -1 when the token was obtained.
+         */
+        private long poll() throws AuthorizationException, IOException {
+            pollCount.incrementAndGet();
+            // pending, slow_down and Retry-After responses are dealt with below, on the polling schedule
+            final HttpURLConnection response = RequestPolicy.send(RequestPolicy.Endpoint.Token, tokenEndpoint, RequestPolicy.RetryMode.IOFailuresOnly, new RequestPolicy.Request() {
+                @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException {
+                    return client.post(tokenEndpoint, requestBody, configure);
+                }
+            });
+            final int httpStatus = response.getResponseCode();
+            if (httpStatus == HttpURLConnection.HTTP_OK) {
+                // reading the whole body lets the connection go back to the keep-alive pool
+                responseText = HttpClient.readToString(response);
+                return -1;
+            }
+            final String errorResponseText = HttpClient.readErrorToString(response);
+            if (httpStatus == HttpURLConnection.HTTP_BAD_REQUEST) {
+                final PropertyBag bag = PropertyBag.fromJson(errorResponseText);
+                final String errorCode = bag.readOptionalString(OAuthParameter.ERROR_CODE, "unknown_error");
+                if (OAuthParameter.ERROR_AUTHORIZATION_PENDING.equals(errorCode)) {
+                    intervalMilliseconds = readIntervalHint(bag, intervalMilliseconds);
+                    return intervalMilliseconds;
+                }
+                else if (OAuthParameter.ERROR_SLOW_DOWN.equals(errorCode)) {
+                    final long doubled = Math.min(intervalMilliseconds * 2, MaxIntervalMilliseconds);
+                    intervalMilliseconds = Math.max(doubled, readIntervalHint(bag, doubled));
+                    Trace.writeLine("   slow_down received; polling every " + intervalMilliseconds + " ms");
+                    return intervalMilliseconds;
+                }
+                final String errorDescription = bag.readOptionalString(OAuthParameter.ERROR_DESCRIPTION, null);
+                final String errorUriString = bag.readOptionalString(OAuthParameter.ERROR_URI, null);
+                final URI errorUri = errorUriString == null ? null : URI.create(errorUriString);
+                throw new AuthorizationException(errorCode, errorDescription, errorUri, null);
+            }
+            final long retryAfterMillis = parseRetryAfterMillis(response.getHeaderField("Retry-After"));
+            if (retryAfterMillis >= 0 && (httpStatus == HTTP_TOO_MANY_REQUESTS || httpStatus == HttpURLConnection.HTTP_UNAVAILABLE)) {
+                Trace.writeLine("   HTTP " + httpStatus + " received; retrying after " + retryAfterMillis + " ms");
+                return Math.max(retryAfterMillis, intervalMilliseconds);
+            }
+            throw new Error("Token endpoint returned HTTP " + httpStatus + ":\n" + errorResponseText);
+        }
+
+        private long readIntervalHint(final PropertyBag bag, final long defaultMilliseconds) {
+            final int defaultSeconds = (int) (defaultMilliseconds / 1000L);
+            final int intervalSeconds = bag.readOptionalInteger(OAuthParameter.INTERVAL, defaultSeconds);
+            if (intervalSeconds == defaultSeconds) {
+                return defaultMilliseconds;
+            }
+            return Math.min(Math.max(intervalSeconds, 1) * 1000L, MaxIntervalMilliseconds);
+        }
+    }
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    /**
+     * The server asks us to slow down by doubling the interval; past this we'd be
+     * unlikely to notice the user completing the authorization in a reasonable time.
+     */
+    static final long MaxIntervalMilliseconds = 60 * 1000L;
+
     /**
      * Allows subclasses to augment the request to the token endpoint with additional parameters.
      *
@@ -0,0 +1,373 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.PropertyBag;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pulls a handful of scalar fields out of a JSON document as it is read, without first
+ * buffering the whole document into a String.  Reading stops as soon as every requested
+ * field has been seen, so the tail of large responses (i.e. connectiondata) is never parsed.
+ *
+ * Only what's needed to find the fields is validated; this is not a general-purpose parser.
+ */
+final class JsonFieldExtractor
+{
+    private static final int MaxDepth = 64;
+    private static final int EndOfStream = -1;
+
+    private final Reader reader;
+    private final Map<String, String> wanted;
+    private final boolean topLevelOnly;
+    private int remaining;
+    private int peeked = EndOfStream;
+    private boolean hasPeeked;
+    private final StringBuilder scratch = new StringBuilder();
+
+    private JsonFieldExtractor(final Reader reader, final Map<String, String> wanted, final boolean topLevelOnly)
+    {
+        this.reader = reader;
+        this.wanted = wanted;
+        this.topLevelOnly = topLevelOnly;
+        this.remaining = wanted.size();
+    }
+
+    /**
+     * Finds the first occurrence, at any depth, of each of the named fields.
+     * Names are matched case-insensitively.
+     *
+     * @param reader     the JSON document.
+     * @param fieldNames the names of the fields to find.
+     * @return a map, keyed case-insensitively, of the fields found with a string, number or
+     *         boolean value; fields not found (or whose value was null) are absent.
+     */
+    static Map<String, String> extract(final Reader reader, final String... fieldNames) throws IOException
+    {
+        final Map<String, String> wanted = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (final String fieldName : fieldNames)
+        {
+            wanted.put(fieldName, null);
+        }
+        final JsonFieldExtractor extractor = new JsonFieldExtractor(reader, wanted, false);
+        extractor.readDocument();
+
+        final Map<String, String> result = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        for (final Map.Entry<String, String> entry : wanted.entrySet())
+        {
+            if (entry.getValue() != null)
+            {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    static Map<String, String> extract(final String json, final String... fieldNames)
+    {
+        try
+        {
+            return extract(new StringReader(json), fieldNames);
+        }
+        catch (final IOException e)
+        {
+            // reading from a String doesn't do I/O; this can only be malformed input
+            throw new IllegalArgumentException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the response body of a connection and extracts the named fields.
+     * The stream is closed afterwards, whether or not it was read to the end.
+     */
+    static Map<String, String> extract(final HttpURLConnection connection, final String... fieldNames) throws IOException
+    {
+        final InputStream stream = connection.getInputStream();
+        try
+        {
+            return extract(createReader(stream), fieldNames);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Reads every scalar field of the top-level object of a response body, such as an OAuth 2.0
+     * token response, into a {@link PropertyBag}.  Nested objects and arrays are skipped.
+     */
+    static PropertyBag readTopLevelFields(final HttpURLConnection connection) throws IOException
+    {
+        final InputStream stream = connection.getInputStream();
+        try
+        {
+            return readTopLevelFields(createReader(stream));
+        }
+        finally
+        {
+            IOHelper.closeQuietly(stream);
+        }
+    }
+
+    static PropertyBag readTopLevelFields(final Reader reader) throws IOException
+    {
+        final JsonFieldExtractor extractor = new JsonFieldExtractor(reader, new LinkedHashMap<String, String>(), true);
+        extractor.readDocument();
+        final PropertyBag result = new PropertyBag();
+        result.putAll(extractor.wanted);
+        return result;
+    }
+
+    private static Reader createReader(final InputStream stream) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+    }
+
+    private void readDocument() throws IOException
+    {
+        skipWhitespace();
+        if (peek() == EndOfStream)
+            return;
+        readValue(0, false);
+    }
+
+    private boolean isDone()
+    {
+        return !topLevelOnly && remaining == 0;
+    }
+
+    /**
+     * @return the value if {@code capture} and the value is a scalar; null otherwise.
+     */
+    private String readValue(final int depth, final boolean capture) throws IOException
+    {
+        if (depth > MaxDepth)
+            throw new IOException("JSON document is nested too deeply.");
+
+        skipWhitespace();
+        final int c = peek();
+        switch (c)
+        {
+            case '{':
+                readObject(depth + 1);
+                return null;
+            case '[':
+                readArray(depth + 1);
+                return null;
+            case '"':
+                return readString(capture);
+            case EndOfStream:
+                throw new IOException("Unexpected end of JSON document.");
+            default:
+                final String literal = readLiteral();
+                return capture && !"null".equals(literal) ? literal : null;
+        }
+    }
+
+    private void readObject(final int depth) throws IOException
+    {
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}')
+        {
+            read();
+            return;
+        }
+        while (true)
+        {
+            skipWhitespace();
+            // tolerate a trailing comma, as some services emit one
+            if (peek() == '}')
+            {
+                read();
+                return;
+            }
+            final String key = readString(true);
+            skipWhitespace();
+            expect(':');
+
+            final boolean capture;
+            if (topLevelOnly)
+            {
+                capture = depth == 1;
+            }
+            else
+            {
+                capture = wanted.containsKey(key) && wanted.get(key) == null;
+            }
+            final String value = readValue(depth, capture);
+            if (capture && value != null)
+            {
+                wanted.put(key, value);
+                remaining--;
+            }
+            if (isDone())
+                return;
+
+            skipWhitespace();
+            final int c = read();
+            if (c == '}')
+                return;
+            if (c != ',')
+                throw new IOException("Expected ',' or '}' in JSON object but found " + describe(c) + ".");
+        }
+    }
+
+    private void readArray(final int depth) throws IOException
+    {
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']')
+        {
+            read();
+            return;
+        }
+        while (true)
+        {
+            skipWhitespace();
+            if (peek() == ']')
+            {
+                read();
+                return;
+            }
+            readValue(depth, false);
+            if (isDone())
+                return;
+
+            skipWhitespace();
+            final int c = read();
+            if (c == ']')
+                return;
+            if (c != ',')
+                throw new IOException("Expected ',' or ']' in JSON array but found " + describe(c) + ".");
+        }
+    }
+
+    private String readString(final boolean capture) throws IOException
+    {
+        expect('"');
+        scratch.setLength(0);
+        while (true)
+        {
+            final int c = read();
+            switch (c)
+            {
+                case '"':
+                    return capture ? scratch.toString() : null;
+                case '\\':
+                    final char unescaped = readEscape();
+                    if (capture)
+                        scratch.append(unescaped);
+                    break;
+                case EndOfStream:
+                    throw new IOException("Unterminated string in JSON document.");
+                default:
+                    if (capture)
+                        scratch.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    private char readEscape() throws IOException
+    {
+        final int c = read();
+        switch (c)
+        {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int codeUnit = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    final int digit = Character.digit(read(), 16);
+                    if (digit == -1)
+                        throw new IOException("Invalid unicode escape in JSON string.");
+                    codeUnit = (codeUnit << 4) | digit;
+                }
+                return (char) codeUnit;
+            default:
+                throw new IOException("Invalid escape sequence in JSON string: " + describe(c) + ".");
+        }
+    }
+
+    private String readLiteral() throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        while (true)
+        {
+            final int c = peek();
+            if (c == EndOfStream || c == ',' || c == '}' || c == ']' || Character.isWhitespace(c))
+                break;
+            sb.append((char) read());
+        }
+        if (sb.length() == 0)
+            throw new IOException("Expected a JSON value but found " + describe(peek()) + ".");
+        return sb.toString();
+    }
+
+    private void skipWhitespace() throws IOException
+    {
+        while (Character.isWhitespace(peek()))
+        {
+            read();
+        }
+    }
+
+    private void expect(final char expected) throws IOException
+    {
+        final int c = read();
+        if (c != expected)
+            throw new IOException("Expected '" + expected + "' in JSON document but found " + describe(c) + ".");
+    }
+
+    private int peek() throws IOException
+    {
+        if (!hasPeeked)
+        {
+            peeked = reader.read();
+            hasPeeked = true;
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException
+    {
+        if (hasPeeked)
+        {
+            hasPeeked = false;
+            return peeked;
+        }
+        return reader.read();
+    }
+
+    private static String describe(final int c)
+    {
+        return c == EndOfStream ? "end of document" : "'" + (char) c + "'";
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Makes sure only one logon runs at a time for any given host, across threads and processes.
+ *
+ * Git can start many instances of the credential helper at once (i.e. when fetching submodules
+ * in parallel) and without coordination each of them would prompt the user and mint its own
+ * personal access token.  With a {@link LogonCoordinator}, the first one performs the logon
+ * while the others wait on a lock file and then pick up the credentials it stored.
+ */
+public final class LogonCoordinator
+{
+    private static final long PollIntervalMillis = 200;
+
+    private static final ConcurrentMap<String, ReentrantLock> InProcessLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final File lockDirectory;
+    private final long maxWaitMillis;
+
+    /**
+     * @param lockDirectory The directory in which to create the lock files.
+     * @param maxWaitMillis How long to wait for another logon to finish before attempting one anyway.
+     */
+    public LogonCoordinator(final File lockDirectory, final long maxWaitMillis)
+    {
+        if (lockDirectory == null)
+            throw new IllegalArgumentException("The `lockDirectory` parameter is null.");
+        if (maxWaitMillis < 0)
+            throw new IllegalArgumentException("The `maxWaitMillis` parameter is negative.");
+
+        this.lockDirectory = lockDirectory;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Runs the logon unless another thread or process completed one for the same host
+     * while this one was waiting its turn.
+     *
+     * @param targetUri  The resource for which the logon is being performed.
+     * @param completed  Invoked after having waited for someone else's logon; returns true if
+     *                   that logon produced usable credentials.
+     * @param logon      The logon to perform.
+     * @return The result of {@code logon}, or true if another logon completed in the meantime;
+     *         false if interrupted while waiting.
+     */
+    public boolean run(final URI targetUri, final Callable<Boolean> completed, final Callable<Boolean> logon)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+        Debug.Assert(completed != null, "The completed parameter is null");
+        Debug.Assert(logon != null, "The logon parameter is null");
+
+        Trace.writeLine("LogonCoordinator::run");
+
+        final File lockFile = new File(lockDirectory, getLockFileName(targetUri));
+        final ReentrantLock inProcessLock = getInProcessLock(lockFile.getAbsolutePath());
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+
+        boolean waited = false;
+        RandomAccessFile file = null;
+        FileLock fileLock = null;
+        try
+        {
+            if (!inProcessLock.tryLock())
+            {
+                Trace.writeLine("   waiting for a logon in progress in this process");
+                waited = true;
+                if (!inProcessLock.tryLock(remaining(deadline), TimeUnit.NANOSECONDS))
+                {
+                    Trace.writeLine("   timed out waiting; attempting logon anyway");
+                    return call(logon);
+                }
+            }
+            try
+            {
+                if (lockDirectory.isDirectory() || lockDirectory.mkdirs())
+                {
+                    file = new RandomAccessFile(lockFile, "rw");
+                    final FileChannel channel = file.getChannel();
+                    fileLock = channel.tryLock();
+                    if (fileLock == null)
+                    {
+                        Trace.writeLine("   waiting for a logon in progress in another process");
+                        waited = true;
+                        while (fileLock == null && remaining(deadline) > 0)
+                        {
+                            Thread.sleep(PollIntervalMillis);
+                            fileLock = channel.tryLock();
+                        }
+                        if (fileLock == null)
+                        {
+                            Trace.writeLine("   timed out waiting; attempting logon anyway");
+                        }
+                    }
+                }
+                else
+                {
+                    Trace.writeLine("   unable to create " + lockDirectory + "; logon will not be coordinated");
+                }
+
+                if (waited && call(completed))
+                {
+                    Trace.writeLine("   credentials were acquired by another logon");
+                    return true;
+                }
+                return call(logon);
+            }
+            finally
+            {
+                if (fileLock != null)
+                {
+                    fileLock.release();
+                }
+                IOHelper.closeQuietly(file);
+                inProcessLock.unlock();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Trace.writeLine("   interrupted while waiting for another logon");
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    static String getLockFileName(final URI targetUri)
+    {
+        final String name = targetUri.getScheme() + "_" + targetUri.getAuthority();
+        return name.replaceAll("[^A-Za-z0-9.\\-]", "_") + ".lock";
+    }
+
+    private static ReentrantLock getInProcessLock(final String key)
+    {
+        final ReentrantLock candidate = new ReentrantLock();
+        final ReentrantLock existing = InProcessLocks.putIfAbsent(key, candidate);
+        return existing != null ? existing : candidate;
+    }
+
+    private static long remaining(final long deadline)
+    {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+
+    private static boolean call(final Callable<Boolean> callable)
+    {
+        try
+        {
+            final Boolean result = callable.call();
+            return result != null && result;
+        }
+        catch (final RuntimeException e)
+        {
+            throw e;
+        }
+        catch (final Exception e)
+        {
+            throw new Error(e);
+        }
+    }
+}
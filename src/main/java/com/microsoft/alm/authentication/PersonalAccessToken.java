@@ -0,0 +1,34 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+
+import java.util.Calendar;
+
+/**
+ * A {@link Token} of type {@link TokenType#Personal} which also remembers
+ * when the service said it would stop being valid.
+ */
+final class PersonalAccessToken extends Token
+{
+    private final Calendar validTo;
+
+    PersonalAccessToken(final String value, final Calendar validTo)
+    {
+        super(value, TokenType.Personal);
+        this.validTo = validTo;
+    }
+
+    /**
+     * The instant after which the service will no longer accept this token.
+     *
+     * @return a Calendar representing the expiry; null if the service didn't say.
+     */
+    public Calendar getValidTo()
+    {
+        return validTo;
+    }
+}
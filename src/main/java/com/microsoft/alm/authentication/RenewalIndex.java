@@ -0,0 +1,274 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers, for each target URI, which authority issued the personal access token
+ * stored for it and when that token expires, so that tokens can be renewed before
+ * they expire instead of when a Git operation discovers they no longer work.
+ *
+ * The secrets themselves stay in the {@link SecretStore}; this index only holds metadata
+ * and is kept in a properties file that is re-read before every update, under a lock that
+ * other processes take too, so that several processes can share it.
+ */
+public final class RenewalIndex
+{
+    /**
+     * Identifies tokens issued through an Azure Directory tenant.
+     */
+    public static final String AzureDirectory = "aad";
+    /**
+     * Identifies tokens issued through a Microsoft Account.
+     */
+    public static final String MicrosoftAccount = "msa";
+
+    private static final String ValueSeparator = ",";
+
+    private final File file;
+
+    public RenewalIndex(final File file)
+    {
+        if (file == null)
+            throw new IllegalArgumentException("The `file` parameter is null.");
+
+        this.file = file;
+    }
+
+    /**
+     * Adds or updates the renewal information for a target.
+     *
+     * @param entry The entry to record; replaces any existing entry for the same target.
+     */
+    public synchronized void record(final Entry entry)
+    {
+        Debug.Assert(entry != null, "The entry parameter is null");
+
+        Trace.writeLine("RenewalIndex::record");
+        Trace.writeLine("   targetUri = " + entry.TargetUri);
+
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            properties.setProperty(entry.TargetUri.toString(), entry.toValue());
+            save(properties);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Forgets about a target, typically because its credentials were erased.
+     *
+     * @param targetUri The target whose entry is to be removed.
+     */
+    public synchronized void remove(final URI targetUri)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        Trace.writeLine("RenewalIndex::remove");
+
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            if (properties.remove(targetUri.toString()) != null)
+            {
+                save(properties);
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Lists the targets whose tokens expire before the specified instant.
+     * Targets whose expiry is unknown are never returned.
+     *
+     * @param instant The cut-off, in milliseconds since the epoch.
+     * @return A list of the entries due for renewal; possibly empty.
+     */
+    public synchronized List<Entry> getEntriesDueBefore(final long instant)
+    {
+        final List<Entry> result = new ArrayList<Entry>();
+        for (final Entry entry : getEntries())
+        {
+            if (entry.ValidTo != Entry.Unknown && entry.ValidTo < instant)
+            {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A list of all the entries in the index; possibly empty.
+     */
+    public synchronized List<Entry> getEntries()
+    {
+        final Properties properties = load();
+        final List<Entry> result = new ArrayList<Entry>(properties.size());
+        for (final Map.Entry<Object, Object> pair : properties.entrySet())
+        {
+            final Entry entry = Entry.fromValue((String) pair.getKey(), (String) pair.getValue());
+            if (entry != null)
+            {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Keeps other processes from changing the index until the result is closed.
+     */
+    private Closeable lock()
+    {
+        try
+        {
+            return FileHelper.lock(file);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private Properties load()
+    {
+        final Properties properties = new Properties();
+        if (file.isFile())
+        {
+            FileInputStream stream = null;
+            try
+            {
+                stream = new FileInputStream(file);
+                properties.load(stream);
+            }
+            catch (final IOException e)
+            {
+                // a corrupt index only costs us some early renewals; start over
+                Trace.writeLine("   unable to read " + file + ": " + e.getMessage());
+                properties.clear();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+        return properties;
+    }
+
+    private void save(final Properties properties)
+    {
+        try
+        {
+            FileHelper.replace(file, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    properties.store(stream, null);
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * The renewal information recorded for a single target.
+     */
+    public static final class Entry
+    {
+        /**
+         * The value of {@link #ValidTo} when the service didn't say when the token expires.
+         */
+        public static final long Unknown = -1;
+
+        public Entry(final URI targetUri, final String authority, final UUID tenantId, final long validTo)
+        {
+            if (targetUri == null)
+                throw new IllegalArgumentException("The `targetUri` parameter is null.");
+            if (!AzureDirectory.equals(authority) && !MicrosoftAccount.equals(authority))
+                throw new IllegalArgumentException("The `authority` parameter is invalid.");
+
+            TargetUri = targetUri;
+            Authority = authority;
+            TenantId = tenantId != null ? tenantId : Guid.Empty;
+            ValidTo = validTo;
+        }
+
+        /**
+         * The target for which the token was issued.
+         */
+        public final URI TargetUri;
+        /**
+         * Either {@link RenewalIndex#AzureDirectory} or {@link RenewalIndex#MicrosoftAccount}.
+         */
+        public final String Authority;
+        /**
+         * The Azure Directory tenant; {@link Guid#Empty} for Microsoft Accounts or when unknown.
+         */
+        public final UUID TenantId;
+        /**
+         * When the token expires, in milliseconds since the epoch, or {@link #Unknown}.
+         */
+        public final long ValidTo;
+
+        String toValue()
+        {
+            return Authority + ValueSeparator + TenantId + ValueSeparator + ValidTo;
+        }
+
+        static Entry fromValue(final String key, final String value)
+        {
+            if (StringHelper.isNullOrWhiteSpace(key) || StringHelper.isNullOrWhiteSpace(value))
+                return null;
+
+            final String[] parts = value.split(ValueSeparator);
+            if (parts.length != 3)
+                return null;
+
+            final AtomicReference<UUID> tenantId = new AtomicReference<UUID>();
+            if (!Guid.tryParse(parts[1], tenantId))
+                return null;
+
+            try
+            {
+                return new Entry(URI.create(key), parts[0], tenantId.get(), Long.parseLong(parts[2], 10));
+            }
+            catch (final IllegalArgumentException ignored)
+            {
+                // includes NumberFormatException and malformed URIs
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Func;
+import com.microsoft.alm.helpers.Trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renews personal access tokens recorded in a {@link RenewalIndex} before they expire,
+ * by exchanging the stored refresh token for a new access token and minting a new
+ * personal access token with it.
+ */
+public final class RenewalScheduler
+{
+    private final RenewalIndex renewalIndex;
+    private final Func<RenewalIndex.Entry, BaseVsoAuthentication> authenticationFactory;
+    private final long renewBeforeMillis;
+    private final int maxConcurrency;
+    private final long maxJitterMillis;
+    private final Random random = new Random();
+
+    /**
+     * @param renewalIndex          The index listing the tokens and their expiry.
+     * @param authenticationFactory Creates the authentication object to use to renew an entry.
+     * @param renewBeforeMillis     How long before its expiry a token is considered due.
+     * @param maxConcurrency        The maximum number of renewals to perform at the same time.
+     * @param maxJitterMillis       The upper bound of the random delay before each renewal,
+     *                              so that many clients don't hit the service in lock-step.
+     */
+    public RenewalScheduler(
+            final RenewalIndex renewalIndex,
+            final Func<RenewalIndex.Entry, BaseVsoAuthentication> authenticationFactory,
+            final long renewBeforeMillis,
+            final int maxConcurrency,
+            final long maxJitterMillis)
+    {
+        if (renewalIndex == null)
+            throw new IllegalArgumentException("The `renewalIndex` parameter is null.");
+        if (authenticationFactory == null)
+            throw new IllegalArgumentException("The `authenticationFactory` parameter is null.");
+        if (renewBeforeMillis < 0)
+            throw new IllegalArgumentException("The `renewBeforeMillis` parameter is negative.");
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("The `maxConcurrency` parameter must be at least 1.");
+        if (maxJitterMillis < 0)
+            throw new IllegalArgumentException("The `maxJitterMillis` parameter is negative.");
+
+        this.renewalIndex = renewalIndex;
+        this.authenticationFactory = authenticationFactory;
+        this.renewBeforeMillis = renewBeforeMillis;
+        this.maxConcurrency = maxConcurrency;
+        this.maxJitterMillis = maxJitterMillis;
+    }
+
+    /**
+     * Renews every token that expires within the renewal window.
+     *
+     * @return The number of tokens successfully renewed.
+     */
+    public int renewDue()
+    {
+        Trace.writeLine("RenewalScheduler::renewDue");
+
+        final long cutOff = System.currentTimeMillis() + renewBeforeMillis;
+        final List<RenewalIndex.Entry> dueEntries = renewalIndex.getEntriesDueBefore(cutOff);
+        Trace.writeLine("   " + dueEntries.size() + " token(s) due for renewal");
+        if (dueEntries.isEmpty())
+            return 0;
+
+        final List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>(dueEntries.size());
+        for (final RenewalIndex.Entry entry : dueEntries)
+        {
+            tasks.add(new Callable<Boolean>()
+            {
+                @Override public Boolean call() throws InterruptedException
+                {
+                    final long jitter = maxJitterMillis > 0 ? (long) (random.nextDouble() * maxJitterMillis) : 0;
+                    if (jitter > 0)
+                    {
+                        Thread.sleep(jitter);
+                    }
+                    return renew(entry);
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrency, tasks.size()));
+        int result = 0;
+        try
+        {
+            final List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (final Future<Boolean> future : futures)
+            {
+                try
+                {
+                    if (future.get())
+                    {
+                        result++;
+                    }
+                }
+                catch (final ExecutionException e)
+                {
+                    Trace.writeLine("   renewal failed: " + e.getCause());
+                }
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Trace.writeLine("   renewal interrupted");
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        Trace.writeLine("   " + result + " of " + dueEntries.size() + " token(s) renewed");
+        return result;
+    }
+
+    boolean renew(final RenewalIndex.Entry entry)
+    {
+        Trace.writeLine("RenewalScheduler::renew");
+        Trace.writeLine("   targetUri = " + entry.TargetUri);
+
+        try
+        {
+            final BaseVsoAuthentication authentication = authenticationFactory.call(entry);
+            authentication.setRenewalIndex(renewalIndex);
+            return authentication.refreshCredentials(entry.TargetUri, true);
+        }
+        catch (final RuntimeException e)
+        {
+            Trace.writeLine("   unable to renew: " + e.getMessage());
+        }
+        catch (final Error e)
+        {
+            // HTTP failures surface as Error; one bad target shouldn't stop the others
+            Trace.writeLine("   unable to renew: " + e.getMessage());
+        }
+        return false;
+    }
+}
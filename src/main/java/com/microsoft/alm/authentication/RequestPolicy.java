@@ -0,0 +1,480 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Action;
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FlightEvents;
+import com.microsoft.alm.helpers.HttpClient;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.helpers.TraceSpan;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLHandshakeException;
+
+/**
+ * Timeouts and retries for the HTTP requests sent to the authorities.
+ *
+ * Each {@link Endpoint} has its own policy, which can be set for one host; requests that fail
+ * with a transient error are retried with exponential backoff and full jitter until either the
+ * maximum number of retries is reached or the retry deadline has passed, whichever comes first.
+ */
+public final class RequestPolicy
+{
+    /**
+     * The end-points whose requests are governed by a policy, along with the
+     * prefix used to configure each of them.
+     */
+    public enum Endpoint
+    {
+        AuthorityDetection("detection"),
+        ConnectionData("connectiondata"),
+        LocationService("locationservice"),
+        SessionToken("sessiontoken"),
+        Token("token"),
+        DeviceCode("devicecode");
+
+        public final String ConfigurationName;
+        /** The phase that the trace records each attempt under. */
+        public final String SpanPhase;
+        /** The histogram that the duration of each attempt is recorded to. */
+        public final String MetricSeries;
+
+        Endpoint(final String configurationName)
+        {
+            this.ConfigurationName = configurationName;
+            this.SpanPhase = "http." + configurationName;
+            this.MetricSeries = Metrics.series("gcm_http_request_duration_seconds", "endpoint", configurationName);
+        }
+    }
+
+    /**
+     * What a request can safely be retried for.
+     */
+    public enum RetryMode
+    {
+        /**
+         * The request can be repeated without side effects; any transient failure is retried.
+         */
+        All,
+        /**
+         * The request has side effects (i.e. it mints a token), so it is only retried when
+         * the server can't have acted on it: connection failures, 429 and 503.
+         */
+        UnsentOnly,
+        /**
+         * Only I/O failures are retried; the caller deals with every HTTP status itself.
+         */
+        IOFailuresOnly
+    }
+
+    /**
+     * Sends one attempt of a request, applying the supplied configuration to the connection.
+     */
+    public interface Request
+    {
+        HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException;
+    }
+
+    public static final int DefaultRequestTimeoutMillis = 15 * 1000;
+    public static final int DefaultMaxRetries = 2;
+    public static final long DefaultInitialBackoffMillis = 500;
+    public static final long DefaultMaxBackoffMillis = 8 * 1000;
+    public static final long DefaultRetryDeadlineMillis = 60 * 1000;
+
+    public static final RequestPolicy Default = new RequestPolicy(
+            DefaultRequestTimeoutMillis,
+            DefaultMaxRetries,
+            DefaultInitialBackoffMillis,
+            DefaultMaxBackoffMillis,
+            DefaultRetryDeadlineMillis);
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /** The key under which the policies for every host are kept. */
+    private static final String AnyHost = "";
+
+    /** The policies of each host, by {@link CircuitBreaker#getKey(URI)}, and those of {@link #AnyHost}. */
+    private static final ConcurrentMap<String, Map<Endpoint, RequestPolicy>> Policies = new ConcurrentHashMap<String, Map<Endpoint, RequestPolicy>>();
+    private static final ConcurrentMap<Endpoint, AtomicInteger> RetryCounts = new ConcurrentHashMap<Endpoint, AtomicInteger>();
+    private static final Random Jitter = new Random();
+    private static volatile CircuitBreaker circuitBreaker;
+
+    /**
+     * How long to wait, in milliseconds, for a connection to be established and then for data to arrive.
+     */
+    public final int RequestTimeoutMillis;
+    /**
+     * How many times a request is re-sent after a transient failure.
+     */
+    public final int MaxRetries;
+    /**
+     * The upper bound of the delay before the first retry; doubled for each subsequent retry.
+     */
+    public final long InitialBackoffMillis;
+    /**
+     * The upper bound of the delay between any two attempts.
+     */
+    public final long MaxBackoffMillis;
+    /**
+     * No attempt is started, and no attempt is allowed to run, past this long after the first one.
+     */
+    public final long RetryDeadlineMillis;
+
+    public RequestPolicy(final int requestTimeoutMillis, final int maxRetries, final long initialBackoffMillis, final long maxBackoffMillis, final long retryDeadlineMillis)
+    {
+        if (requestTimeoutMillis <= 0)
+            throw new IllegalArgumentException("The `requestTimeoutMillis` parameter must be positive.");
+        if (maxRetries < 0)
+            throw new IllegalArgumentException("The `maxRetries` parameter is negative.");
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis)
+            throw new IllegalArgumentException("The backoff parameters are invalid.");
+        if (retryDeadlineMillis <= 0)
+            throw new IllegalArgumentException("The `retryDeadlineMillis` parameter must be positive.");
+
+        this.RequestTimeoutMillis = requestTimeoutMillis;
+        this.MaxRetries = maxRetries;
+        this.InitialBackoffMillis = initialBackoffMillis;
+        this.MaxBackoffMillis = maxBackoffMillis;
+        this.RetryDeadlineMillis = retryDeadlineMillis;
+    }
+
+    /**
+     * @return the policy in effect for the end-point on every host; {@link #Default} unless one was set.
+     */
+    public static RequestPolicy get(final Endpoint endpoint)
+    {
+        return get(endpoint, null);
+    }
+
+    /**
+     * @param uri Any URI on the host the request is sent to; null for the policy of every host.
+     * @return the policy in effect for the end-point on the host, or else the one for every host;
+     *         {@link #Default} unless one was set.
+     */
+    public static RequestPolicy get(final Endpoint endpoint, final URI uri)
+    {
+        Debug.Assert(endpoint != null, "The endpoint parameter is null");
+
+        if (uri != null && uri.getAuthority() != null)
+        {
+            final Map<Endpoint, RequestPolicy> hostPolicies = Policies.get(CircuitBreaker.getKey(uri));
+            final RequestPolicy result = hostPolicies != null ? hostPolicies.get(endpoint) : null;
+            if (result != null)
+                return result;
+        }
+        final Map<Endpoint, RequestPolicy> anyHostPolicies = Policies.get(AnyHost);
+        final RequestPolicy result = anyHostPolicies != null ? anyHostPolicies.get(endpoint) : null;
+        return result != null ? result : Default;
+    }
+
+    /**
+     * Sets the policy of the end-point on every host that has none of its own.
+     *
+     * @param policy The policy; null to go back to {@link #Default}.
+     */
+    public static void set(final Endpoint endpoint, final RequestPolicy policy)
+    {
+        set(null, endpoint, policy);
+    }
+
+    /**
+     * Sets the policy of the end-point on one host, which requests sent to other hosts at the
+     * same time, i.e. by the {@code serve} command on behalf of another target, don't use.
+     *
+     * @param uri    Any URI on the host; null to set the policy of every host.
+     * @param policy The policy; null to go back to the one of every host.
+     */
+    public static void set(final URI uri, final Endpoint endpoint, final RequestPolicy policy)
+    {
+        Debug.Assert(endpoint != null, "The endpoint parameter is null");
+
+        final String key = uri != null && uri.getAuthority() != null ? CircuitBreaker.getKey(uri) : AnyHost;
+        Map<Endpoint, RequestPolicy> hostPolicies = Policies.get(key);
+        if (hostPolicies == null)
+        {
+            final Map<Endpoint, RequestPolicy> candidate = new ConcurrentHashMap<Endpoint, RequestPolicy>();
+            final Map<Endpoint, RequestPolicy> raced = Policies.putIfAbsent(key, candidate);
+            hostPolicies = raced != null ? raced : candidate;
+        }
+        if (policy == null)
+        {
+            hostPolicies.remove(endpoint);
+        }
+        else
+        {
+            hostPolicies.put(endpoint, policy);
+        }
+    }
+
+    /**
+     * Sets the {@link CircuitBreaker} consulted before, and informed after, every request.
+     *
+     * @param breaker The breaker to use; null to always send requests.
+     */
+    public static void setCircuitBreaker(final CircuitBreaker breaker)
+    {
+        circuitBreaker = breaker;
+    }
+
+    public static CircuitBreaker getCircuitBreaker()
+    {
+        return circuitBreaker;
+    }
+
+    /**
+     * @return the number of retries performed against the end-point since the process started.
+     */
+    public static int getRetryCount(final Endpoint endpoint)
+    {
+        final AtomicInteger count = RetryCounts.get(endpoint);
+        return count != null ? count.get() : 0;
+    }
+
+    /**
+     * @return the end-points against which at least one retry was performed, with their counts.
+     */
+    public static Map<Endpoint, Integer> getRetryCounts()
+    {
+        final Map<Endpoint, Integer> result = new EnumMap<Endpoint, Integer>(Endpoint.class);
+        for (final Map.Entry<Endpoint, AtomicInteger> entry : RetryCounts.entrySet())
+        {
+            final int count = entry.getValue().get();
+            if (count > 0)
+            {
+                result.put(entry.getKey(), count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sends a request to an end-point under the policy configured for it on the host.
+     *
+     * @param endpoint  The end-point the request is sent to.
+     * @param uri       The URI the request is sent to, identifying the host's policy and circuit.
+     * @param retryMode What the request can safely be retried for.
+     * @param request   Sends one attempt of the request.
+     * @return The connection of the last attempt, whose response code has already been read.
+     * @throws IOException The last attempt failed and no more retries are allowed, or the
+     *                     host's circuit is open.
+     */
+    public static HttpURLConnection send(final Endpoint endpoint, final URI uri, final RetryMode retryMode, final Request request) throws IOException
+    {
+        final RequestPolicy policy = get(endpoint, uri);
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null)
+            return policy.execute(endpoint, uri, retryMode, request);
+
+        if (!breaker.allowRequest(uri))
+        {
+            breaker.probeInBackground(uri);
+            throw new IOException("Not sending a request to " + uri.getHost() + "; it has been unreachable recently.");
+        }
+        final HttpURLConnection result;
+        try
+        {
+            result = policy.execute(endpoint, uri, retryMode, request);
+        }
+        catch (final IOException e)
+        {
+            breaker.recordFailure(uri);
+            throw e;
+        }
+        if (result.getResponseCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR)
+        {
+            breaker.recordFailure(uri);
+        }
+        else
+        {
+            breaker.recordSuccess(uri);
+        }
+        return result;
+    }
+
+    HttpURLConnection execute(final Endpoint endpoint, final RetryMode retryMode, final Request request) throws IOException
+    {
+        return execute(endpoint, null, retryMode, request);
+    }
+
+    HttpURLConnection execute(final Endpoint endpoint, final URI uri, final RetryMode retryMode, final Request request) throws IOException
+    {
+        Debug.Assert(endpoint != null, "The endpoint parameter is null");
+        Debug.Assert(retryMode != null, "The retryMode parameter is null");
+        Debug.Assert(request != null, "The request parameter is null");
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RetryDeadlineMillis);
+        int attempt = 0;
+        while (true)
+        {
+            final int timeoutMillis = (int) Math.max(1, Math.min(RequestTimeoutMillis, remainingMillis(deadline)));
+            final Action<HttpURLConnection> configure = new Action<HttpURLConnection>()
+            {
+                @Override public void call(final HttpURLConnection conn)
+                {
+                    conn.setConnectTimeout(timeoutMillis);
+                    conn.setReadTimeout(timeoutMillis);
+                }
+            };
+
+            final HttpURLConnection connection;
+            final int httpStatus;
+            final TraceSpan span = TraceSpan.start(endpoint.SpanPhase);
+            final FlightEvents.Sink jfr = FlightEvents.active();
+            final Object event = jfr == null ? null : jfr.beginAuthorityRequest();
+            final String host = uri == null ? null : uri.getHost();
+            try
+            {
+                connection = request.send(configure);
+                httpStatus = connection.getResponseCode();
+                Metrics.recordNanos(endpoint.MetricSeries, span.end("HTTP " + httpStatus));
+                if (event != null)
+                {
+                    jfr.commitAuthorityRequest(event, endpoint.ConfigurationName, host, attempt + 1, httpStatus, null);
+                }
+            }
+            catch (final IOException e)
+            {
+                Metrics.recordNanos(endpoint.MetricSeries, span.end(e.getClass().getSimpleName()));
+                if (event != null)
+                {
+                    jfr.commitAuthorityRequest(event, endpoint.ConfigurationName, host, attempt + 1, -1, e.getClass().getName());
+                }
+                if (!isRetryable(e, retryMode))
+                    throw e;
+                final long delayMillis = computeBackoffMillis(attempt, InitialBackoffMillis, MaxBackoffMillis, Jitter);
+                if (!canRetry(attempt, delayMillis, deadline))
+                {
+                    Trace.writeLine("   " + endpoint.ConfigurationName + " request failed after " + (attempt + 1) + " attempt(s): " + e);
+                    throw e;
+                }
+                Trace.writeLine("   " + endpoint.ConfigurationName + " request failed (" + e + "); retry " + (attempt + 1) + " of " + MaxRetries + " in " + delayMillis + " ms");
+                attempt = backOff(endpoint, attempt, delayMillis);
+                continue;
+            }
+
+            if (!isRetryable(httpStatus, retryMode))
+                return connection;
+            final long retryAfterMillis = DeviceFlowImpl.parseRetryAfterMillis(connection.getHeaderField("Retry-After"));
+            final long delayMillis = retryAfterMillis >= 0
+                    ? retryAfterMillis
+                    : computeBackoffMillis(attempt, InitialBackoffMillis, MaxBackoffMillis, Jitter);
+            if (!canRetry(attempt, delayMillis, deadline))
+                return connection;
+
+            Trace.writeLine("   " + endpoint.ConfigurationName + " returned HTTP " + httpStatus + "; retry " + (attempt + 1) + " of " + MaxRetries + " in " + delayMillis + " ms");
+            drain(connection);
+            attempt = backOff(endpoint, attempt, delayMillis);
+        }
+    }
+
+    private boolean canRetry(final int attempt, final long delayMillis, final long deadline)
+    {
+        return attempt < MaxRetries && delayMillis < remainingMillis(deadline);
+    }
+
+    private static int backOff(final Endpoint endpoint, final int attempt, final long delayMillis) throws IOException
+    {
+        final AtomicInteger candidate = new AtomicInteger();
+        final AtomicInteger existing = RetryCounts.putIfAbsent(endpoint, candidate);
+        (existing != null ? existing : candidate).incrementAndGet();
+
+        try
+        {
+            Thread.sleep(delayMillis);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            final IOException ioe = new IOException("Interrupted while waiting to retry a request to " + endpoint.ConfigurationName + ".");
+            ioe.initCause(e);
+            throw ioe;
+        }
+        return attempt + 1;
+    }
+
+    static boolean isRetryable(final int httpStatus, final RetryMode retryMode)
+    {
+        switch (retryMode)
+        {
+            case All:
+                return httpStatus == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                        || httpStatus == HTTP_TOO_MANY_REQUESTS
+                        || httpStatus == HttpURLConnection.HTTP_INTERNAL_ERROR
+                        || httpStatus == HttpURLConnection.HTTP_BAD_GATEWAY
+                        || httpStatus == HttpURLConnection.HTTP_UNAVAILABLE
+                        || httpStatus == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+            case UnsentOnly:
+                return httpStatus == HTTP_TOO_MANY_REQUESTS
+                        || httpStatus == HttpURLConnection.HTTP_UNAVAILABLE;
+            default:
+                return false;
+        }
+    }
+
+    static boolean isRetryable(final IOException e, final RetryMode retryMode)
+    {
+        // a misspelled host or an untrusted certificate won't fix itself
+        if (e instanceof UnknownHostException || e instanceof SSLHandshakeException)
+            return false;
+        if (retryMode == RetryMode.UnsentOnly)
+            return e instanceof ConnectException || e instanceof NoRouteToHostException;
+        return true;
+    }
+
+    /**
+     * Computes the delay before a retry using "full jitter": a random value between zero and
+     * the exponentially growing upper bound, so that clients failing together don't retry together.
+     */
+    static long computeBackoffMillis(final int attempt, final long initialBackoffMillis, final long maxBackoffMillis, final Random random)
+    {
+        if (initialBackoffMillis <= 0)
+            return 0;
+        final int shift = Math.min(attempt, 30);
+        final long ceiling = Math.min(maxBackoffMillis, initialBackoffMillis << shift);
+        return (long) (random.nextDouble() * ceiling);
+    }
+
+    private static long remainingMillis(final long deadline)
+    {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private static void drain(final HttpURLConnection connection)
+    {
+        // reading the error body lets the connection go back to the keep-alive pool
+        try
+        {
+            final InputStream errorStream = connection.getErrorStream();
+            if (errorStream != null)
+            {
+                HttpClient.readToString(errorStream);
+            }
+        }
+        catch (final IOException ignored)
+        {
+            // the next attempt will use a new connection
+        }
+    }
+
+    @Override public String toString()
+    {
+        return String.format("requestTimeout=%1$d ms, maxRetries=%2$d, retryDeadline=%3$d ms",
+                RequestTimeoutMillis, MaxRetries, RetryDeadlineMillis);
+    }
+}
@@ -4,6 +4,7 @@
 package com.microsoft.alm.authentication;
 
 import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.Metrics;
 import com.microsoft.alm.helpers.ObjectExtensions;
 import com.microsoft.alm.helpers.StringHelper;
 import com.microsoft.alm.helpers.Trace;
@@ -24,6 +25,8 @@ final class SecretCache implements ICredentialStore, ITokenStore
     }
 
     private static final Map<String, Secret> _cache;
+    static final String CacheHits = Metrics.series("gcm_secret_cache_reads_total", "result", "hit");
+    static final String CacheMisses = Metrics.series("gcm_secret_cache_reads_total", "result", "miss");
 
     public SecretCache(final String namespace) { this(namespace,  null); }
 
@@ -109,7 +112,9 @@ final class SecretCache implements ICredentialStore, ITokenStore
             }
         }
 
-        return credentials.get() != null;
+        final boolean found = credentials.get() != null;
+        Metrics.increment(found ? CacheHits : CacheMisses);
+        return found;
     }
 
     /**
@@ -139,7 +144,9 @@ final class SecretCache implements ICredentialStore, ITokenStore
             }
         }
 
-        return token.get() != null;
+        final boolean found = token.get() != null;
+        Metrics.increment(found ? CacheHits : CacheMisses);
+        return found;
     }
 
     /**
@@ -184,6 +191,41 @@ final class SecretCache implements ICredentialStore, ITokenStore
         }
     }
 
+    /**
+     * @return a copy of every cached secret, by target name.
+     */
+    static Map<String, Secret> getEntries()
+    {
+        synchronized (_cache)
+        {
+            return new TreeMap<String, Secret>(_cache);
+        }
+    }
+
+    /**
+     * Adds secrets to the cache, such as the ones of a snapshot, leaving alone the ones
+     * already cached, which are at least as recent.
+     *
+     * @param entries The secrets, by target name.
+     * @return how many were added.
+     */
+    static int addEntries(final Map<String, Secret> entries)
+    {
+        int result = 0;
+        synchronized (_cache)
+        {
+            for (final Map.Entry<String, Secret> entry : entries.entrySet())
+            {
+                if (!_cache.containsKey(entry.getKey()))
+                {
+                    _cache.put(entry.getKey(), entry.getValue());
+                    result++;
+                }
+            }
+        }
+        return result;
+    }
+
     /**
      * Formats a TargetName string based on the TargetUri based on the format started by git-credential-winstore
      *
@@ -196,6 +238,6 @@ final class SecretCache implements ICredentialStore, ITokenStore
 
         Trace.writeLine("SecretCache::_getTargetName");
 
-        return _getTargetName.convert(targetUri, _namespace);
+        return BaseSecureStore.appendPath(_getTargetName.convert(targetUri, _namespace), targetUri);
     }
 }
@@ -7,6 +7,7 @@ import com.microsoft.alm.helpers.Debug;
 import com.microsoft.alm.helpers.ObjectExtensions;
 import com.microsoft.alm.helpers.StringHelper;
 import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.helpers.TraceSpan;
 import com.microsoft.alm.secret.Credential;
 import com.microsoft.alm.secret.Secret;
 import com.microsoft.alm.secret.Token;
@@ -35,6 +36,25 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
      * @param getTargetName   The {@link Secret.IUriNameConversion} implementation to use for converting URIs to names.
      */
     public SecretStore(final ISecureStore backingStore, final String namespace, final ICredentialStore credentialCache, final ITokenStore tokenCache, final Secret.IUriNameConversion getTargetName)
+    {
+        this(backingStore, namespace, credentialCache, tokenCache, getTargetName, null);
+    }
+
+    /**
+     * Creates a new {@link SecretStore} backed by the specified keychain /
+     * secrets vault, which reads the most specific secret stored for a path.
+     *
+     * @param backingStore    The {@link ISecureStore} implementation to use for actually storing secrets.
+     * @param namespace       The namespace of the secrets written and read by this store.
+     * @param credentialCache (optional) Write-through, read-first cache. Default cache is used if a custom cache is
+     *                        not provided.
+     * @param tokenCache      (optional) Write-through, read-first cache. Default cache is used if a custom cache is
+     *                        not provided.
+     * @param getTargetName   The {@link Secret.IUriNameConversion} implementation to use for converting URIs to names.
+     * @param pathIndex       (optional) The targets with a path that have secrets in this namespace.  Without one,
+     *                        targets with a path only find the secret stored for that exact path.
+     */
+    public SecretStore(final ISecureStore backingStore, final String namespace, final ICredentialStore credentialCache, final ITokenStore tokenCache, final Secret.IUriNameConversion getTargetName, final TargetPathIndex pathIndex)
     {
         super(backingStore);
         if (StringHelper.isNullOrWhiteSpace(namespace) || StringHelper.indexOfAny(namespace, IllegalCharacters) != -1)
@@ -45,11 +65,13 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
         _namespace = namespace;
         _credentialCache = credentialCache != null ? credentialCache : new SecretCache(namespace, _getTargetName);
         _tokenCache = tokenCache != null ? tokenCache : new SecretCache(namespace, _getTargetName);
+        _pathIndex = pathIndex;
     }
 
     private String _namespace;
     private ICredentialStore _credentialCache;
     private ITokenStore _tokenCache;
+    private final TargetPathIndex _pathIndex;
 
     private final Secret.IUriNameConversion _getTargetName;
 
@@ -64,11 +86,14 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
 
         Trace.writeLine("SecretStore::deleteCredentials");
 
-        final String targetName = this.getTargetName(targetUri);
+        // delete whatever a read would have returned
+        final URI storedUri = resolve(targetUri);
+        final String targetName = this.getTargetName(storedUri);
 
         this.delete(targetName);
 
-        _credentialCache.deleteCredentials(targetUri);
+        _credentialCache.deleteCredentials(storedUri);
+        unindex(storedUri);
     }
 
     /**
@@ -82,10 +107,12 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
 
         Trace.writeLine("SecretStore::deleteToken");
 
-        final String targetName = this.getTargetName(targetUri);
+        final URI storedUri = resolve(targetUri);
+        final String targetName = this.getTargetName(storedUri);
 
         this.delete(targetName);
-        _tokenCache.deleteToken(targetUri);
+        _tokenCache.deleteToken(storedUri);
+        unindex(storedUri);
     }
 
     /**
@@ -99,16 +126,26 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
     {
         validateTargetUri(targetUri);
 
-        final String targetName = this.getTargetName(targetUri);
-
         Trace.writeLine("SecretStore::readCredentials");
 
-        if (!_credentialCache.readCredentials(targetUri, credentials))
+        final TraceSpan span = TraceSpan.start("store.read");
+        try
         {
-            credentials.set(this.readCredentials(targetName));
+            final URI storedUri = resolve(targetUri);
+            final String targetName = this.getTargetName(storedUri);
+            if (!_credentialCache.readCredentials(storedUri, credentials))
+            {
+                credentials.set(this.readCredentials(targetName));
+            }
+
+            final boolean found = credentials.get() != null;
+            span.end(found ? "found" : "missing");
+            return found;
+        }
+        finally
+        {
+            span.close();
         }
-
-        return credentials.get() != null;
     }
 
     /**
@@ -126,13 +163,24 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
 
         token.set(null);
 
-        if (!_tokenCache.readToken(targetUri, token))
+        final TraceSpan span = TraceSpan.start("store.read");
+        try
         {
-            final String targetName = this.getTargetName(targetUri);
-            token.set(readToken(targetName));
+            final URI storedUri = resolve(targetUri);
+            if (!_tokenCache.readToken(storedUri, token))
+            {
+                final String targetName = this.getTargetName(storedUri);
+                token.set(readToken(targetName));
+            }
+
+            final boolean found = token.get() != null;
+            span.end(found ? "found" : "missing");
+            return found;
+        }
+        finally
+        {
+            span.close();
         }
-
-        return token.get() != null;
     }
 
     /**
@@ -153,6 +201,7 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
         this.writeCredential(targetName, credentials);
 
         _credentialCache.writeCredentials(targetUri, credentials);
+        index(targetUri);
     }
 
     /**
@@ -173,6 +222,7 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
         _tokenCache.writeToken(targetUri, token);
 
         this.writeToken(targetName, token);
+        index(targetUri);
     }
 
     @Override protected String getTargetName(final URI targetUri)
@@ -182,6 +232,39 @@ public final class SecretStore extends BaseSecureStore implements ICredentialSto
 
         Trace.writeLine("SecretStore::getTargetName");
 
-        return _getTargetName.convert(targetUri, _namespace);
+        return appendPath(_getTargetName.convert(targetUri, _namespace), targetUri);
+    }
+
+    /**
+     * Finds the target whose secret applies to the specified target, which is the target
+     * itself unless it has a path and there's a path index.
+     */
+    private URI resolve(final URI targetUri)
+    {
+        if (_pathIndex == null || !TargetPathIndex.hasPath(targetUri))
+            return targetUri;
+
+        final URI result = _pathIndex.findMostSpecific(targetUri);
+        if (!result.equals(targetUri))
+        {
+            Trace.writeLine("   using the secret stored for %1$s", result);
+        }
+        return result;
+    }
+
+    private void index(final URI targetUri)
+    {
+        if (_pathIndex != null)
+        {
+            _pathIndex.add(targetUri);
+        }
+    }
+
+    private void unindex(final URI targetUri)
+    {
+        if (_pathIndex != null)
+        {
+            _pathIndex.remove(targetUri);
+        }
     }
 }
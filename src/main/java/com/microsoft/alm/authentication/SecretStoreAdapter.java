@@ -3,6 +3,7 @@
 
 package com.microsoft.alm.authentication;
 
+import com.microsoft.alm.helpers.FlightEvents;
 import com.microsoft.alm.secret.Credential;
 import com.microsoft.alm.secret.Token;
 
@@ -25,6 +26,9 @@ public class SecretStoreAdapter implements ISecureStore
     @Override
     public void delete(final String targetName)
     {
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
+        boolean found = true;
         if (tokenSecretStore.get(targetName) != null)
         {
             tokenSecretStore.delete(targetName);
@@ -33,29 +37,63 @@ public class SecretStoreAdapter implements ISecureStore
         {
             credentialSecretStore.delete(targetName);
         }
+        else
+        {
+            found = false;
+        }
+        if (event != null)
+        {
+            jfr.commitSecureStoreAccess(event, "delete", targetName, found);
+        }
     }
 
     @Override
     public Credential readCredentials(final String targetName)
     {
-        return credentialSecretStore.get(targetName);
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
+        final Credential result = credentialSecretStore.get(targetName);
+        if (event != null)
+        {
+            jfr.commitSecureStoreAccess(event, "readCredentials", targetName, result != null);
+        }
+        return result;
     }
 
     @Override
     public Token readToken(final String targetName)
     {
-        return tokenSecretStore.get(targetName);
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
+        final Token result = tokenSecretStore.get(targetName);
+        if (event != null)
+        {
+            jfr.commitSecureStoreAccess(event, "readToken", targetName, result != null);
+        }
+        return result;
     }
 
     @Override
     public void writeCredential(final String targetName, final Credential credentials)
     {
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
         credentialSecretStore.add(targetName, credentials);
+        if (event != null)
+        {
+            jfr.commitSecureStoreAccess(event, "writeCredential", targetName, true);
+        }
     }
 
     @Override
     public void writeToken(final String targetName, final Token token)
     {
+        final FlightEvents.Sink jfr = FlightEvents.active();
+        final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
         tokenSecretStore.add(targetName, token);
+        if (event != null)
+        {
+            jfr.commitSecureStoreAccess(event, "writeToken", targetName, true);
+        }
     }
 }
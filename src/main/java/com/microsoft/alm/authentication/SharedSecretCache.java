@@ -0,0 +1,734 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Secret;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Puts a cache shared by every helper process of the user in front of a secure store, so
+ * that concurrent Git operations on the same machine don't each have to ask the keyring for
+ * the same secrets, and without a process of its own to hold them.
+ * <p>
+ * The cache is a hash table of fixed-size slots in a file of fixed size, mapped into memory by
+ * each process, in a folder only the user can read, such as {@code $XDG_RUNTIME_DIR}, which
+ * goes away when the user logs out.  Beside it is the key of the session: entries are
+ * encrypted with AES-128 and carry an HMAC-SHA256, both keyed from it.  Whoever can read the
+ * folder can read the key, so the encryption keeps the secrets out of whatever the table file
+ * alone ends up in, not away from the user's own processes.
+ * <p>
+ * Entries are looked up without a lock.  Each slot starts with a sequence number, which a
+ * writer makes odd while it changes the slot and even again once it's done; a reader copies
+ * the slot and only uses the copy if the sequence number was even and didn't change.  Java
+ * offers no fences over mapped memory, so that alone can't rule out a torn read: the HMAC of
+ * the entry, checked before it's used, is what does.  Writers take a lock on the file, so the
+ * rarer writes of all the processes take turns.
+ * <p>
+ * The header also holds a generation, which every removal increments under the write lock.  A
+ * process that missed reads the generation before it reads the store behind the cache, and
+ * doesn't cache what it read if the generation changed meanwhile: the secret may have been
+ * erased by another process since, which Git does to the credentials it rejects before asking
+ * for new ones.
+ * <p>
+ * A slot whose target name hashes elsewhere in a full window is overwritten, the entry that
+ * expires first going first, and an entry too large for a slot isn't cached; either way the
+ * secret is read from the store behind the cache, as if it had never been cached.
+ */
+public class SharedSecretCache implements ISecureStore
+{
+    static final String CacheHits = Metrics.series("gcm_shared_cache_reads_total", "result", "hit");
+    static final String CacheMisses = Metrics.series("gcm_shared_cache_reads_total", "result", "miss");
+    static final String TornReads = "gcm_shared_cache_torn_reads_total";
+
+    static final String TableFileName = "secrets.cache";
+    static final String KeyFileName = "secrets.key";
+    static final int FormatVersion = 2;
+    static final int SlotSize = 4096;
+    static final int SlotCount = 1024;
+    /** How many slots, starting at its own, a target name may end up in. */
+    static final int ProbeWindow = 8;
+    /** How many times a reader copies a slot a writer is changing before giving up on it. */
+    private static final int ReadAttempts = 4;
+
+    private static final byte[] Magic = {'G', 'C', 'M', 'H'};
+    // the header fills the first slot, so that the others are page-aligned
+    private static final int HeaderLength = SlotSize;
+    private static final int KeyCheckOffset = 16;
+    private static final int KeyCheckLength = 16;
+    private static final int GenerationOffset = KeyCheckOffset + KeyCheckLength;
+    private static final long TableLength = HeaderLength + (long) SlotSize * SlotCount;
+
+    // the layout of a slot
+    private static final int SequenceOffset = 0;
+    private static final int LengthOffset = 4;
+    private static final int TagOffset = 8;
+    private static final int ExpiresOffset = 16;
+    private static final int IvOffset = 24;
+    private static final int IvLength = 16;
+    private static final int MacOffset = IvOffset + IvLength;
+    private static final int MacLength = 32;
+    private static final int CipherTextOffset = MacOffset + MacLength;
+    static final int MaxCipherTextLength = SlotSize - CipherTextOffset;
+
+    private static final byte CredentialKind = 0;
+    private static final byte TokenKind = 1;
+    private static final String CipherAlgorithm = "AES/CBC/PKCS5Padding";
+    private static final String MacAlgorithm = "HmacSHA256";
+    /**
+     * A JVM can't take two locks on the same region of a file, so the instances of a process
+     * take turns before they do.
+     */
+    private static final Object ProcessLock = new Object();
+
+    private final ISecureStore backingStore;
+    private final long timeToLiveMillis;
+    private final FileChannel channel;
+    private final MappedByteBuffer table;
+    private final SecretKeySpec encryptionKey;
+    private final SecretKeySpec authenticationKey;
+
+    /**
+     * Opens the cache in the folder, creating it and the key if need be.
+     *
+     * @param backingStore    The store secrets are read from when they aren't cached, and
+     *                        written to.
+     * @param folder          A folder only the user can read, which should go away when the
+     *                        user logs out.
+     * @param timeToLiveMillis How long secrets are cached, so that changes made behind the
+     *                        cache's back end up being noticed.
+     */
+    public SharedSecretCache(final ISecureStore backingStore, final File folder, final long timeToLiveMillis) throws IOException
+    {
+        if (backingStore == null)
+            throw new IllegalArgumentException("The `backingStore` parameter is null.");
+        if (timeToLiveMillis <= 0)
+            throw new IllegalArgumentException("The `timeToLiveMillis` parameter must be positive.");
+
+        Trace.writeLine("SharedSecretCache::SharedSecretCache");
+
+        this.backingStore = backingStore;
+        this.timeToLiveMillis = timeToLiveMillis;
+
+        if (!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Unable to create " + folder);
+        FileHelper.restrictToOwner(folder);
+        final File tableFile = new File(folder, TableFileName);
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(tableFile, "rw");
+        FileHelper.restrictToOwner(tableFile);
+        boolean opened = false;
+        try
+        {
+            channel = randomAccessFile.getChannel();
+            final byte[] key;
+            synchronized (ProcessLock)
+            {
+                final FileLock lock = channel.lock();
+                try
+                {
+                    key = readOrCreateKey(new File(folder, KeyFileName));
+                    encryptionKey = CacheSnapshot.deriveKey(key, "encryption", "AES", 16);
+                    authenticationKey = CacheSnapshot.deriveKey(key, "authentication", MacAlgorithm, 32);
+                    final long length = randomAccessFile.length();
+                    if (length != TableLength)
+                    {
+                        // written by another version, if anything
+                        randomAccessFile.setLength(0);
+                    }
+                    table = channel.map(FileChannel.MapMode.READ_WRITE, 0, TableLength);
+                    if (!isInitialized())
+                    {
+                        Trace.writeLine("   initializing " + tableFile);
+                        initialize();
+                    }
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            opened = true;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+        finally
+        {
+            if (!opened)
+            {
+                IOHelper.closeQuietly(randomAccessFile);
+            }
+        }
+    }
+
+    @Override
+    public void delete(final String targetName)
+    {
+        Trace.writeLine("SharedSecretCache::delete");
+
+        backingStore.delete(targetName);
+        remove(CredentialKind, targetName);
+        remove(TokenKind, targetName);
+    }
+
+    @Override
+    public Credential readCredentials(final String targetName)
+    {
+        Trace.writeLine("SharedSecretCache::readCredentials");
+
+        final Secret cached = find(CredentialKind, targetName);
+        if (cached != null)
+            return (Credential) cached;
+        final long generation = getGeneration();
+        final Credential result = backingStore.readCredentials(targetName);
+        if (result != null)
+        {
+            put(CredentialKind, targetName, result, generation);
+        }
+        return result;
+    }
+
+    @Override
+    public Token readToken(final String targetName)
+    {
+        Trace.writeLine("SharedSecretCache::readToken");
+
+        final Secret cached = find(TokenKind, targetName);
+        if (cached != null)
+            return (Token) cached;
+        final long generation = getGeneration();
+        final Token result = backingStore.readToken(targetName);
+        if (result != null)
+        {
+            put(TokenKind, targetName, result, generation);
+        }
+        return result;
+    }
+
+    @Override
+    public void writeCredential(final String targetName, final Credential credentials)
+    {
+        Trace.writeLine("SharedSecretCache::writeCredential");
+
+        final long generation = getGeneration();
+        backingStore.writeCredential(targetName, credentials);
+        put(CredentialKind, targetName, credentials, generation);
+    }
+
+    @Override
+    public void writeToken(final String targetName, final Token token)
+    {
+        Trace.writeLine("SharedSecretCache::writeToken");
+
+        final long generation = getGeneration();
+        backingStore.writeToken(targetName, token);
+        put(TokenKind, targetName, token, generation);
+    }
+
+    /**
+     * Lets go of the file; the mapping itself lasts until it's garbage collected.
+     */
+    public void close()
+    {
+        IOHelper.closeQuietly(channel);
+    }
+
+    private Secret find(final byte kind, final String targetName)
+    {
+        final long tag = computeTag(kind, targetName);
+        final int home = homeSlot(tag);
+        final byte[] copy = new byte[SlotSize];
+        for (int i = 0; i < ProbeWindow; i++)
+        {
+            final int offset = slotOffset((home + i) % SlotCount);
+            if (table.getLong(offset + TagOffset) != tag)
+                continue;
+            if (!readSlot(offset, copy))
+                continue;
+            final Secret result = decrypt(copy, kind, targetName);
+            if (result != null)
+            {
+                Metrics.increment(CacheHits);
+                return result;
+            }
+        }
+        Metrics.increment(CacheMisses);
+        return null;
+    }
+
+    /**
+     * Copies a slot whose writer isn't changing it and checks its HMAC and expiry.
+     *
+     * @return whether the copy can be decrypted.
+     */
+    private boolean readSlot(final int offset, final byte[] copy)
+    {
+        for (int attempt = 0; attempt < ReadAttempts; attempt++)
+        {
+            final int before = table.getInt(offset + SequenceOffset);
+            final int length = table.getInt(offset + LengthOffset);
+            if ((before & 1) == 0 && length > 0 && length <= MaxCipherTextLength)
+            {
+                // only as much of the slot as the entry fills
+                final ByteBuffer slot = table.duplicate();
+                slot.position(offset);
+                slot.get(copy, 0, CipherTextOffset + length);
+                final int after = table.getInt(offset + SequenceOffset);
+                if (before == after && isAuthentic(copy))
+                    return readLong(copy, ExpiresOffset) > System.currentTimeMillis();
+            }
+            Metrics.increment(TornReads);
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * @return how many removals the table has seen, read without the lock.
+     */
+    private long getGeneration()
+    {
+        return table.getLong(GenerationOffset);
+    }
+
+    /**
+     * Caches the secret, unless something was removed since the generation was read: it may
+     * have been this secret, which the caller read or wrote before the removal.
+     */
+    private void put(final byte kind, final String targetName, final Secret secret, final long generation)
+    {
+        final long tag = computeTag(kind, targetName);
+        final byte[] slot = encrypt(tag, kind, targetName, secret);
+        if (slot == null)
+        {
+            Trace.writeLine("   too large to be shared");
+            // don't leave an older version behind
+            remove(kind, targetName);
+            return;
+        }
+        final int home = homeSlot(tag);
+        final long now = System.currentTimeMillis();
+        withWriteLock(new Runnable()
+        {
+            @Override public void run()
+            {
+                if (getGeneration() != generation)
+                {
+                    Trace.writeLine("   removed meanwhile; not caching");
+                    return;
+                }
+                int chosen = -1;
+                long soonestExpiry = Long.MAX_VALUE;
+                for (int i = 0; i < ProbeWindow; i++)
+                {
+                    final int index = (home + i) % SlotCount;
+                    final int offset = slotOffset(index);
+                    final long slotTag = table.getLong(offset + TagOffset);
+                    if (slotTag == tag)
+                    {
+                        chosen = index;
+                        break;
+                    }
+                    final long expires = slotTag == 0 ? 0 : table.getLong(offset + ExpiresOffset);
+                    if (expires < soonestExpiry)
+                    {
+                        chosen = index;
+                        soonestExpiry = expires;
+                    }
+                }
+                writeSlot(slotOffset(chosen), slot);
+            }
+        });
+    }
+
+    private void remove(final byte kind, final String targetName)
+    {
+        final long tag = computeTag(kind, targetName);
+        final int home = homeSlot(tag);
+        withWriteLock(new Runnable()
+        {
+            @Override public void run()
+            {
+                table.putLong(GenerationOffset, getGeneration() + 1);
+                for (int i = 0; i < ProbeWindow; i++)
+                {
+                    final int offset = slotOffset((home + i) % SlotCount);
+                    if (table.getLong(offset + TagOffset) == tag)
+                    {
+                        writeSlot(offset, new byte[SlotSize]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Replaces everything in the slot but its sequence number.  The caller holds the write lock,
+     * so a sequence number found odd was left so by a writer that died.
+     */
+    private void writeSlot(final int offset, final byte[] slot)
+    {
+        final int sequence = table.getInt(offset + SequenceOffset) | 1;
+        table.putInt(offset + SequenceOffset, sequence);
+        for (int i = SequenceOffset + 4; i < SlotSize; i++)
+        {
+            table.put(offset + i, slot[i]);
+        }
+        table.putInt(offset + SequenceOffset, sequence + 1);
+    }
+
+    private void withWriteLock(final Runnable write)
+    {
+        synchronized (ProcessLock)
+        {
+            FileLock lock = null;
+            try
+            {
+                // the header is the lock, so that readers of the slots never wait
+                lock = channel.lock(0, HeaderLength, false);
+                write.run();
+            }
+            catch (final IOException e)
+            {
+                // the secret is in the backing store either way
+                Trace.writeLine("   unable to lock the shared cache: " + e.getMessage());
+            }
+            finally
+            {
+                if (lock != null)
+                {
+                    try
+                    {
+                        lock.release();
+                    }
+                    catch (final IOException ignored)
+                    {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the whole slot, but for its sequence number, or null if the secret doesn't fit.
+     */
+    private byte[] encrypt(final long tag, final byte kind, final String targetName, final Secret secret)
+    {
+        try
+        {
+            final ByteArrayOutputStream plainBytes = new ByteArrayOutputStream();
+            final DataOutputStream plain = new DataOutputStream(plainBytes);
+            plain.writeUTF(targetName);
+            plain.writeByte(kind);
+            if (kind == CredentialKind)
+            {
+                final Credential credential = (Credential) secret;
+                plain.writeUTF(credential.Username);
+                plain.writeUTF(credential.Password);
+            }
+            else
+            {
+                final Token token = (Token) secret;
+                plain.writeUTF(token.Type.name());
+                plain.writeUTF(token.Value);
+                plain.writeBoolean(token.getTargetIdentity() != null);
+                if (token.getTargetIdentity() != null)
+                {
+                    plain.writeUTF(token.getTargetIdentity().toString());
+                }
+            }
+            plain.flush();
+
+            final byte[] iv = new byte[IvLength];
+            new SecureRandom().nextBytes(iv);
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            final byte[] cipherText = cipher.doFinal(plainBytes.toByteArray());
+            if (cipherText.length > MaxCipherTextLength)
+                return null;
+
+            final byte[] result = new byte[SlotSize];
+            writeInt(result, LengthOffset, cipherText.length);
+            writeLong(result, TagOffset, tag);
+            writeLong(result, ExpiresOffset, System.currentTimeMillis() + timeToLiveMillis);
+            System.arraycopy(iv, 0, result, IvOffset, IvLength);
+            System.arraycopy(cipherText, 0, result, CipherTextOffset, cipherText.length);
+            System.arraycopy(computeMac(result, cipherText.length), 0, result, MacOffset, MacLength);
+            return result;
+        }
+        catch (final IOException e)
+        {
+            // a string longer than 64 KiB; much too large for a slot anyway
+            return null;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return the secret in the slot, or null if it's for another target name, which happens
+     * when two of them have the same tag.
+     */
+    private Secret decrypt(final byte[] slot, final byte kind, final String targetName)
+    {
+        final int length = readInt(slot, LengthOffset);
+        try
+        {
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(slot, IvOffset, IvLength));
+            final byte[] plainBytes = cipher.doFinal(slot, CipherTextOffset, length);
+            final DataInputStream plain = new DataInputStream(new ByteArrayInputStream(plainBytes));
+            if (!targetName.equals(plain.readUTF()) || plain.readByte() != kind)
+                return null;
+            if (kind == CredentialKind)
+            {
+                final String username = plain.readUTF();
+                return new Credential(username, plain.readUTF());
+            }
+            final TokenType type = TokenType.valueOf(plain.readUTF());
+            final Token token = new Token(plain.readUTF(), type);
+            if (plain.readBoolean())
+            {
+                token.setTargetIdentity(UUID.fromString(plain.readUTF()));
+            }
+            return token;
+        }
+        catch (final IOException e)
+        {
+            // the HMAC matched, so whoever wrote it had the key
+            throw new Error(e);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private boolean isAuthentic(final byte[] slot)
+    {
+        final int length = readInt(slot, LengthOffset);
+        if (length <= 0 || length > MaxCipherTextLength)
+            return false;
+        final byte[] expected = computeMac(slot, length);
+        final byte[] actual = new byte[MacLength];
+        System.arraycopy(slot, MacOffset, actual, 0, MacLength);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /**
+     * Covers the length, tag, expiry, IV and cipher text of the slot.
+     */
+    private byte[] computeMac(final byte[] slot, final int cipherTextLength)
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(authenticationKey);
+            mac.update(slot, LengthOffset, MacOffset - LengthOffset);
+            mac.update(slot, CipherTextOffset, cipherTextLength);
+            return mac.doFinal();
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return a keyed hash of the target name, so that the table doesn't tell which hosts the
+     * user has secrets for; 0 marks empty slots, so it's never returned.
+     */
+    private long computeTag(final byte kind, final String targetName)
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(authenticationKey);
+            mac.update(kind);
+            final byte[] digest = mac.doFinal(targetName.getBytes("UTF-8"));
+            final long result = readLong(digest, 0);
+            return result != 0 ? result : 1;
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private static int homeSlot(final long tag)
+    {
+        return (int) ((tag & Long.MAX_VALUE) % SlotCount);
+    }
+
+    private static int slotOffset(final int index)
+    {
+        return HeaderLength + index * SlotSize;
+    }
+
+    private boolean isInitialized()
+    {
+        final byte[] magic = new byte[Magic.length];
+        for (int i = 0; i < magic.length; i++)
+        {
+            magic[i] = table.get(i);
+        }
+        if (!MessageDigest.isEqual(Magic, magic)
+            || table.getInt(4) != FormatVersion
+            || table.getInt(8) != SlotCount
+            || table.getInt(12) != SlotSize)
+            return false;
+        final byte[] keyCheck = computeKeyCheck();
+        for (int i = 0; i < KeyCheckLength; i++)
+        {
+            if (table.get(KeyCheckOffset + i) != keyCheck[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Empties every slot and writes the header.  The caller holds the lock on the whole file.
+     */
+    private void initialize()
+    {
+        for (int index = 0; index < SlotCount; index++)
+        {
+            final int offset = slotOffset(index);
+            // a slot never written is all zeroes already; don't make the system allocate it
+            if (table.getLong(offset + TagOffset) != 0 || table.getInt(offset + SequenceOffset) != 0)
+            {
+                writeSlot(offset, new byte[SlotSize]);
+            }
+        }
+        for (int i = 0; i < Magic.length; i++)
+        {
+            table.put(i, Magic[i]);
+        }
+        table.putInt(4, FormatVersion);
+        table.putInt(8, SlotCount);
+        table.putInt(12, SlotSize);
+        final byte[] keyCheck = computeKeyCheck();
+        for (int i = 0; i < KeyCheckLength; i++)
+        {
+            table.put(KeyCheckOffset + i, keyCheck[i]);
+        }
+    }
+
+    /**
+     * @return a hash of the key, so that a table written with another key is emptied.
+     */
+    private byte[] computeKeyCheck()
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(authenticationKey);
+            return mac.doFinal(Magic);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * The caller holds the lock on the table, so only one process creates the key.
+     */
+    static byte[] readOrCreateKey(final File keyFile) throws IOException
+    {
+        if (keyFile.length() == CacheSnapshot.KeyLength)
+        {
+            final byte[] result = new byte[CacheSnapshot.KeyLength];
+            final FileInputStream stream = new FileInputStream(keyFile);
+            try
+            {
+                int read = 0;
+                while (read < result.length)
+                {
+                    final int count = stream.read(result, read, result.length - read);
+                    if (count == -1)
+                        throw new IOException("The key in " + keyFile + " is too short.");
+                    read += count;
+                }
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+            return result;
+        }
+
+        Trace.writeLine("   creating the key of the session");
+        final byte[] result = CacheSnapshot.createKey();
+        FileHelper.replace(keyFile, true, new FileHelper.Content()
+        {
+            @Override public void writeTo(final OutputStream stream) throws IOException
+            {
+                stream.write(result);
+            }
+        });
+        return result;
+    }
+
+    private static int readInt(final byte[] source, final int offset)
+    {
+        return ((source[offset] & 0xFF) << 24)
+            | ((source[offset + 1] & 0xFF) << 16)
+            | ((source[offset + 2] & 0xFF) << 8)
+            | (source[offset + 3] & 0xFF);
+    }
+
+    private static long readLong(final byte[] source, final int offset)
+    {
+        return ((long) readInt(source, offset) << 32) | (readInt(source, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    private static void writeInt(final byte[] destination, final int offset, final int value)
+    {
+        destination[offset] = (byte) (value >>> 24);
+        destination[offset + 1] = (byte) (value >>> 16);
+        destination[offset + 2] = (byte) (value >>> 8);
+        destination[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(final byte[] destination, final int offset, final long value)
+    {
+        writeInt(destination, offset, (int) (value >>> 32));
+        writeInt(destination, offset + 4, (int) value);
+    }
+}
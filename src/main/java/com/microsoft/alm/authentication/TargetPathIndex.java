@@ -0,0 +1,364 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Remembers which targets have secrets stored for a path below their host, as written
+ * when credential.useHttpPath is set, so that a lookup can find the most specific secret
+ * for a repository without asking the secure store about every ancestor of its path.
+ *
+ * Targets are kept in a prefix trie of path segments under each scheme://host, which makes
+ * a lookup proportional to the length of the path.  Secrets stored for the host itself are
+ * never indexed: they are what a lookup falls back to.  The index is kept in a file that is
+ * re-read whenever another process has changed it, and only changed while holding a lock
+ * that other processes take too.
+ */
+public final class TargetPathIndex
+{
+    private static final String Charset = "UTF-8";
+
+    private final File file;
+    private Node root = new Node(null);
+    private long loadedLastModified = -1;
+    private long loadedLength = -1;
+
+    /**
+     * @param file The file to share the index through, or null to keep it in memory.
+     */
+    public TargetPathIndex(final File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Records that a secret was stored for the target.
+     *
+     * @param targetUri The target, including its path.
+     */
+    public synchronized void add(final URI targetUri)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        if (!hasPath(targetUri))
+            return;
+
+        Trace.writeLine("TargetPathIndex::add");
+
+        final Closeable lock = lock();
+        try
+        {
+            if (insert(root, targetUri))
+            {
+                save();
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Forgets about a target, typically because its secret was deleted.
+     *
+     * @param targetUri The target, including its path.
+     */
+    public synchronized void remove(final URI targetUri)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        if (!hasPath(targetUri))
+            return;
+
+        Trace.writeLine("TargetPathIndex::remove");
+
+        final Closeable lock = lock();
+        try
+        {
+            final Node node = find(targetUri);
+            if (node != null && node.Target != null)
+            {
+                node.Target = null;
+                save();
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Finds the target whose secret applies to the specified target: the target itself or
+     * its closest ancestor that has a secret, or else the target's host.
+     *
+     * @param targetUri The target, possibly including a path.
+     * @return The most specific target with a secret, or the host-level target.
+     */
+    public synchronized URI findMostSpecific(final URI targetUri)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        if (!hasPath(targetUri))
+            return targetUri;
+
+        reloadIfChanged();
+        URI result = toHostTarget(targetUri);
+        Node node = root.Children.get(toHostKey(targetUri));
+        if (node != null)
+        {
+            for (final String segment : toSegments(targetUri))
+            {
+                node = node.Children.get(segment);
+                if (node == null)
+                    break;
+                if (node.Target != null)
+                {
+                    result = node.Target;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return A list of all the targets in the index; possibly empty.
+     */
+    public synchronized List<URI> getTargets()
+    {
+        reloadIfChanged();
+        final List<URI> result = new ArrayList<URI>();
+        collect(root, result);
+        return result;
+    }
+
+    static boolean hasPath(final URI targetUri)
+    {
+        final String path = targetUri.getRawPath();
+        return path != null && toSegments(targetUri).length > 0;
+    }
+
+    static URI toHostTarget(final URI targetUri)
+    {
+        try
+        {
+            return new URI(targetUri.getScheme(), targetUri.getRawAuthority(), "/", null, null);
+        }
+        catch (final URISyntaxException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private static String toHostKey(final URI targetUri)
+    {
+        return targetUri.getScheme() + "://" + targetUri.getRawAuthority();
+    }
+
+    private static String[] toSegments(final URI targetUri)
+    {
+        final String path = targetUri.getRawPath();
+        final List<String> segments = new ArrayList<String>();
+        for (final String segment : path.split("/"))
+        {
+            if (segment.length() > 0)
+            {
+                segments.add(segment);
+            }
+        }
+        return segments.toArray(new String[segments.size()]);
+    }
+
+    private Node find(final URI targetUri)
+    {
+        Node node = root.Children.get(toHostKey(targetUri));
+        for (final String segment : toSegments(targetUri))
+        {
+            if (node == null)
+                break;
+            node = node.Children.get(segment);
+        }
+        return node;
+    }
+
+    private static boolean insert(final Node root, final URI targetUri)
+    {
+        final String hostKey = toHostKey(targetUri);
+        Node node = root.Children.get(hostKey);
+        if (node == null)
+        {
+            node = new Node(null);
+            root.Children.put(hostKey, node);
+        }
+        for (final String segment : toSegments(targetUri))
+        {
+            Node child = node.Children.get(segment);
+            if (child == null)
+            {
+                child = new Node(null);
+                node.Children.put(segment, child);
+            }
+            node = child;
+        }
+        if (targetUri.equals(node.Target))
+            return false;
+        node.Target = targetUri;
+        return true;
+    }
+
+    private static void collect(final Node node, final List<URI> result)
+    {
+        if (node.Target != null)
+        {
+            result.add(node.Target);
+        }
+        for (final Node child : node.Children.values())
+        {
+            collect(child, result);
+        }
+    }
+
+    /**
+     * Keeps other processes from changing the index until the result is closed, and reloads
+     * it, since a change made within the resolution of the file's time stamp can go unnoticed.
+     */
+    private Closeable lock()
+    {
+        if (file == null)
+            return null;
+
+        final Closeable result;
+        try
+        {
+            result = FileHelper.lock(file);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+        reload(file.lastModified(), file.length());
+        return result;
+    }
+
+    private void reloadIfChanged()
+    {
+        if (file == null)
+            return;
+
+        final long lastModified = file.lastModified();
+        final long length = file.length();
+        if (lastModified == loadedLastModified && length == loadedLength)
+            return;
+
+        reload(lastModified, length);
+    }
+
+    private void reload(final long lastModified, final long length)
+    {
+        final Node loaded = new Node(null);
+        if (file.isFile())
+        {
+            BufferedReader reader = null;
+            try
+            {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (StringHelper.isNullOrWhiteSpace(line))
+                        continue;
+                    try
+                    {
+                        final URI targetUri = new URI(line.trim());
+                        if (targetUri.isAbsolute() && hasPath(targetUri))
+                        {
+                            insert(loaded, targetUri);
+                        }
+                    }
+                    catch (final URISyntaxException ignored)
+                    {
+                        // skip the line; the secret is still found through its host
+                    }
+                }
+            }
+            catch (final IOException e)
+            {
+                // a corrupt index only costs us the path-specific secrets; start over
+                Trace.writeLine("   unable to read " + file + ": " + e.getMessage());
+            }
+            finally
+            {
+                IOHelper.closeQuietly(reader);
+            }
+        }
+        root = loaded;
+        loadedLastModified = lastModified;
+        loadedLength = length;
+    }
+
+    private void save()
+    {
+        if (file == null)
+            return;
+
+        final List<URI> targets = new ArrayList<URI>();
+        collect(root, targets);
+        try
+        {
+            FileHelper.replace(file, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    final Writer writer = new OutputStreamWriter(stream, Charset);
+                    for (final URI target : targets)
+                    {
+                        writer.write(target.toString());
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+        loadedLastModified = file.lastModified();
+        loadedLength = file.length();
+    }
+
+    private static final class Node
+    {
+        // path segments and hosts are compared like the secret names they end up in
+        final Map<String, Node> Children = new TreeMap<String, Node>(String.CASE_INSENSITIVE_ORDER);
+        URI Target;
+
+        Node(final URI target)
+        {
+            Target = target;
+        }
+    }
+}
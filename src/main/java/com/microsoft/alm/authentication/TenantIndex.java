@@ -0,0 +1,162 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers which Azure Directory tenant each host belongs to, so that the refresh token
+ * of a tenant, which works for every resource in it, can be found for a host that has
+ * none of its own, even when the authority wasn't detected (credential.authority = AAD).
+ *
+ * The refresh tokens themselves stay in the {@link SecretStore}, under
+ * {@link BaseVsoAuthentication#getTenantTarget(UUID)}; this index only maps hosts to
+ * tenants and is kept in a properties file that is re-read before every update, under a
+ * lock that other processes take too, so that several processes can share it.
+ */
+public final class TenantIndex
+{
+    private final File file;
+
+    public TenantIndex(final File file)
+    {
+        if (file == null)
+            throw new IllegalArgumentException("The `file` parameter is null.");
+
+        this.file = file;
+    }
+
+    /**
+     * Records the tenant of a host.
+     *
+     * @param targetUri The target; only its scheme, host and port are recorded.
+     * @param tenantId  The tenant; {@link Guid#Empty} is ignored.
+     */
+    public synchronized void record(final URI targetUri, final UUID tenantId)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        if (tenantId == null || Guid.Empty.equals(tenantId))
+            return;
+
+        final String key = toKey(targetUri);
+        // the tenant of a host is usually known already; checking doesn't need the lock
+        if (tenantId.toString().equals(load().getProperty(key)))
+            return;
+
+        Trace.writeLine("TenantIndex::record");
+        Trace.writeLine("   " + key + " = " + tenantId);
+
+        final Closeable lock = lock();
+        try
+        {
+            final Properties properties = load();
+            properties.setProperty(key, tenantId.toString());
+            save(properties);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    /**
+     * Finds the tenant of a host.
+     *
+     * @param targetUri The target; only its scheme, host and port are considered.
+     * @return The tenant, or null if it isn't known.
+     */
+    public synchronized UUID find(final URI targetUri)
+    {
+        Debug.Assert(targetUri != null, "The targetUri parameter is null");
+
+        final String value = load().getProperty(toKey(targetUri));
+        final AtomicReference<UUID> tenantId = new AtomicReference<UUID>();
+        if (value != null && Guid.tryParse(value, tenantId) && !Guid.Empty.equals(tenantId.get()))
+        {
+            return tenantId.get();
+        }
+        return null;
+    }
+
+    static String toKey(final URI targetUri)
+    {
+        final String host = targetUri.getHost() != null ? targetUri.getHost() : targetUri.getAuthority();
+        return targetUri.getScheme().toLowerCase(Locale.ENGLISH) + "://" + host.toLowerCase(Locale.ENGLISH)
+                + (targetUri.getPort() == -1 ? "" : ":" + targetUri.getPort());
+    }
+
+    /**
+     * Keeps other processes from changing the index until the result is closed.
+     */
+    private Closeable lock()
+    {
+        try
+        {
+            return FileHelper.lock(file);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private Properties load()
+    {
+        final Properties properties = new Properties();
+        if (file.isFile())
+        {
+            FileInputStream stream = null;
+            try
+            {
+                stream = new FileInputStream(file);
+                properties.load(stream);
+            }
+            catch (final IOException e)
+            {
+                // a corrupt index only costs us some logons; start over
+                Trace.writeLine("   unable to read " + file + ": " + e.getMessage());
+                properties.clear();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+        return properties;
+    }
+
+    private void save(final Properties properties)
+    {
+        try
+        {
+            FileHelper.replace(file, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    properties.store(stream, null);
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+}
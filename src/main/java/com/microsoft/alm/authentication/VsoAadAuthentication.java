@@ -13,6 +13,7 @@ import com.microsoft.alm.secret.VsoTokenScope;
 
 import java.net.URI;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 /**
  * Facilitates Azure Directory authentication.
@@ -52,6 +53,7 @@ public final class VsoAadAuthentication extends BaseVsoAuthentication implements
             // create an authority host url in the format of https://login.microsoft.com/12345678-9ABC-DEF0-1234-56789ABCDEF0
             String authorityHost = AzureAuthority.getAuthorityUrl(tenantId);
             this.VsoAuthority = new VsoAzureAuthority(authorityHost);
+            this.TenantId = tenantId;
         }
     }
 
@@ -91,18 +93,24 @@ public final class VsoAadAuthentication extends BaseVsoAuthentication implements
 
         Trace.writeLine("VsoAadAuthentication::interactiveLogon");
 
-        TokenPair tokens;
-        if ((tokens = this.VsoAuthority.acquireToken(targetUri, this.ClientId, this.Resource, RedirectUri, (String) null)) != null)
+        return this.coordinateLogon(targetUri, new Callable<Boolean>()
         {
-            Trace.writeLine("   token acquisition succeeded.");
-
-            this.storeRefreshToken(targetUri, tokens.RefreshToken);
-
-            return this.generatePersonalAccessToken(targetUri, tokens.AccessToken,  requestCompactToken);
-        }
-
-        Trace.writeLine("   interactive logon failed");
-        return false;
+            @Override public Boolean call()
+            {
+                TokenPair tokens;
+                if ((tokens = VsoAuthority.acquireToken(targetUri, ClientId, Resource, RedirectUri, (String) null)) != null)
+                {
+                    Trace.writeLine("   token acquisition succeeded.");
+
+                    storeRefreshToken(targetUri, tokens.RefreshToken);
+
+                    return generatePersonalAccessToken(targetUri, tokens.AccessToken, requestCompactToken);
+                }
+
+                Trace.writeLine("   interactive logon failed");
+                return false;
+            }
+        });
     }
 
     /**
@@ -152,18 +160,24 @@ public final class VsoAadAuthentication extends BaseVsoAuthentication implements
 
         Trace.writeLine("VsoAadAuthentication::deviceLogon");
 
-        TokenPair tokens;
-        if ((tokens = this.VsoAuthority.acquireToken(targetUri, this.ClientId, this.Resource, RedirectUri, callback)) != null)
+        return this.coordinateLogon(targetUri, new Callable<Boolean>()
         {
-            Trace.writeLine("   token successfully acquired.");
-
-            this.storeRefreshToken(targetUri, tokens.RefreshToken);
-
-            return this.generatePersonalAccessToken(targetUri, tokens.AccessToken, requestCompactToken);
-        }
-
-        Trace.writeLine("   failed to acquire token.");
-        return false;
+            @Override public Boolean call()
+            {
+                TokenPair tokens;
+                if ((tokens = VsoAuthority.acquireToken(targetUri, ClientId, Resource, RedirectUri, callback)) != null)
+                {
+                    Trace.writeLine("   token successfully acquired.");
+
+                    storeRefreshToken(targetUri, tokens.RefreshToken);
+
+                    return generatePersonalAccessToken(targetUri, tokens.AccessToken, requestCompactToken);
+                }
+
+                Trace.writeLine("   failed to acquire token.");
+                return false;
+            }
+        });
     }
 
     /**
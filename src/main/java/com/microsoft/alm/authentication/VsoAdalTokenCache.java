@@ -3,44 +3,544 @@
 
 package com.microsoft.alm.authentication;
 
-import com.microsoft.alm.helpers.NotImplementedException;
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.PropertyBag;
+import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.secret.TokenPair;
 
-class VsoAdalTokenCache // TODO: 449520: extends TokenCache
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Remembers the access tokens issued by Azure until shortly before they expire, so that
+ * refreshing credentials within the lifetime of an access token doesn't need another
+ * round-trip to the token endpoint.
+ *
+ * Entries are keyed by authority, resource, client and user.  The user is identified by a
+ * fingerprint of the refresh token that was issued alongside the access token: that's the
+ * token the caller presents next time, and it is all a refresh request knows about the user.
+ * Refresh tokens themselves are never kept here; they stay in the secure store.
+ *
+ * The cache can be kept in a file, which is re-read every time it's used and only readable
+ * by the current user; processes take turns changing it, so that none loses the others'
+ * entries or brings back one that was removed.  The file is encrypted, as the cache snapshot
+ * is, with a key kept in the secure store under {@link #KeyTargetName}.
+ */
+public final class VsoAdalTokenCache
 {
-    private static final String AdalCachePath = "Microsoft\\VSCommon\\VSAccountManagement";
-    private static final String AdalCacheFile = "AdalCache.cache";
+    /**
+     * How long before its expiry an access token stops being handed out, so that it
+     * doesn't expire while it's being used.
+     */
+    static final long ExpiryMarginMillis = 5L * 60L * 1000L;
+    static final String CacheHits = Metrics.series("gcm_adal_token_cache_reads_total", "result", "hit");
+    static final String CacheMisses = Metrics.series("gcm_adal_token_cache_reads_total", "result", "miss");
 
     /**
-     * Default constructor.
+     * The name under which the key the file is encrypted with is kept in the secure store.
+     */
+    static final String KeyTargetName = "git:gcm-adal-token-cache";
+
+    private static final String Charset = "UTF-8";
+    private static final String FormatVersionKey = "version";
+    private static final String FormatVersion = "2";
+    private static final String CipherAlgorithm = "AES/CBC/PKCS5Padding";
+    private static final String MacAlgorithm = "HmacSHA256";
+    private static final int IvLength = 16;
+    private static final int MacLength = 32;
+    private static final String KeySeparator = "|";
+    private static final String ValueSeparator = " ";
+    private static final String AccessTokenKey = "access_token";
+    private static final String ExpiresOnKey = "expires_on";
+    private static final String ExpiresInKey = "expires_in";
+
+    private static volatile VsoAdalTokenCache defaultCache;
+
+    private final File file;
+    private final ISecureStore keyStore;
+    private final Properties entries = new Properties();
+    private byte[] key;
+
+    /**
+     * Creates a cache that is only kept in memory.
      */
     public VsoAdalTokenCache()
     {
-        throw new NotImplementedException(449520);
+        this(null, null);
+    }
+
+    /**
+     * Creates a cache that is shared with other processes through an encrypted file.
+     *
+     * @param file     The file to keep the cache in, or null to keep it in memory.
+     * @param keyStore Where the key the file is encrypted with is kept; it is created the
+     *                 first time the file is written.
+     */
+    public VsoAdalTokenCache(final File file, final ISecureStore keyStore)
+    {
+        Debug.Assert(file == null || keyStore != null, "The keyStore parameter is null");
+
+        this.file = file;
+        this.keyStore = keyStore;
     }
 
     /**
      * Constructor receiving state of the cache.
      *
-     * @param state Current state of the cache as a blob.
+     * @param state Current state of the cache as a blob, as returned by {@link #getState()}.
      */
     public VsoAdalTokenCache(final byte[] state)
     {
-        throw new NotImplementedException(449520);
+        this(null, null);
+
+        Debug.Assert(state != null, "The state parameter is null");
+
+        try
+        {
+            read(new ByteArrayInputStream(state), entries);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * Sets the cache used by every {@link AzureAuthority} that wasn't given one.
+     *
+     * @param cache The cache to use; null to always go to the token endpoint.
+     */
+    public static void setDefault(final VsoAdalTokenCache cache)
+    {
+        defaultCache = cache;
+    }
+
+    public static VsoAdalTokenCache getDefault()
+    {
+        return defaultCache;
     }
 
-    private final String _cacheFilePath;
+    /**
+     * Finds an access token that is valid for a while longer.
+     *
+     * @param authority    The URL of the authority that issued the token.
+     * @param resource     The resource the token is for.
+     * @param clientId     The client the token was issued to.
+     * @param refreshToken The refresh token the caller would otherwise redeem.
+     * @return A {@link TokenPair} with only an access token, or null if none was found.
+     */
+    public TokenPair find(final String authority, final String resource, final String clientId, final String refreshToken)
+    {
+        Debug.Assert(!StringHelper.isNullOrWhiteSpace(refreshToken), "The refreshToken parameter is null or empty");
+
+        Trace.writeLine("VsoAdalTokenCache::find");
+
+        final String key = toKey(authority, resource, clientId, refreshToken);
+        final String value;
+        synchronized (entries)
+        {
+            beforeAccessNotification();
+            value = entries.getProperty(key);
+        }
+        final Entry entry = Entry.parse(value);
+        final boolean found = entry != null && entry.ExpiresOn - ExpiryMarginMillis > System.currentTimeMillis();
+        Metrics.increment(found ? CacheHits : CacheMisses);
+        if (!found)
+            return null;
+
+        Trace.writeLine("   access token found; valid for another " + (entry.ExpiresOn - System.currentTimeMillis()) / 1000 + "s");
+        final PropertyBag bag = new PropertyBag();
+        bag.put(AccessTokenKey, entry.AccessToken);
+        bag.put(ExpiresOnKey, Long.toString(entry.ExpiresOn / 1000));
+        return new TokenPair(bag);
+    }
+
+    /**
+     * Remembers the access token of a response from the token endpoint.  Responses that
+     * don't say when the access token expires aren't cached.
+     *
+     * @param authority            The URL of the authority that issued the tokens.
+     * @param resource             The resource the tokens are for.
+     * @param clientId             The client the tokens were issued to.
+     * @param redeemedRefreshToken The refresh token that was redeemed, if any; used to find
+     *                             the access token when no new refresh token was issued.
+     * @param tokens               The tokens.
+     */
+    public void store(final String authority, final String resource, final String clientId, final String redeemedRefreshToken, final TokenPair tokens)
+    {
+        Debug.Assert(tokens != null, "The tokens parameter is null");
+
+        if (tokens.AccessToken == null || StringHelper.isNullOrWhiteSpace(tokens.AccessToken.Value))
+            return;
+        final String nextRefreshToken = tokens.RefreshToken != null && !StringHelper.isNullOrWhiteSpace(tokens.RefreshToken.Value)
+                ? tokens.RefreshToken.Value
+                : redeemedRefreshToken;
+        if (StringHelper.isNullOrWhiteSpace(nextRefreshToken))
+            return;
+        final long now = System.currentTimeMillis();
+        final long expiresOn = findExpiresOn(tokens.Parameters, now);
+        if (expiresOn - ExpiryMarginMillis <= now)
+            return;
 
-    private final Object lock = new Object();
+        Trace.writeLine("VsoAdalTokenCache::store");
+
+        final String key = toKey(authority, resource, clientId, nextRefreshToken);
+        synchronized (entries)
+        {
+            final Closeable lock = lock();
+            try
+            {
+                beforeAccessNotification();
+                entries.setProperty(key, new Entry(expiresOn, tokens.AccessToken.Value).toString());
+                afterAccessNotification();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(lock);
+            }
+        }
+    }
 
-    // TODO: 449520: arguments should be TokenCacheNotificationArgs
-    private void afterAccessNotification(final Object args)
+    /**
+     * Forgets an access token that was rejected, so that the next refresh redeems the refresh
+     * token instead.
+     *
+     * @param accessToken The access token.
+     */
+    public void remove(final String accessToken)
     {
-        throw new NotImplementedException(449520);
+        Trace.writeLine("VsoAdalTokenCache::remove");
+
+        synchronized (entries)
+        {
+            final Closeable lock = lock();
+            try
+            {
+                beforeAccessNotification();
+                final Iterator<Map.Entry<Object, Object>> iterator = entries.entrySet().iterator();
+                boolean removed = false;
+                while (iterator.hasNext())
+                {
+                    final Entry entry = Entry.parse((String) iterator.next().getValue());
+                    if (entry != null && entry.AccessToken.equals(accessToken))
+                    {
+                        iterator.remove();
+                        removed = true;
+                    }
+                }
+                if (removed)
+                {
+                    afterAccessNotification();
+                }
+            }
+            finally
+            {
+                IOHelper.closeQuietly(lock);
+            }
+        }
     }
 
+    /**
+     * @return The state of the cache as a blob, for {@link #VsoAdalTokenCache(byte[])}.
+     */
+    public byte[] getState()
+    {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        synchronized (entries)
+        {
+            beforeAccessNotification();
+            write(stream, entries);
+        }
+        return stream.toByteArray();
+    }
 
-    private void beforeAccessNotification(final Object args)
+    static String toKey(final String authority, final String resource, final String clientId, final String refreshToken)
     {
-        throw new NotImplementedException(449520);
+        return StringHelper.trimEnd(authority, '/') + KeySeparator + resource + KeySeparator + clientId
+                + KeySeparator + fingerprint(refreshToken);
+    }
+
+    static String fingerprint(final String refreshToken)
+    {
+        try
+        {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return CacheSnapshot.toHex(digest.digest(refreshToken.getBytes(Charset)));
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new Error(e);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return When the access token expires, in milliseconds since the epoch, or 0 if unknown.
+     */
+    static long findExpiresOn(final Map<String, String> parameters, final long now)
+    {
+        try
+        {
+            final String expiresOn = parameters.get(ExpiresOnKey);
+            if (!StringHelper.isNullOrWhiteSpace(expiresOn))
+                return Long.parseLong(expiresOn.trim()) * 1000L;
+            final String expiresIn = parameters.get(ExpiresInKey);
+            if (!StringHelper.isNullOrWhiteSpace(expiresIn))
+                return now + Long.parseLong(expiresIn.trim()) * 1000L;
+        }
+        catch (final NumberFormatException ignored)
+        {
+            // treated like a missing expiry
+        }
+        return 0;
+    }
+
+    /**
+     * Keeps other processes from changing the file until the result is closed.
+     *
+     * @return What releases the lock, or null if there's no file or it can't be locked.
+     */
+    private Closeable lock()
+    {
+        if (file == null)
+            return null;
+        try
+        {
+            return FileHelper.lock(file);
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to lock " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // both must be called while holding the lock on entries and, to change them, the one on the file
+
+    private void beforeAccessNotification()
+    {
+        if (file == null)
+            return;
+
+        // the file is replaced as a whole, so it can be read while another process changes it
+        entries.clear();
+        if (file.isFile())
+        {
+            FileInputStream stream = null;
+            try
+            {
+                stream = new FileInputStream(file);
+                read(new ByteArrayInputStream(decrypt(readAll(stream), getKey())), entries);
+            }
+            catch (final IOException e)
+            {
+                // a corrupt cache, or one written with another key, only costs us some round-trips; start over
+                Trace.writeLine("   unable to read " + file + ": " + e.getMessage());
+                entries.clear();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+    }
+
+    private void afterAccessNotification()
+    {
+        // expired tokens are useless to everyone; don't let them accumulate
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<Object, Object>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            final Entry entry = Entry.parse((String) iterator.next().getValue());
+            if (entry == null || entry.ExpiresOn <= now)
+            {
+                iterator.remove();
+            }
+        }
+
+        if (file == null)
+            return;
+
+        try
+        {
+            final ByteArrayOutputStream plainText = new ByteArrayOutputStream();
+            write(plainText, entries);
+            final byte[] content = encrypt(plainText.toByteArray(), getKey());
+            // the tokens are bearer tokens: only the current user may read them
+            FileHelper.replace(file, true, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    stream.write(content);
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            // the cache only saves round-trips; the tokens are still issued without it
+            Trace.writeLine("   unable to write " + file + ": " + e.getMessage());
+        }
+    }
+
+    private byte[] getKey() throws IOException
+    {
+        if (key == null)
+        {
+            // without the secure store, the cache is only kept in memory
+            key = CacheSnapshot.readOrCreateKey(keyStore, KeyTargetName, file);
+        }
+        return key;
+    }
+
+    /**
+     * @return The IV, the cipher text and a MAC of both.
+     */
+    static byte[] encrypt(final byte[] plainText, final byte[] key)
+    {
+        final byte[] iv = new byte[IvLength];
+        new SecureRandom().nextBytes(iv);
+        try
+        {
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.ENCRYPT_MODE, CacheSnapshot.deriveKey(key, "encryption", "AES", 16), new IvParameterSpec(iv));
+            final byte[] cipherText = cipher.doFinal(plainText);
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(CacheSnapshot.deriveKey(key, "authentication", MacAlgorithm, 32));
+            mac.update(iv);
+            mac.update(cipherText);
+            final byte[] checksum = mac.doFinal();
+
+            final byte[] result = new byte[IvLength + cipherText.length + MacLength];
+            System.arraycopy(iv, 0, result, 0, IvLength);
+            System.arraycopy(cipherText, 0, result, IvLength, cipherText.length);
+            System.arraycopy(checksum, 0, result, IvLength + cipherText.length, MacLength);
+            return result;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    static byte[] decrypt(final byte[] content, final byte[] key) throws IOException
+    {
+        final int cipherTextLength = content.length - IvLength - MacLength;
+        if (cipherTextLength <= 0)
+            throw new IOException("The cache is too short.");
+        try
+        {
+            final Mac mac = Mac.getInstance(MacAlgorithm);
+            mac.init(CacheSnapshot.deriveKey(key, "authentication", MacAlgorithm, 32));
+            mac.update(content, 0, IvLength + cipherTextLength);
+            final byte[] expected = mac.doFinal();
+            final byte[] actual = Arrays.copyOfRange(content, IvLength + cipherTextLength, content.length);
+            if (!MessageDigest.isEqual(expected, actual))
+                throw new IOException("The cache is damaged or was written with another key.");
+
+            final Cipher cipher = Cipher.getInstance(CipherAlgorithm);
+            cipher.init(Cipher.DECRYPT_MODE, CacheSnapshot.deriveKey(key, "encryption", "AES", 16), new IvParameterSpec(content, 0, IvLength));
+            return cipher.doFinal(content, IvLength, cipherTextLength);
+        }
+        catch (final GeneralSecurityException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private static byte[] readAll(final InputStream stream) throws IOException
+    {
+        final ByteArrayOutputStream result = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int count;
+        while ((count = stream.read(buffer)) != -1)
+        {
+            result.write(buffer, 0, count);
+        }
+        return result.toByteArray();
+    }
+
+    private static void read(final InputStream stream, final Properties destination) throws IOException
+    {
+        final Properties loaded = new Properties();
+        loaded.load(stream);
+        // a cache written by a different version is simply discarded
+        if (!FormatVersion.equals(loaded.remove(FormatVersionKey)))
+            return;
+        destination.putAll(loaded);
+    }
+
+    private static void write(final OutputStream stream, final Properties source)
+    {
+        final Properties versioned = new Properties();
+        versioned.putAll(source);
+        versioned.setProperty(FormatVersionKey, FormatVersion);
+        try
+        {
+            versioned.store(stream, null);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    private static final class Entry
+    {
+        final long ExpiresOn;
+        final String AccessToken;
+
+        Entry(final long expiresOn, final String accessToken)
+        {
+            ExpiresOn = expiresOn;
+            AccessToken = accessToken;
+        }
+
+        static Entry parse(final String value)
+        {
+            if (value == null)
+                return null;
+            final int separator = value.indexOf(ValueSeparator);
+            if (separator <= 0)
+                return null;
+            try
+            {
+                return new Entry(Long.parseLong(value.substring(0, separator)), value.substring(separator + 1));
+            }
+            catch (final NumberFormatException e)
+            {
+                return null;
+            }
+        }
+
+        @Override public String toString()
+        {
+            return ExpiresOn + ValueSeparator + AccessToken;
+        }
     }
 }
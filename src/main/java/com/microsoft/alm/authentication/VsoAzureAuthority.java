@@ -8,6 +8,7 @@ import com.microsoft.alm.helpers.Debug;
 import com.microsoft.alm.helpers.Environment;
 import com.microsoft.alm.helpers.Guid;
 import com.microsoft.alm.helpers.HttpClient;
+import com.microsoft.alm.helpers.Metrics;
 import com.microsoft.alm.helpers.NotImplementedException;
 import com.microsoft.alm.helpers.StringContent;
 import com.microsoft.alm.helpers.StringHelper;
@@ -20,17 +21,27 @@ import com.microsoft.alm.secret.VsoTokenScope;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
 {
+    static final String ValidCredentials = Metrics.series("gcm_credential_validations_total", "result", "valid");
+    static final String InvalidCredentials = Metrics.series("gcm_credential_validations_total", "result", "invalid");
+
     /**
-     * The maximum wait time for a network request before timing out
+     * Where each account's identity service is, by host, as told by its location service;
+     * forgotten when the identity service doesn't accept a request.
      */
-    public static final int RequestTimeout = 15 * 1000; // 15 second limit
+    private static final ConcurrentMap<String, URI> IdentityServiceLocations = new ConcurrentHashMap<String, URI>();
 
     public VsoAzureAuthority() { this (null); }
     public VsoAzureAuthority(final String authorityHostUrl)
@@ -61,7 +72,7 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
 
         try
         {
-            // TODO: 449524: create a `HttpClient` with a minimum number of redirects, default creds, and a reasonable timeout (access token generation seems to hang occasionally)
+            // timeouts come from the SessionToken and LocationService request policies
             final HttpClient client = new HttpClient(Global.getUserAgent());
             Trace.writeLine("   using token to acquire personal access token");
             accessToken.contributeHeader(client.Headers);
@@ -71,18 +82,36 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
                 final URI requestUrl = createPersonalAccessTokenRequestUri(client, targetUri, requireCompactToken);
 
                 final StringContent content = getAccessTokenRequestBody(targetUri, accessToken, tokenScope);
-                final HttpURLConnection response = client.post(requestUrl, content);
+                // each attempt mints a token, so a request that may have reached the server isn't repeated
+                final HttpURLConnection response = RequestPolicy.send(RequestPolicy.Endpoint.SessionToken, requestUrl, RequestPolicy.RetryMode.UnsentOnly, new RequestPolicy.Request()
+                {
+                    @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
+                    {
+                        return client.post(requestUrl, content, configure);
+                    }
+                });
                 if (response.getResponseCode() == HttpURLConnection.HTTP_OK)
                 {
-                    final String responseText = HttpClient.readToString(response);
-
-                    final Token token = parsePersonalAccessTokenFromJson(responseText);
+                    final Token token = createPersonalAccessToken(JsonFieldExtractor.extract(response, TokenField, ValidToField));
                     if (token != null)
                     {
                         Trace.writeLine("   personal access token acquisition succeeded.");
                     }
                     return token;
                 }
+                if (response.getResponseCode() == HttpURLConnection.HTTP_UNAUTHORIZED)
+                {
+                    if (getAdalTokenCache() != null)
+                    {
+                        // a revoked access token must not be handed out again until it expires
+                        getAdalTokenCache().remove(accessToken.Value);
+                    }
+                }
+                else
+                {
+                    // the account may have moved; ask its location service again next time
+                    IdentityServiceLocations.remove(targetUri.getHost());
+                }
             }
         }
         catch (final IOException e)
@@ -117,6 +146,32 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
         return URI.create(url);
     }
 
+    /**
+     * @return the identity service locations found so far, by host.
+     */
+    static Map<String, URI> getIdentityServiceLocations()
+    {
+        return new HashMap<String, URI>(IdentityServiceLocations);
+    }
+
+    /**
+     * Adds identity service locations, such as the ones of a snapshot, to those of this process.
+     *
+     * @return how many were added.
+     */
+    static int addIdentityServiceLocations(final Map<String, URI> locations)
+    {
+        int result = 0;
+        for (final Map.Entry<String, URI> entry : locations.entrySet())
+        {
+            if (IdentityServiceLocations.putIfAbsent(entry.getKey(), entry.getValue()) == null)
+            {
+                result++;
+            }
+        }
+        return result;
+    }
+
     private URI getIdentityServiceUri(final HttpClient client, final URI targetUri) throws IOException
     {
         final String locationServiceUrlFormat = "https://%1$s/_apis/ServiceDefinitions/LocationService2/951917AC-A960-4999-8464-E3F0AA25B381?api-version=1.0";
@@ -124,19 +179,31 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
         Debug.Assert(client != null, ("The client parameter is null."));
         Debug.Assert(targetUri != null && targetUri.isAbsolute(), "The targetUri parameter is null or invalid");
 
-        final String locationServiceUrl = String.format(locationServiceUrlFormat, targetUri.getHost());
+        final URI cached = IdentityServiceLocations.get(targetUri.getHost());
+        if (cached != null)
+        {
+            Trace.writeLine("   identity service url was found before: " + cached);
+            return cached;
+        }
+
+        final URI locationServiceUri = URI.create(String.format(locationServiceUrlFormat, targetUri.getHost()));
         URI identityServiceUri = null;
 
-        final HttpURLConnection response = client.get(URI.create(locationServiceUrl));
+        final HttpURLConnection response = RequestPolicy.send(RequestPolicy.Endpoint.LocationService, locationServiceUri, RequestPolicy.RetryMode.All, new RequestPolicy.Request()
+        {
+            @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
+            {
+                return client.get(locationServiceUri, configure);
+            }
+        });
         if (response.getResponseCode() == HttpURLConnection.HTTP_OK)
         {
-            final String responseText = HttpClient.readToString(response);
-
             // Identity Service uri is the "location" field.
-            identityServiceUri = parseLocationFromJson(responseText);
+            identityServiceUri = createLocation(JsonFieldExtractor.extract(response, LocationField));
             if (identityServiceUri != null)
             {
                 Trace.writeLine("   parsed identity service url: " + identityServiceUri);
+                IdentityServiceLocations.put(targetUri.getHost(), identityServiceUri);
             }
         }
 
@@ -156,10 +223,8 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
             // create an request to the VSO deployment data end-point
             final HttpURLConnection request = createConnectionDataRequest(targetUri, accessToken);
 
-            // send the request and wait for the response
-            final String content = HttpClient.readToString(request);
-
-            resultId = parseInstanceIdFromJson(content);
+            // send the request and wait for the response; the instance id comes early in a large document
+            resultId = JsonFieldExtractor.extract(request, InstanceIdField).get(InstanceIdField);
         }
         catch (final IOException e)
         {
@@ -198,12 +263,13 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
             // create an request to the VSO deployment data end-point
             final HttpURLConnection request = createConnectionDataRequest(targetUri, credentials);
 
-            // send the request and wait for the response
-            request.connect();
+            // the request policy already sent the request and waited for the response
             final int statusCode = request.getResponseCode();
             // we're looking for 'OK 200' here, anything else is failure
             Trace.writeLine("   server returned: " + statusCode);
-            return statusCode == HttpURLConnection.HTTP_OK;
+            final boolean valid = statusCode == HttpURLConnection.HTTP_OK;
+            Metrics.increment(valid ? ValidCredentials : InvalidCredentials);
+            return valid;
         }
         catch (final IOException e)
         {
@@ -230,63 +296,102 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
         throw new NotImplementedException(449243);
     }
 
-    private static final Pattern TOKEN_PATTERN = Pattern.compile(
-        "\"token\"\\s*:\\s*\"([^\"]+)\"",
-        Pattern.CASE_INSENSITIVE
-    );
+    private static final String TokenField = "token";
+    private static final String ValidToField = "validTo";
+    private static final String InstanceIdField = "instanceId";
+    private static final String LocationField = "location";
+
     static Token parsePersonalAccessTokenFromJson(final String json)
     {
         Token token = null;
         if (!StringHelper.isNullOrWhiteSpace(json))
         {
-            // find the 'token : <value>' portion of the result content, if any
-            final Matcher matcher = TOKEN_PATTERN.matcher(json);
-            if (matcher.find())
-            {
-                final String tokenValue = matcher.group(1);
-                token = new Token(tokenValue, TokenType.Personal);
-            }
+            token = createPersonalAccessToken(JsonFieldExtractor.extract(json, TokenField, ValidToField));
         }
         return token;
     }
 
-     private static final Pattern INSTANCE_ID_PATTERN = Pattern.compile(
-        "\"instanceId\"\\s*:\\s*\"([^\"]+)\"",
-        Pattern.CASE_INSENSITIVE
-    );
-    static String parseInstanceIdFromJson(final String json)
+    private static Token createPersonalAccessToken(final Map<String, String> fields)
     {
-        String result = null;
+        // find the 'token : <value>' portion of the result content, if any
+        final String tokenValue = fields.get(TokenField);
+        if (StringHelper.isNullOrEmpty(tokenValue))
+            return null;
+        return new PersonalAccessToken(tokenValue, parseIso8601(fields.get(ValidToField)));
+    }
 
-        final Matcher matcher = INSTANCE_ID_PATTERN.matcher(json);
-        if (matcher.find())
+    private static final Pattern ISO_8601_PATTERN = Pattern.compile(
+        "(\\d{4})-(\\d{2})-(\\d{2})T(\\d{2}):(\\d{2}):(\\d{2})(?:\\.(\\d+))?(Z|[+-]\\d{2}:?\\d{2})?"
+    );
+    /**
+     * Parses the subset of ISO 8601 the service uses for dates, such as
+     * {@code 2017-06-14T18:57:07.87Z}.  SimpleDateFormat can't cope with the
+     * variable number of fractional digits, nor with the 'Z' designator on Java 6.
+     *
+     * @param value the date and time, as emitted by the service.
+     * @return a Calendar in UTC; null if the value couldn't be parsed.
+     */
+    static Calendar parseIso8601(final String value)
+    {
+        if (value == null)
+            return null;
+        final Matcher matcher = ISO_8601_PATTERN.matcher(value.trim());
+        if (!matcher.matches())
+            return null;
+
+        final Calendar result = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        result.clear();
+        result.set(
+            Integer.parseInt(matcher.group(1), 10),
+            Integer.parseInt(matcher.group(2), 10) - 1,
+            Integer.parseInt(matcher.group(3), 10),
+            Integer.parseInt(matcher.group(4), 10),
+            Integer.parseInt(matcher.group(5), 10),
+            Integer.parseInt(matcher.group(6), 10));
+        final String fraction = matcher.group(7);
+        if (fraction != null)
         {
-            result = matcher.group(1);
+            // only the first three digits are significant to a Calendar
+            final String millis = (fraction + "00").substring(0, 3);
+            result.set(Calendar.MILLISECOND, Integer.parseInt(millis, 10));
+        }
+        final String offset = matcher.group(8);
+        if (offset != null && !"Z".equals(offset))
+        {
+            final String digits = offset.replace(":", "");
+            final int hours = Integer.parseInt(digits.substring(1, 3), 10);
+            final int minutes = Integer.parseInt(digits.substring(3, 5), 10);
+            final int offsetMinutes = hours * 60 + minutes;
+            // the local time is ahead of UTC by a positive offset, so subtract it to get back to UTC
+            result.add(Calendar.MINUTE, digits.charAt(0) == '+' ? -offsetMinutes : offsetMinutes);
         }
-
         return result;
     }
 
-    private static final Pattern LOCATION_PATTERN = Pattern.compile(
-            "\"location\"\\s*:\\s*\"([^\"]+)\"",
-            Pattern.CASE_INSENSITIVE
-    );
+    static String parseInstanceIdFromJson(final String json)
+    {
+        return JsonFieldExtractor.extract(json, InstanceIdField).get(InstanceIdField);
+    }
+
     static URI parseLocationFromJson(final String json)
     {
         URI locationServiceUri = null;
         if (!StringHelper.isNullOrWhiteSpace(json))
         {
-            // find the 'location : <value>' portion of the result content, if any
-            final Matcher matcher = LOCATION_PATTERN.matcher(json);
-            if (matcher.find())
-            {
-                final String location = matcher.group(1);
-                locationServiceUri = URI.create(location);
-            }
+            locationServiceUri = createLocation(JsonFieldExtractor.extract(json, LocationField));
         }
         return locationServiceUri;
     }
 
+    private static URI createLocation(final Map<String, String> fields)
+    {
+        // find the 'location : <value>' portion of the result content, if any
+        final String location = fields.get(LocationField);
+        if (StringHelper.isNullOrEmpty(location))
+            return null;
+        return URI.create(location);
+    }
+
     private StringContent getAccessTokenRequestBody(final URI targetUri, final Token accessToken, final VsoTokenScope tokenScope)
     {
         final String ContentJsonFormat = "{ \"scope\" : \"%1$s\", \"targetAccounts\" : [\"%2$s\"], \"displayName\" : \"Git: %3$s on %4$s\" }";
@@ -314,11 +419,11 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
 
         credentials.contributeHeader(client.Headers);
 
-        final HttpURLConnection result = client.get(requestUri, new Action<HttpURLConnection>()
+        final HttpURLConnection result = RequestPolicy.send(RequestPolicy.Endpoint.ConnectionData, requestUri, RequestPolicy.RetryMode.All, new RequestPolicy.Request()
         {
-            @Override public void call(final HttpURLConnection conn)
+            @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
             {
-                conn.setConnectTimeout(RequestTimeout);
+                return client.get(requestUri, configure);
             }
         });
         return result;
@@ -339,11 +444,11 @@ class VsoAzureAuthority extends AzureAuthority implements IVsoAuthority
         Trace.writeLine("   validating token");
         token.contributeHeader(client.Headers);
 
-        final HttpURLConnection result = client.get(requestUri, new Action<HttpURLConnection>()
+        final HttpURLConnection result = RequestPolicy.send(RequestPolicy.Endpoint.ConnectionData, requestUri, RequestPolicy.RetryMode.All, new RequestPolicy.Request()
         {
-            @Override public void call(final HttpURLConnection conn)
+            @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
             {
-                conn.setConnectTimeout(RequestTimeout);
+                return client.get(requestUri, configure);
             }
         });
         return result;
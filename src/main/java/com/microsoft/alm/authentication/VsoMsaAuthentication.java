@@ -10,6 +10,7 @@ import com.microsoft.alm.secret.TokenPair;
 import com.microsoft.alm.secret.VsoTokenScope;
 
 import java.net.URI;
+import java.util.concurrent.Callable;
 
 public final class VsoMsaAuthentication extends BaseVsoAuthentication implements IVsoMsaAuthentication
 {
@@ -52,7 +53,7 @@ public final class VsoMsaAuthentication extends BaseVsoAuthentication implements
      * 
      * @return True if successful; otherwise false.
      */
-    @Override public boolean interactiveLogon(URI targetUri, boolean requireCompactToken)
+    @Override public boolean interactiveLogon(final URI targetUri, final boolean requireCompactToken)
     {
         final String QueryParameters = "domain_hint=live.com&display=popup&site_id=501454&nux=1";
 
@@ -60,18 +61,24 @@ public final class VsoMsaAuthentication extends BaseVsoAuthentication implements
 
         Trace.writeLine("VsoMsaAuthentication::InteractiveLogon");
 
-        TokenPair tokens;
-        if ((tokens = this.VsoAuthority.acquireToken(targetUri, this.ClientId, this.Resource, RedirectUri, QueryParameters)) != null)
+        return this.coordinateLogon(targetUri, new Callable<Boolean>()
         {
-            Trace.writeLine("   token successfully acquired.");
-
-            this.storeRefreshToken(targetUri, tokens.RefreshToken);
-
-            return this.generatePersonalAccessToken(targetUri, tokens.AccessToken, requireCompactToken);
-        }
-
-        Trace.writeLine("   failed to acquire token.");
-        return false;
+            @Override public Boolean call()
+            {
+                TokenPair tokens;
+                if ((tokens = VsoAuthority.acquireToken(targetUri, ClientId, Resource, RedirectUri, QueryParameters)) != null)
+                {
+                    Trace.writeLine("   token successfully acquired.");
+
+                    storeRefreshToken(targetUri, tokens.RefreshToken);
+
+                    return generatePersonalAccessToken(targetUri, tokens.AccessToken, requireCompactToken);
+                }
+
+                Trace.writeLine("   failed to acquire token.");
+                return false;
+            }
+        });
     }
 
     public boolean deviceLogon(final URI targetUri, final boolean requestCompactToken, final Action<DeviceFlowResponse> callback)
@@ -80,18 +87,24 @@ public final class VsoMsaAuthentication extends BaseVsoAuthentication implements
 
         Trace.writeLine("VsoMsaAuthentication::deviceLogon");
 
-        TokenPair tokens;
-        if ((tokens = this.VsoAuthority.acquireToken(targetUri, this.ClientId, this.Resource, RedirectUri, callback)) != null)
+        return this.coordinateLogon(targetUri, new Callable<Boolean>()
         {
-            Trace.writeLine("   token successfully acquired.");
-
-            this.storeRefreshToken(targetUri, tokens.RefreshToken);
-
-            return this.generatePersonalAccessToken(targetUri, tokens.AccessToken, requestCompactToken);
-        }
-
-        Trace.writeLine("   failed to acquire token.");
-        return false;
+            @Override public Boolean call()
+            {
+                TokenPair tokens;
+                if ((tokens = VsoAuthority.acquireToken(targetUri, ClientId, Resource, RedirectUri, callback)) != null)
+                {
+                    Trace.writeLine("   token successfully acquired.");
+
+                    storeRefreshToken(targetUri, tokens.RefreshToken);
+
+                    return generatePersonalAccessToken(targetUri, tokens.AccessToken, requestCompactToken);
+                }
+
+                Trace.writeLine("   failed to acquire token.");
+                return false;
+            }
+        });
     }
 
     /**
@@ -0,0 +1,769 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.secret.Credential;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Answers Git's credential-cache helper ({@code credential.helper=cache --socket=<path>}),
+ * speaking the protocol of {@code git credential-cache--daemon}: one request per connection,
+ * made of an {@code action=} line, a {@code timeout=} line and a credential, which the client
+ * ends by shutting its side of the connection down.  Only {@code get} has a response: the
+ * username and password, or nothing.
+ *
+ * Like Git's daemon, credentials are kept in memory until their timeout has elapsed.  Unlike it,
+ * a miss is passed on to a {@link Backend}, i.e. the secure store and the VSO/AAD logic, which
+ * may find a stored credential or mint one from a refresh token without prompting; stores and
+ * erases are passed on too.
+ *
+ * A {@code metrics} action, which Git never sends, is answered with what the server has
+ * measured since it started and how many requests are waiting, in the Prometheus text format,
+ * so it can be scraped while it runs.
+ */
+final class CredentialCacheServer
+{
+    static final String CacheHits = Metrics.series("gcm_cache_server_requests_total", "result", "hit");
+    static final String CacheMisses = Metrics.series("gcm_cache_server_requests_total", "result", "miss");
+    static final String RequestDurations = "gcm_cache_server_request_duration_seconds";
+    static final String Trims = "gcm_cache_server_trims_total";
+
+    /** How often the resident memory is compared to the limit. */
+    static final long MemoryCheckIntervalMillis = 10000;
+
+    private static final String Charset = "UTF-8";
+    private static final String ActionPrefix = "action=";
+    private static final String TimeoutPrefix = "timeout=";
+    static final String MetricsAction = "metrics";
+
+    /**
+     * Where a miss, a store and an erase are passed on to.
+     */
+    interface Backend
+    {
+        /**
+         * Finds or acquires the credentials, without prompting.
+         *
+         * @return the credentials, or null if there are none.
+         */
+        Credential get(final OperationArguments operationArguments);
+        void store(final OperationArguments operationArguments);
+        void erase(final OperationArguments operationArguments);
+    }
+
+    private final Backend backend;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private volatile boolean stopped;
+    private UnixDomainSocket listening;
+    private long idleTimeoutMillis;
+    private long maxResidentBytes;
+    private final AtomicInteger connections = new AtomicInteger();
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    CredentialCacheServer(final Backend backend)
+    {
+        if (backend == null)
+            throw new IllegalArgumentException("The `backend` parameter is null.");
+
+        this.backend = backend;
+    }
+
+    /**
+     * Creates the socket, refusing to take over one that another server is answering, and
+     * makes its folder private like Git's daemon expects.
+     */
+    static UnixDomainSocket listen(final File socketPath, final int backlog) throws IOException
+    {
+        final File folder = socketPath.getAbsoluteFile().getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs())
+            throw new IOException("Unable to create " + folder);
+        folder.setReadable(false, false);
+        folder.setReadable(true, true);
+        folder.setWritable(false, false);
+        folder.setWritable(true, true);
+        folder.setExecutable(false, false);
+        folder.setExecutable(true, true);
+
+        if (socketPath.exists())
+        {
+            if (isListening(socketPath))
+                throw new IOException("A server is already listening on " + socketPath);
+            // left behind by a server that didn't get to clean up
+            Trace.writeLine("   removing stale socket " + socketPath);
+            socketPath.delete();
+        }
+        return UnixDomainSocket.listen(socketPath, backlog);
+    }
+
+    static boolean isListening(final File socketPath)
+    {
+        try
+        {
+            UnixDomainSocket.connect(socketPath).close();
+            return true;
+        }
+        catch (final IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Makes {@link #run} return once no client has been answered for that long, which is
+     * how a socket-activated server goes away until systemd starts it again.
+     *
+     * @param idleTimeoutMillis How long to wait for the next client; 0 to wait forever.
+     */
+    void setIdleTimeout(final long idleTimeoutMillis)
+    {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Makes {@link #run} trim the cache whenever the process' resident memory is over the limit.
+     *
+     * @param maxResidentBytes The limit; 0 for none.
+     */
+    void setMemoryLimit(final long maxResidentBytes)
+    {
+        this.maxResidentBytes = maxResidentBytes;
+    }
+
+    /**
+     * Accepts connections until {@link #stop()} is called, a client asks the server to exit or,
+     * if there's an idle timeout, no client showed up for that long.  Each request is read and,
+     * if memory has its answer, answered on the scheduler's fast lane; the others are passed on
+     * to the backend on its network lane.
+     *
+     * @param listener   The listening socket; closed before returning.
+     * @param socketPath The socket's path, deleted before returning; null to leave it, i.e.
+     *                   when the socket belongs to systemd.
+     * @param scheduler  Where the requests are handled.
+     */
+    void run(final UnixDomainSocket listener, final File socketPath, final RequestScheduler scheduler)
+    {
+        Trace.writeLine("CredentialCacheServer::run");
+
+        synchronized (this)
+        {
+            listening = listener;
+        }
+        lastActivityNanos = System.nanoTime();
+        long nextMemoryCheckNanos = lastActivityNanos;
+        try
+        {
+            while (!stopped)
+            {
+                final long now = System.nanoTime();
+                if (maxResidentBytes > 0 && now - nextMemoryCheckNanos >= 0)
+                {
+                    checkMemory();
+                    nextMemoryCheckNanos = now + TimeUnit.MILLISECONDS.toNanos(MemoryCheckIntervalMillis);
+                }
+                if (isIdle(now))
+                {
+                    Trace.writeLine("   no client for " + idleTimeoutMillis / 1000 + " seconds; exiting");
+                    break;
+                }
+                try
+                {
+                    if (!listener.awaitConnection(getWaitMillis(now, nextMemoryCheckNanos)))
+                        continue;
+                }
+                catch (final IOException e)
+                {
+                    Trace.writeLine("   " + e.getMessage());
+                    break;
+                }
+                if (stopped)
+                    break;
+
+                final UnixDomainSocket connection;
+                try
+                {
+                    connection = listener.accept();
+                }
+                catch (final IOException e)
+                {
+                    Trace.writeLine("   " + e.getMessage());
+                    break;
+                }
+                connections.incrementAndGet();
+                try
+                {
+                    scheduler.executeFast(new Runnable()
+                    {
+                        @Override public void run()
+                        {
+                            serve(connection, scheduler);
+                        }
+                    });
+                }
+                catch (final RejectedExecutionException e)
+                {
+                    close(connection);
+                }
+            }
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                listening = null;
+                listener.close();
+            }
+            if (socketPath != null)
+            {
+                socketPath.delete();
+            }
+        }
+    }
+
+    /**
+     * @return true if there's an idle timeout and no client has been seen for that long.
+     */
+    private boolean isIdle(final long now)
+    {
+        return idleTimeoutMillis > 0
+            && connections.get() == 0
+            && now - lastActivityNanos >= TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    }
+
+    /**
+     * @return how long to wait for a connection before checking for idleness or memory again;
+     * -1 to wait as long as it takes.
+     */
+    private int getWaitMillis(final long now, final long nextMemoryCheckNanos)
+    {
+        long result = -1;
+        if (idleTimeoutMillis > 0)
+        {
+            // with clients still being answered, the timeout starts over once they're done
+            result = connections.get() > 0
+                ? idleTimeoutMillis
+                : idleTimeoutMillis - TimeUnit.NANOSECONDS.toMillis(now - lastActivityNanos);
+        }
+        if (maxResidentBytes > 0)
+        {
+            final long untilMemoryCheck = TimeUnit.NANOSECONDS.toMillis(nextMemoryCheckNanos - now);
+            result = result == -1 ? untilMemoryCheck : Math.min(result, untilMemoryCheck);
+        }
+        return result == -1 ? -1 : (int) Math.min(Integer.MAX_VALUE, Math.max(1, result));
+    }
+
+    private void checkMemory()
+    {
+        final long residentBytes = readResidentBytes();
+        if (residentBytes <= maxResidentBytes)
+            return;
+        final int removed = trim();
+        Metrics.increment(Trims);
+        Trace.writeLine("   resident memory is " + residentBytes / 1024 + " KiB; dropped " + removed + " cached credential(s)");
+    }
+
+    /**
+     * Stops accepting connections; the ones already accepted are still answered.
+     */
+    void stop()
+    {
+        stopped = true;
+        synchronized (this)
+        {
+            if (listening != null)
+            {
+                listening.wakeUp();
+            }
+        }
+    }
+
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    private void close(final UnixDomainSocket connection)
+    {
+        connection.close();
+        lastActivityNanos = System.nanoTime();
+        connections.decrementAndGet();
+    }
+
+    private void serve(final UnixDomainSocket connection, final RequestScheduler scheduler)
+    {
+        boolean handedOver = false;
+        try
+        {
+            final Request request = read(connection.getInputStream());
+            if (request == null)
+                return;
+            if (!answerFromMemory(request, connection.getOutputStream(), scheduler))
+            {
+                scheduler.executeNetwork(request.OperationArguments.Host, new Runnable()
+                {
+                    @Override public void run()
+                    {
+                        try
+                        {
+                            answerFromBackend(request, connection.getOutputStream());
+                        }
+                        catch (final IOException e)
+                        {
+                            Trace.writeLine("   unable to answer a client: " + e.getMessage());
+                        }
+                        finally
+                        {
+                            close(connection);
+                        }
+                    }
+                });
+                handedOver = true;
+            }
+            else if (request.isExit())
+            {
+                stop();
+            }
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to answer a client: " + e.getMessage());
+        }
+        catch (final RejectedExecutionException e)
+        {
+            Trace.writeLine("   the server is shutting down; dropping a request");
+        }
+        finally
+        {
+            if (!handedOver)
+            {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * Reads a request and writes its response, all on the calling thread.
+     *
+     * @return false if the client asked the server to exit.
+     */
+    boolean handle(final InputStream input, final OutputStream output) throws IOException
+    {
+        final Request request = read(input);
+        if (request == null)
+            return true;
+        if (!answerFromMemory(request, output, null))
+        {
+            answerFromBackend(request, output);
+        }
+        return !request.isExit();
+    }
+
+    /**
+     * @return the request, or null if the client sent a bogus one.
+     */
+    private static Request read(final InputStream input) throws IOException
+    {
+        final long startNanos = System.nanoTime();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(input, Charset));
+        final String actionLine = reader.readLine();
+        if (actionLine == null || !actionLine.startsWith(ActionPrefix))
+        {
+            Trace.writeLine("   client sent bogus action line: " + actionLine);
+            return null;
+        }
+        final String action = actionLine.substring(ActionPrefix.length());
+        final String timeoutLine = reader.readLine();
+        if (timeoutLine == null || !timeoutLine.startsWith(TimeoutPrefix))
+        {
+            Trace.writeLine("   client sent bogus timeout line: " + timeoutLine);
+            return null;
+        }
+        final int timeoutSeconds = parseTimeout(timeoutLine.substring(TimeoutPrefix.length()));
+        try
+        {
+            return new Request(action, timeoutSeconds, new OperationArguments(reader), startNanos);
+        }
+        catch (final URISyntaxException e)
+        {
+            Trace.writeLine("   client sent a bogus credential: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Answers what memory can: hits, exits and unknown actions, as well as the in-memory half
+     * of stores and erases.
+     *
+     * @param scheduler Where the requests are handled, whose queues the metrics include; null if none.
+     * @return false if the backend has the rest of the answer.
+     */
+    private boolean answerFromMemory(final Request request, final OutputStream output, final RequestScheduler scheduler) throws IOException
+    {
+        final OperationArguments operationArguments = request.OperationArguments;
+        if ("get".equals(request.Action))
+        {
+            final Credential cached = find(operationArguments);
+            Metrics.increment(cached != null ? CacheHits : CacheMisses);
+            if (cached == null && operationArguments.TargetUri != null)
+                return false;
+            if (cached != null)
+            {
+                output.write(formatCredential(cached));
+                output.flush();
+            }
+        }
+        else if ("exit".equals(request.Action))
+        {
+            Trace.writeLine("   client asked the server to exit");
+        }
+        else if (MetricsAction.equals(request.Action))
+        {
+            writeMetrics(output, scheduler);
+        }
+        else if ("erase".equals(request.Action))
+        {
+            remove(operationArguments, true);
+            return false;
+        }
+        else if ("store".equals(request.Action))
+        {
+            if (request.TimeoutSeconds < 0)
+            {
+                Trace.writeLine("   cache client didn't specify a timeout");
+            }
+            else if (operationArguments.getUserName() == null || operationArguments.getPassword() == null)
+            {
+                Trace.writeLine("   cache client gave us a partial credential");
+            }
+            else
+            {
+                remove(operationArguments, false);
+                add(operationArguments, new Credential(operationArguments.getUserName(), operationArguments.getPassword()), request.TimeoutSeconds);
+                return false;
+            }
+        }
+        else
+        {
+            Trace.writeLine("   cache client sent unknown action: " + request.Action);
+        }
+        request.finished();
+        return true;
+    }
+
+    private static void writeMetrics(final OutputStream output, final RequestScheduler scheduler) throws IOException
+    {
+        final PrintStream printStream = new PrintStream(output, false, Charset);
+        Metrics.getRegistry().writePrometheus(printStream);
+        if (scheduler != null)
+        {
+            scheduler.writePrometheus(printStream);
+        }
+        printStream.flush();
+    }
+
+    /**
+     * Passes a miss, a store or an erase on to the backend.
+     */
+    private void answerFromBackend(final Request request, final OutputStream output) throws IOException
+    {
+        final OperationArguments operationArguments = request.OperationArguments;
+        try
+        {
+            if ("get".equals(request.Action))
+            {
+                final Credential credential = get(operationArguments, request.TimeoutSeconds);
+                if (credential != null)
+                {
+                    output.write(formatCredential(credential));
+                    output.flush();
+                }
+            }
+            else if ("erase".equals(request.Action))
+            {
+                backend.erase(operationArguments);
+            }
+            else if ("store".equals(request.Action))
+            {
+                backend.store(operationArguments);
+            }
+        }
+        finally
+        {
+            request.finished();
+        }
+    }
+
+    private Credential get(final OperationArguments operationArguments, final int timeoutSeconds)
+    {
+        final Credential credential;
+        try
+        {
+            credential = backend.get(operationArguments);
+        }
+        catch (final RuntimeException e)
+        {
+            Trace.writeLine("   unable to get credentials: " + e.getMessage());
+            return null;
+        }
+        catch (final Error e)
+        {
+            // HTTP failures surface as Error; the client moves on to its next helper
+            Trace.writeLine("   unable to get credentials: " + e.getMessage());
+            return null;
+        }
+        if (credential != null && credential.Password != null && timeoutSeconds > 0)
+        {
+            add(operationArguments, credential, timeoutSeconds);
+        }
+        return credential != null && credential.Password != null ? credential : null;
+    }
+
+    /**
+     * Parses the timeout like Git's atoi() would: garbage is zero.
+     */
+    static int parseTimeout(final String value)
+    {
+        try
+        {
+            return Integer.parseInt(value.trim());
+        }
+        catch (final NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    static byte[] formatCredential(final Credential credential)
+    {
+        final StringBuilder sb = new StringBuilder();
+        if (credential.Username != null)
+        {
+            sb.append("username=").append(credential.Username).append('\n');
+        }
+        sb.append("password=").append(credential.Password).append('\n');
+        try
+        {
+            return sb.toString().getBytes(Charset);
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new Error(e);
+        }
+    }
+
+    /**
+     * @return how many credentials are cached, expired ones excluded.
+     */
+    int size()
+    {
+        synchronized (entries)
+        {
+            removeExpired(System.currentTimeMillis());
+            return entries.size();
+        }
+    }
+
+    private Credential find(final OperationArguments request)
+    {
+        synchronized (entries)
+        {
+            removeExpired(System.currentTimeMillis());
+            for (final Entry entry : entries)
+            {
+                if (entry.matches(request, false))
+                    return entry.Credential;
+            }
+        }
+        return null;
+    }
+
+    private void add(final OperationArguments request, final Credential credential, final int timeoutSeconds)
+    {
+        final Entry entry = new Entry(request.Protocol, request.Host, request.Path, credential, System.currentTimeMillis() + timeoutSeconds * 1000L);
+        synchronized (entries)
+        {
+            entries.add(entry);
+        }
+    }
+
+    private void remove(final OperationArguments request, final boolean matchPassword)
+    {
+        synchronized (entries)
+        {
+            final Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext())
+            {
+                if (iterator.next().matches(request, matchPassword))
+                {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private void removeExpired(final long now)
+    {
+        final Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().ExpiresAt <= now)
+            {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops the expired credentials, then the half that expire soonest, which are the ones
+     * the cache would have had to fetch again first anyway.
+     *
+     * @return how many credentials were dropped.
+     */
+    int trim()
+    {
+        synchronized (entries)
+        {
+            final int before = entries.size();
+            removeExpired(System.currentTimeMillis());
+            final int keep = entries.size() / 2;
+            if (entries.size() > keep)
+            {
+                Collections.sort(entries, new Comparator<Entry>()
+                {
+                    @Override public int compare(final Entry a, final Entry b)
+                    {
+                        return a.ExpiresAt < b.ExpiresAt ? 1 : (a.ExpiresAt == b.ExpiresAt ? 0 : -1);
+                    }
+                });
+                entries.subList(keep, entries.size()).clear();
+            }
+            return before - entries.size();
+        }
+    }
+
+    /**
+     * @return the process' resident set size on Linux; elsewhere, the part of the Java heap
+     * in use, which is most of what the server adds to it.
+     */
+    static long readResidentBytes()
+    {
+        final File status = new File("/proc/self/status");
+        if (status.isFile())
+        {
+            BufferedReader reader = null;
+            try
+            {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(status), Charset));
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    // i.e. "VmRSS:     41236 kB"
+                    if (line.startsWith("VmRSS:"))
+                    {
+                        final String value = line.substring("VmRSS:".length()).trim();
+                        final int space = value.indexOf(' ');
+                        return Long.parseLong(space == -1 ? value : value.substring(0, space)) * 1024;
+                    }
+                }
+            }
+            catch (final IOException e)
+            {
+                Trace.writeLine("   unable to read " + status + ": " + e.getMessage());
+            }
+            catch (final NumberFormatException e)
+            {
+                Trace.writeLine("   unable to parse " + status + ": " + e.getMessage());
+            }
+            finally
+            {
+                IOHelper.closeQuietly(reader);
+            }
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static final class Request
+    {
+        final String Action;
+        final int TimeoutSeconds;
+        final OperationArguments OperationArguments;
+        final long StartNanos;
+
+        Request(final String action, final int timeoutSeconds, final OperationArguments operationArguments, final long startNanos)
+        {
+            Action = action;
+            TimeoutSeconds = timeoutSeconds;
+            OperationArguments = operationArguments;
+            StartNanos = startNanos;
+        }
+
+        boolean isExit()
+        {
+            return "exit".equals(Action);
+        }
+
+        void finished()
+        {
+            Metrics.recordNanos(Metrics.series(RequestDurations, "action", Action), System.nanoTime() - StartNanos);
+        }
+    }
+
+    private static final class Entry
+    {
+        final String Protocol;
+        final String Host;
+        final String Path;
+        final Credential Credential;
+        final long ExpiresAt;
+
+        Entry(final String protocol, final String host, final String path, final Credential credential, final long expiresAt)
+        {
+            Protocol = protocol;
+            Host = host;
+            Path = path;
+            Credential = credential;
+            ExpiresAt = expiresAt;
+        }
+
+        /**
+         * Matches like Git's credential_match(): every field of the request that is set
+         * must be equal.
+         */
+        boolean matches(final OperationArguments request, final boolean matchPassword)
+        {
+            return matches(request.Protocol, Protocol)
+                && matches(request.Host, Host)
+                && matches(request.Path, Path)
+                && matches(request.getUserName(), Credential.Username)
+                && (!matchPassword || matches(request.getPassword(), Credential.Password));
+        }
+
+        private static boolean matches(final String wanted, final String actual)
+        {
+            return StringHelper.isNullOrEmpty(wanted) || wanted.equals(actual);
+        }
+    }
+}
@@ -0,0 +1,268 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.Debug;
+import com.microsoft.alm.helpers.FileHelper;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Moves a log out of the way once it grows too large, keeping a fixed number of older
+ * generations in numbered slots (credential001.log, credential002.log, ...) that are reused
+ * in turn.  An index file remembers which slot is next, so rotating never has to look for
+ * a free name and the oldest generation is simply overwritten.
+ */
+class LogRotator
+{
+    static final int DefaultGenerations = 5;
+    static final long DefaultMaxLength = 8 * 1024 * 1024; // 8 MB
+    static final String CompressedExtension = ".gz";
+    static final String IndexExtension = ".index";
+    private static final String NextSlotKey = "next";
+    private static final String RotationsKey = "rotations";
+
+    private final File directory;
+    private final String baseName;
+    private final String extension;
+    private final int generations;
+    private final long maxLength;
+    private final boolean compress;
+    private final File logFile;
+    private final File indexFile;
+    private Thread compressor;
+
+    /**
+     * @param directory   Where the log and its generations are.
+     * @param baseName    The name of the log without its extension, i.e. "credential".
+     * @param extension   The extension of the log, including the period, i.e. ".log".
+     * @param generations How many rotated logs are kept; 0 deletes the log instead of rotating it.
+     * @param maxLength   How large, in bytes, the log can grow before it's rotated.
+     * @param compress    True to gzip rotated logs from a background thread.
+     */
+    LogRotator(final File directory, final String baseName, final String extension, final int generations, final long maxLength, final boolean compress)
+    {
+        Debug.Assert(directory != null, "The directory parameter is null");
+        Debug.Assert(baseName != null, "The baseName parameter is null");
+        Debug.Assert(extension != null, "The extension parameter is null");
+        Debug.Assert(generations >= 0, "The generations parameter must not be negative");
+
+        this.directory = directory;
+        this.baseName = baseName;
+        this.extension = extension;
+        this.generations = generations;
+        this.maxLength = maxLength;
+        this.compress = compress;
+        this.logFile = new File(directory, baseName + extension);
+        this.indexFile = new File(directory, baseName + extension + IndexExtension);
+    }
+
+    File getLogFile()
+    {
+        return logFile;
+    }
+
+    File getSlotFile(final int slot)
+    {
+        return new File(directory, String.format("%1$s%2$03d%3$s", baseName, slot, extension));
+    }
+
+    /**
+     * Rotates the log if it has grown too large.
+     *
+     * @return The slot the log was moved to; 0 if it was deleted, -1 if it wasn't rotated.
+     */
+    int rotateIfNeeded()
+    {
+        if (!logFile.isFile() || logFile.length() <= maxLength)
+            return -1;
+
+        Trace.writeLine("LogRotator::rotateIfNeeded");
+
+        if (generations == 0)
+        {
+            logFile.delete();
+            return 0;
+        }
+
+        final Properties index = loadIndex();
+        final int slot = readSlot(index);
+        final File slotFile = getSlotFile(slot);
+        final File compressedFile = new File(slotFile.getPath() + CompressedExtension);
+        // whatever was in the slot is the oldest generation
+        slotFile.delete();
+        compressedFile.delete();
+
+        if (!logFile.renameTo(slotFile))
+        {
+            // another process may have beaten us to it; either way, don't let the log grow unbounded
+            Trace.writeLine("   unable to move %1$s to %2$s", logFile, slotFile);
+            if (logFile.length() > maxLength)
+            {
+                logFile.delete();
+            }
+            return -1;
+        }
+
+        index.setProperty(NextSlotKey, Integer.toString(slot % generations + 1));
+        index.setProperty(RotationsKey, Long.toString(readLong(index, RotationsKey) + 1));
+        saveIndex(index);
+        Trace.writeLine("   rotated to %1$s", slotFile);
+
+        if (compress)
+        {
+            compressInBackground(slotFile, compressedFile);
+        }
+        return slot;
+    }
+
+    /**
+     * Waits for the compression started by {@link #rotateIfNeeded()}, if any, to finish.
+     */
+    void awaitCompression(final long timeoutMillis)
+    {
+        final Thread thread;
+        synchronized (this)
+        {
+            thread = compressor;
+        }
+        if (thread == null)
+            return;
+        try
+        {
+            thread.join(timeoutMillis);
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized boolean isCompressing()
+    {
+        return compressor != null && compressor.isAlive();
+    }
+
+    private synchronized void compressInBackground(final File source, final File destination)
+    {
+        final Thread thread = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                compress(source, destination);
+            }
+        }, "Log compressor");
+        thread.setDaemon(true);
+        compressor = thread;
+        thread.start();
+    }
+
+    /**
+     * Writes a gzipped copy of the source and then deletes the source.  The copy is written under
+     * a temporary name first, so an interrupted compression never leaves a truncated .gz behind.
+     */
+    static boolean compress(final File source, final File destination)
+    {
+        try
+        {
+            FileHelper.replace(destination, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    final InputStream input = new FileInputStream(source);
+                    try
+                    {
+                        final GZIPOutputStream output = new GZIPOutputStream(stream);
+                        IOHelper.copyStream(input, output);
+                        output.finish();
+                    }
+                    finally
+                    {
+                        IOHelper.closeQuietly(input);
+                    }
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to compress %1$s: %2$s", source, e.getMessage());
+            return false;
+        }
+        source.delete();
+        return true;
+    }
+
+    private int readSlot(final Properties index)
+    {
+        final long slot = readLong(index, NextSlotKey);
+        // the number of generations may have been lowered since the index was written
+        return slot >= 1 && slot <= generations ? (int) slot : 1;
+    }
+
+    private static long readLong(final Properties index, final String key)
+    {
+        final String value = index.getProperty(key);
+        if (value == null)
+            return 0;
+        try
+        {
+            return Long.parseLong(value.trim(), 10);
+        }
+        catch (final NumberFormatException ignored)
+        {
+            return 0;
+        }
+    }
+
+    private Properties loadIndex()
+    {
+        final Properties properties = new Properties();
+        if (indexFile.isFile())
+        {
+            FileInputStream stream = null;
+            try
+            {
+                stream = new FileInputStream(indexFile);
+                properties.load(stream);
+            }
+            catch (final IOException e)
+            {
+                // starting over at the first slot only means overwriting a newer generation
+                Trace.writeLine("   unable to read %1$s: %2$s", indexFile, e.getMessage());
+                properties.clear();
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+        return properties;
+    }
+
+    private void saveIndex(final Properties properties)
+    {
+        try
+        {
+            FileHelper.replace(indexFile, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    properties.store(stream, null);
+                }
+            });
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to write %1$s: %2$s", indexFile, e.getMessage());
+        }
+    }
+}
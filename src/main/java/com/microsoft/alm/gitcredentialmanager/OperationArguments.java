@@ -72,10 +72,36 @@ final class OperationArguments
         }
     }
 
+    OperationArguments(final URI targetUri)
+    {
+        this.Authority = AuthorityType.Auto;
+        this.Interactivity = com.microsoft.alm.gitcredentialmanager.Interactivity.Auto;
+        this.ValidateCredentials = true;
+        this.WriteLog = false;
+        this.EraseOsxKeyChain = true;
+
+        if (targetUri != null)
+        {
+            Protocol = targetUri.getScheme();
+            Host = targetUri.getAuthority();
+        }
+        else
+        {
+            Protocol = null;
+            Host = null;
+        }
+        Path = null;
+        TargetUri = targetUri;
+    }
+
     public final String Protocol;
     public final String Host;
     public final String Path;
-    public final URI TargetUri;
+    /**
+     * The scheme, host and port Git is after; the repository path is included once
+     * {@link #useHttpPath()} has been called.
+     */
+    public URI TargetUri;
 
     private String userName;
     public String getUserName()
@@ -97,10 +123,46 @@ final class OperationArguments
 
     public boolean WriteLog;
 
+    /**
+     * The trace log is written as one JSON object per line, for aggregating phase timings.
+     */
+    public boolean StructuredLog;
+
     public boolean EraseOsxKeyChain;
 
     public boolean CanFallbackToInsecureStore;
 
+    /**
+     * How long, in seconds, secrets read from the secure store are shared with the other
+     * helper processes of the user; 0 not to share them.
+     */
+    public int SharedCacheTtlSeconds;
+
+    /**
+     * The authority hasn't been reachable recently; cached credentials are used as-is.
+     */
+    public boolean Offline;
+
+    /**
+     * Credentials are looked up and stored for the repository's path instead of for the
+     * whole host, so that several organizations or repositories on one host can each
+     * have their own.
+     */
+    public boolean UseHttpPath;
+
+    /**
+     * Includes the path Git sent, if any, in {@link #TargetUri}.
+     */
+    public void useHttpPath() throws URISyntaxException
+    {
+        UseHttpPath = true;
+        if (TargetUri != null && !StringHelper.isNullOrWhiteSpace(Path))
+        {
+            final String path = Path.startsWith("/") ? Path : "/" + Path;
+            TargetUri = new URI(Protocol, Host, path, null, null);
+        }
+    }
+
     public void setCredentials(final Credential credentials)
     {
         this.userName = credentials.Username;
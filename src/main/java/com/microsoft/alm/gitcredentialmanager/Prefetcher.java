@@ -0,0 +1,292 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.authentication.Configuration;
+import com.microsoft.alm.helpers.Func;
+import com.microsoft.alm.helpers.StringHelper;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Acquires or validates, ahead of time, the credentials for every HTTP(S) remote and
+ * submodule of a repository, so that a large checkout doesn't stop for each of them in turn.
+ *
+ * The URLs are grouped by host: the hosts are processed concurrently, with a bounded number
+ * of threads, and the URLs of a host one after the other, so that the first one's logon
+ * (if any) serves the others.
+ */
+final class Prefetcher
+{
+    static final String GitModulesFileName = ".gitmodules";
+
+    private final Func<URI, Boolean> acquire;
+    private final int maxConcurrency;
+
+    /**
+     * @param acquire        Acquires or validates the credentials for a URL, storing them;
+     *                       returns whether there are credentials for it afterwards.
+     * @param maxConcurrency The maximum number of hosts to process at the same time.
+     */
+    Prefetcher(final Func<URI, Boolean> acquire, final int maxConcurrency)
+    {
+        if (acquire == null)
+            throw new IllegalArgumentException("The `acquire` parameter is null.");
+        if (maxConcurrency < 1)
+            throw new IllegalArgumentException("The `maxConcurrency` parameter must be at least 1.");
+
+        this.acquire = acquire;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Lists the HTTP(S) URLs of the remotes of a repository and of its submodules, without
+     * duplicates.  Relative submodule URLs are resolved against the URL of the origin remote,
+     * like Git does.
+     *
+     * @param localConfig The repository's configuration (.git/config).
+     * @param gitModules  The repository's .gitmodules, if any.
+     * @return The URLs, remotes first; possibly empty.
+     */
+    static List<URI> findRepositoryUrls(final Configuration localConfig, final Configuration gitModules)
+    {
+        final Set<URI> result = new LinkedHashSet<URI>();
+        final Map<String, String> remotes = localConfig.getSubsectionValues("remote", "url");
+        for (final String url : remotes.values())
+        {
+            addHttpUrl(result, url, null);
+        }
+        if (gitModules != null)
+        {
+            final String origin = remotes.get("origin");
+            for (final Map.Entry<String, String> submodule : gitModules.getSubsectionValues("submodule", "url").entrySet())
+            {
+                // the repository's configuration overrides .gitmodules once `git submodule init` has run
+                final String initialized = localConfig.get("submodule." + submodule.getKey() + ".url");
+                addHttpUrl(result, initialized != null ? initialized : submodule.getValue(), origin);
+            }
+        }
+        return new ArrayList<URI>(result);
+    }
+
+    private static void addHttpUrl(final Set<URI> destination, final String url, final String baseUrl)
+    {
+        String absoluteUrl = url.trim();
+        if ((absoluteUrl.startsWith("./") || absoluteUrl.startsWith("../")) && baseUrl != null)
+        {
+            // the superproject's URL is the "directory" the relative URL starts from
+            absoluteUrl = (baseUrl.endsWith("/") ? baseUrl : baseUrl + "/") + absoluteUrl;
+        }
+        try
+        {
+            final URI uri = new URI(absoluteUrl).normalize();
+            final String scheme = uri.getScheme();
+            if (("http".equalsIgnoreCase(scheme) || "https".equalsIgnoreCase(scheme)) && uri.getHost() != null)
+            {
+                destination.add(uri);
+            }
+            else
+            {
+                Trace.writeLine("   skipping %1$s", absoluteUrl);
+            }
+        }
+        catch (final URISyntaxException e)
+        {
+            // SSH URLs like git@host:path aren't URIs, and don't need our credentials anyway
+            Trace.writeLine("   skipping %1$s", absoluteUrl);
+        }
+    }
+
+    /**
+     * Finds the directory with the .git folder or file, where .gitmodules lives.
+     *
+     * @param startingDirectory A directory inside the working tree.
+     * @return The root of the working tree, or null outside of a repository.
+     */
+    static File findWorkingTree(final String startingDirectory)
+    {
+        File dir = new File(startingDirectory).getAbsoluteFile();
+        while (dir != null)
+        {
+            if (new File(dir, ".git").exists())
+                return dir;
+            dir = dir.getParentFile();
+        }
+        return null;
+    }
+
+    /**
+     * Describes a URL the way Git would when asking for its credentials.
+     */
+    static String toCredentialRequest(final URI url)
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("protocol=").append(url.getScheme().toLowerCase(Locale.ENGLISH)).append('\n');
+        sb.append("host=").append(url.getHost());
+        if (url.getPort() != -1)
+        {
+            sb.append(':').append(url.getPort());
+        }
+        sb.append('\n');
+        final String path = url.getPath();
+        if (!StringHelper.isNullOrEmpty(path) && !"/".equals(path))
+        {
+            sb.append("path=").append(path.startsWith("/") ? path.substring(1) : path).append('\n');
+        }
+        final String userInfo = url.getUserInfo();
+        if (!StringHelper.isNullOrEmpty(userInfo))
+        {
+            final int colon = userInfo.indexOf(':');
+            sb.append("username=").append(colon == -1 ? userInfo : userInfo.substring(0, colon)).append('\n');
+        }
+        return sb.toString();
+    }
+
+    static Map<String, List<URI>> groupByHost(final List<URI> urls)
+    {
+        final Map<String, List<URI>> result = new LinkedHashMap<String, List<URI>>();
+        for (final URI url : urls)
+        {
+            final String host = url.getScheme().toLowerCase(Locale.ENGLISH) + "://" + url.getHost().toLowerCase(Locale.ENGLISH)
+                    + (url.getPort() == -1 ? StringHelper.Empty : ":" + url.getPort());
+            List<URI> hostUrls = result.get(host);
+            if (hostUrls == null)
+            {
+                hostUrls = new ArrayList<URI>();
+                result.put(host, hostUrls);
+            }
+            hostUrls.add(url);
+        }
+        return result;
+    }
+
+    /**
+     * Acquires or validates the credentials of every URL.
+     *
+     * @param urls The URLs, in any order.
+     * @return The outcome for each host, in the order the hosts were first listed.
+     */
+    List<HostResult> run(final List<URI> urls)
+    {
+        Trace.writeLine("Prefetcher::run");
+
+        final Map<String, List<URI>> hosts = groupByHost(urls);
+        Trace.writeLine("   " + urls.size() + " URL(s) on " + hosts.size() + " host(s)");
+        final List<HostResult> results = new ArrayList<HostResult>(hosts.size());
+        if (hosts.isEmpty())
+            return results;
+
+        final List<Callable<HostResult>> tasks = new ArrayList<Callable<HostResult>>(hosts.size());
+        for (final Map.Entry<String, List<URI>> host : hosts.entrySet())
+        {
+            tasks.add(new Callable<HostResult>()
+            {
+                @Override public HostResult call()
+                {
+                    return prefetch(host.getKey(), host.getValue());
+                }
+            });
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxConcurrency, tasks.size()));
+        try
+        {
+            final List<Future<HostResult>> futures = executor.invokeAll(tasks);
+            for (final Future<HostResult> future : futures)
+            {
+                try
+                {
+                    results.add(future.get());
+                }
+                catch (final ExecutionException e)
+                {
+                    // prefetch() doesn't throw; this would be a bug
+                    Trace.writeLine("   prefetch failed: " + e.getCause());
+                }
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Trace.writeLine("   prefetch interrupted");
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    HostResult prefetch(final String host, final List<URI> urls)
+    {
+        Trace.writeLine("Prefetcher::prefetch");
+        Trace.writeLine("   host = " + host);
+
+        final long startNanos = System.nanoTime();
+        int ready = 0;
+        for (final URI url : urls)
+        {
+            try
+            {
+                if (acquire.call(url))
+                {
+                    ready++;
+                }
+            }
+            catch (final RuntimeException e)
+            {
+                Trace.writeLine("   unable to prefetch " + url + ": " + e.getMessage());
+            }
+            catch (final Error e)
+            {
+                // HTTP failures surface as Error; one bad URL shouldn't stop the others
+                Trace.writeLine("   unable to prefetch " + url + ": " + e.getMessage());
+            }
+        }
+        return new HostResult(host, urls.size(), ready, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * The outcome of prefetching the credentials of a single host.
+     */
+    static final class HostResult
+    {
+        HostResult(final String host, final int urls, final int ready, final long elapsedNanos)
+        {
+            Host = host;
+            Urls = urls;
+            Ready = ready;
+            ElapsedNanos = elapsedNanos;
+        }
+
+        /**
+         * The scheme, host and port.
+         */
+        final String Host;
+        /**
+         * How many remotes and submodules are on the host.
+         */
+        final int Urls;
+        /**
+         * How many of them have credentials.
+         */
+        final int Ready;
+        final long ElapsedNanos;
+    }
+}
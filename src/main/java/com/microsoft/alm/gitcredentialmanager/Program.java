@@ -5,6 +5,8 @@ package com.microsoft.alm.gitcredentialmanager;
 
 import com.microsoft.alm.authentication.BaseVsoAuthentication;
 import com.microsoft.alm.authentication.BasicAuthentication;
+import com.microsoft.alm.authentication.CacheSnapshot;
+import com.microsoft.alm.authentication.CircuitBreaker;
 import com.microsoft.alm.authentication.Configuration;
 import com.microsoft.alm.authentication.DeviceFlowResponse;
 import com.microsoft.alm.authentication.IAuthentication;
@@ -12,21 +14,33 @@ import com.microsoft.alm.authentication.ISecureStore;
 import com.microsoft.alm.authentication.ITokenStore;
 import com.microsoft.alm.authentication.IVsoAadAuthentication;
 import com.microsoft.alm.authentication.IVsoMsaAuthentication;
+import com.microsoft.alm.authentication.LogonCoordinator;
+import com.microsoft.alm.authentication.RenewalIndex;
+import com.microsoft.alm.authentication.RenewalScheduler;
+import com.microsoft.alm.authentication.RequestPolicy;
 import com.microsoft.alm.authentication.SecretStore;
 import com.microsoft.alm.authentication.SecretStoreAdapter;
+import com.microsoft.alm.authentication.SharedSecretCache;
+import com.microsoft.alm.authentication.TargetPathIndex;
+import com.microsoft.alm.authentication.TenantIndex;
+import com.microsoft.alm.authentication.VsoAdalTokenCache;
 import com.microsoft.alm.authentication.VsoAadAuthentication;
 import com.microsoft.alm.authentication.VsoMsaAuthentication;
 import com.microsoft.alm.authentication.Where;
 import com.microsoft.alm.helpers.Action;
 import com.microsoft.alm.helpers.Debug;
 import com.microsoft.alm.helpers.Environment;
+import com.microsoft.alm.helpers.FlightEvents;
 import com.microsoft.alm.helpers.Func;
 import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.MetricsRegistry;
 import com.microsoft.alm.helpers.IOHelper;
 import com.microsoft.alm.helpers.NotImplementedException;
 import com.microsoft.alm.helpers.Path;
 import com.microsoft.alm.helpers.StringHelper;
 import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.helpers.TraceSpan;
 import com.microsoft.alm.helpers.UriHelper;
 import com.microsoft.alm.oauth2.useragent.Provider;
 import com.microsoft.alm.oauth2.useragent.Version;
@@ -39,6 +53,7 @@ import com.microsoft.alm.secret.Secret;
 import com.microsoft.alm.secret.Token;
 import com.microsoft.alm.secret.VsoTokenScope;
 import com.microsoft.alm.storage.StorageProvider;
+import org.slf4j.impl.TraceLoggerLevels;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -46,33 +61,75 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class Program
 {
     private static final String ConfigPrefix = "credential";
     private static final String SecretsNamespace = "git";
+    private static final String RefreshTokensNamespace = "ada";
+    private static final String RenewalIndexFileName = "renewal.properties";
+    private static final String PathIndexFileNameFormat = "paths-%1$s.txt";
+    private static final String TenantIndexFileName = "tenants.properties";
+    private static final String AdalTokenCacheFileName = "adal-tokens.properties";
+    private static final String LogonLocksFolderName = "locks";
+    private static final String CircuitStateFileName = "circuits.properties";
+    private static final String MetricsFileName = "metrics.properties";
+    private static final String CacheSnapshotFileName = "cache-snapshot.bin";
+    // the key the `serve` command encrypts its snapshot with is kept in the secure store under this name
+    private static final String CacheSnapshotKeyTargetName = "git:gcm-cache-snapshot";
+    private static final String ActionDurations = "gcm_action_duration_seconds";
+    static final String PrometheusOption = "--prometheus";
+    static final String StructuredLogExtension = ".jsonl";
+    private static final long LogCompressionTimeoutMillis = 10L * 1000L;
+    private static volatile LogRotator logRotator;
+    private static final AtomicBoolean metricsSaved = new AtomicBoolean();
+    // long enough for the user to complete a device flow logon started by another instance
+    private static final long LogonMaxWaitMillis = 15L * 60L * 1000L;
+    private static final int DefaultRenewBeforeHours = 24;
+    private static final int DefaultRenewConcurrency = 4;
+    private static final int DefaultRenewJitterSeconds = 30;
+    private static final int DefaultPrefetchConcurrency = 4;
+    private static final int DefaultServeConcurrency = 8;
+    private static final int ServeBacklog = 64;
+    private static final int DefaultActivatedIdleTimeoutSeconds = 600;
+    // the requests in flight get a few seconds, then the snapshot is written; systemd waits 90
+    private static final long ServeShutdownTimeoutMillis = 30L * 1000L;
+    /** A host's requests share its session, which isn't thread-safe. */
+    private static final int ServeHostConcurrency = 1;
+    static final String SocketOption = "--socket";
+    private static final String SocketFolderName = "cache";
+    private static final String SocketFileName = "socket";
     private static final String ProgramFolderName = "git-credential-manager";
     private static final VsoTokenScope VsoCredentialScope = VsoTokenScope.CodeWrite;
     private static final String AbortAuthenticationProcessResponse = "quit=true";
+    static final String BatchActionKey = "action=";
     private static final String CredentialHelperSection = "credential.helper";
     private static final String CredentialHelperValueRegex = "git-credential-manager-[0-9]+\\.[0-9]+\\.[0-9]+(-SNAPSHOT)?.jar";
     private static final String CanFallbackToInsecureStore = "canFallBackToInsecureStore";
     private static final DefaultFileChecker DefaultFileCheckerSingleton = new DefaultFileChecker();
 
     private final InputStream standardIn;
+    private String[] commandArguments = new String[0];
     private final PrintStream standardOut;
     private final IComponentFactory componentFactory;
     private static final Action<DeviceFlowResponse> DEVICE_FLOW_CALLBACK = new Action<DeviceFlowResponse>()
@@ -118,6 +175,8 @@ public class Program
         try
         {
             enableDebugTrace();
+            // starts the recording the launcher asked for, if any, before there's anything to record
+            FlightEvents.active();
             final Program program = new Program(System.in, System.out, new ComponentFactory());
 
             program.innerMain(args);
@@ -139,9 +198,56 @@ public class Program
             System.out.print(AbortAuthenticationProcessResponse);
         }
 
+        final CircuitBreaker circuitBreaker = RequestPolicy.getCircuitBreaker();
+        final LogRotator rotator = logRotator;
+        final boolean probing = circuitBreaker != null && circuitBreaker.isProbing();
+        final boolean compressing = rotator != null && rotator.isCompressing();
+        if (probing || compressing)
+        {
+            // Git waits for our output to end; don't make it wait for the probe or the compression as well
+            System.out.close();
+            if (probing)
+            {
+                circuitBreaker.awaitProbes(CircuitBreaker.ProbeTimeoutMillis);
+            }
+            if (compressing)
+            {
+                rotator.awaitCompression(LogCompressionTimeoutMillis);
+            }
+        }
+
+        traceRetryCounts();
+        saveMetrics();
+        FlightEvents.stopRecording();
         Trace.flush();
     }
 
+    static File getMetricsFile()
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new File(programFolder, MetricsFileName);
+    }
+
+    /**
+     * Adds what this process measured to the snapshot that the stats command reports on, once.
+     */
+    private static void saveMetrics()
+    {
+        final MetricsRegistry registry = Metrics.getRegistry();
+        if (registry.isEmpty() || !metricsSaved.compareAndSet(false, true))
+            return;
+        try
+        {
+            registry.addTo(getMetricsFile());
+        }
+        catch (final IOException e)
+        {
+            // metrics are nice to have; losing one process' worth must not fail the operation
+            Trace.writeLine("   unable to save metrics: %1$s", e.getMessage());
+        }
+    }
+
     static File determineParentFolder()
     {
         return findFirstValidFolder(
@@ -179,6 +285,7 @@ public class Program
         // list of arg => method associations (case-insensitive)
         final Map<String, Callable<Void>> actions = new TreeMap<String, Callable<Void>>(String.CASE_INSENSITIVE_ORDER);
         actions.put("approve", Store);
+        actions.put("batch", Batch);
         actions.put("erase", Erase);
         actions.put("fill", Get);
         actions.put("get", Get);
@@ -187,12 +294,30 @@ public class Program
         actions.put("version", PrintVersion);
         actions.put("install", Install);
         actions.put("uninstall", Uninstall);
+        actions.put("prefetch", Prefetch);
+        actions.put("renew", Renew);
+        actions.put("serve", Serve);
+        actions.put("stats", Stats);
 
+        commandArguments = args;
         for (final String arg : args)
         {
             if (actions.containsKey(arg))
             {
-                actions.get(arg).call();
+                final Callable<Void> action = actions.get(arg);
+                final long startNanos = System.nanoTime();
+                try
+                {
+                    action.call();
+                }
+                finally
+                {
+                    // reading the metrics shouldn't show up in them
+                    if (action != Stats)
+                    {
+                        Metrics.recordNanos(Metrics.series(ActionDurations, "action", arg.toLowerCase(Locale.ENGLISH)), System.nanoTime() - startNanos);
+                    }
+                }
             }
         }
     }
@@ -216,6 +341,17 @@ public class Program
         standardOut.println();
         standardOut.println("      `git config --global credential.microsoft.visualstudio.com.authority AAD`");
         standardOut.println();
+        standardOut.println("   circuitcooldown    How long, in seconds, to stop contacting a host after");
+        standardOut.println("                      it failed circuitthreshold times in a row. Cached");
+        standardOut.println("                      credentials are returned without validation meanwhile.");
+        standardOut.println("                      Defaults to " + CircuitBreaker.DefaultOpenMillis / 1000 + ".");
+        standardOut.println();
+        standardOut.println("   circuitthreshold   How many consecutive failed requests to a host stop");
+        standardOut.println("                      further requests to it. Defaults to " + CircuitBreaker.DefaultFailureThreshold + ";");
+        standardOut.println("                      0 always contacts the host.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.circuitthreshold 0`");
+        standardOut.println();
         standardOut.println("   eraseosxkeychain   Enables a workaround when running on Mac OS X");
         standardOut.println("                      and using a version of Git which includes the osxkeychain");
         standardOut.println("                      credential helper, hardcoded before all other helpers).");
@@ -235,6 +371,94 @@ public class Program
         standardOut.println();
         standardOut.println("      `git config --global credential.microsoft.visualstudio.com.interactive never`");
         standardOut.println();
+        standardOut.println("   loglevel           Which library messages are included in the trace log:");
+        standardOut.println("                      trace, debug, info, warn, error or off, optionally");
+        standardOut.println("                      followed by levels for specific loggers. Defaults to debug.");
+        standardOut.println("                      The credential.loglevel system property takes precedence.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.loglevel warn,com.microsoft.alm.storage=debug`");
+        standardOut.println();
+        standardOut.println("   logasync           Writes the trace log from a background thread, which");
+        standardOut.println("                      only pays off when the log is slow to write to, i.e. on");
+        standardOut.println("                      a network share. Defaults to FALSE.");
+        standardOut.println();
+        standardOut.println("   logcompress        Compresses rotated trace logs with gzip, in the background.");
+        standardOut.println("                      Defaults to FALSE.");
+        standardOut.println();
+        standardOut.println("   loggenerations     How many rotated trace logs are kept once credential.log");
+        standardOut.println("                      grows over 8 MB. Defaults to " + LogRotator.DefaultGenerations + ".");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.loggenerations 2`");
+        standardOut.println();
+        standardOut.println("   maxretries         How many times a request to the authority is retried after");
+        standardOut.println("                      a transient failure. Defaults to " + RequestPolicy.DefaultMaxRetries + ".");
+        standardOut.println("                      Requests that create tokens are only retried when they");
+        standardOut.println("                      could not have reached the authority.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.maxretries 4`");
+        standardOut.println();
+        standardOut.println("   renewbefore        How many hours before they expire the `renew` command");
+        standardOut.println("                      renews personal access tokens. Defaults to " + DefaultRenewBeforeHours + ".");
+        standardOut.println("                      `renew` can be run periodically (i.e. from cron) so that");
+        standardOut.println("                      Git operations never have to wait for a token renewal.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.renewbefore 48`");
+        standardOut.println();
+        standardOut.println("   renewconcurrency   How many tokens the `renew` command renews at the same time.");
+        standardOut.println("                      Defaults to " + DefaultRenewConcurrency + ".");
+        standardOut.println();
+        standardOut.println("   renewjitter        The maximum random delay, in seconds, before each renewal");
+        standardOut.println("                      performed by the `renew` command. Defaults to " + DefaultRenewJitterSeconds + ".");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.renewjitter 0`");
+        standardOut.println();
+        standardOut.println("   requesttimeout     How long, in seconds, to wait for the authority to accept");
+        standardOut.println("                      a connection or to send data. Defaults to " + RequestPolicy.DefaultRequestTimeoutMillis / 1000 + ".");
+        standardOut.println("                      This, maxretries and retrydeadline can be set for one");
+        standardOut.println("                      end-point by prefixing them with its name: detection,");
+        standardOut.println("                      connectiondata, locationservice, sessiontoken, token");
+        standardOut.println("                      or devicecode.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.sessiontokenrequesttimeout 60`");
+        standardOut.println();
+        standardOut.println("   retrydeadline      How long, in seconds, a request to the authority can take,");
+        standardOut.println("                      retries included. Defaults to " + RequestPolicy.DefaultRetryDeadlineMillis / 1000 + ".");
+        standardOut.println();
+        standardOut.println("   serveconcurrency   How many requests the `serve` command passes on to the");
+        standardOut.println("                      secure store or the authorities at the same time, one per");
+        standardOut.println("                      host at most; requests answered from memory don't wait");
+        standardOut.println("                      for them. Defaults to " + DefaultServeConcurrency + ".");
+        standardOut.println();
+        standardOut.println("   serveidletimeout   How long, in seconds, the `serve` command waits for a");
+        standardOut.println("                      client before exiting; 0 to wait forever. Defaults to");
+        standardOut.println("                      " + DefaultActivatedIdleTimeoutSeconds + " when started by systemd, 0 otherwise.");
+        standardOut.println();
+        standardOut.println("   servemaxmemory     The resident memory, in MiB, above which the `serve`");
+        standardOut.println("                      command drops cached credentials; 0 for no limit.");
+        standardOut.println("                      Defaults to 0.");
+        standardOut.println();
+        standardOut.println("   sharedcachettl     How long, in seconds, secrets read from the secure store");
+        standardOut.println("                      are shared with the other instances running for the user,");
+        standardOut.println("                      in an encrypted file under $XDG_RUNTIME_DIR, so that they");
+        standardOut.println("                      don't each read the keyring; 0 not to share them.");
+        standardOut.println("                      Defaults to 0.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.sharedcachettl 300`");
+        standardOut.println();
+        standardOut.println("   traceformat        The format of the trace log: Text, or Json to write one");
+        standardOut.println("                      object per line, with the duration of each phase, to");
+        standardOut.println("                      credential.jsonl instead. Defaults to Text.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.traceformat json`");
+        standardOut.println();
+        standardOut.println("   usehttppath        Keeps credentials for each repository path instead of");
+        standardOut.println("                      for the whole host, so that organizations sharing a host");
+        standardOut.println("                      like dev.azure.com don't overwrite each other's tokens.");
+        standardOut.println("                      The most specific credentials stored for a path are used.");
+        standardOut.println("                      Git only sends the path when this is set. Defaults to FALSE.");
+        standardOut.println();
+        standardOut.println("      `git config --global credential.https://dev.azure.com.usehttppath true`");
+        standardOut.println();
         standardOut.println("   validate           Causes validation of credentials before supplying them");
         standardOut.println("                      to Git. Invalid credentials get a refresh attempt");
         standardOut.println("                      before failing. Incurs some minor overhead.");
@@ -291,7 +515,16 @@ public class Program
         final AtomicReference<IAuthentication> authenticationRef = new AtomicReference<IAuthentication>();
         initialize("get", operationArgumentsRef, authenticationRef);
         final String result = get(operationArgumentsRef.get(), authenticationRef.get(), DEVICE_FLOW_CALLBACK);
-        standardOut.print(result);
+        final TraceSpan outputSpan = TraceSpan.start("output");
+        try
+        {
+            standardOut.print(result);
+            outputSpan.end(standardOut.checkError() ? TraceSpan.Failure : TraceSpan.Success);
+        }
+        finally
+        {
+            outputSpan.close();
+        }
     }
     public static String get(final OperationArguments operationArguments, final IAuthentication authentication, final Action<DeviceFlowResponse> deviceFlowCallback)
     {
@@ -299,6 +532,20 @@ public class Program
 
         final AtomicReference<Credential> credentials = new AtomicReference<Credential>();
 
+        if (operationArguments.Offline)
+        {
+            // validating, refreshing or acquiring credentials would only wait out timeouts
+            if (authentication.getCredentials(operationArguments.TargetUri, credentials))
+            {
+                Trace.writeLine("   offline; returning cached credentials without validation");
+                operationArguments.setCredentials(credentials.get());
+                return operationArguments.toString();
+            }
+            System.err.println(operationArguments.Host + " has been unreachable recently and no credentials are cached, aborting authentication process.");
+            logEvent("Failed to retrieve credentials for " + operationArguments.TargetUri + " while offline.", "FailureAudit");
+            return AbortAuthenticationProcessResponse;
+        }
+
         switch (operationArguments.Authority)
         {
             default:
@@ -377,85 +624,822 @@ public class Program
                             || msaAuth.validateCredentials(operationArguments.TargetUri, credentials.get())))
                 )
                 {
-                    Trace.writeLine("   credentials found");
-                    operationArguments.setCredentials(credentials.get());
-                    logEvent("Microsoft Live credentials for " + operationArguments.TargetUri + " successfully retrieved.", "SuccessAudit");
+                    Trace.writeLine("   credentials found");
+                    operationArguments.setCredentials(credentials.get());
+                    logEvent("Microsoft Live credentials for " + operationArguments.TargetUri + " successfully retrieved.", "SuccessAudit");
+                }
+                else
+                {
+                    System.err.println(AuthFailureMessage);
+                    logEvent("Failed to retrieve Microsoft Live credentials for " + operationArguments.TargetUri + ".", "FailureAudit");
+                    return AbortAuthenticationProcessResponse;
+                }
+
+                break;
+
+            case GitHub:
+                throw new NotImplementedException(449515);
+
+            case Integrated:
+                credentials.set(new Credential(StringHelper.Empty, StringHelper.Empty));
+                operationArguments.setCredentials(credentials.get());
+                break;
+        }
+
+        return operationArguments.toString();
+    }
+
+    private final Callable<Void> Store = new Callable<Void>()
+    {
+        @Override public Void call() throws IOException, URISyntaxException
+        {
+            store();
+            return null;
+        }
+    };
+    private void store() throws IOException, URISyntaxException
+    {
+        final AtomicReference<OperationArguments> operationArgumentsRef = new AtomicReference<OperationArguments>();
+        final AtomicReference<IAuthentication> authenticationRef = new AtomicReference<IAuthentication>();
+        initialize("store", operationArgumentsRef, authenticationRef);
+
+        final String osName = System.getProperty("os.name");
+        final TestableProcessFactory processFactory = new DefaultProcessFactory();
+        final String pathString = System.getenv("PATH");
+        final String pathSeparator = File.pathSeparator;
+        store(operationArgumentsRef.get(), authenticationRef.get(), osName, processFactory, DefaultFileCheckerSingleton, pathString, pathSeparator);
+    }
+    public static void store(final OperationArguments operationArguments, final IAuthentication authentication, final String osName, final TestableProcessFactory processFactory, final Func<File, Boolean> fileChecker, final String pathString, final String pathSeparator)
+    {
+        Debug.Assert(operationArguments.getUserName() != null, "The operationArguments.Username is null");
+
+        final Credential credentials = new Credential(operationArguments.getUserName(), operationArguments.getPassword());
+        if (authentication instanceof BasicAuthentication)
+        {
+            authentication.setCredentials(operationArguments.TargetUri, credentials);
+        }
+        else
+        {
+            if (operationArguments.EraseOsxKeyChain && Provider.isMac(osName))
+            {
+                // check for the presence of git-credential-osxkeychain by scanning PATH
+                final File osxkeychainFile = findProgram(pathString, pathSeparator, "git-credential-osxkeychain", fileChecker);
+                if (osxkeychainFile != null)
+                {
+                    // erase these credentials from osxkeychain
+                    try
+                    {
+                        final String program = osxkeychainFile.getAbsolutePath();
+                        final TestableProcess process = processFactory.create(program, "erase");
+                        final ProcessCoordinator coordinator = new ProcessCoordinator(process);
+                        coordinator.print(operationArguments.toString());
+                        coordinator.waitFor();
+                    }
+                    catch (final IOException e)
+                    {
+                        throw new Error(e);
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        throw new Error(e);
+                    }
+                }
+            }
+        }
+    }
+
+    private final Callable<Void> Renew = new Callable<Void>()
+    {
+        @Override public Void call() throws IOException
+        {
+            renew();
+            return null;
+        }
+    };
+    private void renew() throws IOException
+    {
+        // there's no target on stdin; settings come from the non-host-specific configuration
+        final OperationArguments operationArguments = new OperationArguments((URI) null);
+        final Configuration config = componentFactory.createConfiguration();
+        loadOperationArguments(operationArguments, config);
+
+        Trace.writeLine("Program::renew");
+
+        loadLogLevels(config, null);
+        loadRequestPolicies(config, null);
+
+        final long renewBeforeMillis = readIntegerSetting(config, "renewbefore", DefaultRenewBeforeHours) * 60L * 60L * 1000L;
+        final int concurrency = Math.max(1, readIntegerSetting(config, "renewconcurrency", DefaultRenewConcurrency));
+        final long jitterMillis = readIntegerSetting(config, "renewjitter", DefaultRenewJitterSeconds) * 1000L;
+
+        final ISecureStore secureStore = componentFactory.createSecureStore(operationArguments);
+        configureAdalTokenCache(secureStore);
+        final RenewalIndex renewalIndex = createRenewalIndex();
+        final Func<RenewalIndex.Entry, BaseVsoAuthentication> authenticationFactory = new Func<RenewalIndex.Entry, BaseVsoAuthentication>()
+        {
+            @Override public BaseVsoAuthentication call(final RenewalIndex.Entry entry)
+            {
+                return createRenewalAuthentication(entry, secureStore);
+            }
+        };
+        final RenewalScheduler scheduler = new RenewalScheduler(renewalIndex, authenticationFactory, renewBeforeMillis, concurrency, jitterMillis);
+        final int renewed = scheduler.renewDue();
+        standardOut.println(String.format("Renewed %1$d personal access token(s).", renewed));
+    }
+
+    private final Callable<Void> Prefetch = new Callable<Void>()
+    {
+        @Override public Void call() throws IOException
+        {
+            prefetch();
+            return null;
+        }
+    };
+    private void prefetch() throws IOException
+    {
+        Trace.writeLine("Program::prefetch");
+
+        final AtomicReference<String> localConfigPath = new AtomicReference<String>();
+        if (!Where.gitLocalConfig(localConfigPath))
+        {
+            standardOut.println("Not in a Git repository; there are no credentials to prefetch.");
+            return;
+        }
+
+        // settings that apply to all the hosts come from the non-host-specific configuration
+        final OperationArguments defaults = new OperationArguments((URI) null);
+        final Configuration config = componentFactory.createConfiguration();
+        loadOperationArguments(defaults, config);
+        enableTraceLogging(defaults, config);
+        loadLogLevels(config, null);
+        loadRequestPolicies(config, null);
+        configureAdalTokenCache(componentFactory.createSecureStore(defaults));
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(config, null);
+        RequestPolicy.setCircuitBreaker(circuitBreaker);
+        final int concurrency = Math.max(1, readIntegerSetting(config, "prefetchconcurrency", DefaultPrefetchConcurrency));
+
+        final Configuration localConfig = Configuration.fromFile(localConfigPath.get());
+        Configuration gitModules = null;
+        final File workingTree = Prefetcher.findWorkingTree(Environment.getCurrentDirectory());
+        if (workingTree != null && new File(workingTree, Prefetcher.GitModulesFileName).isFile())
+        {
+            gitModules = Configuration.fromFile(new File(workingTree, Prefetcher.GitModulesFileName).getPath());
+        }
+        final List<URI> urls = Prefetcher.findRepositoryUrls(localConfig, gitModules);
+        if (urls.isEmpty())
+        {
+            standardOut.println("The repository has no HTTP(S) remotes or submodules.");
+            return;
+        }
+
+        final Map<Boolean, ISecureStore> secureStores = new HashMap<Boolean, ISecureStore>();
+        final Func<URI, Boolean> acquire = new Func<URI, Boolean>()
+        {
+            @Override public Boolean call(final URI url)
+            {
+                return prefetch(url, config, circuitBreaker, secureStores);
+            }
+        };
+        final List<Prefetcher.HostResult> results = new Prefetcher(acquire, concurrency).run(urls);
+
+        int ready = 0;
+        for (final Prefetcher.HostResult result : results)
+        {
+            standardOut.println(String.format("%1$-40s %2$d of %3$d ready in %4$d ms", result.Host, result.Ready, result.Urls, result.ElapsedNanos / 1000000L));
+            ready += result.Ready;
+        }
+        standardOut.println(String.format("Credentials are ready for %1$d of %2$d remote(s) and submodule(s).", ready, urls.size()));
+    }
+
+    private boolean prefetch(final URI url, final Configuration config, final CircuitBreaker circuitBreaker, final Map<Boolean, ISecureStore> secureStores)
+    {
+        final OperationArguments operationArguments;
+        try
+        {
+            operationArguments = new OperationArguments(new BufferedReader(new StringReader(Prefetcher.toCredentialRequest(url))));
+            // the configuration is only read from here on, so it can be shared by the threads
+            loadOperationArguments(operationArguments, config);
+        }
+        catch (final IOException e)
+        {
+            throw new Error(e);
+        }
+        catch (final URISyntaxException e)
+        {
+            throw new Error(e);
+        }
+
+        if (circuitBreaker != null && !circuitBreaker.allowRequest(operationArguments.TargetUri))
+        {
+            Trace.writeLine("   %1$s has been unreachable recently; working offline", operationArguments.Host);
+            operationArguments.Offline = true;
+        }
+
+        ISecureStore secureStore;
+        synchronized (secureStores)
+        {
+            secureStore = secureStores.get(operationArguments.CanFallbackToInsecureStore);
+            if (secureStore == null)
+            {
+                secureStore = componentFactory.createSecureStore(operationArguments);
+                secureStores.put(operationArguments.CanFallbackToInsecureStore, secureStore);
+            }
+        }
+        final IAuthentication authentication = componentFactory.createAuthentication(operationArguments, secureStore);
+        get(operationArguments, authentication, DEVICE_FLOW_CALLBACK);
+        return operationArguments.getPassword() != null;
+    }
+
+    static BaseVsoAuthentication createRenewalAuthentication(final RenewalIndex.Entry entry, final ISecureStore secureStore)
+    {
+        final Secret.IUriNameConversion iUriNameConversion = createUriNameConversion();
+        final SecretStore secrets = new SecretStore(secureStore, SecretsNamespace, null, null, iUriNameConversion, createPathIndex(SecretsNamespace));
+        final ITokenStore adaRefreshTokenStore = new SecretStore(secureStore, RefreshTokensNamespace, null, null, iUriNameConversion, createPathIndex(RefreshTokensNamespace));
+        if (RenewalIndex.AzureDirectory.equals(entry.Authority))
+        {
+            final VsoAadAuthentication result = new VsoAadAuthentication(entry.TenantId, VsoCredentialScope, secrets, adaRefreshTokenStore);
+            result.setTenantIndex(createTenantIndex());
+            return result;
+        }
+        return new VsoMsaAuthentication(VsoCredentialScope, secrets, adaRefreshTokenStore);
+    }
+
+    static CircuitBreaker createCircuitBreaker(final Configuration config, final URI targetUri)
+    {
+        final int failureThreshold = readIntegerSetting(config, targetUri, "circuitthreshold", CircuitBreaker.DefaultFailureThreshold);
+        final int cooldownSeconds = readIntegerSetting(config, targetUri, "circuitcooldown", (int) (CircuitBreaker.DefaultOpenMillis / 1000));
+        if (failureThreshold <= 0 || cooldownSeconds < 0)
+        {
+            Trace.writeLine("   circuit breaker disabled");
+            return null;
+        }
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new CircuitBreaker(new File(programFolder, CircuitStateFileName), failureThreshold, cooldownSeconds * 1000L);
+    }
+
+    /**
+     * The index of the targets with a path that have secrets in the namespace, shared by
+     * all processes through a file next to the renewal index.
+     */
+    static TargetPathIndex createPathIndex(final String namespace)
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new TargetPathIndex(new File(programFolder, String.format(PathIndexFileNameFormat, namespace)));
+    }
+
+    static TenantIndex createTenantIndex()
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new TenantIndex(new File(programFolder, TenantIndexFileName));
+    }
+
+    /**
+     * Shares the access tokens issued by Azure with the other processes, through a file
+     * next to the renewal index, so that they're only refreshed once they're about to expire.
+     * The file is encrypted with a key kept in the secure store.
+     */
+    static void configureAdalTokenCache(final ISecureStore secureStore)
+    {
+        if (VsoAdalTokenCache.getDefault() != null)
+            return;
+
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        VsoAdalTokenCache.setDefault(new VsoAdalTokenCache(new File(programFolder, AdalTokenCacheFileName), secureStore));
+    }
+
+    static RenewalIndex createRenewalIndex()
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new RenewalIndex(new File(programFolder, RenewalIndexFileName));
+    }
+
+    /**
+     * Configures which messages the libraries' loggers pass on to the trace, unless the
+     * credential.loglevel system property already did.
+     */
+    static void loadLogLevels(final Configuration config, final URI targetUri)
+    {
+        final AtomicReference<Configuration.Entry> entryRef = new AtomicReference<Configuration.Entry>();
+        if (config.tryGetEntry(ConfigPrefix, targetUri, "loglevel", entryRef))
+        {
+            Trace.writeLine("   loglevel = %1$s", entryRef.get().Value);
+
+            if (!TraceLoggerLevels.configure(entryRef.get().Value))
+            {
+                Trace.writeLine("   ignoring loglevel in favour of the %1$s system property", TraceLoggerLevels.PropertyName);
+            }
+        }
+    }
+
+    /**
+     * Configures the timeouts and retries of the requests sent to each authority end-point.
+     * The requesttimeout, maxretries and retrydeadline settings apply to all of them and can be
+     * overridden for one of them by prefixing the setting with its name, i.e. tokenrequesttimeout.
+     *
+     * The settings for a target only apply to the requests sent to its host: the {@code serve}
+     * command works for several targets at once, and the authorities they share, i.e. the token
+     * end-point, get the settings that aren't specific to a URL.
+     */
+    static void loadRequestPolicies(final Configuration config, final URI targetUri)
+    {
+        Trace.writeLine("Program::loadRequestPolicies");
+
+        setRequestPolicies(config, null);
+        if (targetUri != null)
+        {
+            setRequestPolicies(config, targetUri);
+        }
+    }
+
+    private static void setRequestPolicies(final Configuration config, final URI targetUri)
+    {
+        final int timeoutSeconds = readIntegerSetting(config, targetUri, "requesttimeout", RequestPolicy.DefaultRequestTimeoutMillis / 1000);
+        final int maxRetries = readIntegerSetting(config, targetUri, "maxretries", RequestPolicy.DefaultMaxRetries);
+        final int deadlineSeconds = readIntegerSetting(config, targetUri, "retrydeadline", (int) (RequestPolicy.DefaultRetryDeadlineMillis / 1000));
+
+        for (final RequestPolicy.Endpoint endpoint : RequestPolicy.Endpoint.values())
+        {
+            final String name = endpoint.ConfigurationName;
+            final int endpointTimeoutSeconds = readIntegerSetting(config, targetUri, name + "requesttimeout", timeoutSeconds);
+            final int endpointMaxRetries = readIntegerSetting(config, targetUri, name + "maxretries", maxRetries);
+            final int endpointDeadlineSeconds = readIntegerSetting(config, targetUri, name + "retrydeadline", deadlineSeconds);
+            try
+            {
+                final RequestPolicy policy = new RequestPolicy(
+                        endpointTimeoutSeconds * 1000,
+                        endpointMaxRetries,
+                        RequestPolicy.DefaultInitialBackoffMillis,
+                        RequestPolicy.DefaultMaxBackoffMillis,
+                        endpointDeadlineSeconds * 1000L);
+                RequestPolicy.set(targetUri, endpoint, policy);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                Trace.writeLine("   ignoring invalid request policy for %1$s: %2$s", name, e.getMessage());
+                RequestPolicy.set(targetUri, endpoint, null);
+            }
+        }
+    }
+
+    private static void traceRetryCounts()
+    {
+        final Map<RequestPolicy.Endpoint, Integer> retryCounts = RequestPolicy.getRetryCounts();
+        if (!retryCounts.isEmpty())
+        {
+            final StringBuilder sb = new StringBuilder("Program::main retries:");
+            for (final Map.Entry<RequestPolicy.Endpoint, Integer> entry : retryCounts.entrySet())
+            {
+                sb.append(' ').append(entry.getKey().ConfigurationName).append('=').append(entry.getValue());
+            }
+            Trace.writeLine(sb.toString());
+        }
+    }
+
+    private static int readIntegerSetting(final Configuration config, final String key, final int defaultValue)
+    {
+        return readIntegerSetting(config, null, key, defaultValue);
+    }
+
+    private static int readIntegerSetting(final Configuration config, final URI targetUri, final String key, final int defaultValue)
+    {
+        final AtomicReference<Configuration.Entry> entryRef = new AtomicReference<Configuration.Entry>();
+        if (config.tryGetEntry(ConfigPrefix, targetUri, key, entryRef))
+        {
+            Trace.writeLine("   %1$s = %2$s", key, entryRef.get().Value);
+
+            try
+            {
+                return Integer.parseInt(entryRef.get().Value.trim(), 10);
+            }
+            catch (final NumberFormatException ignored)
+            {
+                Trace.writeLine("   ignoring invalid value for %1$s", key);
+            }
+        }
+        return defaultValue;
+    }
+
+    private final Callable<Void> Stats = new Callable<Void>()
+    {
+        @Override public Void call()
+        {
+            stats();
+            return null;
+        }
+    };
+    private void stats()
+    {
+        final File metricsFile = getMetricsFile();
+        final MetricsRegistry snapshot = MetricsRegistry.load(metricsFile);
+        if (Arrays.asList(commandArguments).contains(PrometheusOption))
+        {
+            snapshot.writePrometheus(standardOut);
+        }
+        else if (snapshot.isEmpty())
+        {
+            standardOut.println(String.format("No metrics have been recorded in %1$s yet.", metricsFile));
+        }
+        else
+        {
+            standardOut.println(String.format("Metrics recorded in %1$s:", metricsFile));
+            standardOut.println();
+            snapshot.writeSummary(standardOut);
+        }
+    }
+
+    private final Callable<Void> Batch = new Callable<Void>()
+    {
+        @Override public Void call() throws IOException
+        {
+            batch();
+            return null;
+        }
+    };
+    /**
+     * Answers many requests with one invocation, so that tools which need credentials for
+     * several remotes don't pay for starting the JVM, reading the configuration and opening
+     * the secure store every time.  Requests are read from stdin in the git credential
+     * format, each terminated by a blank line, with an optional action=get|store|erase line
+     * (get is the default).  Each response is written as soon as it is known and is also
+     * terminated by a blank line: the credential for get, nothing for store and erase,
+     * and quit=true when the request couldn't be answered.
+     */
+    private void batch() throws IOException
+    {
+        Trace.writeLine("Program::batch");
+
+        final Session session = new Session();
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(standardIn));
+        try
+        {
+            String request;
+            while ((request = readBatchRequest(reader)) != null)
+            {
+                final String response = answer(request, session);
+                final TraceSpan outputSpan = TraceSpan.start("output");
+                try
+                {
+                    standardOut.print(response);
+                    standardOut.print("\n");
+                    standardOut.flush();
+                    outputSpan.end(standardOut.checkError() ? TraceSpan.Failure : TraceSpan.Success);
+                }
+                finally
+                {
+                    outputSpan.close();
+                }
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Reads the lines of the next request, up to the blank line that terminates it.
+     *
+     * @return the request, or null once stdin is exhausted.
+     */
+    static String readBatchRequest(final BufferedReader reader) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (StringHelper.isNullOrWhiteSpace(line))
+            {
+                if (sb.length() > 0)
+                {
+                    break;
+                }
+                // tolerate extra blank lines between requests
+                continue;
+            }
+            sb.append(line).append('\n');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    static String findBatchAction(final String request)
+    {
+        for (final String line : request.split("\n"))
+        {
+            if (line.startsWith(BatchActionKey))
+            {
+                return line.substring(BatchActionKey.length()).trim().toLowerCase(Locale.ENGLISH);
+            }
+        }
+        return "get";
+    }
+
+    private String answer(final String request, final Session session)
+    {
+        final String action = findBatchAction(request);
+        final boolean isGet = "get".equals(action) || "fill".equals(action);
+        final boolean isStore = "store".equals(action) || "approve".equals(action);
+        final boolean isErase = "erase".equals(action) || "reject".equals(action);
+        if (!isGet && !isStore && !isErase)
+        {
+            Trace.writeLine("   unsupported batch action '%1$s'", action);
+            return AbortAuthenticationProcessResponse + "\n";
+        }
+
+        final long startNanos = System.nanoTime();
+        try
+        {
+            final OperationArguments operationArguments = new OperationArguments(new BufferedReader(new StringReader(request)));
+            if (operationArguments.TargetUri == null)
+            {
+                Trace.writeLine("   batch request without a protocol and host");
+                return AbortAuthenticationProcessResponse + "\n";
+            }
+            final IAuthentication authentication = initialize(action, operationArguments, session);
+            if (isGet)
+            {
+                final String result = get(operationArguments, authentication, DEVICE_FLOW_CALLBACK);
+                return result.endsWith("\n") ? result : result + "\n";
+            }
+            if (isStore)
+            {
+                store(operationArguments, authentication, System.getProperty("os.name"), session.getProcessFactory(), DefaultFileCheckerSingleton, System.getenv("PATH"), File.pathSeparator);
+            }
+            else
+            {
+                erase(operationArguments, authentication);
+            }
+            return StringHelper.Empty;
+        }
+        catch (final Exception e)
+        {
+            // one bad request mustn't cost the others their answers
+            Trace.writeLine("   batch request failed: %1$s", e);
+            return AbortAuthenticationProcessResponse + "\n";
+        }
+        catch (final Error e)
+        {
+            Trace.writeLine("   batch request failed: %1$s", e);
+            return AbortAuthenticationProcessResponse + "\n";
+        }
+        finally
+        {
+            Metrics.recordNanos(Metrics.series(ActionDurations, "action", action), System.nanoTime() - startNanos);
+        }
+    }
+
+    private final Callable<Void> Serve = new Callable<Void>()
+    {
+        @Override public Void call() throws IOException
+        {
+            serve();
+            return null;
+        }
+    };
+    /**
+     * Answers Git's credential-cache helper on a socket until a client sends it the exit
+     * action, so that `credential.helper=cache --socket=PATH` gets its answers from
+     * memory and only misses reach the secure store or the authority.  When started by a
+     * systemd socket unit, it answers on the socket systemd passes on and, unless
+     * configured otherwise, exits once idle, to be started again by the next client.  Stopping
+     * the process, as {@code systemctl stop} does, also lets it finish the requests in flight
+     * and write its cache snapshot and metrics first.  While it runs, its metrics are read by
+     * sending the {@code metrics} action to the socket.
+     */
+    private void serve() throws IOException
+    {
+        Trace.writeLine("Program::serve");
+
+        if (!UnixDomainSocket.isSupported())
+        {
+            standardOut.println("The credential cache server needs Unix domain sockets, which aren't available on this platform.");
+            return;
+        }
+
+        final Configuration config = componentFactory.createConfiguration();
+        final int concurrency = Math.max(1, readIntegerSetting(config, "serveconcurrency", DefaultServeConcurrency));
+        final UnixDomainSocket inherited = UnixDomainSocket.inherit();
+        final CredentialCacheServer server = new CredentialCacheServer(new CacheBackend(config));
+        final int defaultIdleTimeout = inherited != null ? DefaultActivatedIdleTimeoutSeconds : 0;
+        server.setIdleTimeout(Math.max(0, readIntegerSetting(config, "serveidletimeout", defaultIdleTimeout)) * 1000L);
+        server.setMemoryLimit(Math.max(0, readIntegerSetting(config, "servemaxmemory", 0)) * 1024L * 1024L);
+        final UnixDomainSocket listener;
+        final File socketPath;
+        if (inherited != null)
+        {
+            // the socket belongs to systemd, which keeps listening to it after we exit
+            listener = inherited;
+            socketPath = null;
+            standardOut.println("Listening on the socket passed on by systemd.");
+        }
+        else
+        {
+            socketPath = findSocketPath();
+            listener = CredentialCacheServer.listen(socketPath, ServeBacklog);
+            standardOut.println(String.format("Listening on %1$s; configure Git with:", socketPath));
+            standardOut.println(String.format("   git config --global credential.helper \"cache --socket=%1$s\"", socketPath));
+        }
+        standardOut.flush();
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        // systemctl stop and restarts send SIGTERM, after which only the shutdown hooks run
+        Runtime.getRuntime().addShutdownHook(new Thread()
+        {
+            @Override public void run()
+            {
+                server.stop();
+                try
+                {
+                    finished.await(ServeShutdownTimeoutMillis, TimeUnit.MILLISECONDS);
                 }
-                else
+                catch (final InterruptedException ignored)
                 {
-                    System.err.println(AuthFailureMessage);
-                    logEvent("Failed to retrieve Microsoft Live credentials for " + operationArguments.TargetUri + ".", "FailureAudit");
-                    return AbortAuthenticationProcessResponse;
                 }
+                if (socketPath != null)
+                {
+                    socketPath.delete();
+                }
+            }
+        });
+        try
+        {
+            final int fastLaneThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            final RequestScheduler scheduler = new RequestScheduler(fastLaneThreads, concurrency, ServeHostConcurrency);
+            final byte[] snapshotKey = restoreCacheSnapshot(config);
+            try
+            {
+                server.run(listener, socketPath, scheduler);
+            }
+            finally
+            {
+                scheduler.shutdown();
+                saveCacheSnapshot(snapshotKey);
+            }
+        }
+        finally
+        {
+            // main() would save them too, but not if the process is being stopped
+            saveMetrics();
+            finished.countDown();
+        }
+    }
 
-                break;
+    private static File getCacheSnapshotFile()
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new File(programFolder, CacheSnapshotFileName);
+    }
 
-            case GitHub:
-                throw new NotImplementedException(449515);
+    /**
+     * Warms the caches up with what the previous server learned, and reads or creates the key
+     * the snapshot is encrypted with.  The snapshot is deleted once read, so that it's used at
+     * most once.
+     *
+     * @return the key, or null if the secure store can't keep one, in which case no snapshot
+     * is written either.
+     */
+    private byte[] restoreCacheSnapshot(final Configuration config)
+    {
+        Trace.writeLine("Program::restoreCacheSnapshot");
 
-            case Integrated:
-                credentials.set(new Credential(StringHelper.Empty, StringHelper.Empty));
-                operationArguments.setCredentials(credentials.get());
-                break;
+        final File snapshotFile = getCacheSnapshotFile();
+        try
+        {
+            final OperationArguments operationArguments = new OperationArguments((URI) null);
+            loadOperationArguments(operationArguments, config);
+            final ISecureStore secureStore = componentFactory.createSecureStore(operationArguments);
+            final byte[] key = CacheSnapshot.readOrCreateKey(secureStore, CacheSnapshotKeyTargetName, snapshotFile);
+            // a snapshot written with a key since lost is ignored
+            CacheSnapshot.read(snapshotFile, key);
+            return key;
+        }
+        catch (final Throwable e)
+        {
+            // a cold start is slower, but not wrong
+            Trace.writeLine("   unable to restore the cache snapshot: " + e.getMessage());
+            return null;
+        }
+        finally
+        {
+            snapshotFile.delete();
         }
-
-        return operationArguments.toString();
     }
 
-    private final Callable<Void> Store = new Callable<Void>()
+    private static void saveCacheSnapshot(final byte[] key)
     {
-        @Override public Void call() throws IOException, URISyntaxException
+        Trace.writeLine("Program::saveCacheSnapshot");
+
+        if (key == null)
+            return;
+        try
         {
-            store();
-            return null;
+            CacheSnapshot.write(getCacheSnapshotFile(), key);
         }
-    };
-    private void store() throws IOException, URISyntaxException
+        catch (final Throwable e)
+        {
+            Trace.writeLine("   unable to save the cache snapshot: " + e.getMessage());
+        }
+    }
+
+    private File findSocketPath()
     {
-        final AtomicReference<OperationArguments> operationArgumentsRef = new AtomicReference<OperationArguments>();
-        final AtomicReference<IAuthentication> authenticationRef = new AtomicReference<IAuthentication>();
-        initialize("store", operationArgumentsRef, authenticationRef);
+        final int index = Arrays.asList(commandArguments).indexOf(SocketOption);
+        if (index != -1 && index + 1 < commandArguments.length)
+            return new File(commandArguments[index + 1]).getAbsoluteFile();
 
-        final String osName = System.getProperty("os.name");
-        final TestableProcessFactory processFactory = new DefaultProcessFactory();
-        final String pathString = System.getenv("PATH");
-        final String pathSeparator = File.pathSeparator;
-        store(operationArgumentsRef.get(), authenticationRef.get(), osName, processFactory, DefaultFileCheckerSingleton, pathString, pathSeparator);
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new File(new File(programFolder, SocketFolderName), SocketFileName);
     }
-    public static void store(final OperationArguments operationArguments, final IAuthentication authentication, final String osName, final TestableProcessFactory processFactory, final Func<File, Boolean> fileChecker, final String pathString, final String pathSeparator)
+
+    /**
+     * Passes the requests the credential cache server can't answer from memory on to the
+     * secure store and the authorities.  Each host gets a {@link Session} of its own, all of
+     * them sharing the configuration read when the server started; since a session isn't
+     * thread-safe, a host's requests are handled one at a time, while those for other hosts
+     * go ahead.  Nobody is there to answer a prompt, so none are shown.
+     */
+    private final class CacheBackend implements CredentialCacheServer.Backend
     {
-        Debug.Assert(operationArguments.getUserName() != null, "The operationArguments.Username is null");
+        private final Configuration config;
+        private final Map<String, Session> sessions = new HashMap<String, Session>();
 
-        final Credential credentials = new Credential(operationArguments.getUserName(), operationArguments.getPassword());
-        if (authentication instanceof BasicAuthentication)
+        CacheBackend(final Configuration config)
         {
-            authentication.setCredentials(operationArguments.TargetUri, credentials);
+            this.config = config;
         }
-        else
+
+        private Session getSession(final OperationArguments operationArguments)
         {
-            if (operationArguments.EraseOsxKeyChain && Provider.isMac(osName))
+            final String host = operationArguments.Host != null ? operationArguments.Host : "";
+            synchronized (sessions)
             {
-                // check for the presence of git-credential-osxkeychain by scanning PATH
-                final File osxkeychainFile = findProgram(pathString, pathSeparator, "git-credential-osxkeychain", fileChecker);
-                if (osxkeychainFile != null)
+                Session session = sessions.get(host);
+                if (session == null)
                 {
-                    // erase these credentials from osxkeychain
-                    try
-                    {
-                        final String program = osxkeychainFile.getAbsolutePath();
-                        final TestableProcess process = processFactory.create(program, "erase");
-                        final ProcessCoordinator coordinator = new ProcessCoordinator(process);
-                        coordinator.print(operationArguments.toString());
-                        coordinator.waitFor();
-                    }
-                    catch (final IOException e)
-                    {
-                        throw new Error(e);
-                    }
-                    catch (final InterruptedException e)
-                    {
-                        throw new Error(e);
-                    }
+                    session = new Session();
+                    session.config = config;
+                    sessions.put(host, session);
+                }
+                return session;
+            }
+        }
+
+        @Override public Credential get(final OperationArguments operationArguments)
+        {
+            final Session session = getSession(operationArguments);
+            synchronized (session)
+            {
+                try
+                {
+                    final IAuthentication authentication = initialize("get", operationArguments, session);
+                    operationArguments.Interactivity = Interactivity.Never;
+                    Program.get(operationArguments, authentication, DEVICE_FLOW_CALLBACK);
+                }
+                catch (final IOException e)
+                {
+                    throw new Error(e);
+                }
+                final String password = operationArguments.getPassword();
+                return password != null ? new Credential(operationArguments.getUserName(), password) : null;
+            }
+        }
+
+        @Override public void store(final OperationArguments operationArguments)
+        {
+            final Session session = getSession(operationArguments);
+            synchronized (session)
+            {
+                try
+                {
+                    final IAuthentication authentication = initialize("store", operationArguments, session);
+                    Program.store(operationArguments, authentication, System.getProperty("os.name"), session.getProcessFactory(), DefaultFileCheckerSingleton, System.getenv("PATH"), File.pathSeparator);
+                }
+                catch (final IOException e)
+                {
+                    throw new Error(e);
+                }
+            }
+        }
+
+        @Override public void erase(final OperationArguments operationArguments)
+        {
+            final Session session = getSession(operationArguments);
+            synchronized (session)
+            {
+                try
+                {
+                    final IAuthentication authentication = initialize("erase", operationArguments, session);
+                    Program.erase(operationArguments, authentication);
+                }
+                catch (final IOException e)
+                {
+                    throw new Error(e);
                 }
             }
         }
@@ -761,7 +1745,7 @@ public class Program
     protected static List<String> isValidGitVersion(final String gitResponse)
     {
         Trace.writeLine("Program::isValidGitVersion");
-        Trace.writeLine("  gitResponse:" + gitResponse);
+        Trace.writeLine("  gitResponse:%1$s", gitResponse);
         final String GitNotFound = "Git is a requirement for installation and cannot be found. Please check that Git is installed and is added to your PATH";
         final List<String> result = new ArrayList<String>();
         // if git responded with a version then parse it for the version number
@@ -776,7 +1760,7 @@ public class Program
             }
             catch (final IllegalArgumentException ignored)
             {
-                Trace.writeLine("  " + ignored.getMessage());
+                Trace.writeLine("  %1$s", ignored.getMessage());
                 result.add(GitNotFound);
             }
             if (version != null)
@@ -867,40 +1851,122 @@ public class Program
 
         Debug.Assert(operationArguments.TargetUri != null, "The operationArguments.TargetUri is null");
 
-        final Configuration config = componentFactory.createConfiguration();
-        loadOperationArguments(operationArguments, config);
-        enableTraceLogging(operationArguments);
-
-        Trace.writeLine("Program::" + methodName);
-        Trace.writeLine("   targetUri = " + operationArguments.TargetUri);
-
-        final ISecureStore secureStore = componentFactory.createSecureStore(operationArguments);
-        final IAuthentication authentication = componentFactory.createAuthentication(operationArguments, secureStore);
+        final IAuthentication authentication = initialize(methodName, operationArguments, new Session());
 
         operationArgumentsRef.set(operationArguments);
         authenticationRef.set(authentication);
     }
 
+    /**
+     * What the requests answered by one invocation can share; a single request gets a fresh
+     * one, whereas {@code batch} keeps it for all of its requests.
+     */
+    private static final class Session
+    {
+        private Configuration config;
+        private TestableProcessFactory processFactory;
+        private final Map<Boolean, ISecureStore> secureStores = new HashMap<Boolean, ISecureStore>();
+        private final Map<String, IAuthentication> authentications = new HashMap<String, IAuthentication>();
+        private final Map<String, AuthorityType> authorities = new HashMap<String, AuthorityType>();
+
+        private TestableProcessFactory getProcessFactory()
+        {
+            if (processFactory == null)
+            {
+                processFactory = new DefaultProcessFactory();
+            }
+            return processFactory;
+        }
+    }
+
+    private IAuthentication initialize(
+        final String methodName,
+        final OperationArguments operationArguments,
+        final Session session
+    ) throws IOException
+    {
+        // the span is written once enableTraceLogging has found out where to
+        final TraceSpan configSpan = TraceSpan.start("config");
+        final Configuration config;
+        try
+        {
+            if (session.config == null)
+            {
+                session.config = componentFactory.createConfiguration();
+                loadOperationArguments(operationArguments, session.config);
+                // the log file is opened once per invocation, not once per request
+                enableTraceLogging(operationArguments, session.config);
+            }
+            else
+            {
+                loadOperationArguments(operationArguments, session.config);
+            }
+            config = session.config;
+            loadLogLevels(config, operationArguments.TargetUri);
+            loadRequestPolicies(config, operationArguments.TargetUri);
+            configSpan.end(TraceSpan.Success);
+        }
+        finally
+        {
+            configSpan.close();
+        }
+
+        Trace.writeLine("Program::%1$s", methodName);
+        Trace.writeLine("   targetUri = %1$s", operationArguments.TargetUri);
+
+        final CircuitBreaker circuitBreaker = createCircuitBreaker(config, operationArguments.TargetUri);
+        RequestPolicy.setCircuitBreaker(circuitBreaker);
+        if (circuitBreaker != null && !circuitBreaker.allowRequest(operationArguments.TargetUri))
+        {
+            Trace.writeLine("   %1$s has been unreachable recently; working offline", operationArguments.Host);
+            operationArguments.Offline = true;
+            circuitBreaker.probeInBackground(operationArguments.TargetUri);
+        }
+
+        ISecureStore secureStore = session.secureStores.get(operationArguments.CanFallbackToInsecureStore);
+        if (secureStore == null)
+        {
+            secureStore = componentFactory.createSecureStore(operationArguments);
+            session.secureStores.put(operationArguments.CanFallbackToInsecureStore, secureStore);
+        }
+        configureAdalTokenCache(secureStore);
+
+        // detecting the authority can take a round-trip, so it's only done once per host;
+        // offline requests always fall back to Basic and aren't remembered
+        final String authenticationKey = operationArguments.Protocol + "://" + operationArguments.Host + " " + operationArguments.Authority;
+        if (!operationArguments.Offline && session.authentications.containsKey(authenticationKey))
+        {
+            Trace.writeLine("   reusing the %1$s authentication", session.authorities.get(authenticationKey));
+            operationArguments.Authority = session.authorities.get(authenticationKey);
+            return session.authentications.get(authenticationKey);
+        }
+        final IAuthentication authentication = componentFactory.createAuthentication(operationArguments, secureStore);
+        if (!operationArguments.Offline)
+        {
+            session.authentications.put(authenticationKey, authentication);
+            session.authorities.put(authenticationKey, operationArguments.Authority);
+        }
+        return authentication;
+    }
+
     static IAuthentication createAuthentication(final OperationArguments operationArguments, final ISecureStore secureStore)
     {
         Debug.Assert(operationArguments != null, "The operationArguments is null");
 
         Trace.writeLine("Program::createAuthentication");
 
-        final String osName = System.getProperty("os.name");
-        final Secret.IUriNameConversion iUriNameConversion =
-                Provider.isMac(osName)
-                /*
-                 * Adds a prefix to the target name to avoid a collision
-                 * with the built-in git-credential-osxkeychain.
-                 * This is because the built-in helper will not validate the credentials first,
-                 * leading to a poor user experience if the token is no longer valid.
-                 */
-                ? new Secret.PrefixedUriNameConversion("gcm4ml:")
-                : Secret.DefaultUriNameConversion;
-        final SecretStore secrets = new SecretStore(secureStore, SecretsNamespace, null, null, iUriNameConversion);
+        final Secret.IUriNameConversion iUriNameConversion = createUriNameConversion();
+        final SecretStore secrets = new SecretStore(secureStore, SecretsNamespace, null, null, iUriNameConversion, createPathIndex(SecretsNamespace));
         final AtomicReference<IAuthentication> authorityRef = new AtomicReference<IAuthentication>();
-        final ITokenStore adaRefreshTokenStore = null;
+        // refresh tokens are persisted so that tokens can be renewed by a later process (see `renew`)
+        final ITokenStore adaRefreshTokenStore = new SecretStore(secureStore, RefreshTokensNamespace, null, null, iUriNameConversion, createPathIndex(RefreshTokensNamespace));
+
+        if (operationArguments.Authority == AuthorityType.Auto && operationArguments.Offline)
+        {
+            // all authorities keep their credentials in the same store, so they can still be found
+            Trace.writeLine("   offline; skipping authority detection");
+            operationArguments.Authority = AuthorityType.Basic;
+        }
 
         if (operationArguments.Authority == AuthorityType.Auto)
         {
@@ -946,7 +2012,7 @@ public class Program
                 Trace.writeLine("   authority is Azure Directory");
 
                 // return the allocated authority or a generic AAD backed VSO authentication object
-                return authorityRef.get() != null ? authorityRef.get() : new VsoAadAuthentication(Guid.Empty, VsoCredentialScope, secrets, adaRefreshTokenStore);
+                return configureVsoAuthentication(authorityRef.get() != null ? authorityRef.get() : new VsoAadAuthentication(Guid.Empty, VsoCredentialScope, secrets, adaRefreshTokenStore));
 
             case Basic:
             default:
@@ -967,10 +2033,69 @@ public class Program
                 Trace.writeLine("   authority is Microsoft Live");
 
                 // return the allocated authority or a generic MSA backed VSO authentication object
-                return authorityRef.get() != null ? authorityRef.get() : new VsoMsaAuthentication(VsoCredentialScope, secrets, adaRefreshTokenStore);
+                return configureVsoAuthentication(authorityRef.get() != null ? authorityRef.get() : new VsoMsaAuthentication(VsoCredentialScope, secrets, adaRefreshTokenStore));
+        }
+    }
+
+    static Secret.IUriNameConversion createUriNameConversion()
+    {
+        final String osName = System.getProperty("os.name");
+        return Provider.isMac(osName)
+                /*
+                 * Adds a prefix to the target name to avoid a collision
+                 * with the built-in git-credential-osxkeychain.
+                 * This is because the built-in helper will not validate the credentials first,
+                 * leading to a poor user experience if the token is no longer valid.
+                 */
+                ? new Secret.PrefixedUriNameConversion("gcm4ml:")
+                : Secret.DefaultUriNameConversion;
+    }
+
+    private static IAuthentication configureVsoAuthentication(final IAuthentication authentication)
+    {
+        if (authentication instanceof BaseVsoAuthentication)
+        {
+            final BaseVsoAuthentication vsoAuthentication = (BaseVsoAuthentication) authentication;
+            vsoAuthentication.setRenewalIndex(createRenewalIndex());
+            vsoAuthentication.setTenantIndex(createTenantIndex());
+            vsoAuthentication.setLogonCoordinator(createLogonCoordinator());
+        }
+        return authentication;
+    }
+
+    /**
+     * Puts a cache shared with the other helper processes of the user in front of the secure
+     * store, if configured and if there's a runtime folder, which only the user can read and
+     * which goes away when the user logs out, to keep it in.
+     */
+    static ISecureStore createSharedSecretCache(final ISecureStore secureStore, final int timeToLiveSeconds)
+    {
+        if (timeToLiveSeconds <= 0)
+            return secureStore;
+        final String runtimeFolder = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeFolder == null || !new File(runtimeFolder).isDirectory())
+        {
+            Trace.writeLine("   no runtime folder to share the cache in");
+            return secureStore;
+        }
+        try
+        {
+            return new SharedSecretCache(secureStore, new File(runtimeFolder, ProgramFolderName), timeToLiveSeconds * 1000L);
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to open the shared cache: " + e.getMessage());
+            return secureStore;
         }
     }
 
+    static LogonCoordinator createLogonCoordinator()
+    {
+        final File parentFolder = determineParentFolder();
+        final File programFolder = new File(parentFolder, ProgramFolderName);
+        return new LogonCoordinator(new File(programFolder, LogonLocksFolderName), LogonMaxWaitMillis);
+    }
+
     private static void loadOperationArguments(final OperationArguments operationArguments, final Configuration config) throws IOException
     {
         Debug.Assert(operationArguments != null, "The operationsArguments parameter is null.");
@@ -981,7 +2106,7 @@ public class Program
 
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "authority", entryRef))
         {
-            Trace.writeLine("   authority = " + entryRef.get().Value);
+            Trace.writeLine("   authority = %1$s", entryRef.get().Value);
 
             if ("MSA".equalsIgnoreCase(entryRef.get().Value)
                     || "Microsoft".equalsIgnoreCase(entryRef.get().Value)
@@ -1013,7 +2138,7 @@ public class Program
 
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "interactive", entryRef))
         {
-            Trace.writeLine("   interactive = " + entryRef.get().Value);
+            Trace.writeLine("   interactive = %1$s", entryRef.get().Value);
 
             if ("always".equalsIgnoreCase(entryRef.get().Value)
                     || "true".equalsIgnoreCase(entryRef.get().Value)
@@ -1030,7 +2155,7 @@ public class Program
 
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "validate", entryRef))
         {
-            Trace.writeLine("   validate = " + entryRef.get().Value);
+            Trace.writeLine("   validate = %1$s", entryRef.get().Value);
 
             if ("true".equalsIgnoreCase(entryRef.get().Value))
             {
@@ -1044,7 +2169,7 @@ public class Program
 
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "writelog", entryRef))
         {
-            Trace.writeLine("   writelog = " + entryRef.get().Value);
+            Trace.writeLine("   writelog = %1$s", entryRef.get().Value);
 
             if ("true".equalsIgnoreCase(entryRef.get().Value))
             {
@@ -1056,9 +2181,23 @@ public class Program
             }
         }
 
+        if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "traceformat", entryRef))
+        {
+            Trace.writeLine("   traceformat = %1$s", entryRef.get().Value);
+
+            if ("json".equalsIgnoreCase(entryRef.get().Value))
+            {
+                operationArguments.StructuredLog = true;
+            }
+            else if ("text".equalsIgnoreCase(entryRef.get().Value))
+            {
+                operationArguments.StructuredLog = false;
+            }
+        }
+
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "eraseosxkeychain", entryRef))
         {
-            Trace.writeLine("   eraseosxkeychain = " + entryRef.get().Value);
+            Trace.writeLine("   eraseosxkeychain = %1$s", entryRef.get().Value);
 
             if ("true".equalsIgnoreCase(entryRef.get().Value))
             {
@@ -1070,9 +2209,27 @@ public class Program
             }
         }
 
+        if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "usehttppath", entryRef))
+        {
+            Trace.writeLine("   usehttppath = %1$s", entryRef.get().Value);
+
+            if ("true".equalsIgnoreCase(entryRef.get().Value))
+            {
+                try
+                {
+                    operationArguments.useHttpPath();
+                }
+                catch (final URISyntaxException e)
+                {
+                    // the credentials of the whole host will have to do
+                    Trace.writeLine("   unable to include the path '%1$s': %2$s", operationArguments.Path, e.getMessage());
+                }
+            }
+        }
+
         if (config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, CanFallbackToInsecureStore, entryRef))
         {
-            Trace.writeLine("   " + CanFallbackToInsecureStore + " = " + entryRef.get().Value);
+            Trace.writeLine("   %1$s = %2$s", CanFallbackToInsecureStore, entryRef.get().Value);
 
             if ("true".equalsIgnoreCase(entryRef.get().Value))
             {
@@ -1083,6 +2240,9 @@ public class Program
                 operationArguments.CanFallbackToInsecureStore = false;
             }
         }
+
+        // the cache is shared by every host, so the setting can't be set for one
+        operationArguments.SharedCacheTtlSeconds = Math.max(0, readIntegerSetting(config, "sharedcachettl", 0));
     }
 
     private static void logEvent(final String message, final Object eventType)
@@ -1090,10 +2250,8 @@ public class Program
         System.out.println(message);
     }
 
-    private static void enableTraceLogging(final OperationArguments operationArguments) throws IOException
+    private static void enableTraceLogging(final OperationArguments operationArguments, final Configuration config) throws IOException
     {
-        final int LogFileMaxLength = 8 * 1024 * 1024; // 8 MB
-
         Trace.writeLine("Program::EnableTraceLogging");
 
         if (operationArguments.WriteLog)
@@ -1103,37 +2261,45 @@ public class Program
             final AtomicReference<String> gitConfigPath = new AtomicReference<String>();
             if (Where.gitLocalConfig(gitConfigPath))
             {
-                Trace.writeLine("   git local config found at " + gitConfigPath.get());
+                Trace.writeLine("   git local config found at %1$s", gitConfigPath.get());
 
                 final String dotGitPath = Path.getDirectoryName(gitConfigPath.get());
-                final String logFilePath = Path.combine(dotGitPath, Path.changeExtension(ConfigPrefix, ".log"));
-                final String logFileName = operationArguments.TargetUri.toString();
-
-                final File logFileInfo = new File(logFilePath);
-                if (logFileInfo.exists() && logFileInfo.length() > LogFileMaxLength)
-                {
-                    for (int i = 1; i < Integer.MAX_VALUE; i++)
-                    {
-                        final String moveName = String.format("%1$s%2$03d.log", ConfigPrefix, i);
-                        final String movePath = Path.combine(dotGitPath, moveName);
-                        final File moveFile = new File(movePath);
-
-                        if (!moveFile.isFile())
-                        {
-                            logFileInfo.renameTo(moveFile);
-                            break;
-                        }
-                    }
-                }
-
-                Trace.writeLine("   trace log destination is " + logFilePath);
+                final int generations = Math.max(0, readIntegerSetting(config, operationArguments.TargetUri, "loggenerations", LogRotator.DefaultGenerations));
+                final AtomicReference<Configuration.Entry> entryRef = new AtomicReference<Configuration.Entry>();
+                final boolean compress = config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "logcompress", entryRef)
+                        && "true".equalsIgnoreCase(entryRef.get().Value);
+                final boolean asynchronous = config.tryGetEntry(ConfigPrefix, operationArguments.TargetUri, "logasync", entryRef)
+                        && "true".equalsIgnoreCase(entryRef.get().Value);
+                final LogRotator rotator = new LogRotator(new File(dotGitPath), ConfigPrefix,
+                        operationArguments.StructuredLog ? StructuredLogExtension : ".log",
+                        generations, LogRotator.DefaultMaxLength, compress);
+                rotator.rotateIfNeeded();
+                logRotator = rotator;
+                final String logFilePath = rotator.getLogFile().getPath();
+
+                Trace.writeLine("   trace log destination is %1$s", logFilePath);
 
                 final PrintStream listener = new PrintStream(logFilePath);
                 Trace.getListeners().add(listener);
-                // write a small header to help with identifying new log entries
-                listener.println(Environment.NewLine);
-                listener.println(String.format("Log Start (%1$tFT%1$tT%1$tZ)", Calendar.getInstance()));
-                listener.println(String.format("%1$s version %2$s", getTitle(), getVersion()));
+                if (operationArguments.StructuredLog)
+                {
+                    // the start event records the wall-clock time instead of a header
+                    Trace.setStructured(true);
+                    Trace.writeLine("%1$s version %2$s", getTitle(), getVersion());
+                }
+                else
+                {
+                    // write a small header to help with identifying new log entries
+                    listener.println(Environment.NewLine);
+                    listener.println(String.format("Log Start (%1$tFT%1$tT%1$tZ)", Calendar.getInstance()));
+                    listener.println(String.format("%1$s version %2$s", getTitle(), getVersion()));
+                }
+                if (asynchronous)
+                {
+                    // only worth it when the log file is slow to write to, i.e. on a network share
+                    Trace.writeLine("   trace log written asynchronously");
+                    Trace.setAsynchronous(true);
+                }
             }
         }
     }
@@ -1174,7 +2340,7 @@ public class Program
                         "'git config --global credential.canFallBackToInsecureStore true'.");
             }
             final com.microsoft.alm.storage.SecretStore<Credential> credentialSecretStore = StorageProvider.getCredentialStorage(true, secureOption);
-            final ISecureStore secureStore = new SecretStoreAdapter(tokenSecretStore, credentialSecretStore);
+            final ISecureStore secureStore = createSharedSecretCache(new SecretStoreAdapter(tokenSecretStore, credentialSecretStore), operationArguments.SharedCacheTtlSeconds);
             final File parentFolder = determineParentFolder();
             final File programFolder = new File(parentFolder, ProgramFolderName);
             final File insecureFile = new File(programFolder, "insecureStore.xml");
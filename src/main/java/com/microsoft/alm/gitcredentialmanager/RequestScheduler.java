@@ -0,0 +1,327 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.Metrics;
+import com.microsoft.alm.helpers.Trace;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work of a long-lived server on two lanes, so that a request waiting on the network
+ * can't hold up one that memory can answer:
+ * <ul>
+ *     <li>the fast lane reads requests and answers the ones found in memory; its tasks never
+ *     wait on anything but their client;</li>
+ *     <li>the network lane runs whatever may wait on an authority or a store, with at most a
+ *     few tasks per host at a time and the hosts served in turn, so a slow tenant only delays
+ *     its own requests.</li>
+ * </ul>
+ *
+ * Both lanes are bounded pools of platform threads.  Virtual threads would not help here:
+ * the sockets are read through JNA, and a virtual thread blocked in a native call pins the
+ * thread that carries it.
+ *
+ * How many tasks each lane has accepted and started is counted, and how long they waited to
+ * start is recorded.  How many are waiting is a gauge of its own, read from the lanes when the
+ * metrics are scraped, not the difference of those counters, which are added to the ones
+ * saved by every other process.
+ */
+final class RequestScheduler
+{
+    static final String FastLane = "fast";
+    static final String NetworkLane = "network";
+    static final String QueuedTasks = "gcm_scheduler_tasks_queued_total";
+    static final String StartedTasks = "gcm_scheduler_tasks_started_total";
+    static final String WaitDurations = "gcm_scheduler_wait_duration_seconds";
+    static final String QueueDepths = "gcm_scheduler_queue_depth";
+
+    private static final long ShutdownTimeoutMillis = 5000;
+
+    private final ExecutorService fastLane;
+    private final List<Thread> networkWorkers = new ArrayList<Thread>();
+    private final int hostConcurrency;
+    private final Map<String, HostQueue> hosts = new HashMap<String, HostQueue>();
+    /** The hosts with tasks waiting, in the order they're served. */
+    private final Queue<HostQueue> turns = new ArrayDeque<HostQueue>();
+    private final AtomicInteger fastLaneDepth = new AtomicInteger();
+    private int networkLaneDepth;
+    private boolean shutdown;
+
+    /**
+     * @param fastLaneThreads    How many requests are read and answered from memory at the same time.
+     * @param networkLaneThreads How many tasks may wait on the network at the same time.
+     * @param hostConcurrency    How many of those may be for the same host.
+     */
+    RequestScheduler(final int fastLaneThreads, final int networkLaneThreads, final int hostConcurrency)
+    {
+        if (fastLaneThreads < 1)
+            throw new IllegalArgumentException("The `fastLaneThreads` parameter must be positive.");
+        if (networkLaneThreads < 1)
+            throw new IllegalArgumentException("The `networkLaneThreads` parameter must be positive.");
+        if (hostConcurrency < 1)
+            throw new IllegalArgumentException("The `hostConcurrency` parameter must be positive.");
+
+        this.hostConcurrency = hostConcurrency;
+        this.fastLane = Executors.newFixedThreadPool(fastLaneThreads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override public Thread newThread(final Runnable runnable)
+            {
+                final Thread thread = new Thread(runnable, "RequestScheduler fast lane " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 1; i <= networkLaneThreads; i++)
+        {
+            final Thread thread = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    runNetworkLane();
+                }
+            }, "RequestScheduler network lane " + i);
+            thread.setDaemon(true);
+            networkWorkers.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Runs a task that only waits on its client.
+     *
+     * @throws RejectedExecutionException if the scheduler was shut down.
+     */
+    void executeFast(final Runnable task)
+    {
+        final long queuedNanos = System.nanoTime();
+        fastLaneDepth.incrementAndGet();
+        try
+        {
+            fastLane.execute(new Runnable()
+            {
+                @Override public void run()
+                {
+                    fastLaneDepth.decrementAndGet();
+                    started(FastLane, queuedNanos);
+                    task.run();
+                }
+            });
+        }
+        catch (final RejectedExecutionException e)
+        {
+            fastLaneDepth.decrementAndGet();
+            throw e;
+        }
+        Metrics.increment(Metrics.series(QueuedTasks, "lane", FastLane));
+    }
+
+    /**
+     * Runs a task that may wait on the network, once the host has fewer than
+     * {@code hostConcurrency} tasks running and it's the host's turn.
+     *
+     * @param host The host the task is about; null is a host of its own.
+     * @throws RejectedExecutionException if the scheduler was shut down.
+     */
+    void executeNetwork(final String host, final Runnable task)
+    {
+        final String key = host != null ? host : "";
+        synchronized (hosts)
+        {
+            if (shutdown)
+                throw new RejectedExecutionException("The scheduler was shut down.");
+            HostQueue queue = hosts.get(key);
+            if (queue == null)
+            {
+                queue = new HostQueue(key);
+                hosts.put(key, queue);
+            }
+            if (queue.Pending.isEmpty())
+            {
+                turns.add(queue);
+            }
+            queue.Pending.add(new QueuedTask(task));
+            networkLaneDepth++;
+            hosts.notify();
+        }
+        Metrics.increment(Metrics.series(QueuedTasks, "lane", NetworkLane));
+    }
+
+    /**
+     * @return how many tasks are waiting to start on the lane.
+     */
+    int getQueueDepth(final String lane)
+    {
+        if (FastLane.equals(lane))
+            return fastLaneDepth.get();
+        synchronized (hosts)
+        {
+            return networkLaneDepth;
+        }
+    }
+
+    /**
+     * Writes how many tasks are waiting to start on each lane, as Prometheus gauges.
+     */
+    void writePrometheus(final PrintStream out)
+    {
+        out.print("# TYPE " + QueueDepths + " gauge\n");
+        out.print(Metrics.series(QueueDepths, "lane", FastLane) + " " + getQueueDepth(FastLane) + "\n");
+        out.print(Metrics.series(QueueDepths, "lane", NetworkLane) + " " + getQueueDepth(NetworkLane) + "\n");
+    }
+
+    /**
+     * Stops accepting tasks and waits up to a few seconds for the ones already accepted to finish.
+     */
+    void shutdown()
+    {
+        Trace.writeLine("RequestScheduler::shutdown");
+
+        final long deadline = System.currentTimeMillis() + ShutdownTimeoutMillis;
+        fastLane.shutdown();
+        try
+        {
+            // the fast lane hands requests over to the network lane, so it's drained first
+            fastLane.awaitTermination(ShutdownTimeoutMillis, TimeUnit.MILLISECONDS);
+            synchronized (hosts)
+            {
+                shutdown = true;
+                hosts.notifyAll();
+            }
+            for (final Thread worker : networkWorkers)
+            {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runNetworkLane()
+    {
+        while (true)
+        {
+            final HostQueue queue;
+            final QueuedTask task;
+            synchronized (hosts)
+            {
+                HostQueue next;
+                while ((next = takeTurn()) == null)
+                {
+                    if (shutdown)
+                        return;
+                    try
+                    {
+                        hosts.wait();
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                queue = next;
+                task = queue.Pending.remove();
+                queue.Running++;
+                networkLaneDepth--;
+            }
+            try
+            {
+                started(NetworkLane, task.QueuedNanos);
+                task.Task.run();
+            }
+            catch (final RuntimeException e)
+            {
+                Trace.writeLine("   network lane task failed: " + e.getMessage());
+            }
+            catch (final Error e)
+            {
+                // HTTP failures surface as Error; the worker moves on to the next task
+                Trace.writeLine("   network lane task failed: " + e.getMessage());
+            }
+            finally
+            {
+                synchronized (hosts)
+                {
+                    queue.Running--;
+                    if (queue.Running == 0 && queue.Pending.isEmpty())
+                    {
+                        hosts.remove(queue.Host);
+                    }
+                    // the host may have been skipped while it was at its limit
+                    hosts.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks the first host, in turn order, that has a task waiting and room to run it; it goes
+     * to the back of the line if it has more tasks waiting.  The caller holds the lock.
+     *
+     * @return the host, or null if none can run a task right now.
+     */
+    private HostQueue takeTurn()
+    {
+        final int count = turns.size();
+        for (int i = 0; i < count; i++)
+        {
+            final HostQueue queue = turns.remove();
+            if (queue.Running < hostConcurrency)
+            {
+                if (queue.Pending.size() > 1)
+                {
+                    turns.add(queue);
+                }
+                return queue;
+            }
+            turns.add(queue);
+        }
+        return null;
+    }
+
+    private static void started(final String lane, final long queuedNanos)
+    {
+        Metrics.increment(Metrics.series(StartedTasks, "lane", lane));
+        Metrics.recordNanos(Metrics.series(WaitDurations, "lane", lane), System.nanoTime() - queuedNanos);
+    }
+
+    private static final class HostQueue
+    {
+        final String Host;
+        final Queue<QueuedTask> Pending = new ArrayDeque<QueuedTask>();
+        int Running;
+
+        HostQueue(final String host)
+        {
+            Host = host;
+        }
+    }
+
+    private static final class QueuedTask
+    {
+        final Runnable Task;
+        final long QueuedNanos = System.nanoTime();
+
+        QueuedTask(final Runnable task)
+        {
+            Task = task;
+        }
+    }
+}
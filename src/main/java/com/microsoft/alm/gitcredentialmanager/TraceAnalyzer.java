@@ -0,0 +1,192 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.SimpleJson;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summarizes the spans found in structured trace logs (see the traceformat setting),
+ * i.e. after collecting the .git/credential.jsonl files of many CI runs into one directory:
+ *
+ * <pre>
+ * java -cp git-credential-manager.jar com.microsoft.alm.gitcredentialmanager.TraceAnalyzer logs/
+ * </pre>
+ */
+public class TraceAnalyzer
+{
+    /**
+     * The durations recorded for one phase, in microseconds.
+     */
+    static class PhaseSummary
+    {
+        final String Phase;
+        private long[] durations = new long[16];
+        private int count;
+        private final Map<String, Integer> outcomeCounts = new TreeMap<String, Integer>();
+        private boolean sorted;
+
+        PhaseSummary(final String phase)
+        {
+            this.Phase = phase;
+        }
+
+        void add(final long durationMicros, final String outcome)
+        {
+            if (count == durations.length)
+            {
+                durations = Arrays.copyOf(durations, count * 2);
+            }
+            durations[count++] = durationMicros;
+            sorted = false;
+
+            final Integer existing = outcomeCounts.get(outcome);
+            outcomeCounts.put(outcome, existing == null ? 1 : existing + 1);
+        }
+
+        int getCount()
+        {
+            return count;
+        }
+
+        Map<String, Integer> getOutcomeCounts()
+        {
+            return outcomeCounts;
+        }
+
+        /**
+         * @param percentile Between 0 (exclusive) and 100 (inclusive).
+         * @return The nearest-rank percentile of the durations, in microseconds.
+         */
+        long getPercentile(final double percentile)
+        {
+            if (count == 0)
+                return 0;
+            if (!sorted)
+            {
+                Arrays.sort(durations, 0, count);
+                sorted = true;
+            }
+            final int rank = (int) Math.ceil(percentile / 100.0 * count);
+            return durations[Math.max(0, Math.min(count, rank) - 1)];
+        }
+    }
+
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length != 1 || !new File(args[0]).isDirectory())
+        {
+            System.err.println("usage: TraceAnalyzer <directory of .jsonl trace logs>");
+            System.exit(1);
+            return;
+        }
+
+        final Map<String, PhaseSummary> summaries = new TreeMap<String, PhaseSummary>();
+        final int files = analyzeDirectory(new File(args[0]), summaries);
+        print(files, summaries, System.out);
+    }
+
+    static int analyzeDirectory(final File directory, final Map<String, PhaseSummary> summaries) throws IOException
+    {
+        int result = 0;
+        final File[] children = directory.listFiles();
+        if (children == null)
+            return result;
+        Arrays.sort(children);
+        for (final File child : children)
+        {
+            if (child.isDirectory())
+            {
+                result += analyzeDirectory(child, summaries);
+            }
+            else if (child.getName().endsWith(Program.StructuredLogExtension))
+            {
+                final Reader reader = new InputStreamReader(new FileInputStream(child), "UTF-8");
+                try
+                {
+                    analyze(reader, summaries);
+                }
+                finally
+                {
+                    IOHelper.closeQuietly(reader);
+                }
+                result++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the spans of one log to the summaries; lines that aren't spans are skipped,
+     * as are lines that were cut short (i.e. by a process that was killed).
+     */
+    static void analyze(final Reader reader, final Map<String, PhaseSummary> summaries) throws IOException
+    {
+        final BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null)
+        {
+            if (!line.startsWith("{\"event\":\"span\""))
+                continue;
+
+            final Map<String, Object> event;
+            try
+            {
+                event = SimpleJson.parse(line);
+            }
+            catch (final RuntimeException ignored)
+            {
+                continue;
+            }
+            final Object phase = event.get("phase");
+            final Object duration = event.get("durationMicros");
+            if (!(phase instanceof String) || !(duration instanceof Number))
+                continue;
+
+            PhaseSummary summary = summaries.get(phase);
+            if (summary == null)
+            {
+                summary = new PhaseSummary((String) phase);
+                summaries.put((String) phase, summary);
+            }
+            final Object outcome = event.get("outcome");
+            summary.add(((Number) duration).longValue(), outcome == null ? "" : outcome.toString());
+        }
+    }
+
+    static void print(final int files, final Map<String, PhaseSummary> summaries, final PrintStream out)
+    {
+        out.println(String.format("%1$d log(s), %2$d phase(s); durations in milliseconds", files, summaries.size()));
+        out.println(String.format("%1$-24s %2$8s %3$10s %4$10s %5$10s %6$10s  %7$s", "phase", "count", "p50", "p95", "p99", "max", "outcomes"));
+        for (final PhaseSummary summary : summaries.values())
+        {
+            final List<String> outcomes = new ArrayList<String>();
+            for (final Map.Entry<String, Integer> entry : summary.getOutcomeCounts().entrySet())
+            {
+                outcomes.add(entry.getKey() + "=" + entry.getValue());
+            }
+            out.println(String.format("%1$-24s %2$8d %3$10.3f %4$10.3f %5$10.3f %6$10.3f  %7$s",
+                    summary.Phase,
+                    summary.getCount(),
+                    summary.getPercentile(50) / 1000.0,
+                    summary.getPercentile(95) / 1000.0,
+                    summary.getPercentile(99) / 1000.0,
+                    summary.getPercentile(100) / 1000.0,
+                    outcomes));
+        }
+    }
+}
@@ -0,0 +1,467 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.Trace;
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A stream socket in the file system (AF_UNIX), which is what Git's credential-cache helper
+ * talks to.  Java only gained those in version 16, so the C library is called through JNA,
+ * which the secure storage library already depends on.
+ */
+final class UnixDomainSocket implements Closeable
+{
+    private static final int AF_UNIX = 1;
+    private static final int SOCK_STREAM = 1;
+    private static final int SHUT_WR = 1;
+    private static final int EINTR = 4;
+    private static final short POLLIN = 1;
+    private static final int PollFdLength = 8;
+    /** The first descriptor systemd passes on (SD_LISTEN_FDS_START). */
+    private static final int ListenFdsStart = 3;
+    private static final int LinuxPathLength = 108;
+    private static final int BsdPathLength = 104;
+
+    interface CLibrary extends Library
+    {
+        int socket(int domain, int type, int protocol) throws LastErrorException;
+        int bind(int fd, byte[] address, int addressLength) throws LastErrorException;
+        int listen(int fd, int backlog) throws LastErrorException;
+        int accept(int fd, Pointer address, Pointer addressLength) throws LastErrorException;
+        int connect(int fd, byte[] address, int addressLength) throws LastErrorException;
+        NativeLong read(int fd, byte[] buffer, NativeLong count) throws LastErrorException;
+        NativeLong write(int fd, byte[] buffer, NativeLong count) throws LastErrorException;
+        int shutdown(int fd, int how) throws LastErrorException;
+        int close(int fd) throws LastErrorException;
+        int poll(byte[] fds, int count, int timeoutMillis) throws LastErrorException;
+        int pipe(int[] fds) throws LastErrorException;
+        int getpid();
+    }
+
+    private static CLibrary library;
+
+    private static synchronized CLibrary getLibrary()
+    {
+        if (library == null)
+        {
+            library = (CLibrary) Native.loadLibrary(Platform.C_LIBRARY_NAME, CLibrary.class);
+        }
+        return library;
+    }
+
+    /**
+     * @return true if sockets in the file system can be used on this platform.
+     */
+    static boolean isSupported()
+    {
+        if (Platform.isWindows())
+            return false;
+        try
+        {
+            getLibrary();
+            return true;
+        }
+        catch (final UnsatisfiedLinkError e)
+        {
+            Trace.writeLine("   unable to load the C library: " + e.getMessage());
+            return false;
+        }
+    }
+
+    private final int fd;
+    private volatile boolean closed;
+    private int[] wakeUpPipe;
+
+    UnixDomainSocket(final int fd)
+    {
+        this.fd = fd;
+    }
+
+    /**
+     * @return the file descriptor of the socket.
+     */
+    int getFileDescriptor()
+    {
+        return fd;
+    }
+
+    /**
+     * Creates a socket in the file system and listens to it.
+     *
+     * @param path    Where to create the socket; must not exist.
+     * @param backlog How many connections may wait to be accepted.
+     * @return the listening socket.
+     */
+    static UnixDomainSocket listen(final File path, final int backlog) throws IOException
+    {
+        final CLibrary c = getLibrary();
+        final byte[] address = toAddress(path);
+        final int fd = createSocket(c);
+        try
+        {
+            c.bind(fd, address, address.length);
+            c.listen(fd, backlog);
+        }
+        catch (final LastErrorException e)
+        {
+            closeQuietly(c, fd);
+            throw new IOException("Unable to listen to " + path + ": " + e.getMessage());
+        }
+        return new UnixDomainSocket(fd);
+    }
+
+    /**
+     * Connects to a socket in the file system.
+     *
+     * @param path The socket.
+     * @return the connected socket.
+     */
+    static UnixDomainSocket connect(final File path) throws IOException
+    {
+        final CLibrary c = getLibrary();
+        final byte[] address = toAddress(path);
+        final int fd = createSocket(c);
+        try
+        {
+            c.connect(fd, address, address.length);
+        }
+        catch (final LastErrorException e)
+        {
+            closeQuietly(c, fd);
+            throw new IOException("Unable to connect to " + path + ": " + e.getMessage());
+        }
+        return new UnixDomainSocket(fd);
+    }
+
+    /**
+     * Takes over the socket systemd listens to on our behalf when the service is started by a
+     * socket unit, as described in sd_listen_fds(3).
+     *
+     * @return the listening socket, or null if the process wasn't socket-activated.
+     */
+    static UnixDomainSocket inherit()
+    {
+        return inherit(System.getenv("LISTEN_PID"), System.getenv("LISTEN_FDS"));
+    }
+
+    static UnixDomainSocket inherit(final String listenPid, final String listenFds)
+    {
+        if (listenPid == null || listenFds == null)
+            return null;
+        final int pid;
+        final int count;
+        try
+        {
+            pid = Integer.parseInt(listenPid.trim());
+            count = Integer.parseInt(listenFds.trim());
+        }
+        catch (final NumberFormatException e)
+        {
+            Trace.writeLine("   ignoring bogus LISTEN_PID or LISTEN_FDS: " + e.getMessage());
+            return null;
+        }
+        // the variables are inherited by children, which must not take the socket over
+        if (pid != getLibrary().getpid() || count < 1)
+            return null;
+        if (count > 1)
+        {
+            Trace.writeLine("   systemd passed on " + count + " sockets; only the first one is used");
+        }
+        return new UnixDomainSocket(ListenFdsStart);
+    }
+
+    /**
+     * Waits for a connection to a listening socket, without accepting it.
+     *
+     * @param timeoutMillis How long to wait; -1 to wait until there is one.
+     * @return true if a connection can be accepted; false if the timeout elapsed or
+     * {@link #wakeUp()} was called.
+     */
+    boolean awaitConnection(final int timeoutMillis) throws IOException
+    {
+        final CLibrary c = getLibrary();
+        final int[] pipe = getWakeUpPipe();
+        final ByteBuffer fds = ByteBuffer.allocate(2 * PollFdLength).order(ByteOrder.nativeOrder());
+        fds.putInt(fd).putShort(POLLIN).putShort((short) 0);
+        fds.putInt(pipe[0]).putShort(POLLIN).putShort((short) 0);
+        final byte[] buffer = fds.array();
+        final int ready;
+        try
+        {
+            ready = c.poll(buffer, 2, timeoutMillis);
+        }
+        catch (final LastErrorException e)
+        {
+            if (e.getErrorCode() == EINTR)
+                return false;
+            throw new IOException("Unable to wait for a connection: " + e.getMessage());
+        }
+        if (ready == 0)
+            return false;
+        final ByteBuffer result = ByteBuffer.wrap(buffer).order(ByteOrder.nativeOrder());
+        if (result.getShort(PollFdLength + 6) != 0)
+        {
+            // one byte per wake-up; the caller checks why it was woken up
+            read(pipe[0], new byte[1], 1);
+            return false;
+        }
+        return result.getShort(6) != 0;
+    }
+
+    /**
+     * Makes a pending or the next {@link #awaitConnection(int)} return.  Unlike shutting the
+     * socket down, this leaves it usable for systemd, which shares it with us.
+     */
+    synchronized void wakeUp()
+    {
+        if (closed)
+            return;
+        try
+        {
+            write(getWakeUpPipe()[1], new byte[]{1}, 1);
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to wake the server up: " + e.getMessage());
+        }
+    }
+
+    private synchronized int[] getWakeUpPipe() throws IOException
+    {
+        if (closed)
+            throw new IOException("The socket is closed.");
+        if (wakeUpPipe == null)
+        {
+            final int[] fds = new int[2];
+            try
+            {
+                getLibrary().pipe(fds);
+            }
+            catch (final LastErrorException e)
+            {
+                throw new IOException("Unable to create a pipe: " + e.getMessage());
+            }
+            wakeUpPipe = fds;
+        }
+        return wakeUpPipe;
+    }
+
+    /**
+     * Waits for the next connection to a listening socket.
+     *
+     * @return the connection.
+     */
+    UnixDomainSocket accept() throws IOException
+    {
+        final CLibrary c = getLibrary();
+        while (true)
+        {
+            try
+            {
+                return new UnixDomainSocket(c.accept(fd, null, null));
+            }
+            catch (final LastErrorException e)
+            {
+                if (e.getErrorCode() != EINTR)
+                    throw new IOException("Unable to accept a connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Tells the other end that nothing more will be written, like Git's client does once
+     * it has sent its request.
+     */
+    void shutdownOutput() throws IOException
+    {
+        try
+        {
+            getLibrary().shutdown(fd, SHUT_WR);
+        }
+        catch (final LastErrorException e)
+        {
+            throw new IOException("Unable to shut the socket down: " + e.getMessage());
+        }
+    }
+
+    InputStream getInputStream()
+    {
+        return new InputStream()
+        {
+            private final byte[] single = new byte[1];
+
+            @Override public int read() throws IOException
+            {
+                final int count = read(single, 0, 1);
+                return count == -1 ? -1 : single[0] & 0xFF;
+            }
+
+            @Override public int read(final byte[] b, final int off, final int len) throws IOException
+            {
+                if (len == 0)
+                    return 0;
+                final byte[] buffer = off == 0 ? b : new byte[len];
+                final int count = UnixDomainSocket.read(fd, buffer, len);
+                if (count > 0 && buffer != b)
+                {
+                    System.arraycopy(buffer, 0, b, off, count);
+                }
+                return count == 0 ? -1 : count;
+            }
+        };
+    }
+
+    OutputStream getOutputStream()
+    {
+        return new OutputStream()
+        {
+            @Override public void write(final int b) throws IOException
+            {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override public void write(final byte[] b, final int off, final int len) throws IOException
+            {
+                int written = 0;
+                while (written < len)
+                {
+                    final byte[] buffer;
+                    if (off + written == 0)
+                    {
+                        buffer = b;
+                    }
+                    else
+                    {
+                        buffer = new byte[len - written];
+                        System.arraycopy(b, off + written, buffer, 0, buffer.length);
+                    }
+                    written += UnixDomainSocket.write(fd, buffer, len - written);
+                }
+            }
+        };
+    }
+
+    private static int read(final int fd, final byte[] buffer, final int length) throws IOException
+    {
+        final CLibrary c = getLibrary();
+        while (true)
+        {
+            try
+            {
+                return c.read(fd, buffer, new NativeLong(length)).intValue();
+            }
+            catch (final LastErrorException e)
+            {
+                if (e.getErrorCode() != EINTR)
+                    throw new IOException("Unable to read from the socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private static int write(final int fd, final byte[] buffer, final int length) throws IOException
+    {
+        final CLibrary c = getLibrary();
+        while (true)
+        {
+            try
+            {
+                return c.write(fd, buffer, new NativeLong(length)).intValue();
+            }
+            catch (final LastErrorException e)
+            {
+                if (e.getErrorCode() != EINTR)
+                    throw new IOException("Unable to write to the socket: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override public synchronized void close()
+    {
+        if (closed)
+            return;
+        closed = true;
+        final CLibrary c = getLibrary();
+        closeQuietly(c, fd);
+        if (wakeUpPipe != null)
+        {
+            closeQuietly(c, wakeUpPipe[0]);
+            closeQuietly(c, wakeUpPipe[1]);
+            wakeUpPipe = null;
+        }
+    }
+
+    private static int createSocket(final CLibrary c) throws IOException
+    {
+        try
+        {
+            return c.socket(AF_UNIX, SOCK_STREAM, 0);
+        }
+        catch (final LastErrorException e)
+        {
+            throw new IOException("Unable to create a socket: " + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(final CLibrary c, final int fd)
+    {
+        try
+        {
+            c.close(fd);
+        }
+        catch (final LastErrorException ignored)
+        {
+            // there's nothing left to do with it anyway
+        }
+    }
+
+    /**
+     * Lays out a struct sockaddr_un: Linux starts with a 16-bit family in the machine's byte
+     * order, while macOS and the BSDs start with the length and an 8-bit family.
+     */
+    static byte[] toAddress(final File path) throws IOException
+    {
+        final byte[] pathBytes;
+        try
+        {
+            pathBytes = path.getAbsolutePath().getBytes("UTF-8");
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new Error(e);
+        }
+        final boolean isBsd = Platform.isMac() || Platform.isFreeBSD() || Platform.isOpenBSD();
+        final int pathLength = isBsd ? BsdPathLength : LinuxPathLength;
+        if (pathBytes.length >= pathLength)
+            throw new IOException("The socket path is too long: " + path);
+
+        final ByteBuffer address = ByteBuffer.allocate(2 + pathLength).order(ByteOrder.nativeOrder());
+        if (isBsd)
+        {
+            address.put((byte) address.capacity());
+            address.put((byte) AF_UNIX);
+        }
+        else
+        {
+            address.putShort((short) AF_UNIX);
+        }
+        // the rest is zeroes, which terminate the path
+        address.put(pathBytes);
+        return address.array();
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands trace messages over to a background thread through a fixed-size ring buffer,
+ * so that the threads doing the actual work never wait on the listeners' I/O
+ * (unless they manage to fill the buffer, in which case they wait for room).
+ */
+final class AsyncTraceWriter implements Runnable
+{
+    static final int DefaultCapacity = 1024;
+    private static final long FlushTimeoutNanos = TimeUnit.SECONDS.toNanos(5);
+
+    private final List<PrintStream> listeners;
+    private final String[] ring;
+    private final String[] batch;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition written = lock.newCondition();
+    private final Thread thread;
+    // all three only ever increase; a slot's index is its sequence number modulo the capacity
+    private long head;
+    private long tail;
+    private long writtenCount;
+    private boolean closed;
+
+    /**
+     * @param listeners The streams to write to; must be safe to iterate while being modified.
+     * @param capacity  The number of messages the buffer holds; rounded up to a power of two.
+     */
+    AsyncTraceWriter(final List<PrintStream> listeners, final int capacity)
+    {
+        Debug.Assert(listeners != null, "The listeners parameter is null");
+        Debug.Assert(capacity > 0, "The capacity parameter must be positive");
+
+        int size = 1;
+        while (size < capacity)
+        {
+            size <<= 1;
+        }
+        this.listeners = listeners;
+        this.ring = new String[size];
+        this.batch = new String[size];
+        this.mask = size - 1;
+        this.thread = new Thread(this, "Trace writer");
+        this.thread.setDaemon(true);
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    void enqueue(final String message)
+    {
+        lock.lock();
+        try
+        {
+            if (closed)
+            {
+                writeDirectly(message);
+                return;
+            }
+            while (head - tail == ring.length)
+            {
+                notFull.awaitUninterruptibly();
+            }
+            ring[(int) (head & mask)] = message;
+            head++;
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits (for a few seconds at most) until everything enqueued so far was written out.
+     */
+    void flush()
+    {
+        lock.lock();
+        try
+        {
+            final long target = head;
+            long remaining = FlushTimeoutNanos;
+            while (writtenCount < target && remaining > 0 && thread.isAlive())
+            {
+                remaining = written.awaitNanos(remaining);
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes out what's left and stops the background thread; later messages are written directly.
+     */
+    void close()
+    {
+        lock.lock();
+        try
+        {
+            closed = true;
+            notEmpty.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        try
+        {
+            thread.join(TimeUnit.NANOSECONDS.toMillis(FlushTimeoutNanos));
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override public void run()
+    {
+        while (true)
+        {
+            final int count;
+            lock.lock();
+            try
+            {
+                while (head == tail && !closed)
+                {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (head == tail)
+                    return;
+                count = (int) (head - tail);
+                for (int i = 0; i < count; i++)
+                {
+                    final int index = (int) ((tail + i) & mask);
+                    batch[i] = ring[index];
+                    ring[index] = null;
+                }
+                tail = head;
+                notFull.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+
+            // the listeners are written to outside the lock, so producers can carry on meanwhile
+            for (int i = 0; i < count; i++)
+            {
+                writeDirectly(batch[i]);
+                batch[i] = null;
+            }
+
+            lock.lock();
+            try
+            {
+                writtenCount += count;
+                written.signalAll();
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeDirectly(final String message)
+    {
+        for (final PrintStream listener : listeners)
+        {
+            listener.println(message);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * File operations shared by the indexes, caches and snapshots the helper keeps next to each
+ * other; see {@link IOHelper} for the ones on streams.
+ */
+public final class FileHelper
+{
+    private static final String TemporaryExtension = ".tmp";
+    private static final String LockExtension = ".lock";
+    /** A process can hold only one lock on a file, so its threads take turns for it first. */
+    private static final Map<String, ReentrantLock> ThreadLocks = new HashMap<String, ReentrantLock>();
+
+    private FileHelper()
+    {
+    }
+
+    /**
+     * Writes the content of a file.
+     */
+    public interface Content
+    {
+        void writeTo(final OutputStream stream) throws IOException;
+    }
+
+    /**
+     * Replaces the specified file with the content written, so that readers see either the
+     * previous content or all of the new one.  The content goes to a temporary file of a name
+     * no other process uses, which is then renamed over the file; it is deleted if anything fails.
+     *
+     * @param ownerOnly whether only the current user may read and write the file.  The temporary
+     *                  file is restricted before anything is written to it, and so is the parent
+     *                  folder if it has to be created.
+     */
+    public static void replace(final File file, final boolean ownerOnly, final Content content) throws IOException
+    {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory())
+        {
+            if (!parent.mkdirs())
+                throw new IOException("Unable to create " + parent);
+            if (ownerOnly)
+                restrictToOwner(parent);
+        }
+
+        final File temporaryFile = File.createTempFile(file.getName(), TemporaryExtension, parent);
+        FileOutputStream stream = null;
+        boolean replaced = false;
+        try
+        {
+            if (ownerOnly)
+                restrictToOwner(temporaryFile);
+            stream = new FileOutputStream(temporaryFile);
+            content.writeTo(stream);
+            stream.close();
+            stream = null;
+            if (!temporaryFile.renameTo(file))
+            {
+                // some platforms won't rename over an existing file
+                file.delete();
+                if (!temporaryFile.renameTo(file))
+                    throw new IOException("Unable to replace " + file);
+            }
+            replaced = true;
+        }
+        finally
+        {
+            IOHelper.closeQuietly(stream);
+            if (!replaced)
+                temporaryFile.delete();
+        }
+    }
+
+    /**
+     * Lets only the current user read and write the file or, for a folder, list it.
+     */
+    public static void restrictToOwner(final File file)
+    {
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(false, false);
+        file.setWritable(true, true);
+        if (file.isDirectory())
+        {
+            file.setExecutable(false, false);
+            file.setExecutable(true, true);
+        }
+    }
+
+    /**
+     * Waits for the exclusive lock on the specified file, held by one thread of one process at
+     * a time, so that reading the file, changing it and replacing it can't lose another
+     * process' changes.  The lock is taken on a file next to it, which replacing the file
+     * doesn't affect.  A thread that already holds the lock gets it again.
+     *
+     * @return What releases the lock when closed, by the thread that took it.
+     */
+    public static Closeable lock(final File file) throws IOException
+    {
+        return lock(file, true);
+    }
+
+    /**
+     * Takes the lock as {@link #lock(File)} does, unless another thread or process holds it.
+     *
+     * @return What releases the lock when closed, or null if the lock is held by someone else.
+     */
+    public static Closeable tryLock(final File file) throws IOException
+    {
+        return lock(file, false);
+    }
+
+    private static Closeable lock(final File file, final boolean wait) throws IOException
+    {
+        final File lockFile = new File(file.getAbsolutePath() + LockExtension);
+        final ReentrantLock threadLock;
+        synchronized (ThreadLocks)
+        {
+            ReentrantLock existing = ThreadLocks.get(lockFile.getPath());
+            if (existing == null)
+            {
+                existing = new ReentrantLock();
+                ThreadLocks.put(lockFile.getPath(), existing);
+            }
+            threadLock = existing;
+        }
+        if (wait)
+            threadLock.lock();
+        else if (!threadLock.tryLock())
+            return null;
+        if (threadLock.getHoldCount() > 1)
+            return new Closeable()
+            {
+                @Override public void close()
+                {
+                    threadLock.unlock();
+                }
+            };
+
+        RandomAccessFile randomAccessFile = null;
+        boolean locked = false;
+        try
+        {
+            final File parent = lockFile.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Unable to create " + parent);
+            randomAccessFile = new RandomAccessFile(lockFile, "rw");
+            locked = wait ? randomAccessFile.getChannel().lock() != null : randomAccessFile.getChannel().tryLock() != null;
+            if (!locked)
+                return null;
+            final RandomAccessFile lockedFile = randomAccessFile;
+            return new Closeable()
+            {
+                @Override public void close()
+                {
+                    // closing the channel releases the lock
+                    IOHelper.closeQuietly(lockedFile);
+                    threadLock.unlock();
+                }
+            };
+        }
+        finally
+        {
+            if (!locked)
+            {
+                IOHelper.closeQuietly(randomAccessFile);
+                threadLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import java.io.File;
+
+/**
+ * Emits Java Flight Recorder events for the helper's hot paths, so they show up next to GC and I/O
+ * in a recording.  The events themselves are in a separate source root compiled for Java 8,
+ * since jdk.jfr doesn't exist on the older JVMs the helper otherwise supports; they're loaded
+ * reflectively, and only when a recording was asked for with the {@value #PropertyName}
+ * system property.  Otherwise {@link #active()} returns null and instrumented code skips
+ * everything after a null check.
+ *
+ * <pre>
+ * final FlightEvents.Sink jfr = FlightEvents.active();
+ * final Object event = jfr == null ? null : jfr.beginSecureStoreAccess();
+ * ...
+ * if (event != null)
+ * {
+ *     jfr.commitSecureStoreAccess(event, "read", targetName, found);
+ * }
+ * </pre>
+ */
+public final class FlightEvents
+{
+    /** The file to write a recording to; the launcher sets it from the GCM_JFR environment variable. */
+    public static final String PropertyName = "credential.jfr";
+    static final String SinkClassName = "com.microsoft.alm.helpers.jfr.JfrSink";
+
+    /**
+     * Creates, and commits, the events.  Each begin method returns an event to pass to the
+     * matching commit method.
+     */
+    public interface Sink
+    {
+        Object beginConfigurationParse();
+
+        void commitConfigurationParse(Object event, String path, int entryCount);
+
+        Object beginSecureStoreAccess();
+
+        void commitSecureStoreAccess(Object event, String operation, String targetName, boolean found);
+
+        Object beginAuthorityRequest();
+
+        void commitAuthorityRequest(Object event, String endpoint, String host, int attempt, int httpStatus, String failure);
+
+        Object beginDeviceFlowPoll();
+
+        void commitDeviceFlowPoll(Object event, int attempt, String outcome);
+
+        /**
+         * Starts recording, with the "profile" settings, to the specified file.
+         *
+         * @return True if the recording was started.
+         */
+        boolean startRecording(File destination);
+
+        /**
+         * Stops the recording started by {@link #startRecording(File)}, which writes it out.
+         */
+        void stopRecording();
+    }
+
+    private static final Sink sink = load(System.getProperty(PropertyName));
+
+    private FlightEvents()
+    {
+    }
+
+    /**
+     * @return The sink to send events to; null if nothing is being recorded.
+     */
+    public static Sink active()
+    {
+        return sink;
+    }
+
+    /**
+     * Writes out the recording, if there's one; called once the operation is over.
+     */
+    public static void stopRecording()
+    {
+        if (sink != null)
+        {
+            sink.stopRecording();
+        }
+    }
+
+    static Sink load(final String destination)
+    {
+        if (StringHelper.isNullOrWhiteSpace(destination))
+            return null;
+
+        try
+        {
+            Class.forName("jdk.jfr.FlightRecorder");
+            final Sink result = (Sink) Class.forName(SinkClassName).newInstance();
+            if (result.startRecording(new File(destination)))
+                return result;
+        }
+        catch (final Throwable e)
+        {
+            // i.e. a JVM without jdk.jfr or one too old to load the Java 8 classes
+            Trace.writeLine("   unable to record to %1$s: %2$s", destination, e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations, in microseconds, in log-linear buckets the way HdrHistogram does:
+ * every power of two is split into {@value #SubBucketHalfCount} equal sub-buckets, so any
+ * recorded value is known to within 1/16th (about 6%) using a fixed, small array.
+ * Recording is lock-free and never allocates.
+ */
+public final class LatencyHistogram
+{
+    static final int SubBucketBits = 5;
+    static final int SubBucketCount = 1 << SubBucketBits;
+    static final int SubBucketHalfCount = SubBucketCount / 2;
+    /** Values are clamped to about 19 hours, which is longer than any operation we time. */
+    static final long MaxValue = (1L << 36) - 1;
+    static final int BucketCount = indexOf(MaxValue) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BucketCount);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int indexOf(final long value)
+    {
+        if (value < SubBucketCount)
+            return (int) value;
+        // the position of the highest bit is at least SubBucketBits here
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - (SubBucketBits - 1);
+        final int subBucket = (int) (value >>> shift);
+        return SubBucketCount + (shift - 1) * SubBucketHalfCount + (subBucket - SubBucketHalfCount);
+    }
+
+    /**
+     * @return The largest value that lands in the same bucket as the bucket's index.
+     */
+    static long highestEquivalentValue(final int index)
+    {
+        if (index < SubBucketCount)
+            return index;
+        final int shift = (index - SubBucketCount) / SubBucketHalfCount + 1;
+        final long subBucket = (index - SubBucketCount) % SubBucketHalfCount + SubBucketHalfCount;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void recordMicros(final long micros)
+    {
+        final long value = Math.max(0, Math.min(MaxValue, micros));
+        counts.incrementAndGet(indexOf(value));
+        totalCount.incrementAndGet();
+        sum.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get()))
+        {
+            if (max.compareAndSet(currentMax, value))
+                break;
+        }
+    }
+
+    public void recordNanos(final long nanos)
+    {
+        recordMicros(nanos / 1000L);
+    }
+
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    public long getSumMicros()
+    {
+        return sum.get();
+    }
+
+    public long getMaxMicros()
+    {
+        return max.get();
+    }
+
+    long getCountAt(final int index)
+    {
+        return counts.get(index);
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The value, in microseconds, that the given percentage of recorded values are at or below;
+     *         0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(final double percentile)
+    {
+        final long total = totalCount.get();
+        if (total == 0)
+            return 0;
+        final long target = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BucketCount; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(highestEquivalentValue(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * @return How many recorded values are at or below the given number of microseconds,
+     *         to within the precision of the buckets.
+     */
+    public long getCountAtOrBelow(final long micros)
+    {
+        long result = 0;
+        for (int i = 0; i < BucketCount; i++)
+        {
+            if (highestEquivalentValue(i) > micros)
+                break;
+            result += counts.get(i);
+        }
+        return result;
+    }
+
+    public void add(final LatencyHistogram other)
+    {
+        for (int i = 0; i < BucketCount; i++)
+        {
+            final long count = other.counts.get(i);
+            if (count != 0)
+            {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        sum.addAndGet(other.sum.get());
+        final long otherMax = other.max.get();
+        long currentMax;
+        while (otherMax > (currentMax = max.get()))
+        {
+            if (max.compareAndSet(currentMax, otherMax))
+                break;
+        }
+    }
+
+    /**
+     * @return A compact form, "count,sum,max;index:count index:count ...", listing only non-empty buckets.
+     */
+    public String encode()
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append(totalCount.get()).append(',').append(sum.get()).append(',').append(max.get()).append(';');
+        boolean first = true;
+        for (int i = 0; i < BucketCount; i++)
+        {
+            final long count = counts.get(i);
+            if (count != 0)
+            {
+                if (!first)
+                {
+                    sb.append(' ');
+                }
+                sb.append(i).append(':').append(count);
+                first = false;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The histogram {@link #encode()} produced; null if the value is malformed.
+     */
+    public static LatencyHistogram decode(final String encoded)
+    {
+        try
+        {
+            final int semicolon = encoded.indexOf(';');
+            final String[] totals = encoded.substring(0, semicolon).split(",");
+            final LatencyHistogram result = new LatencyHistogram();
+            result.totalCount.set(Long.parseLong(totals[0]));
+            result.sum.set(Long.parseLong(totals[1]));
+            result.max.set(Long.parseLong(totals[2]));
+            final String buckets = encoded.substring(semicolon + 1).trim();
+            if (buckets.length() > 0)
+            {
+                for (final String bucket : buckets.split(" "))
+                {
+                    final int colon = bucket.indexOf(':');
+                    final int index = Integer.parseInt(bucket.substring(0, colon));
+                    result.counts.set(index, Long.parseLong(bucket.substring(colon + 1)));
+                }
+            }
+            return result;
+        }
+        catch (final RuntimeException ignored)
+        {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+/**
+ * The {@link MetricsRegistry} that the current process records to, much like {@link Trace}.
+ */
+public final class Metrics
+{
+    private static final MetricsRegistry registry = new MetricsRegistry();
+
+    private Metrics()
+    {
+    }
+
+    public static MetricsRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    public static void increment(final String series)
+    {
+        registry.counter(series).incrementAndGet();
+    }
+
+    public static void add(final String series, final long delta)
+    {
+        registry.counter(series).addAndGet(delta);
+    }
+
+    public static void recordNanos(final String series, final long nanos)
+    {
+        registry.histogram(series).recordNanos(nanos);
+    }
+
+    /**
+     * @return The series name with one label, i.e. {@code gcm_http_request_duration_seconds{endpoint="token"}}.
+     */
+    public static String series(final String family, final String labelName, final String labelValue)
+    {
+        return family + "{" + labelName + "=\"" + labelValue + "\"}";
+    }
+}
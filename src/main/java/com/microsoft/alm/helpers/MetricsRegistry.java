@@ -0,0 +1,329 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms, named after the Prometheus series they're exposed as,
+ * i.e. {@code gcm_action_duration_seconds{action="get"}}.  Since each invocation of the
+ * helper is short-lived, a registry can be added to a snapshot file shared by all invocations.
+ */
+public final class MetricsRegistry
+{
+    private static final String HistogramPrefix = "histogram.";
+    private static final String CounterPrefix = "counter.";
+    private static final String FragmentExtension = ".fragment";
+    /** The upper bounds, in seconds, of the buckets exposed to Prometheus. */
+    private static final double[] PrometheusBuckets = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    public AtomicLong counter(final String series)
+    {
+        final AtomicLong existing = counters.get(series);
+        if (existing != null)
+            return existing;
+        final AtomicLong candidate = new AtomicLong();
+        final AtomicLong raced = counters.putIfAbsent(series, candidate);
+        return raced != null ? raced : candidate;
+    }
+
+    public LatencyHistogram histogram(final String series)
+    {
+        final LatencyHistogram existing = histograms.get(series);
+        if (existing != null)
+            return existing;
+        final LatencyHistogram candidate = new LatencyHistogram();
+        final LatencyHistogram raced = histograms.putIfAbsent(series, candidate);
+        return raced != null ? raced : candidate;
+    }
+
+    public boolean isEmpty()
+    {
+        return counters.isEmpty() && histograms.isEmpty();
+    }
+
+    public SortedMap<String, Long> getCounters()
+    {
+        final SortedMap<String, Long> result = new TreeMap<String, Long>();
+        for (final Map.Entry<String, AtomicLong> entry : counters.entrySet())
+        {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public SortedMap<String, LatencyHistogram> getHistograms()
+    {
+        return new TreeMap<String, LatencyHistogram>(histograms);
+    }
+
+    public void add(final MetricsRegistry other)
+    {
+        for (final Map.Entry<String, AtomicLong> entry : other.counters.entrySet())
+        {
+            counter(entry.getKey()).addAndGet(entry.getValue().get());
+        }
+        for (final Map.Entry<String, LatencyHistogram> entry : other.histograms.entrySet())
+        {
+            histogram(entry.getKey()).add(entry.getValue());
+        }
+    }
+
+    /**
+     * Reads a snapshot written by {@link #addTo(File)}, along with the values of the processes
+     * that haven't been added to it yet; a missing or unreadable file is an empty snapshot.
+     */
+    public static MetricsRegistry load(final File file)
+    {
+        final MetricsRegistry result = read(file);
+        for (final File fragment : findFragments(file))
+        {
+            result.add(read(fragment));
+        }
+        return result;
+    }
+
+    private static MetricsRegistry read(final File file)
+    {
+        final MetricsRegistry result = new MetricsRegistry();
+        if (!file.isFile())
+            return result;
+
+        final Properties properties = new Properties();
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream(file);
+            properties.load(stream);
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to read %1$s: %2$s", file, e.getMessage());
+            return result;
+        }
+        finally
+        {
+            IOHelper.closeQuietly(stream);
+        }
+
+        for (final String key : properties.stringPropertyNames())
+        {
+            final String value = properties.getProperty(key);
+            if (key.startsWith(CounterPrefix))
+            {
+                try
+                {
+                    result.counter(key.substring(CounterPrefix.length())).set(Long.parseLong(value.trim()));
+                }
+                catch (final NumberFormatException ignored)
+                {
+                    // skip it
+                }
+            }
+            else if (key.startsWith(HistogramPrefix))
+            {
+                final LatencyHistogram histogram = LatencyHistogram.decode(value);
+                if (histogram != null)
+                {
+                    result.histogram(key.substring(HistogramPrefix.length())).add(histogram);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds this registry's values to the snapshot in the specified file.  If another process is
+     * doing the same at the same time, the values go to a fragment file of their own instead,
+     * which {@link #load(File)} reads too and the next process to get the lock adds to the
+     * snapshot: the values of a single process aren't worth making Git wait for the lock, but
+     * bursts of concurrent invocations are what the metrics are for.
+     */
+    public void addTo(final File file) throws IOException
+    {
+        final Closeable lock = FileHelper.tryLock(file);
+        if (lock == null)
+        {
+            // a name of its own, which no other process writes to; it only appears once complete
+            save(new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + UUID.randomUUID() + FragmentExtension));
+            return;
+        }
+        try
+        {
+            final MetricsRegistry snapshot = read(file);
+            final List<File> fragments = findFragments(file);
+            for (final File fragment : fragments)
+            {
+                snapshot.add(read(fragment));
+            }
+            snapshot.add(this);
+            snapshot.save(file);
+            for (final File fragment : fragments)
+            {
+                fragment.delete();
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(lock);
+        }
+    }
+
+    private static List<File> findFragments(final File file)
+    {
+        final String prefix = file.getName() + ".";
+        final File[] files = file.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter()
+        {
+            @Override public boolean accept(final File folder, final String name)
+            {
+                return name.startsWith(prefix) && name.endsWith(FragmentExtension);
+            }
+        });
+        return files != null ? Arrays.asList(files) : Collections.<File>emptyList();
+    }
+
+    private void save(final File file) throws IOException
+    {
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, AtomicLong> entry : counters.entrySet())
+        {
+            properties.setProperty(CounterPrefix + entry.getKey(), Long.toString(entry.getValue().get()));
+        }
+        for (final Map.Entry<String, LatencyHistogram> entry : histograms.entrySet())
+        {
+            properties.setProperty(HistogramPrefix + entry.getKey(), entry.getValue().encode());
+        }
+
+        FileHelper.replace(file, false, new FileHelper.Content()
+        {
+            @Override public void writeTo(final OutputStream stream) throws IOException
+            {
+                properties.store(stream, null);
+            }
+        });
+    }
+
+    /**
+     * Writes the counters and histograms in the Prometheus text exposition format (version 0.0.4);
+     * durations are converted to seconds.
+     */
+    public void writePrometheus(final PrintStream out)
+    {
+        String family = null;
+        for (final Map.Entry<String, Long> entry : getCounters().entrySet())
+        {
+            final String series = entry.getKey();
+            final String name = getFamily(series);
+            if (!name.equals(family))
+            {
+                out.print("# TYPE " + name + " counter\n");
+                family = name;
+            }
+            out.print(series + " " + entry.getValue() + "\n");
+        }
+        family = null;
+        for (final Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet())
+        {
+            final String series = entry.getKey();
+            final String name = getFamily(series);
+            final String labels = getLabels(series);
+            final LatencyHistogram histogram = entry.getValue();
+            if (!name.equals(family))
+            {
+                out.print("# TYPE " + name + " histogram\n");
+                family = name;
+            }
+            for (final double bound : PrometheusBuckets)
+            {
+                final long count = histogram.getCountAtOrBelow((long) (bound * 1000000));
+                out.print(name + "_bucket{" + labels + (labels.length() > 0 ? "," : "") + "le=\"" + formatSeconds(bound) + "\"} " + count + "\n");
+            }
+            out.print(name + "_bucket{" + labels + (labels.length() > 0 ? "," : "") + "le=\"+Inf\"} " + histogram.getCount() + "\n");
+            final String suffix = labels.length() > 0 ? "{" + labels + "}" : "";
+            out.print(name + "_sum" + suffix + " " + formatSeconds(histogram.getSumMicros() / 1000000.0) + "\n");
+            out.print(name + "_count" + suffix + " " + histogram.getCount() + "\n");
+        }
+    }
+
+    /**
+     * Writes one line per series, with the percentiles of each histogram in milliseconds.
+     */
+    public void writeSummary(final PrintStream out)
+    {
+        final SortedMap<String, LatencyHistogram> histogramsByName = getHistograms();
+        if (!histogramsByName.isEmpty())
+        {
+            out.println(String.format(Locale.ENGLISH, "%1$-56s %2$8s %3$10s %4$10s %5$10s %6$10s", "latency (ms)", "count", "p50", "p95", "p99", "max"));
+            for (final Map.Entry<String, LatencyHistogram> entry : histogramsByName.entrySet())
+            {
+                final LatencyHistogram histogram = entry.getValue();
+                out.println(String.format(Locale.ENGLISH, "%1$-56s %2$8d %3$10.3f %4$10.3f %5$10.3f %6$10.3f",
+                        entry.getKey(),
+                        histogram.getCount(),
+                        histogram.getValueAtPercentile(50) / 1000.0,
+                        histogram.getValueAtPercentile(95) / 1000.0,
+                        histogram.getValueAtPercentile(99) / 1000.0,
+                        histogram.getMaxMicros() / 1000.0));
+            }
+        }
+        final SortedMap<String, Long> countersByName = getCounters();
+        if (!countersByName.isEmpty())
+        {
+            if (!histogramsByName.isEmpty())
+            {
+                out.println();
+            }
+            out.println(String.format(Locale.ENGLISH, "%1$-56s %2$8s", "counter", "value"));
+            for (final Map.Entry<String, Long> entry : countersByName.entrySet())
+            {
+                out.println(String.format(Locale.ENGLISH, "%1$-56s %2$8d", entry.getKey(), entry.getValue()));
+            }
+        }
+    }
+
+    static String getFamily(final String series)
+    {
+        final int brace = series.indexOf('{');
+        return brace < 0 ? series : series.substring(0, brace);
+    }
+
+    static String getLabels(final String series)
+    {
+        final int brace = series.indexOf('{');
+        return brace < 0 ? StringHelper.Empty : series.substring(brace + 1, series.length() - 1);
+    }
+
+    private static String formatSeconds(final double seconds)
+    {
+        final String result = String.format(Locale.ENGLISH, "%1$.6f", seconds);
+        // trim the zeroes Prometheus doesn't need, but keep at least one decimal
+        int end = result.length();
+        while (result.charAt(end - 1) == '0' && result.charAt(end - 2) != '.')
+        {
+            end--;
+        }
+        return result.substring(0, end);
+    }
+}
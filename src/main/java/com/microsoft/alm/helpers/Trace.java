@@ -4,8 +4,9 @@
 package com.microsoft.alm.helpers;
 
 import java.io.PrintStream;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Equivalent to System.Diagnostics.Trace
@@ -13,10 +14,19 @@ import java.util.List;
 // TODO: 449522: Wire this up to some logging framework?
 public class Trace
 {
-    private static final List<PrintStream> listeners = new ArrayList<PrintStream>();
+    private static final List<PrintStream> listeners = new CopyOnWriteArrayList<PrintStream>();
+    private static volatile AsyncTraceWriter asyncWriter;
+    private static volatile boolean structured;
+    /** Span and message times are relative to this, since {@link System#nanoTime()} has no origin of its own. */
+    private static final long ReferenceNanos = System.nanoTime();
 
     public static void flush()
     {
+        final AsyncTraceWriter writer = asyncWriter;
+        if (writer != null)
+        {
+            writer.flush();
+        }
         for (final PrintStream listener : listeners)
         {
             listener.flush();
@@ -28,16 +38,191 @@ public class Trace
         return listeners;
     }
 
+    /**
+     * @return True if there's at least one listener; callers can skip building expensive messages otherwise.
+     */
+    public static boolean isEnabled()
+    {
+        return !listeners.isEmpty();
+    }
+
+    /**
+     * Hands messages to a background thread, through a fixed-size buffer, instead of writing
+     * them to the listeners on the calling thread.  {@link #flush()} waits for them to be written.
+     *
+     * @param asynchronous True to write from a background thread; false to write synchronously again.
+     */
+    public static synchronized void setAsynchronous(final boolean asynchronous)
+    {
+        if (asynchronous && asyncWriter == null)
+        {
+            final AsyncTraceWriter writer = new AsyncTraceWriter(listeners, AsyncTraceWriter.DefaultCapacity);
+            writer.start();
+            asyncWriter = writer;
+        }
+        else if (!asynchronous && asyncWriter != null)
+        {
+            final AsyncTraceWriter writer = asyncWriter;
+            asyncWriter = null;
+            writer.close();
+        }
+    }
+
+    /**
+     * @return True if messages and spans are written as one JSON object per line.
+     */
+    public static boolean isStructured()
+    {
+        return structured;
+    }
+
+    /**
+     * Switches between free-form text and one JSON object per line, the latter being meant
+     * for aggregating timings across many logs.  Each object has an "event" property:
+     * "start" records the wall-clock time that the monotonic "timeMicros" and "startMicros"
+     * properties of the following events are relative to, "message" holds what was passed
+     * to {@link #writeLine(String)} and "span" holds a phase timed by a {@link TraceSpan}.
+     *
+     * @param structured True to write JSON lines; false to write text.
+     */
+    public static synchronized void setStructured(final boolean structured)
+    {
+        Trace.structured = structured;
+        if (structured && !listeners.isEmpty())
+        {
+            final StringBuilder sb = new StringBuilder(96);
+            sb.append("{\"event\":\"start\",\"timeMicros\":").append(elapsedMicros(System.nanoTime()));
+            sb.append(",\"epochMillis\":").append(System.currentTimeMillis());
+            sb.append('}');
+            write(sb.toString());
+        }
+    }
+
     public static void writeLine(final String message)
     {
+        if (listeners.isEmpty())
+            return;
+
+        if (structured)
+        {
+            final StringBuilder sb = new StringBuilder(message.length() + 64);
+            sb.append("{\"event\":\"message\",\"timeMicros\":").append(elapsedMicros(System.nanoTime()));
+            sb.append(",\"message\":");
+            appendJsonString(sb, message);
+            sb.append('}');
+            write(sb.toString());
+        }
+        else
+        {
+            write(message);
+        }
+    }
+
+    static void writeSpan(final String phase, final long startNanos, final long durationNanos, final String outcome)
+    {
+        if (listeners.isEmpty())
+            return;
+
+        final long durationMicros = TimeUnit.NANOSECONDS.toMicros(durationNanos);
+        if (structured)
+        {
+            final StringBuilder sb = new StringBuilder(128);
+            sb.append("{\"event\":\"span\",\"phase\":");
+            appendJsonString(sb, phase);
+            sb.append(",\"startMicros\":").append(elapsedMicros(startNanos));
+            sb.append(",\"durationMicros\":").append(durationMicros);
+            sb.append(",\"outcome\":");
+            appendJsonString(sb, outcome);
+            sb.append(",\"thread\":");
+            appendJsonString(sb, Thread.currentThread().getName());
+            sb.append('}');
+            write(sb.toString());
+        }
+        else
+        {
+            write(String.format("   [%1$s] %2$d.%3$03d ms, %4$s", phase, durationMicros / 1000, durationMicros % 1000, outcome));
+        }
+    }
+
+    private static long elapsedMicros(final long nanos)
+    {
+        return TimeUnit.NANOSECONDS.toMicros(nanos - ReferenceNanos);
+    }
+
+    static void appendJsonString(final StringBuilder sb, final String value)
+    {
+        if (value == null)
+        {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        sb.append(String.format("\\u%1$04x", (int) c));
+                    }
+                    else
+                    {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    private static void write(final String line)
+    {
+        final AsyncTraceWriter writer = asyncWriter;
+        if (writer != null)
+        {
+            writer.enqueue(line);
+            return;
+        }
         for (final PrintStream listener : listeners)
         {
-            listener.println(message);
+            listener.println(line);
         }
     }
 
+    /**
+     * Formats and writes a message, as {@link String#format(String, Object...)} would,
+     * only if there's someone listening.
+     */
+    public static void writeLine(final String format, final Object... args)
+    {
+        if (listeners.isEmpty())
+            return;
+
+        writeLine(String.format(format, args));
+    }
+
     public static void writeLine(final String message, final Throwable throwable)
     {
+        if (listeners.isEmpty())
+            return;
+
         writeLine(message + throwable.toString());
     }
 }
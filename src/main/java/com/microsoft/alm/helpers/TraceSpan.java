@@ -0,0 +1,83 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+/**
+ * Times one phase of an operation and writes it to the {@link Trace} when it ends.
+ * Spans are meant to be ended from a finally block, so that a phase that throws is still recorded:
+ *
+ * <pre>
+ * final TraceSpan span = TraceSpan.start("store.read");
+ * try
+ * {
+ *     ...
+ *     span.end(found ? "found" : "missing");
+ * }
+ * finally
+ * {
+ *     span.close();
+ * }
+ * </pre>
+ */
+public final class TraceSpan
+{
+    public static final String Success = "success";
+    public static final String Failure = "failure";
+    /** The outcome of a span that was closed without having been ended, i.e. because of an exception. */
+    public static final String Error = "error";
+
+    private final String phase;
+    private final long startNanos;
+    private boolean ended;
+
+    private TraceSpan(final String phase, final long startNanos)
+    {
+        this.phase = phase;
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Starts timing a phase.  Spans are always timed, even if nobody is listening yet,
+     * since tracing can be enabled while the phase is in progress.
+     *
+     * @param phase The name of the phase, such as "config" or "http.token".
+     * @return The started span.
+     */
+    public static TraceSpan start(final String phase)
+    {
+        Debug.Assert(phase != null, "The phase parameter is null");
+
+        return new TraceSpan(phase, System.nanoTime());
+    }
+
+    public String getPhase()
+    {
+        return phase;
+    }
+
+    /**
+     * Ends the span with the specified outcome; only the first call has any effect.
+     *
+     * @param outcome A short description of how the phase ended, such as "success" or "HTTP 401".
+     * @return How long the phase took, in nanoseconds; -1 if the span had already ended.
+     */
+    public long end(final String outcome)
+    {
+        if (ended)
+            return -1;
+        ended = true;
+
+        final long durationNanos = System.nanoTime() - startNanos;
+        Trace.writeSpan(phase, startNanos, durationNanos, outcome);
+        return durationNanos;
+    }
+
+    /**
+     * Ends the span as an {@link #Error}, unless it was already ended.
+     */
+    public void close()
+    {
+        end(Error);
+    }
+}
@@ -38,12 +38,16 @@ import org.slf4j.spi.LocationAwareLogger;
 
 public class TraceLogger extends MarkerIgnoringBase
 {
-    /** The current log level */
-    protected int currentLogLevel = LocationAwareLogger.DEBUG_INT;
+    /** The current log level, as resolved from {@link TraceLoggerLevels} */
+    protected int currentLogLevel;
+    /** The {@link TraceLoggerLevels#getGeneration()} that {@link #currentLogLevel} was resolved for */
+    private int levelGeneration;
 
     TraceLogger(final String name)
     {
         this.name = name;
+        this.levelGeneration = TraceLoggerLevels.getGeneration();
+        this.currentLogLevel = TraceLoggerLevels.resolve(name);
     }
 
     /**
@@ -55,16 +59,29 @@ public class TraceLogger extends MarkerIgnoringBase
      *         {@code false} otherwise.
      */
     protected boolean isLevelEnabled(final int logLevel) {
+        final int generation = TraceLoggerLevels.getGeneration();
+        if (generation != levelGeneration) {
+            // the levels were re-configured since this logger last looked them up
+            currentLogLevel = TraceLoggerLevels.resolve(name);
+            levelGeneration = generation;
+        }
         // log level are numerically ordered so can use simple numeric
         // comparison
         return (logLevel >= currentLogLevel);
     }
 
+    /**
+     * @return {@code true} if a message at the given level would end up being written somewhere.
+     */
+    private boolean isWritable(final int logLevel) {
+        return isLevelEnabled(logLevel) && Trace.isEnabled();
+    }
+
     /**
      * For formatted messages, first substitute arguments and then log.
      */
     private void formatAndLog(final int level, final String format, final Object arg1, final Object arg2) {
-        if (!isLevelEnabled(level)) {
+        if (!isWritable(level)) {
             return;
         }
         FormattingTuple tp = MessageFormatter.format(format, arg1, arg2);
@@ -76,7 +93,7 @@ public class TraceLogger extends MarkerIgnoringBase
      *
      */
     private void formatAndLog(final int level, final String format, final Object... arguments) {
-        if (!isLevelEnabled(level)) {
+        if (!isWritable(level)) {
             return;
         }
         FormattingTuple tp = MessageFormatter.arrayFormat(format, arguments);
@@ -85,7 +102,7 @@ public class TraceLogger extends MarkerIgnoringBase
 
     private void log(final int level, final String message, final Throwable throwable)
     {
-        if (!isLevelEnabled(level)) {
+        if (!isWritable(level)) {
             return;
         }
         if (throwable != null)
@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package org.slf4j.impl;
+
+import com.microsoft.alm.helpers.StringHelper;
+import org.slf4j.spi.LocationAwareLogger;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The level thresholds of the {@link TraceLogger} instances, organized as a hierarchy of logger names:
+ * a logger uses the level configured for its own name or, failing that, for its closest ancestor
+ * ("com.microsoft.alm" is an ancestor of "com.microsoft.alm.storage.SecretStore").
+ *
+ * The levels are described with a comma-separated list such as {@code warn,com.microsoft.alm.storage=debug},
+ * where an entry without a name sets the level of the root.  They are taken from the
+ * {@value #PropertyName} system property or, if it's not set, from the {@code credential.loglevel}
+ * git configuration entry.
+ */
+public final class TraceLoggerLevels
+{
+    public static final String PropertyName = "credential.loglevel";
+    public static final int DefaultLevel = LocationAwareLogger.DEBUG_INT;
+    /** Higher than any level a message can be logged with. */
+    public static final int OffLevel = LocationAwareLogger.ERROR_INT + 10;
+
+    private static final String SystemPropertyValue = System.getProperty(PropertyName);
+
+    private static volatile Map<String, Integer> levelsByName = parse(SystemPropertyValue);
+    private static volatile int generation;
+
+    private TraceLoggerLevels()
+    {
+    }
+
+    /**
+     * Applies the levels read from the git configuration, unless the system property overrides them.
+     *
+     * @param specification The value of the {@code credential.loglevel} entry, or null if there's none.
+     * @return True if the levels were applied; false if the system property is set.
+     */
+    public static boolean configure(final String specification)
+    {
+        if (SystemPropertyValue != null)
+            return false;
+
+        replace(parse(specification));
+        return true;
+    }
+
+    static void reset(final String specification)
+    {
+        replace(parse(specification));
+    }
+
+    private static synchronized void replace(final Map<String, Integer> newLevels)
+    {
+        levelsByName = newLevels;
+        generation++;
+    }
+
+    /**
+     * @return A number that changes every time the levels are replaced, so loggers know to resolve theirs again.
+     */
+    static int getGeneration()
+    {
+        return generation;
+    }
+
+    /**
+     * @param loggerName The name of a logger.
+     * @return The threshold of the logger, from the closest configured name in the hierarchy.
+     */
+    public static int resolve(final String loggerName)
+    {
+        final Map<String, Integer> levels = levelsByName;
+        String name = loggerName == null ? StringHelper.Empty : loggerName;
+        while (true)
+        {
+            final Integer level = levels.get(name);
+            if (level != null)
+                return level;
+            if (name.length() == 0)
+                return DefaultLevel;
+            final int lastDot = name.lastIndexOf('.');
+            name = lastDot < 0 ? StringHelper.Empty : name.substring(0, lastDot);
+        }
+    }
+
+    static Map<String, Integer> parse(final String specification)
+    {
+        final Map<String, Integer> result = new HashMap<String, Integer>();
+        if (specification == null)
+            return result;
+
+        for (final String entry : specification.split(","))
+        {
+            final String trimmed = entry.trim();
+            if (trimmed.length() == 0)
+                continue;
+
+            final int equals = trimmed.indexOf('=');
+            final String name = equals < 0 ? StringHelper.Empty : trimmed.substring(0, equals).trim();
+            final String levelName = equals < 0 ? trimmed : trimmed.substring(equals + 1).trim();
+            final Integer level = parseLevel(levelName);
+            if (level != null)
+            {
+                result.put(name, level);
+            }
+        }
+        return result;
+    }
+
+    static Integer parseLevel(final String levelName)
+    {
+        final String lowered = levelName.toLowerCase(Locale.ENGLISH);
+        if ("trace".equals(lowered))
+            return LocationAwareLogger.TRACE_INT;
+        if ("debug".equals(lowered))
+            return LocationAwareLogger.DEBUG_INT;
+        if ("info".equals(lowered))
+            return LocationAwareLogger.INFO_INT;
+        if ("warn".equals(lowered) || "warning".equals(lowered))
+            return LocationAwareLogger.WARN_INT;
+        if ("error".equals(lowered))
+            return LocationAwareLogger.ERROR_INT;
+        if ("off".equals(lowered) || "none".equals(lowered))
+            return OffLevel;
+        return null;
+    }
+}
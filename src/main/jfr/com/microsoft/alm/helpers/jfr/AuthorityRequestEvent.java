@@ -0,0 +1,34 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@IgnoreJRERequirement
+@Name("com.microsoft.alm.AuthorityRequest")
+@Label("Authority Request")
+@Category({"Git Credential Manager", "Network"})
+@Description("One attempt at an HTTP request to an authority end-point")
+class AuthorityRequestEvent extends jdk.jfr.Event
+{
+    @Label("End-point")
+    String endpoint;
+
+    @Label("Host")
+    String host;
+
+    @Label("Attempt")
+    int attempt;
+
+    @Label("HTTP Status")
+    @Description("The status of the response; -1 if there was none")
+    int httpStatus;
+
+    @Label("Failure")
+    @Description("The exception that prevented a response, if any")
+    String failure;
+}
@@ -0,0 +1,24 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@IgnoreJRERequirement
+@Name("com.microsoft.alm.ConfigurationParse")
+@Label("Git Config Parse")
+@Category({"Git Credential Manager", "Configuration"})
+@Description("Reading one of Git's configuration files")
+class ConfigurationParseEvent extends jdk.jfr.Event
+{
+    @Label("Path")
+    String path;
+
+    @Label("Entries")
+    @Description("How many entries the configuration holds once the file was parsed")
+    int entryCount;
+}
@@ -0,0 +1,23 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@IgnoreJRERequirement
+@Name("com.microsoft.alm.DeviceFlowPoll")
+@Label("Device Flow Poll")
+@Category({"Git Credential Manager", "Network"})
+@Description("One poll of the token end-point while waiting for the user to complete a device flow logon")
+class DeviceFlowPollEvent extends jdk.jfr.Event
+{
+    @Label("Attempt")
+    int attempt;
+
+    @Label("Outcome")
+    String outcome;
+}
@@ -0,0 +1,139 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers.jfr;
+
+import com.microsoft.alm.helpers.FlightEvents;
+import com.microsoft.alm.helpers.Trace;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * The {@link FlightEvents.Sink} for JVMs that have jdk.jfr; created reflectively by {@link FlightEvents}.
+ */
+@IgnoreJRERequirement
+public final class JfrSink implements FlightEvents.Sink
+{
+    private Recording recording;
+
+    @Override public Object beginConfigurationParse()
+    {
+        final ConfigurationParseEvent event = new ConfigurationParseEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override public void commitConfigurationParse(final Object event, final String path, final int entryCount)
+    {
+        final ConfigurationParseEvent e = (ConfigurationParseEvent) event;
+        e.end();
+        if (e.shouldCommit())
+        {
+            e.path = path;
+            e.entryCount = entryCount;
+            e.commit();
+        }
+    }
+
+    @Override public Object beginSecureStoreAccess()
+    {
+        final SecureStoreAccessEvent event = new SecureStoreAccessEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override public void commitSecureStoreAccess(final Object event, final String operation, final String targetName, final boolean found)
+    {
+        final SecureStoreAccessEvent e = (SecureStoreAccessEvent) event;
+        e.end();
+        if (e.shouldCommit())
+        {
+            e.operation = operation;
+            e.targetName = targetName;
+            e.found = found;
+            e.commit();
+        }
+    }
+
+    @Override public Object beginAuthorityRequest()
+    {
+        final AuthorityRequestEvent event = new AuthorityRequestEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override public void commitAuthorityRequest(final Object event, final String endpoint, final String host, final int attempt, final int httpStatus, final String failure)
+    {
+        final AuthorityRequestEvent e = (AuthorityRequestEvent) event;
+        e.end();
+        if (e.shouldCommit())
+        {
+            e.endpoint = endpoint;
+            e.host = host;
+            e.attempt = attempt;
+            e.httpStatus = httpStatus;
+            e.failure = failure;
+            e.commit();
+        }
+    }
+
+    @Override public Object beginDeviceFlowPoll()
+    {
+        final DeviceFlowPollEvent event = new DeviceFlowPollEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override public void commitDeviceFlowPoll(final Object event, final int attempt, final String outcome)
+    {
+        final DeviceFlowPollEvent e = (DeviceFlowPollEvent) event;
+        e.end();
+        if (e.shouldCommit())
+        {
+            e.attempt = attempt;
+            e.outcome = outcome;
+            e.commit();
+        }
+    }
+
+    @Override public synchronized boolean startRecording(final File destination)
+    {
+        Trace.writeLine("JfrSink::startRecording");
+
+        try
+        {
+            final Recording result = new Recording(Configuration.getConfiguration("profile"));
+            result.setName("git-credential-manager");
+            result.setToDisk(true);
+            result.setDestination(destination.toPath());
+            result.start();
+            recording = result;
+            Trace.writeLine("   recording to %1$s", destination);
+            return true;
+        }
+        catch (final IOException e)
+        {
+            Trace.writeLine("   unable to record: %1$s", e);
+        }
+        catch (final ParseException e)
+        {
+            Trace.writeLine("   unable to read the profile settings: %1$s", e);
+        }
+        return false;
+    }
+
+    @Override public synchronized void stopRecording()
+    {
+        if (recording == null)
+            return;
+
+        // stopping a recording that has a destination writes it out
+        recording.stop();
+        recording.close();
+        recording = null;
+    }
+}
@@ -0,0 +1,27 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@IgnoreJRERequirement
+@Name("com.microsoft.alm.SecureStoreAccess")
+@Label("Secure Store Access")
+@Category({"Git Credential Manager", "Storage"})
+@Description("A read from, or a write to, the platform's secure storage")
+class SecureStoreAccessEvent extends jdk.jfr.Event
+{
+    @Label("Operation")
+    String operation;
+
+    @Label("Target Name")
+    String targetName;
+
+    @Label("Found")
+    @Description("Whether a read found a secret; always true for writes and deletes")
+    boolean found;
+}
@@ -8,6 +8,7 @@ import com.github.tomakehurst.wiremock.http.RequestListener
 import com.github.tomakehurst.wiremock.http.Response
 import com.github.tomakehurst.wiremock.junit.WireMockRule
 import com.github.tomakehurst.wiremock.stubbing.Scenario
+import com.microsoft.alm.helpers.Metrics
 import com.microsoft.alm.oauth2.useragent.AuthorizationException
 import com.microsoft.alm.secret.TokenType
 import groovy.transform.CompileStatic
@@ -201,6 +202,14 @@ public class DeviceFlowImplTest {
         scenarioNextStateNumber++;
     }
 
+    private static long pollCount(final String outcome) {
+        return Metrics.registry.counter(Metrics.series(DeviceFlowImpl.Polls, "outcome", outcome)).get();
+    }
+
+    private static long timeToTokenCount(final String outcome) {
+        return Metrics.registry.histogram(Metrics.series(DeviceFlowImpl.TimesToToken, "outcome", outcome)).count;
+    }
+
     @Test public void requestAuthorization_withScope() {
         final def port = wireMockRule.port();
         final def deviceEndpoint = new URI(PROTOCOL, null, host, port, DEVICE_ENDPOINT_PATH, null, null);
@@ -292,12 +301,16 @@ public class DeviceFlowImplTest {
         final def cut = new DeviceFlowImpl();
 
         final def response = new DeviceFlowResponse(DEVICE_CODE, USER_CODE, VERIFICATION_URI, 2, 1);
+        final def pollsBefore = pollCount(DeviceFlowImpl.ExpiredOutcome);
+        final def timesBefore = timeToTokenCount(DeviceFlowImpl.ExpiredOutcome);
 
         try {
             cut.requestToken(tokenEndpoint, CLIENT_ID, response)
         }
         catch (final AuthorizationException e) {
             assert "code_expired" == e.code;
+            assert pollsBefore + cut.lastPollCount == pollCount(DeviceFlowImpl.ExpiredOutcome);
+            assert timesBefore + 1 == timeToTokenCount(DeviceFlowImpl.ExpiredOutcome);
             return;
         }
         Assert.fail("An AuthorizationException should have been thrown");
@@ -322,6 +335,104 @@ public class DeviceFlowImplTest {
         assert testEndTime.timeInMillis - testStartTime.timeInMillis >= (1 + 2 + 4) * 1000
     }
 
+    @Test public void requestToken_honorsRetryAfter() {
+        final def port = wireMockRule.port();
+        final def tokenEndpoint = new URI(PROTOCOL, null, host, port, TOKEN_ENDPOINT_PATH, null, null);
+        final def nextStateName = Integer.toString(scenarioNextStateNumber, 10);
+        stubFor(post(urlEqualTo(TOKEN_ENDPOINT_PATH))
+                .inScenario(SCENARIO)
+                .whenScenarioStateIs(scenarioStateName)
+                .willReturn(aResponse()
+                .withStatus(503)
+                .withHeader("Retry-After", "2")
+                .withBody("Come back later"))
+                .willSetStateTo(nextStateName));
+        tokenEndpointExpectedErrorHits++;
+        scenarioStateName = nextStateName;
+        scenarioNextStateNumber++;
+        stubTokenEndpointSuccess();
+        final def cut = new DeviceFlowImpl();
+        final def pollsBefore = pollCount(DeviceFlowImpl.TokenOutcome);
+        final def timesBefore = timeToTokenCount(DeviceFlowImpl.TokenOutcome);
+        final testStartTime = System.currentTimeMillis();
+
+        final def actualTokenPair = cut.requestToken(tokenEndpoint, CLIENT_ID, DEFAULT_DEVICE_FLOW_RESPONSE);
+
+        assert ACCESS_TOKEN == actualTokenPair.AccessToken.Value;
+        assert System.currentTimeMillis() - testStartTime >= 2000;
+        assert 2 == cut.lastPollCount;
+        assert cut.lastPollingMillis >= 2000;
+        assert pollsBefore + 2 == pollCount(DeviceFlowImpl.TokenOutcome);
+        assert timesBefore + 1 == timeToTokenCount(DeviceFlowImpl.TokenOutcome);
+    }
+
+    @Test public void requestToken_interrupted() {
+        final def port = wireMockRule.port();
+        final def tokenEndpoint = new URI(PROTOCOL, null, host, port, TOKEN_ENDPOINT_PATH, null, null);
+        stubFor(post(urlEqualTo(TOKEN_ENDPOINT_PATH))
+                .willReturn(aResponse()
+                .withStatus(400)
+                .withHeader("Content-Type", "application/json")
+                .withBody('{"error":"authorization_pending"}')));
+        final def cut = new DeviceFlowImpl();
+        final caller = Thread.currentThread();
+        final interrupter = new Thread(new Runnable() {
+            @Override void run() {
+                Thread.sleep(1500);
+                caller.interrupt();
+            }
+        });
+        final def pollsBefore = pollCount(DeviceFlowImpl.CancelledOutcome);
+        final def timesBefore = timeToTokenCount(DeviceFlowImpl.CancelledOutcome);
+        interrupter.start();
+
+        try {
+            cut.requestToken(tokenEndpoint, CLIENT_ID, DEFAULT_DEVICE_FLOW_RESPONSE)
+        }
+        catch (final AuthorizationException e) {
+            assert "interrupted" == e.code;
+            assert Thread.interrupted();
+            assert pollsBefore + cut.lastPollCount == pollCount(DeviceFlowImpl.CancelledOutcome);
+            assert timesBefore + 1 == timeToTokenCount(DeviceFlowImpl.CancelledOutcome);
+            return;
+        }
+        finally {
+            interrupter.join();
+        }
+        Assert.fail("An AuthorizationException should have been thrown");
+    }
+
+    @Test public void requestToken_tokenEndpointUnreachable() {
+        // a port nobody listens to
+        final serverSocket = new ServerSocket(0);
+        final port = serverSocket.localPort;
+        serverSocket.close();
+        final def tokenEndpoint = new URI(PROTOCOL, null, host, port, TOKEN_ENDPOINT_PATH, null, null);
+        RequestPolicy.set(RequestPolicy.Endpoint.Token, new RequestPolicy(1000, 0, 0, 0, 1000));
+        final def cut = new DeviceFlowImpl();
+
+        try {
+            cut.requestToken(tokenEndpoint, CLIENT_ID, DEFAULT_DEVICE_FLOW_RESPONSE)
+        }
+        catch (final AuthorizationException e) {
+            Assert.fail("A network failure was reported as " + e.code);
+        }
+        catch (final Error e) {
+            assert e.cause instanceof IOException;
+            return;
+        }
+        finally {
+            RequestPolicy.set(RequestPolicy.Endpoint.Token, null);
+        }
+        Assert.fail("An Error should have been thrown");
+    }
+
+    @Test public void parseRetryAfterMillis() {
+        assert 120000L == DeviceFlowImpl.parseRetryAfterMillis(" 120 ");
+        assert -1L == DeviceFlowImpl.parseRetryAfterMillis("Fri, 31 Dec 1999 23:59:59 GMT");
+        assert -1L == DeviceFlowImpl.parseRetryAfterMillis(null);
+    }
+
     @Test public void endToEnd_authorizedRightAway() {
         final def port = wireMockRule.port();
         final def deviceEndpoint = new URI(PROTOCOL, null, host, port, DEVICE_ENDPOINT_PATH, null, null);
@@ -0,0 +1,187 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule
+import com.github.tomakehurst.wiremock.stubbing.Scenario
+import com.microsoft.alm.helpers.Action
+import com.microsoft.alm.helpers.HttpClient
+import com.microsoft.alm.helpers.StringContent
+import groovy.transform.CompileStatic
+import org.junit.Assert
+import org.junit.Rule
+import org.junit.Test
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+
+/**
+ * A class to test {@see RequestPolicy}.
+ */
+@CompileStatic
+public class RequestPolicyTest {
+
+    private static final String PATH = "/resource";
+    private static final String SCENARIO = "Retries";
+
+    @Rule public WireMockRule wireMockRule = new WireMockRule(0);
+
+    private URI createUri() {
+        return URI.create("http://localhost:${wireMockRule.port()}${PATH}");
+    }
+
+    private static RequestPolicy.Request createGet(final URI uri) {
+        final HttpClient client = new HttpClient("RequestPolicyTest");
+        return new RequestPolicy.Request() {
+            @Override
+            HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException {
+                return client.get(uri, configure);
+            }
+        };
+    }
+
+    private static RequestPolicy.Request createPost(final URI uri) {
+        final HttpClient client = new HttpClient("RequestPolicyTest");
+        return new RequestPolicy.Request() {
+            @Override
+            HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException {
+                return client.post(uri, StringContent.createJson("{}"), configure);
+            }
+        };
+    }
+
+    private void stubFailuresThenSuccess(final int failureStatus, final int failures) {
+        String state = Scenario.STARTED;
+        for (int i = 0; i < failures; i++) {
+            final String nextState = "failure ${i + 1}".toString();
+            stubFor(any(urlEqualTo(PATH)).inScenario(SCENARIO)
+                .whenScenarioStateIs(state)
+                .willReturn(aResponse().withStatus(failureStatus).withBody("try again"))
+                .willSetStateTo(nextState));
+            state = nextState;
+        }
+        stubFor(any(urlEqualTo(PATH)).inScenario(SCENARIO)
+            .whenScenarioStateIs(state)
+            .willReturn(aResponse().withStatus(200).withBody("ok")));
+    }
+
+    @Test public void execute_retriesTransientStatus() {
+        stubFailuresThenSuccess(503, 2);
+        final RequestPolicy cut = new RequestPolicy(5000, 2, 1, 10, 10000);
+        final int retriesBefore = RequestPolicy.getRetryCount(RequestPolicy.Endpoint.ConnectionData);
+
+        final HttpURLConnection actual = cut.execute(RequestPolicy.Endpoint.ConnectionData, RequestPolicy.RetryMode.All, createGet(createUri()));
+
+        Assert.assertEquals(200, actual.responseCode);
+        Assert.assertEquals(retriesBefore + 2, RequestPolicy.getRetryCount(RequestPolicy.Endpoint.ConnectionData));
+        verify(3, getRequestedFor(urlEqualTo(PATH)));
+    }
+
+    @Test public void execute_givesUpAfterMaxRetries() {
+        stubFailuresThenSuccess(502, 3);
+        final RequestPolicy cut = new RequestPolicy(5000, 1, 1, 10, 10000);
+
+        final HttpURLConnection actual = cut.execute(RequestPolicy.Endpoint.ConnectionData, RequestPolicy.RetryMode.All, createGet(createUri()));
+
+        Assert.assertEquals(502, actual.responseCode);
+        verify(2, getRequestedFor(urlEqualTo(PATH)));
+    }
+
+    @Test public void execute_unsentOnlyDoesNotRepeatServerErrors() {
+        stubFailuresThenSuccess(500, 1);
+        final RequestPolicy cut = new RequestPolicy(5000, 2, 1, 10, 10000);
+
+        final HttpURLConnection actual = cut.execute(RequestPolicy.Endpoint.SessionToken, RequestPolicy.RetryMode.UnsentOnly, createPost(createUri()));
+
+        Assert.assertEquals(500, actual.responseCode);
+        verify(1, postRequestedFor(urlEqualTo(PATH)));
+    }
+
+    @Test public void execute_unsentOnlyRepeatsTooManyRequests() {
+        stubFailuresThenSuccess(429, 1);
+        final RequestPolicy cut = new RequestPolicy(5000, 2, 1, 10, 10000);
+
+        final HttpURLConnection actual = cut.execute(RequestPolicy.Endpoint.SessionToken, RequestPolicy.RetryMode.UnsentOnly, createPost(createUri()));
+
+        Assert.assertEquals(200, actual.responseCode);
+        verify(2, postRequestedFor(urlEqualTo(PATH)));
+    }
+
+    @Test public void execute_retryAfterBeyondDeadlineIsNotWaitedFor() {
+        stubFor(get(urlEqualTo(PATH))
+            .willReturn(aResponse().withStatus(503).withHeader("Retry-After", "120")));
+        final RequestPolicy cut = new RequestPolicy(5000, 2, 1, 10, 10000);
+
+        final HttpURLConnection actual = cut.execute(RequestPolicy.Endpoint.LocationService, RequestPolicy.RetryMode.All, createGet(createUri()));
+
+        Assert.assertEquals(503, actual.responseCode);
+        verify(1, getRequestedFor(urlEqualTo(PATH)));
+    }
+
+    @Test public void execute_readTimeoutIsRetriedThenThrown() {
+        stubFor(get(urlEqualTo(PATH))
+            .willReturn(aResponse().withStatus(200).withFixedDelay(2000)));
+        final RequestPolicy cut = new RequestPolicy(200, 1, 1, 10, 10000);
+
+        try {
+            cut.execute(RequestPolicy.Endpoint.AuthorityDetection, RequestPolicy.RetryMode.All, createGet(createUri()));
+            Assert.fail("A SocketTimeoutException should have been thrown.");
+        }
+        catch (final SocketTimeoutException ignored) {
+            verify(2, getRequestedFor(urlEqualTo(PATH)));
+        }
+    }
+
+    @Test public void execute_readTimeoutIsNotRetriedWhenUnsentOnly() {
+        stubFor(post(urlEqualTo(PATH))
+            .willReturn(aResponse().withStatus(200).withFixedDelay(2000)));
+        final RequestPolicy cut = new RequestPolicy(200, 2, 1, 10, 10000);
+
+        try {
+            cut.execute(RequestPolicy.Endpoint.Token, RequestPolicy.RetryMode.UnsentOnly, createPost(createUri()));
+            Assert.fail("A SocketTimeoutException should have been thrown.");
+        }
+        catch (final SocketTimeoutException ignored) {
+            verify(1, postRequestedFor(urlEqualTo(PATH)));
+        }
+    }
+
+    @Test public void computeBackoffMillis_growsExponentiallyUpToTheCap() {
+        final Random alwaysMax = new Random() {
+            @Override
+            double nextDouble() {
+                return 0.999999;
+            }
+        };
+
+        Assert.assertEquals(499L, RequestPolicy.computeBackoffMillis(0, 500, 8000, alwaysMax));
+        Assert.assertEquals(1999L, RequestPolicy.computeBackoffMillis(2, 500, 8000, alwaysMax));
+        Assert.assertEquals(7999L, RequestPolicy.computeBackoffMillis(10, 500, 8000, alwaysMax));
+        Assert.assertEquals(7999L, RequestPolicy.computeBackoffMillis(100, 500, 8000, alwaysMax));
+        Assert.assertEquals(0L, RequestPolicy.computeBackoffMillis(3, 0, 0, alwaysMax));
+    }
+
+    @Test public void get_hostPolicyDoesNotApplyToOtherHosts() {
+        final URI contoso = URI.create("https://contoso.visualstudio.com/_git/repo");
+        final URI fabrikam = URI.create("https://fabrikam.visualstudio.com/");
+        final RequestPolicy everyHost = new RequestPolicy(1000, 1, 0, 0, 1000);
+        final RequestPolicy contosoOnly = new RequestPolicy(2000, 3, 0, 0, 2000);
+        try {
+            RequestPolicy.set(RequestPolicy.Endpoint.SessionToken, everyHost);
+            RequestPolicy.set(contoso, RequestPolicy.Endpoint.SessionToken, contosoOnly);
+
+            Assert.assertSame(contosoOnly, RequestPolicy.get(RequestPolicy.Endpoint.SessionToken, URI.create("HTTPS://Contoso.VisualStudio.com/")));
+            Assert.assertSame(everyHost, RequestPolicy.get(RequestPolicy.Endpoint.SessionToken, fabrikam));
+            Assert.assertSame(everyHost, RequestPolicy.get(RequestPolicy.Endpoint.SessionToken));
+            Assert.assertSame(RequestPolicy.Default, RequestPolicy.get(RequestPolicy.Endpoint.Token, contoso));
+
+            RequestPolicy.set(contoso, RequestPolicy.Endpoint.SessionToken, null);
+
+            Assert.assertSame(everyHost, RequestPolicy.get(RequestPolicy.Endpoint.SessionToken, contoso));
+        }
+        finally {
+            RequestPolicy.set(contoso, RequestPolicy.Endpoint.SessionToken, null);
+            RequestPolicy.set(RequestPolicy.Endpoint.SessionToken, null);
+        }
+    }
+}
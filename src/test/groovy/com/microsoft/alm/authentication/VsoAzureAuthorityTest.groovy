@@ -3,10 +3,12 @@
 
 package com.microsoft.alm.authentication;
 
+import com.microsoft.alm.secret.Token
 import groovy.transform.CompileStatic
 import org.junit.Test
 
 import static org.junit.Assert.assertEquals
+import static org.junit.Assert.assertNull
 
 /**
  * A class to test {@see DeviceFlowResponse}.
@@ -68,4 +70,33 @@ public class VsoAzureAuthorityTest {
         final URI locationService = VsoAzureAuthority.parseLocationFromJson(json);
         assertEquals("https://app.vssps.visualstudio.com", locationService.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void parsePersonalAccessTokenFromJson_withValidTo() throws Exception {
+        final json = """
+        {
+            "displayName": "git: https://example.visualstudio.com/ on MYMACHINE",
+            "validTo": "2017-06-14T18:57:07.87Z",
+            "scope": "vso.code_write vso.packaging",
+            "token": "0123456789abcdefghij"
+        }
+        """
+
+        final Token token = VsoAzureAuthority.parsePersonalAccessTokenFromJson(json);
+        assertEquals("0123456789abcdefghij", token.Value);
+        final Calendar validTo = ((PersonalAccessToken) token).getValidTo();
+        assertEquals(1497466627870L, validTo.getTimeInMillis());
+    }
+
+    @Test
+    public void parseIso8601_withOffset() throws Exception {
+        final Calendar actual = VsoAzureAuthority.parseIso8601("2017-06-14T20:57:07+02:00");
+
+        assertEquals(1497466627000L, actual.getTimeInMillis());
+    }
+
+    @Test
+    public void parseIso8601_invalid() throws Exception {
+        assertNull(VsoAzureAuthority.parseIso8601("next Tuesday"));
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the {@code serve} command takes to write its cache snapshot and to read
+ * it back.  The entries read are already cached, so each read checks, decrypts and parses the
+ * whole snapshot but adds nothing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheSnapshotBenchmark
+{
+    @Param({"1000", "10000", "50000"})
+    public int entries;
+
+    private final byte[] key = CacheSnapshot.createKey();
+    private File snapshotFile;
+
+    @Setup public void populate() throws IOException
+    {
+        final SecretCache cache = new SecretCache("git");
+        for (int i = 0; i < entries; i++)
+        {
+            cache.writeCredentials(URI.create("https://account" + i + ".visualstudio.com/"), new Credential("PersonalAccessToken", "7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c" + i));
+        }
+        snapshotFile = File.createTempFile("cache-snapshot", ".bin");
+        CacheSnapshot.write(snapshotFile, key);
+    }
+
+    @TearDown public void deleteSnapshot()
+    {
+        snapshotFile.delete();
+    }
+
+    @Benchmark public int write() throws IOException
+    {
+        return CacheSnapshot.write(snapshotFile, key);
+    }
+
+    @Benchmark public int read() throws IOException
+    {
+        return CacheSnapshot.read(snapshotFile, key);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(CacheSnapshotBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,184 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CacheSnapshotTest
+{
+    private static final URI CredentialUri = URI.create("https://snapshot-credential.visualstudio.com");
+    private static final URI TokenUri = URI.create("https://snapshot-token.visualstudio.com");
+
+    private File snapshotFile;
+    private SecretCache secretCache;
+
+    @Before public void createSnapshotFile() throws IOException
+    {
+        snapshotFile = File.createTempFile("cache-snapshot", ".bin");
+        snapshotFile.delete();
+        secretCache = new SecretCache("snapshot-test");
+        secretCache.writeCredentials(CredentialUri, new Credential("alice", "correct horse battery staple"));
+        final Token token = new Token("access-token", TokenType.Access);
+        token.setTargetIdentity(UUID.fromString("4f2b1d5e-3c6a-4e8b-9d7f-1a2b3c4d5e6f"));
+        secretCache.writeToken(TokenUri, token);
+        BaseVsoAuthentication.addDetectedTenants(Collections.singletonMap("https://snapshot-tenant.visualstudio.com:443", UUID.fromString("a1b2c3d4-e5f6-4a7b-8c9d-0e1f2a3b4c5d")));
+        VsoAzureAuthority.addIdentityServiceLocations(Collections.singletonMap("snapshot-location.visualstudio.com", URI.create("https://snapshot-location.vssps.visualstudio.com/")));
+    }
+
+    @After public void deleteSnapshotFile()
+    {
+        secretCache.deleteCredentials(CredentialUri);
+        secretCache.deleteToken(TokenUri);
+        snapshotFile.delete();
+        new File(snapshotFile.getPath() + ".tmp").delete();
+        new File(snapshotFile.getPath() + ".lock").delete();
+    }
+
+    private void corrupt(final long offset, final byte[] bytes) throws IOException
+    {
+        final RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try
+        {
+            file.seek(offset);
+            file.write(bytes);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    @Test public void readOrCreateKey_createsKeyOnce() throws IOException
+    {
+        final SharedSecretCacheTest.CountingSecureStore secureStore = new SharedSecretCacheTest.CountingSecureStore();
+
+        final byte[] created = CacheSnapshot.readOrCreateKey(secureStore, "git:test-key", snapshotFile);
+        final byte[] read = CacheSnapshot.readOrCreateKey(secureStore, "git:test-key", snapshotFile);
+
+        Assert.assertEquals(CacheSnapshot.KeyLength, created.length);
+        Assert.assertArrayEquals(created, read);
+        Assert.assertArrayEquals(created, CacheSnapshot.fromHex(secureStore.readCredentials("git:test-key").Password));
+    }
+
+    @Test public void fromHex_roundTripsAndRejectsGarbage()
+    {
+        final byte[] bytes = { 0, 1, (byte) 0x7F, (byte) 0x80, (byte) 0xFF };
+
+        Assert.assertEquals("00017f80ff", CacheSnapshot.toHex(bytes));
+        Assert.assertArrayEquals(bytes, CacheSnapshot.fromHex("00017f80ff"));
+        Assert.assertNull(CacheSnapshot.fromHex("0"));
+        Assert.assertNull(CacheSnapshot.fromHex("zz"));
+        Assert.assertNull(CacheSnapshot.fromHex(null));
+    }
+
+    @Test public void read_restoresWhatWasWritten() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        final int written = CacheSnapshot.write(snapshotFile, key);
+        Assert.assertTrue(written >= 4);
+        secretCache.deleteCredentials(CredentialUri);
+        secretCache.deleteToken(TokenUri);
+
+        // everything else is still cached, so it's left alone
+        Assert.assertEquals(2, CacheSnapshot.read(snapshotFile, key));
+
+        final AtomicReference<Credential> credential = new AtomicReference<Credential>();
+        Assert.assertTrue(secretCache.readCredentials(CredentialUri, credential));
+        Assert.assertEquals("alice", credential.get().Username);
+        Assert.assertEquals("correct horse battery staple", credential.get().Password);
+        final AtomicReference<Token> token = new AtomicReference<Token>();
+        Assert.assertTrue(secretCache.readToken(TokenUri, token));
+        Assert.assertEquals("access-token", token.get().Value);
+        Assert.assertEquals(TokenType.Access, token.get().Type);
+        Assert.assertEquals(UUID.fromString("4f2b1d5e-3c6a-4e8b-9d7f-1a2b3c4d5e6f"), token.get().getTargetIdentity());
+        Assert.assertEquals(URI.create("https://snapshot-location.vssps.visualstudio.com/"), VsoAzureAuthority.getIdentityServiceLocations().get("snapshot-location.visualstudio.com"));
+    }
+
+    @Test public void read_leavesNewerEntriesAlone() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        CacheSnapshot.write(snapshotFile, key);
+        secretCache.writeCredentials(CredentialUri, new Credential("alice", "changed since"));
+
+        Assert.assertEquals(0, CacheSnapshot.read(snapshotFile, key));
+
+        final AtomicReference<Credential> credential = new AtomicReference<Credential>();
+        Assert.assertTrue(secretCache.readCredentials(CredentialUri, credential));
+        Assert.assertEquals("changed since", credential.get().Password);
+    }
+
+    @Test public void read_ignoresSnapshotWrittenWithAnotherKey() throws IOException
+    {
+        CacheSnapshot.write(snapshotFile, CacheSnapshot.createKey());
+        secretCache.deleteCredentials(CredentialUri);
+
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, CacheSnapshot.createKey()));
+
+        Assert.assertFalse(secretCache.readCredentials(CredentialUri, new AtomicReference<Credential>()));
+    }
+
+    @Test public void read_ignoresTamperedSnapshot() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        CacheSnapshot.write(snapshotFile, key);
+        corrupt(snapshotFile.length() - 40, new byte[]{0x42});
+
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, key));
+    }
+
+    @Test public void read_ignoresTruncatedSnapshot() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        CacheSnapshot.write(snapshotFile, key);
+        final RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try
+        {
+            file.setLength(file.length() - 1);
+        }
+        finally
+        {
+            file.close();
+        }
+
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, key));
+    }
+
+    @Test public void read_ignoresOtherVersion() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        CacheSnapshot.write(snapshotFile, key);
+        corrupt(4, new byte[]{0, 0, 0, (byte) (CacheSnapshot.FormatVersion + 1)});
+
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, key));
+    }
+
+    @Test public void read_ignoresStaleSnapshot() throws IOException
+    {
+        final byte[] key = CacheSnapshot.createKey();
+        CacheSnapshot.write(snapshotFile, key);
+        // taken at the epoch
+        corrupt(8, new byte[8]);
+
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, key));
+    }
+
+    @Test public void read_missingSnapshot() throws IOException
+    {
+        Assert.assertEquals(-1, CacheSnapshot.read(snapshotFile, CacheSnapshot.createKey()));
+    }
+}
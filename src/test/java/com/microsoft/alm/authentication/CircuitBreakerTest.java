@@ -0,0 +1,181 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Action;
+import com.microsoft.alm.helpers.Func;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CircuitBreakerTest
+{
+    private static final URI TargetUri = URI.create("https://example.visualstudio.com/");
+    private static final URI OtherUri = URI.create("https://login.example.com/common/oauth2/token");
+
+    private File stateFile;
+
+    @Before public void createStateFile() throws IOException
+    {
+        stateFile = File.createTempFile("circuits", ".properties");
+        stateFile.delete();
+        new File(stateFile.getPath() + ".lock").delete();
+    }
+
+    @After public void deleteStateFile()
+    {
+        RequestPolicy.setCircuitBreaker(null);
+        stateFile.delete();
+    }
+
+    private static Func<URI, Boolean> createProbe(final boolean reachable, final AtomicInteger count)
+    {
+        return new Func<URI, Boolean>()
+        {
+            @Override public Boolean call(final URI uri)
+            {
+                count.incrementAndGet();
+                return reachable;
+            }
+        };
+    }
+
+    @Test public void recordFailure_opensAfterThreshold()
+    {
+        final CircuitBreaker cut = new CircuitBreaker(stateFile, 2, 60000);
+
+        cut.recordFailure(TargetUri);
+        Assert.assertEquals(CircuitBreaker.State.Closed, cut.getState(TargetUri));
+        cut.recordFailure(TargetUri);
+
+        Assert.assertEquals(CircuitBreaker.State.Open, cut.getState(TargetUri));
+        Assert.assertFalse(cut.allowRequest(TargetUri));
+        Assert.assertTrue(cut.allowRequest(OtherUri));
+        // the state is shared with other processes through the file
+        Assert.assertEquals(CircuitBreaker.State.Open, new CircuitBreaker(stateFile, 2, 60000).getState(TargetUri));
+    }
+
+    @Test public void recordSuccess_resetsFailures()
+    {
+        final CircuitBreaker cut = new CircuitBreaker(stateFile, 2, 60000);
+
+        cut.recordFailure(TargetUri);
+        cut.recordSuccess(TargetUri);
+        cut.recordFailure(TargetUri);
+
+        Assert.assertEquals(CircuitBreaker.State.Closed, cut.getState(TargetUri));
+    }
+
+    @Test public void probeInBackground_closesReachableHost() throws InterruptedException
+    {
+        final AtomicInteger probeCount = new AtomicInteger();
+        final CircuitBreaker cut = new CircuitBreaker(stateFile, 1, 50, createProbe(true, probeCount));
+        cut.recordFailure(TargetUri);
+        Assert.assertFalse(cut.probeInBackground(TargetUri));
+
+        Thread.sleep(100);
+        Assert.assertEquals(CircuitBreaker.State.HalfOpen, cut.getState(TargetUri));
+        Assert.assertTrue(cut.probeInBackground(TargetUri));
+        cut.awaitProbes(10000);
+
+        Assert.assertEquals(1, probeCount.get());
+        Assert.assertEquals(CircuitBreaker.State.Closed, cut.getState(TargetUri));
+    }
+
+    @Test public void probeInBackground_reopensUnreachableHostAndProbesOncePerPeriod() throws InterruptedException
+    {
+        final AtomicInteger probeCount = new AtomicInteger();
+        final CircuitBreaker cut = new CircuitBreaker(stateFile, 1, 200, createProbe(false, probeCount));
+        cut.recordFailure(TargetUri);
+        Thread.sleep(250);
+
+        Assert.assertTrue(cut.probeInBackground(TargetUri));
+        Assert.assertFalse(cut.probeInBackground(TargetUri));
+        cut.awaitProbes(10000);
+
+        Assert.assertEquals(1, probeCount.get());
+        Assert.assertEquals(CircuitBreaker.State.Open, cut.getState(TargetUri));
+    }
+
+    @Test public void recordFailure_concurrentInstancesCountEveryFailure() throws InterruptedException
+    {
+        final int threadCount = 4;
+        final int failuresPerThread = 10;
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            // each thread has a breaker of its own, as each process does
+            final CircuitBreaker breaker = new CircuitBreaker(stateFile, threadCount * failuresPerThread, 60000);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    for (int i = 0; i < failuresPerThread; i++)
+                    {
+                        breaker.recordFailure(TargetUri);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        // the circuit only opens if none of the failures was lost
+        Assert.assertEquals(CircuitBreaker.State.Open, new CircuitBreaker(stateFile, threadCount * failuresPerThread, 60000).getState(TargetUri));
+    }
+
+    @Test public void send_failsFastWhileOpen() throws IOException
+    {
+        final AtomicInteger attempts = new AtomicInteger();
+        final RequestPolicy.Request unreachable = new RequestPolicy.Request()
+        {
+            @Override public HttpURLConnection send(final Action<HttpURLConnection> configure) throws IOException
+            {
+                attempts.incrementAndGet();
+                throw new ConnectException("Connection refused");
+            }
+        };
+        RequestPolicy.set(RequestPolicy.Endpoint.ConnectionData, new RequestPolicy(1000, 0, 0, 0, 1000));
+        try
+        {
+            RequestPolicy.setCircuitBreaker(new CircuitBreaker(stateFile, 1, 60000));
+
+            for (int i = 0; i < 3; i++)
+            {
+                try
+                {
+                    RequestPolicy.send(RequestPolicy.Endpoint.ConnectionData, TargetUri, RequestPolicy.RetryMode.All, unreachable);
+                    Assert.fail("An IOException should have been thrown.");
+                }
+                catch (final IOException expected)
+                {
+                    // the first one is the connection failure, the others are the open circuit
+                }
+            }
+
+            Assert.assertEquals(1, attempts.get());
+        }
+        finally
+        {
+            RequestPolicy.set(RequestPolicy.Endpoint.ConnectionData, null);
+        }
+    }
+
+    @Test public void getKey_schemeAndAuthority()
+    {
+        Assert.assertEquals("https://login.example.com", CircuitBreaker.getKey(OtherUri));
+        Assert.assertEquals("http://localhost:8080", CircuitBreaker.getKey(URI.create("HTTP://LocalHost:8080/path")));
+    }
+}
@@ -0,0 +1,105 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.IOHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures parsing a typical global .gitconfig and looking up the settings the helper reads
+ * for every operation, from the most specific URL match down to the unadorned setting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConfigurationBenchmark
+{
+    private static final String CredentialSettings = "\n" +
+            "[credential \"https://example.visualstudio.com\"]\n" +
+            "    authority = AAD\n" +
+            "    interactive = never\n" +
+            "[credential \"visualstudio.com\"]\n" +
+            "    validate = false\n" +
+            "[credential]\n" +
+            "    writelog = true\n";
+
+    private final URI targetUri = URI.create("https://team.example.visualstudio.com/");
+    private String gitConfig;
+    private Configuration configuration;
+
+    @Setup public void readSampleGitConfig() throws IOException
+    {
+        final InputStream stream = ConfigurationBenchmark.class.getResourceAsStream("sample.gitconfig");
+        try
+        {
+            gitConfig = IOHelper.readToString(stream) + CredentialSettings;
+        }
+        finally
+        {
+            stream.close();
+        }
+        configuration = new Configuration(new BufferedReader(new StringReader(gitConfig)));
+    }
+
+    @Benchmark public Map<String, String> parseGitConfig() throws IOException
+    {
+        final Map<String, String> values = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        Configuration.parseGitConfig(new BufferedReader(new StringReader(gitConfig)), values);
+        return values;
+    }
+
+    /**
+     * Matches after stripping the first sub-domain.
+     */
+    @Benchmark public Configuration.Entry tryGetEntry_parentDomain()
+    {
+        final AtomicReference<Configuration.Entry> entry = new AtomicReference<Configuration.Entry>();
+        configuration.tryGetEntry("credential", targetUri, "validate", entry);
+        return entry.get();
+    }
+
+    /**
+     * Tries every URL-specific form before falling back to the unadorned setting.
+     */
+    @Benchmark public Configuration.Entry tryGetEntry_fallback()
+    {
+        final AtomicReference<Configuration.Entry> entry = new AtomicReference<Configuration.Entry>();
+        configuration.tryGetEntry("credential", targetUri, "writelog", entry);
+        return entry.get();
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(ConfigurationBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
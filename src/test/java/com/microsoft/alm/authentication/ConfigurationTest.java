@@ -139,4 +139,26 @@ public class ConfigurationTest
         }
         return values;
     }
+
+    @Test
+    public void getSubsectionValues_remotes() throws Exception
+    {
+        final String input = "\n" +
+                "[remote \"origin\"]\n" +
+                "    url = https://dev.azure.com/contoso/_git/one\n" +
+                "    fetch = +refs/heads/*:refs/remotes/origin/*\n" +
+                "[remote \"v1.0\"]\n" +
+                "    url = https://github.com/contoso/one.git\n" +
+                "[core]\n" +
+                "    url = not a remote\n" +
+                "";
+        final BufferedReader reader = new BufferedReader(new StringReader(input));
+        final Configuration cut = new Configuration(reader);
+
+        final Map<String, String> actual = cut.getSubsectionValues("remote", "url");
+
+        Assert.assertEquals(2, actual.size());
+        Assert.assertEquals("https://dev.azure.com/contoso/_git/one", actual.get("origin"));
+        Assert.assertEquals("https://github.com/contoso/one.git", actual.get("v1.0"));
+    }
 }
@@ -0,0 +1,103 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.IOHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the former read-everything-then-regex approach with {@link JsonFieldExtractor}
+ * on connectiondata-like responses of various sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonFieldExtractorBenchmark
+{
+    private static final Pattern INSTANCE_ID_PATTERN = Pattern.compile(
+        "\"instanceId\"\\s*:\\s*\"([^\"]+)\"",
+        Pattern.CASE_INSENSITIVE
+    );
+
+    /**
+     * The number of service definitions in the response; a real organization has a few hundred.
+     */
+    @Param({"10", "300", "2000"})
+    public int serviceDefinitions;
+
+    private byte[] connectionData;
+
+    @Setup public void createConnectionData() throws IOException
+    {
+        connectionData = createConnectionData(serviceDefinitions).getBytes("UTF-8");
+    }
+
+    static String createConnectionData(final int serviceDefinitions)
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"authenticatedUser\":{\"id\":\"c5ba2ee4-4e72-4b2d-9b2b-e1d8d5a2c44a\",\"descriptor\":\"Microsoft.IdentityModel.Claims.ClaimsIdentity;user@example.com\",")
+          .append("\"providerDisplayName\":\"Example User\",\"isActive\":true,\"properties\":{\"Account\":{\"$type\":\"System.String\",\"$value\":\"user@example.com\"}}},");
+        sb.append("\"authorizedUser\":{\"id\":\"c5ba2ee4-4e72-4b2d-9b2b-e1d8d5a2c44a\",\"providerDisplayName\":\"Example User\",\"isActive\":true},");
+        sb.append("\"instanceId\":\"ca576a7c-5ab5-424e-91ba-66c86e0fff0d\",\"deploymentId\":\"4cb8e1a8-2b1b-4e6f-9b83-0c1a0c39b5e5\",");
+        sb.append("\"locationServiceData\":{\"serviceOwner\":\"00025394-6065-48ca-87d9-7f5672854ef7\",\"serviceDefinitions\":[");
+        for (int i = 0; i < serviceDefinitions; i++)
+        {
+            if (i > 0)
+                sb.append(',');
+            sb.append("{\"serviceType\":\"Area").append(i).append("\",\"identifier\":\"852017ac-a960-5000-8464-e3f0aa25b381\",")
+              .append("\"displayName\":\"Service ").append(i).append("\",\"relativeToSetting\":\"fullyQualified\",")
+              .append("\"relativePath\":\"/_apis/area").append(i).append("\",\"description\":\"\",")
+              .append("\"locationMappings\":[{\"accessMappingMoniker\":\"HostGuidAccessMapping\",\"location\":\"https://example.visualstudio.com/\"}],")
+              .append("\"toolId\":\"Framework\",\"properties\":{}}");
+        }
+        sb.append("]}}");
+        return sb.toString();
+    }
+
+    @Benchmark public String readToStringThenRegex() throws IOException
+    {
+        final String content = IOHelper.readToString(new ByteArrayInputStream(connectionData));
+        final Matcher matcher = INSTANCE_ID_PATTERN.matcher(content);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    @Benchmark public String streamingExtractor() throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(connectionData), "UTF-8"));
+        return JsonFieldExtractor.extract(reader, "instanceId").get("instanceId");
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(JsonFieldExtractorBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,87 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.PropertyBag;
+import com.microsoft.alm.secret.TokenPair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Map;
+
+public class JsonFieldExtractorTest
+{
+    @Test public void extract_findsFieldsAtAnyDepthIgnoringCase()
+    {
+        final String json = "{\"InstanceId\": \"a\\u0062c\", \"nested\": {\"list\": [1, {\"location\": \"https:\\/\\/example.com\\/\"}]}}";
+
+        final Map<String, String> actual = JsonFieldExtractor.extract(json, "instanceId", "location", "missing");
+
+        Assert.assertEquals(2, actual.size());
+        Assert.assertEquals("abc", actual.get("instanceId"));
+        Assert.assertEquals("https://example.com/", actual.get("location"));
+    }
+
+    @Test public void extract_firstOccurrenceWins()
+    {
+        final String json = "{\"token\": \"first\", \"token\": \"second\"}";
+
+        final Map<String, String> actual = JsonFieldExtractor.extract(json, "token");
+
+        Assert.assertEquals("first", actual.get("token"));
+    }
+
+    @Test public void extract_nullAndNumbers()
+    {
+        final String json = "{\"a\": null, \"b\": 42, \"c\": true}";
+
+        final Map<String, String> actual = JsonFieldExtractor.extract(json, "a", "b", "c");
+
+        Assert.assertFalse(actual.containsKey("a"));
+        Assert.assertEquals("42", actual.get("b"));
+        Assert.assertEquals("true", actual.get("c"));
+    }
+
+    @Test public void extract_stopsReadingOnceAllFieldsFound() throws IOException
+    {
+        final String head = "{\"instanceId\": \"abc\", \"locationServiceData\": {";
+        final Reader reader = new StringReader(head)
+        {
+            private int remaining = head.length();
+
+            @Override public int read() throws IOException
+            {
+                if (remaining-- <= 0)
+                    throw new AssertionError("Read past the requested field.");
+                return super.read();
+            }
+        };
+
+        final Map<String, String> actual = JsonFieldExtractor.extract(reader, "instanceId");
+
+        Assert.assertEquals("abc", actual.get("instanceId"));
+    }
+
+    @Test(expected = IllegalArgumentException.class) public void extract_malformed()
+    {
+        JsonFieldExtractor.extract("{\"token\" \"abc\"}", "token");
+    }
+
+    @Test public void readTopLevelFields_tokenResponse() throws IOException
+    {
+        final String json = "{\"token_type\":\"Bearer\",\"expires_in\":3600,\"extra\":{\"access_token\":\"nested\"},"
+                + "\"access_token\":\"access\",\"refresh_token\":\"refresh\"}";
+
+        final PropertyBag bag = JsonFieldExtractor.readTopLevelFields(new StringReader(json));
+        final TokenPair actual = new TokenPair(bag);
+
+        Assert.assertEquals("access", actual.AccessToken.Value);
+        Assert.assertEquals("refresh", actual.RefreshToken.Value);
+        Assert.assertEquals("3600", actual.Parameters.get("expires_in"));
+        Assert.assertFalse(bag.containsKey("extra"));
+    }
+}
@@ -0,0 +1,133 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LogonCoordinatorTest
+{
+    private static final URI TargetUri = URI.create("https://example.visualstudio.com/");
+
+    private File lockDirectory;
+
+    @Before public void createLockDirectory() throws IOException
+    {
+        lockDirectory = File.createTempFile("locks", "");
+        lockDirectory.delete();
+    }
+
+    @After public void deleteLockDirectory()
+    {
+        final File[] files = lockDirectory.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        lockDirectory.delete();
+    }
+
+    @Test public void run_concurrentLogonsAreCoalesced() throws Exception
+    {
+        final LogonCoordinator cut = new LogonCoordinator(lockDirectory, 10000);
+        final AtomicInteger logonCount = new AtomicInteger();
+        final AtomicBoolean stored = new AtomicBoolean();
+        final CountDownLatch logonStarted = new CountDownLatch(1);
+        final CountDownLatch finishLogon = new CountDownLatch(1);
+        final Callable<Boolean> completed = new Callable<Boolean>()
+        {
+            @Override public Boolean call()
+            {
+                return stored.get();
+            }
+        };
+        final Callable<Boolean> logon = new Callable<Boolean>()
+        {
+            @Override public Boolean call() throws InterruptedException
+            {
+                logonCount.incrementAndGet();
+                logonStarted.countDown();
+                finishLogon.await();
+                stored.set(true);
+                return true;
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            final Future<Boolean> first = executor.submit(new Callable<Boolean>()
+            {
+                @Override public Boolean call()
+                {
+                    return cut.run(TargetUri, completed, logon);
+                }
+            });
+            Assert.assertTrue(logonStarted.await(10, TimeUnit.SECONDS));
+            final Future<Boolean> second = executor.submit(new Callable<Boolean>()
+            {
+                @Override public Boolean call()
+                {
+                    return cut.run(TargetUri, completed, logon);
+                }
+            });
+            // give the second logon time to start waiting behind the first
+            Thread.sleep(500);
+            finishLogon.countDown();
+
+            Assert.assertTrue(first.get(10, TimeUnit.SECONDS));
+            Assert.assertTrue(second.get(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1, logonCount.get());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test public void run_uncontendedLogonRuns()
+    {
+        final LogonCoordinator cut = new LogonCoordinator(lockDirectory, 10000);
+        final Callable<Boolean> completed = new Callable<Boolean>()
+        {
+            @Override public Boolean call()
+            {
+                throw new AssertionError("Nobody else performed a logon.");
+            }
+        };
+        final Callable<Boolean> logon = new Callable<Boolean>()
+        {
+            @Override public Boolean call()
+            {
+                return false;
+            }
+        };
+
+        Assert.assertFalse(cut.run(TargetUri, completed, logon));
+        Assert.assertTrue(new File(lockDirectory, "https_example.visualstudio.com.lock").isFile());
+    }
+
+    @Test public void getLockFileName_sanitizesPort()
+    {
+        final String actual = LogonCoordinator.getLockFileName(URI.create("http://localhost:8080/"));
+
+        Assert.assertEquals("http_localhost_8080.lock", actual);
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Action;
+import com.microsoft.alm.helpers.Func;
+import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenPair;
+import com.microsoft.alm.secret.TokenType;
+import com.microsoft.alm.secret.VsoTokenScope;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RenewalSchedulerTest
+{
+    private static final long OneHour = 60L * 60L * 1000L;
+    private static final long OneDay = 24L * OneHour;
+
+    private File indexFile;
+
+    @Before public void createIndexFile() throws IOException
+    {
+        indexFile = File.createTempFile("renewal", ".properties");
+        indexFile.delete();
+    }
+
+    @After public void deleteIndexFile()
+    {
+        indexFile.delete();
+        new File(indexFile.getPath() + ".lock").delete();
+    }
+
+    @Test public void renewDue_onlyRenewsTokensInsideTheWindow()
+    {
+        final URI dueUri = URI.create("https://due.visualstudio.com/");
+        final URI laterUri = URI.create("https://later.visualstudio.com/");
+        final long now = System.currentTimeMillis();
+        final RenewalIndex index = new RenewalIndex(indexFile);
+        index.record(new RenewalIndex.Entry(dueUri, RenewalIndex.MicrosoftAccount, Guid.Empty, now + OneHour));
+        index.record(new RenewalIndex.Entry(laterUri, RenewalIndex.MicrosoftAccount, Guid.Empty, now + 10 * OneDay));
+
+        final SecretCache personalAccessTokenStore = new SecretCache("test-pat");
+        final SecretCache refreshTokenStore = new SecretCache("test-ada");
+        refreshTokenStore.writeToken(dueUri, new Token("refresh-1", TokenType.Refresh));
+        refreshTokenStore.writeToken(laterUri, new Token("refresh-1", TokenType.Refresh));
+        final FakeVsoAuthority authority = new FakeVsoAuthority(now + 30 * OneDay);
+        final Func<RenewalIndex.Entry, BaseVsoAuthentication> factory = new Func<RenewalIndex.Entry, BaseVsoAuthentication>()
+        {
+            @Override public BaseVsoAuthentication call(final RenewalIndex.Entry entry)
+            {
+                return new VsoMsaAuthentication(personalAccessTokenStore, refreshTokenStore, new SecretCache("test-ide"), authority);
+            }
+        };
+        final RenewalScheduler cut = new RenewalScheduler(index, factory, OneDay, 2, 0);
+
+        final int actual = cut.renewDue();
+
+        Assert.assertEquals(1, actual);
+        Assert.assertEquals(1, authority.refreshCount.get());
+        final AtomicReference<Credential> credential = new AtomicReference<Credential>();
+        Assert.assertTrue(personalAccessTokenStore.readCredentials(dueUri, credential));
+        Assert.assertEquals("personal-access-token", credential.get().Password);
+        Assert.assertFalse(personalAccessTokenStore.readCredentials(laterUri, credential));
+        // the rotated refresh token replaces the one that was used
+        final AtomicReference<Token> refreshToken = new AtomicReference<Token>();
+        Assert.assertTrue(refreshTokenStore.readToken(dueUri, refreshToken));
+        Assert.assertEquals("refresh-2", refreshToken.get().Value);
+        // the index now reflects the new expiry, so nothing is due anymore
+        Assert.assertEquals(0, index.getEntriesDueBefore(now + OneDay).size());
+    }
+
+    @Test public void renewDue_nothingDue()
+    {
+        final RenewalIndex index = new RenewalIndex(indexFile);
+        final Func<RenewalIndex.Entry, BaseVsoAuthentication> factory = new Func<RenewalIndex.Entry, BaseVsoAuthentication>()
+        {
+            @Override public BaseVsoAuthentication call(final RenewalIndex.Entry entry)
+            {
+                throw new AssertionError("No authentication should have been needed.");
+            }
+        };
+        final RenewalScheduler cut = new RenewalScheduler(index, factory, OneDay, 4, 0);
+
+        Assert.assertEquals(0, cut.renewDue());
+    }
+
+    @Test public void index_roundTripsAndSkipsUnknownExpiry()
+    {
+        final URI targetUri = URI.create("https://example.visualstudio.com/");
+        final URI unknownUri = URI.create("https://unknown.visualstudio.com/");
+        final RenewalIndex writer = new RenewalIndex(indexFile);
+        writer.record(new RenewalIndex.Entry(targetUri, RenewalIndex.AzureDirectory, null, 42L));
+        writer.record(new RenewalIndex.Entry(unknownUri, RenewalIndex.MicrosoftAccount, null, RenewalIndex.Entry.Unknown));
+
+        final RenewalIndex reader = new RenewalIndex(indexFile);
+        final List<RenewalIndex.Entry> actual = reader.getEntriesDueBefore(Long.MAX_VALUE);
+
+        Assert.assertEquals(1, actual.size());
+        final RenewalIndex.Entry entry = actual.get(0);
+        Assert.assertEquals(targetUri, entry.TargetUri);
+        Assert.assertEquals(RenewalIndex.AzureDirectory, entry.Authority);
+        Assert.assertEquals(Guid.Empty, entry.TenantId);
+        Assert.assertEquals(42L, entry.ValidTo);
+
+        reader.remove(targetUri);
+        Assert.assertEquals(1, writer.getEntries().size());
+    }
+
+    @Test public void record_concurrentInstancesKeepEachOthersEntries() throws InterruptedException
+    {
+        final int threadCount = 4;
+        final int entriesPerThread = 25;
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            // each thread has an index of its own, as each process does
+            final RenewalIndex index = new RenewalIndex(indexFile);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    for (int i = 0; i < entriesPerThread; i++)
+                    {
+                        final URI targetUri = URI.create("https://account" + thread + "-" + i + ".visualstudio.com/");
+                        index.record(new RenewalIndex.Entry(targetUri, RenewalIndex.MicrosoftAccount, null, 42L));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Assert.assertEquals(threadCount * entriesPerThread, new RenewalIndex(indexFile).getEntries().size());
+    }
+
+    static class FakeVsoAuthority implements IVsoAuthority
+    {
+        final AtomicInteger refreshCount = new AtomicInteger();
+        private final long validTo;
+
+        FakeVsoAuthority(final long validTo)
+        {
+            this.validTo = validTo;
+        }
+
+        @Override public Token generatePersonalAccessToken(final URI targetUri, final Token accessToken, final VsoTokenScope tokenScope, final boolean requireCompactToken)
+        {
+            final Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(validTo);
+            return new PersonalAccessToken("personal-access-token", calendar);
+        }
+
+        @Override public boolean validateCredentials(final URI targetUri, final Credential credentials)
+        {
+            return true;
+        }
+
+        @Override public boolean validateToken(final URI targetUri, final Token token)
+        {
+            return true;
+        }
+
+        @Override public TokenPair acquireToken(final URI targetUri, final String clientId, final String resource, final URI redirectUri, final String queryParameters)
+        {
+            throw new AssertionError("Interactive logon should not be attempted.");
+        }
+
+        @Override public TokenPair acquireToken(final URI targetUri, final String clientId, final String resource, final Credential credentials)
+        {
+            throw new AssertionError("Logon should not be attempted.");
+        }
+
+        @Override public TokenPair acquireToken(final URI targetUri, final String clientId, final String resource, final URI redirectUri, final Action<DeviceFlowResponse> callback)
+        {
+            throw new AssertionError("Device logon should not be attempted.");
+        }
+
+        @Override public TokenPair acquireTokenByRefreshToken(final URI targetUri, final String clientId, final String resource, final Token refreshToken)
+        {
+            Assert.assertEquals("refresh-1", refreshToken.Value);
+            refreshCount.incrementAndGet();
+            return new TokenPair("access", "refresh-2");
+        }
+    }
+}
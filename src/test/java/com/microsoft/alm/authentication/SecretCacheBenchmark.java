@@ -0,0 +1,99 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures reads from, and writes to, the process-wide {@link SecretCache} with one thread
+ * alone and with three readers contending with a writer for its lock.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecretCacheBenchmark
+{
+    private static final int TargetCount = 64;
+
+    private final SecretCache cache = new SecretCache("git");
+    private final URI[] targetUris = new URI[TargetCount];
+    private final Credential credential = new Credential("douglas.adams", "42");
+
+    @Setup public void populate()
+    {
+        for (int i = 0; i < TargetCount; i++)
+        {
+            targetUris[i] = URI.create("https://account" + i + ".visualstudio.com/");
+            cache.writeCredentials(targetUris[i], credential);
+        }
+    }
+
+    /**
+     * Each thread cycles through the targets on its own.
+     */
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next;
+
+        URI nextTarget(final URI[] targetUris)
+        {
+            next = (next + 1) % targetUris.length;
+            return targetUris[next];
+        }
+    }
+
+    @Benchmark public Credential read(final Cursor cursor)
+    {
+        final AtomicReference<Credential> result = new AtomicReference<Credential>();
+        cache.readCredentials(cursor.nextTarget(targetUris), result);
+        return result.get();
+    }
+
+    @Benchmark public void write(final Cursor cursor)
+    {
+        cache.writeCredentials(cursor.nextTarget(targetUris), credential);
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(3) public Credential contendedRead(final Cursor cursor)
+    {
+        return read(cursor);
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(1) public void contendedWrite(final Cursor cursor)
+    {
+        write(cursor);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(SecretCacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
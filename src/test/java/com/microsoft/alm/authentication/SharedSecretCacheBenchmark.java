@@ -0,0 +1,112 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups in the {@link SharedSecretCache} by one thread alone, by several at once
+ * and by three readers while a writer keeps replacing the entry they read, so that they keep
+ * running into its sequence number being odd.  Each thread opens the cache on its own, as a
+ * helper process would, so writers take turns through the lock on the file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedSecretCacheBenchmark
+{
+    private static final String TargetName = "git:https://account.visualstudio.com";
+
+    private File folder;
+
+    @Setup public void createFolder() throws IOException
+    {
+        folder = File.createTempFile("shared-cache", "");
+        folder.delete();
+        final SharedSecretCacheTest.CountingSecureStore keyring = new SharedSecretCacheTest.CountingSecureStore();
+        final SharedSecretCache cache = new SharedSecretCache(keyring, folder, TimeUnit.HOURS.toMillis(1));
+        cache.writeCredential(TargetName, new Credential("PersonalAccessToken", "7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c"));
+        cache.close();
+    }
+
+    @TearDown public void deleteFolder()
+    {
+        new File(folder, SharedSecretCache.TableFileName).delete();
+        new File(folder, SharedSecretCache.KeyFileName).delete();
+        folder.delete();
+    }
+
+    /**
+     * The cache each thread opens, the way each helper process does.
+     */
+    @State(Scope.Thread)
+    public static class Instance
+    {
+        SharedSecretCache cache;
+        final Credential credential = new Credential("PersonalAccessToken", "7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c");
+
+        @Setup public void open(final SharedSecretCacheBenchmark benchmark) throws IOException
+        {
+            cache = new SharedSecretCache(new SharedSecretCacheTest.CountingSecureStore(), benchmark.folder, TimeUnit.HOURS.toMillis(1));
+        }
+
+        @TearDown public void close()
+        {
+            cache.close();
+        }
+    }
+
+    @Benchmark @Threads(1) public Credential read(final Instance instance)
+    {
+        return instance.cache.readCredentials(TargetName);
+    }
+
+    @Benchmark @Threads(4) public Credential concurrentRead(final Instance instance)
+    {
+        return instance.cache.readCredentials(TargetName);
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(3) public Credential contendedRead(final Instance instance)
+    {
+        return instance.cache.readCredentials(TargetName);
+    }
+
+    @Benchmark @Group("contended") @GroupThreads(1) public void contendedWrite(final Instance instance)
+    {
+        instance.cache.writeCredential(TargetName, instance.credential);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(SharedSecretCacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,292 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class SharedSecretCacheTest
+{
+    private static final String TargetName = "git:https://account.visualstudio.com";
+    private static final long TimeToLiveMillis = 60000;
+
+    private File folder;
+    private final List<SharedSecretCache> caches = new ArrayList<SharedSecretCache>();
+
+    /**
+     * Counts the reads that reach it, as the keyring would.
+     */
+    static class CountingSecureStore implements ISecureStore
+    {
+        final Map<String, Credential> credentials = new HashMap<String, Credential>();
+        final Map<String, Token> tokens = new HashMap<String, Token>();
+        int reads;
+
+        @Override public void delete(final String targetName)
+        {
+            credentials.remove(targetName);
+            tokens.remove(targetName);
+        }
+
+        @Override public Credential readCredentials(final String targetName)
+        {
+            reads++;
+            return credentials.get(targetName);
+        }
+
+        @Override public Token readToken(final String targetName)
+        {
+            reads++;
+            return tokens.get(targetName);
+        }
+
+        @Override public void writeCredential(final String targetName, final Credential credentials)
+        {
+            this.credentials.put(targetName, credentials);
+        }
+
+        @Override public void writeToken(final String targetName, final Token token)
+        {
+            tokens.put(targetName, token);
+        }
+    }
+
+    @Before public void createFolder() throws IOException
+    {
+        folder = File.createTempFile("shared-cache", "");
+        folder.delete();
+    }
+
+    @After public void deleteFolder()
+    {
+        for (final SharedSecretCache cache : caches)
+        {
+            cache.close();
+        }
+        final File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    private SharedSecretCache open(final ISecureStore backingStore, final long timeToLiveMillis) throws IOException
+    {
+        final SharedSecretCache result = new SharedSecretCache(backingStore, folder, timeToLiveMillis);
+        caches.add(result);
+        return result;
+    }
+
+    private static boolean contains(final File file, final String text) throws IOException
+    {
+        final byte[] bytes = new byte[(int) file.length()];
+        final FileInputStream stream = new FileInputStream(file);
+        try
+        {
+            int read = 0;
+            while (read < bytes.length)
+            {
+                read += stream.read(bytes, read, bytes.length - read);
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+        return new String(bytes, "ISO-8859-1").contains(text);
+    }
+
+    @Test public void readCredentials_sharedWithOtherInstances() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        keyring.writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+        final SharedSecretCache first = open(keyring, TimeToLiveMillis);
+        final SharedSecretCache second = open(keyring, TimeToLiveMillis);
+
+        Assert.assertEquals("correct horse battery staple", first.readCredentials(TargetName).Password);
+        Assert.assertEquals(1, keyring.reads);
+
+        final Credential actual = second.readCredentials(TargetName);
+
+        Assert.assertEquals(1, keyring.reads);
+        Assert.assertEquals("alice", actual.Username);
+        Assert.assertEquals("correct horse battery staple", actual.Password);
+    }
+
+    @Test public void readToken_sharedWithOtherInstances() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        final SharedSecretCache first = open(keyring, TimeToLiveMillis);
+        final SharedSecretCache second = open(keyring, TimeToLiveMillis);
+        final Token token = new Token("refresh-token", TokenType.Refresh);
+        token.setTargetIdentity(UUID.fromString("4f2b1d5e-3c6a-4e8b-9d7f-1a2b3c4d5e6f"));
+        first.writeToken(TargetName, token);
+
+        final Token actual = second.readToken(TargetName);
+
+        Assert.assertEquals(0, keyring.reads);
+        Assert.assertEquals("refresh-token", actual.Value);
+        Assert.assertEquals(TokenType.Refresh, actual.Type);
+        Assert.assertEquals(token.getTargetIdentity(), actual.getTargetIdentity());
+        // a token and a credential of the same name are different secrets
+        Assert.assertNull(second.readCredentials(TargetName));
+    }
+
+    @Test public void delete_forgottenByOtherInstances() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        final SharedSecretCache first = open(keyring, TimeToLiveMillis);
+        final SharedSecretCache second = open(keyring, TimeToLiveMillis);
+        first.writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+
+        first.delete(TargetName);
+
+        Assert.assertNull(second.readCredentials(TargetName));
+        Assert.assertEquals(1, keyring.reads);
+    }
+
+    @Test public void readCredentials_notCachedWhenDeletedWhileReading() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        keyring.writeCredential(TargetName, new Credential("alice", "rejected"));
+        final SharedSecretCache[] eraser = new SharedSecretCache[1];
+        // another process erases the credential after this one read it from the keyring
+        final CountingSecureStore racingKeyring = new CountingSecureStore()
+        {
+            @Override public Credential readCredentials(final String targetName)
+            {
+                final Credential result = keyring.readCredentials(targetName);
+                eraser[0].delete(targetName);
+                return result;
+            }
+        };
+        final SharedSecretCache reader = open(racingKeyring, TimeToLiveMillis);
+        eraser[0] = open(keyring, TimeToLiveMillis);
+
+        Assert.assertEquals("rejected", reader.readCredentials(TargetName).Password);
+
+        Assert.assertNull(eraser[0].readCredentials(TargetName));
+        Assert.assertEquals(2, keyring.reads);
+    }
+
+    @Test public void readCredentials_expiredEntriesReadAgain() throws IOException, InterruptedException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        keyring.writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+        final SharedSecretCache cut = open(keyring, 1);
+        cut.readCredentials(TargetName);
+        Thread.sleep(5);
+
+        cut.readCredentials(TargetName);
+
+        Assert.assertEquals(2, keyring.reads);
+    }
+
+    @Test public void writeCredential_encryptedAtRest() throws IOException
+    {
+        final SharedSecretCache cut = open(new CountingSecureStore(), TimeToLiveMillis);
+
+        cut.writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+
+        final File tableFile = new File(folder, SharedSecretCache.TableFileName);
+        Assert.assertFalse(contains(tableFile, "correct horse battery staple"));
+        Assert.assertFalse(contains(tableFile, "account.visualstudio.com"));
+    }
+
+    @Test public void readCredentials_tamperedEntryReadFromStore() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        final SharedSecretCache cut = open(keyring, TimeToLiveMillis);
+        cut.writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+        // flip a bit of the cipher text of every slot
+        final RandomAccessFile file = new RandomAccessFile(new File(folder, SharedSecretCache.TableFileName), "rw");
+        try
+        {
+            for (int slot = 1; slot <= SharedSecretCache.SlotCount; slot++)
+            {
+                final long offset = (long) slot * SharedSecretCache.SlotSize + SharedSecretCache.SlotSize - SharedSecretCache.MaxCipherTextLength;
+                file.seek(offset);
+                final int b = file.read();
+                file.seek(offset);
+                file.write(b ^ 1);
+            }
+        }
+        finally
+        {
+            file.close();
+        }
+
+        Assert.assertEquals("correct horse battery staple", cut.readCredentials(TargetName).Password);
+        Assert.assertEquals(1, keyring.reads);
+    }
+
+    @Test public void open_emptiesTableOfAnotherKey() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        open(keyring, TimeToLiveMillis).writeCredential(TargetName, new Credential("alice", "correct horse battery staple"));
+        Assert.assertTrue(new File(folder, SharedSecretCache.KeyFileName).delete());
+        keyring.credentials.clear();
+
+        final SharedSecretCache cut = open(keyring, TimeToLiveMillis);
+
+        Assert.assertNull(cut.readCredentials(TargetName));
+    }
+
+    @Test public void writeToken_tooLargeForSlotStillStored() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        final SharedSecretCache cut = open(keyring, TimeToLiveMillis);
+        final StringBuilder value = new StringBuilder();
+        while (value.length() <= SharedSecretCache.SlotSize)
+        {
+            value.append("eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9");
+        }
+        cut.writeToken(TargetName, new Token("short", TokenType.Access));
+
+        cut.writeToken(TargetName, new Token(value.toString(), TokenType.Access));
+
+        Assert.assertEquals(value.toString(), cut.readToken(TargetName).Value);
+        Assert.assertEquals(1, keyring.reads);
+    }
+
+    @Test public void writeCredential_fullTableEvictsSoonestToExpire() throws IOException
+    {
+        final CountingSecureStore keyring = new CountingSecureStore();
+        final SharedSecretCache cut = open(keyring, TimeToLiveMillis);
+        final int count = SharedSecretCache.SlotCount * 2;
+        for (int i = 0; i < count; i++)
+        {
+            cut.writeCredential("git:https://account" + i + ".visualstudio.com", new Credential("alice", Integer.toString(i)));
+        }
+
+        Assert.assertEquals(Integer.toString(count - 1), cut.readCredentials("git:https://account" + (count - 1) + ".visualstudio.com").Password);
+        Assert.assertEquals(0, keyring.reads);
+
+        // the ones evicted are read from the store
+        for (int i = 0; i < count; i++)
+        {
+            Assert.assertEquals(Integer.toString(i), cut.readCredentials("git:https://account" + i + ".visualstudio.com").Password);
+        }
+        Assert.assertTrue(keyring.reads >= count - SharedSecretCache.SlotCount);
+    }
+}
@@ -0,0 +1,173 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TargetPathIndexTest
+{
+    private static final URI Host = URI.create("https://dev.azure.com/");
+    private static final URI Organization = URI.create("https://dev.azure.com/contoso");
+    private static final URI Repository = URI.create("https://dev.azure.com/contoso/project/_git/repository");
+    private static final URI OtherOrganization = URI.create("https://dev.azure.com/fabrikam/project/_git/repository");
+
+    private File indexFile;
+
+    @Before public void createIndexFile() throws IOException
+    {
+        indexFile = File.createTempFile("paths", ".txt");
+        indexFile.delete();
+    }
+
+    @After public void deleteIndexFile()
+    {
+        indexFile.delete();
+        new File(indexFile.getPath() + ".lock").delete();
+    }
+
+    private static class MapSecureStore implements ISecureStore
+    {
+        final Map<String, Object> Secrets = new HashMap<String, Object>();
+
+        @Override public void delete(final String targetName)
+        {
+            Secrets.remove(targetName);
+        }
+
+        @Override public Credential readCredentials(final String targetName)
+        {
+            return (Credential) Secrets.get(targetName);
+        }
+
+        @Override public Token readToken(final String targetName)
+        {
+            return (Token) Secrets.get(targetName);
+        }
+
+        @Override public void writeCredential(final String targetName, final Credential credentials)
+        {
+            Secrets.put(targetName, credentials);
+        }
+
+        @Override public void writeToken(final String targetName, final Token token)
+        {
+            Secrets.put(targetName, token);
+        }
+    }
+
+    @Test public void findMostSpecific_fallsBackToHost()
+    {
+        final TargetPathIndex cut = new TargetPathIndex(indexFile);
+
+        Assert.assertEquals(Host, cut.findMostSpecific(Repository));
+        Assert.assertEquals(Host, cut.findMostSpecific(Host));
+    }
+
+    @Test public void findMostSpecific_closestAncestor()
+    {
+        final TargetPathIndex cut = new TargetPathIndex(indexFile);
+
+        cut.add(Organization);
+
+        Assert.assertEquals(Organization, cut.findMostSpecific(Repository));
+        Assert.assertEquals(Organization, cut.findMostSpecific(URI.create("https://dev.azure.com/CONTOSO/")));
+        Assert.assertEquals(Host, cut.findMostSpecific(OtherOrganization));
+        Assert.assertEquals(URI.create("http://dev.azure.com/"), cut.findMostSpecific(URI.create("http://dev.azure.com/contoso/project")));
+
+        cut.add(Repository);
+
+        Assert.assertEquals(Repository, cut.findMostSpecific(Repository));
+        Assert.assertEquals(Organization, cut.findMostSpecific(URI.create("https://dev.azure.com/contoso/project")));
+    }
+
+    @Test public void remove_revealsAncestor()
+    {
+        final TargetPathIndex cut = new TargetPathIndex(indexFile);
+        cut.add(Organization);
+        cut.add(Repository);
+
+        cut.remove(Repository);
+
+        Assert.assertEquals(Organization, cut.findMostSpecific(Repository));
+        Assert.assertEquals(1, cut.getTargets().size());
+    }
+
+    @Test public void add_sharedThroughFile()
+    {
+        final TargetPathIndex writer = new TargetPathIndex(indexFile);
+        final TargetPathIndex reader = new TargetPathIndex(indexFile);
+        Assert.assertEquals(Host, reader.findMostSpecific(Repository));
+
+        writer.add(Organization);
+
+        Assert.assertEquals(Organization, reader.findMostSpecific(Repository));
+    }
+
+    @Test public void add_concurrentInstancesKeepEachOthersTargets() throws InterruptedException
+    {
+        final int threadCount = 4;
+        final int targetsPerThread = 25;
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            // each thread has an index of its own, as each process does
+            final TargetPathIndex index = new TargetPathIndex(indexFile);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    for (int i = 0; i < targetsPerThread; i++)
+                    {
+                        index.add(URI.create("https://dev.azure.com/contoso" + thread + "/project" + i));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        Assert.assertEquals(threadCount * targetsPerThread, new TargetPathIndex(indexFile).getTargets().size());
+    }
+
+    @Test public void secretStore_organizationsDoNotCollide()
+    {
+        final MapSecureStore backingStore = new MapSecureStore();
+        final TargetPathIndex index = new TargetPathIndex(null);
+        final SecretStore cut = new SecretStore(backingStore, "path-test", null, null, null, index);
+        final Credential contoso = new Credential("contoso", "one");
+        final Credential fabrikam = new Credential("fabrikam", "two");
+        final AtomicReference<Credential> credentials = new AtomicReference<Credential>();
+
+        cut.writeCredentials(Organization, contoso);
+        cut.writeCredentials(OtherOrganization, fabrikam);
+
+        Assert.assertTrue(cut.readCredentials(Repository, credentials));
+        Assert.assertEquals("one", credentials.get().Password);
+        Assert.assertTrue(cut.readCredentials(OtherOrganization, credentials));
+        Assert.assertEquals("two", credentials.get().Password);
+        Assert.assertEquals(2, backingStore.Secrets.size());
+
+        // erasing through a repository removes what it was given
+        cut.deleteCredentials(Repository);
+
+        Assert.assertFalse(cut.readCredentials(Repository, credentials));
+        Assert.assertEquals(1, backingStore.Secrets.size());
+    }
+}
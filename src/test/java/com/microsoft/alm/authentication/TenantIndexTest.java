@@ -0,0 +1,137 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class TenantIndexTest
+{
+    private static final UUID Tenant = UUID.fromString("72f988bf-86f1-41af-91ab-2d7cd011db47");
+    private static final URI First = URI.create("https://first.visualstudio.com/");
+    private static final URI Second = URI.create("https://second.visualstudio.com/");
+
+    private File indexFile;
+
+    @Before public void createIndexFile() throws IOException
+    {
+        indexFile = File.createTempFile("tenants", ".properties");
+        indexFile.delete();
+    }
+
+    @After public void deleteIndexFile()
+    {
+        indexFile.delete();
+        new File(indexFile.getPath() + ".lock").delete();
+    }
+
+    @Test public void record_sharedThroughFileAndIgnoresPath()
+    {
+        final TenantIndex writer = new TenantIndex(indexFile);
+        final TenantIndex reader = new TenantIndex(indexFile);
+
+        writer.record(URI.create("https://First.visualstudio.com/DefaultCollection"), Tenant);
+        writer.record(Second, Guid.Empty);
+
+        Assert.assertEquals(Tenant, reader.find(First));
+        Assert.assertNull(reader.find(Second));
+        Assert.assertNull(reader.find(URI.create("https://first.visualstudio.com:8443/")));
+    }
+
+    @Test public void record_concurrentInstancesKeepEachOthersTenants() throws InterruptedException
+    {
+        final int threadCount = 4;
+        final int hostsPerThread = 25;
+        final UUID tenantId = UUID.fromString("4f2b1d5e-3c6a-4e8b-9d7f-1a2b3c4d5e6f");
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            // each thread has an index of its own, as each process does
+            final TenantIndex index = new TenantIndex(indexFile);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    for (int i = 0; i < hostsPerThread; i++)
+                    {
+                        index.record(URI.create("https://account" + thread + "-" + i + ".visualstudio.com/"), tenantId);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        final TenantIndex reader = new TenantIndex(indexFile);
+        for (int t = 0; t < threadCount; t++)
+        {
+            for (int i = 0; i < hostsPerThread; i++)
+            {
+                Assert.assertEquals(tenantId, reader.find(URI.create("https://account" + t + "-" + i + ".visualstudio.com/")));
+            }
+        }
+    }
+
+    @Test public void refreshCredentials_usesTheTenantsRefreshToken()
+    {
+        final SecretCache personalAccessTokenStore = new SecretCache("tenant-pat");
+        final SecretCache refreshTokenStore = new SecretCache("tenant-ada");
+        final RenewalSchedulerTest.FakeVsoAuthority authority = new RenewalSchedulerTest.FakeVsoAuthority(System.currentTimeMillis());
+        final TenantIndex index = new TenantIndex(indexFile);
+
+        // a logon to the first host shares its refresh token with the tenant
+        final VsoAadAuthentication first = new VsoAadAuthentication(personalAccessTokenStore, refreshTokenStore, new SecretCache("tenant-ide"), authority);
+        first.TenantId = Tenant;
+        first.setTenantIndex(index);
+        first.storeRefreshToken(First, new Token("refresh-1", TokenType.Refresh));
+        Assert.assertEquals(Tenant, index.find(First));
+
+        // the second host has no refresh token of its own, but belongs to the same tenant
+        final VsoAadAuthentication second = new VsoAadAuthentication(personalAccessTokenStore, refreshTokenStore, new SecretCache("tenant-ide"), authority);
+        second.TenantId = Tenant;
+        second.setTenantIndex(index);
+
+        Assert.assertTrue(second.refreshCredentials(Second, true));
+
+        Assert.assertEquals(1, authority.refreshCount.get());
+        final AtomicReference<Credential> credential = new AtomicReference<Credential>();
+        Assert.assertTrue(personalAccessTokenStore.readCredentials(Second, credential));
+        Assert.assertEquals("personal-access-token", credential.get().Password);
+        // the rotated refresh token replaces the tenant's, without a copy for the second host
+        final AtomicReference<Token> refreshToken = new AtomicReference<Token>();
+        Assert.assertTrue(refreshTokenStore.readToken(BaseVsoAuthentication.getTenantTarget(Tenant), refreshToken));
+        Assert.assertEquals("refresh-2", refreshToken.get().Value);
+        Assert.assertFalse(refreshTokenStore.readToken(Second, refreshToken));
+    }
+
+    @Test public void refreshCredentials_microsoftAccountsDoNotShare()
+    {
+        final SecretCache refreshTokenStore = new SecretCache("tenant-msa-ada");
+        final RenewalSchedulerTest.FakeVsoAuthority authority = new RenewalSchedulerTest.FakeVsoAuthority(System.currentTimeMillis());
+        final TenantIndex index = new TenantIndex(indexFile);
+        index.record(Second, Tenant);
+        refreshTokenStore.writeToken(BaseVsoAuthentication.getTenantTarget(Tenant), new Token("refresh-1", TokenType.Refresh));
+        final VsoMsaAuthentication cut = new VsoMsaAuthentication(new SecretCache("tenant-msa-pat"), refreshTokenStore, new SecretCache("tenant-msa-ide"), authority);
+        cut.setTenantIndex(index);
+
+        Assert.assertFalse(cut.refreshCredentials(Second, true));
+        Assert.assertEquals(0, authority.refreshCount.get());
+    }
+}
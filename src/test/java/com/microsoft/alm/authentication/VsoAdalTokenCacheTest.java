@@ -0,0 +1,206 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.NullUserAgent;
+import com.microsoft.alm.helpers.PropertyBag;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenPair;
+import com.microsoft.alm.secret.TokenType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+
+public class VsoAdalTokenCacheTest
+{
+    private static final String Authority = "https://login.microsoftonline.com/common";
+    private static final String Resource = "499b84ac-1321-427f-aa17-267ca6975798";
+    private static final String ClientId = "872cd9fa-d31f-45e0-9eab-6e460a02d1f1";
+
+    private File cacheFile;
+    private final SharedSecretCacheTest.CountingSecureStore keyStore = new SharedSecretCacheTest.CountingSecureStore();
+
+    @Before public void createCacheFile() throws IOException
+    {
+        cacheFile = File.createTempFile("adal-tokens", ".properties");
+        cacheFile.delete();
+    }
+
+    @After public void deleteCacheFile()
+    {
+        cacheFile.delete();
+        new File(cacheFile.getPath() + ".lock").delete();
+    }
+
+    private static TokenPair createTokens(final String accessToken, final String refreshToken, final int expiresInSeconds)
+    {
+        final PropertyBag bag = new PropertyBag();
+        bag.put("access_token", accessToken);
+        if (refreshToken != null)
+        {
+            bag.put("refresh_token", refreshToken);
+        }
+        bag.put("expires_in", Integer.toString(expiresInSeconds));
+        return new TokenPair(bag);
+    }
+
+    @Test public void find_keyedByTheNextRefreshToken()
+    {
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache();
+
+        cut.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", "refresh-2", 3600));
+
+        Assert.assertNull(cut.find(Authority, Resource, ClientId, "refresh-1"));
+        final TokenPair actual = cut.find(Authority + "/", Resource, ClientId, "refresh-2");
+        Assert.assertEquals("access-1", actual.AccessToken.Value);
+        Assert.assertTrue(actual.RefreshToken == null || actual.RefreshToken.Value == null);
+        Assert.assertNull(cut.find(Authority, "other-resource", ClientId, "refresh-2"));
+        Assert.assertNull(cut.find(Authority, Resource, "other-client", "refresh-2"));
+    }
+
+    @Test public void find_withoutRotation()
+    {
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache();
+
+        cut.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+
+        Assert.assertEquals("access-1", cut.find(Authority, Resource, ClientId, "refresh-1").AccessToken.Value);
+    }
+
+    @Test public void store_ignoresTokensAboutToExpire()
+    {
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache();
+
+        cut.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 60));
+        cut.store(Authority, Resource, ClientId, "refresh-2", new TokenPair("access-2", "refresh-3"));
+
+        Assert.assertNull(cut.find(Authority, Resource, ClientId, "refresh-1"));
+        Assert.assertNull(cut.find(Authority, Resource, ClientId, "refresh-3"));
+    }
+
+    @Test public void remove_forgetsRejectedToken()
+    {
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache(cacheFile, keyStore);
+        cut.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+
+        cut.remove("access-1");
+
+        Assert.assertNull(cut.find(Authority, Resource, ClientId, "refresh-1"));
+    }
+
+    @Test public void store_sharedThroughFile()
+    {
+        final VsoAdalTokenCache writer = new VsoAdalTokenCache(cacheFile, keyStore);
+        final VsoAdalTokenCache reader = new VsoAdalTokenCache(cacheFile, keyStore);
+        Assert.assertNull(reader.find(Authority, Resource, ClientId, "refresh-1"));
+
+        writer.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+
+        Assert.assertEquals("access-1", reader.find(Authority, Resource, ClientId, "refresh-1").AccessToken.Value);
+        Assert.assertTrue(cacheFile.canRead());
+    }
+
+    @Test public void store_concurrentInstancesKeepEachOthersTokens() throws InterruptedException
+    {
+        final int threadCount = 4;
+        final int tokensPerThread = 25;
+        // the key is created up front, as the secure store stand-in isn't thread-safe
+        new VsoAdalTokenCache(cacheFile, keyStore).store(Authority, Resource, ClientId, "refresh", createTokens("access", null, 3600));
+        final Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++)
+        {
+            final int thread = t;
+            // each thread has a cache of its own, as each process does
+            final VsoAdalTokenCache cache = new VsoAdalTokenCache(cacheFile, keyStore);
+            threads[t] = new Thread(new Runnable()
+            {
+                @Override public void run()
+                {
+                    for (int i = 0; i < tokensPerThread; i++)
+                    {
+                        cache.store(Authority, Resource, ClientId, "refresh-" + thread + "-" + i, createTokens("access-" + thread + "-" + i, null, 3600));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        final VsoAdalTokenCache reader = new VsoAdalTokenCache(cacheFile, keyStore);
+        for (int t = 0; t < threadCount; t++)
+        {
+            for (int i = 0; i < tokensPerThread; i++)
+            {
+                Assert.assertEquals("access-" + t + "-" + i, reader.find(Authority, Resource, ClientId, "refresh-" + t + "-" + i).AccessToken.Value);
+            }
+        }
+    }
+
+    @Test public void remove_notBroughtBackByAnotherInstance()
+    {
+        final VsoAdalTokenCache first = new VsoAdalTokenCache(cacheFile, keyStore);
+        final VsoAdalTokenCache second = new VsoAdalTokenCache(cacheFile, keyStore);
+        first.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+        Assert.assertEquals("access-1", second.find(Authority, Resource, ClientId, "refresh-1").AccessToken.Value);
+
+        first.remove("access-1");
+        second.store(Authority, Resource, ClientId, "refresh-2", createTokens("access-2", null, 3600));
+
+        final VsoAdalTokenCache reader = new VsoAdalTokenCache(cacheFile, keyStore);
+        Assert.assertNull(reader.find(Authority, Resource, ClientId, "refresh-1"));
+        Assert.assertEquals("access-2", reader.find(Authority, Resource, ClientId, "refresh-2").AccessToken.Value);
+    }
+
+    @Test public void store_encryptedAtRest() throws IOException
+    {
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache(cacheFile, keyStore);
+
+        cut.store(Authority, Resource, ClientId, "refresh-1", createTokens("eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9", null, 3600));
+
+        Assert.assertFalse(IOHelper.readFileToString(cacheFile).contains("eyJ0eXAiOiJKV1QiLCJhbGciOiJSUzI1NiJ9"));
+        Assert.assertNotNull(keyStore.readCredentials(VsoAdalTokenCache.KeyTargetName));
+    }
+
+    @Test public void find_fileOfAnotherKeyIgnored()
+    {
+        new VsoAdalTokenCache(cacheFile, keyStore).store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+        keyStore.delete(VsoAdalTokenCache.KeyTargetName);
+
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache(cacheFile, keyStore);
+
+        Assert.assertNull(cut.find(Authority, Resource, ClientId, "refresh-1"));
+    }
+
+    @Test public void getState_roundTrips()
+    {
+        final VsoAdalTokenCache original = new VsoAdalTokenCache();
+        original.store(Authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+
+        final VsoAdalTokenCache cut = new VsoAdalTokenCache(original.getState());
+
+        Assert.assertEquals("access-1", cut.find(Authority, Resource, ClientId, "refresh-1").AccessToken.Value);
+    }
+
+    @Test public void acquireTokenByRefreshToken_skipsTokenEndpoint()
+    {
+        // the authority doesn't exist; only the cache can answer
+        final String authority = "https://authority.invalid/common";
+        final VsoAdalTokenCache cache = new VsoAdalTokenCache();
+        cache.store(authority, Resource, ClientId, "refresh-1", createTokens("access-1", null, 3600));
+        final AzureAuthority cut = new AzureAuthority(authority, NullUserAgent.INSTANCE, new AzureDeviceFlow(), cache);
+
+        final TokenPair actual = cut.acquireTokenByRefreshToken(URI.create("https://example.visualstudio.com/"), ClientId, Resource, new Token("refresh-1", TokenType.Refresh));
+
+        Assert.assertEquals("access-1", actual.AccessToken.Value);
+    }
+}
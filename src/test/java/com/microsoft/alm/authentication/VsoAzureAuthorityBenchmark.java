@@ -0,0 +1,74 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.authentication;
+
+import com.microsoft.alm.secret.Token;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.net.URI;
+import java.util.Calendar;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the helpers that pick the interesting fields out of the service's JSON responses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VsoAzureAuthorityBenchmark
+{
+    private static final String SessionTokenResponse = "{\"clientId\":\"00000000-0000-0000-0000-000000000000\",\"accessId\":\"9a2f1c8e-2e5b-4d6a-8b7c-0d1e2f3a4b5c\",\"authorizationId\":\"3c4d5e6f-7a8b-9c0d-1e2f-3a4b5c6d7e8f\",\"hostAuthorizationId\":\"00000000-0000-0000-0000-000000000000\",\"userId\":\"c5ba2ee4-4e72-4b2d-9b2b-e1d8d5a2c44a\",\"validFrom\":\"2017-06-14T18:57:07.87Z\",\"validTo\":\"2018-06-14T18:57:07.87Z\",\"displayName\":\"Git: https://example.visualstudio.com on MACHINE\",\"scope\":\"vso.code_write vso.packaging\",\"targetAccounts\":[\"ca576a7c-5ab5-424e-91ba-66c86e0fff0d\"],\"token\":\"7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c\",\"alternateToken\":null,\"isValid\":true}";
+    private static final String LocationResponse = "{\"id\":\"e81700f7-3be2-46de-8624-2eb35882fcaa\",\"name\":\"Microsoft.VisualStudio.Services.SPS\",\"location\":\"https://app.vssps.visualstudio.com/\",\"serviceOwner\":\"951917ac-a960-4999-8464-e3f0aa25b381\"}";
+
+    private String connectionData;
+
+    @Setup public void createConnectionData()
+    {
+        connectionData = JsonFieldExtractorBenchmark.createConnectionData(300);
+    }
+
+    @Benchmark public Token parsePersonalAccessTokenFromJson()
+    {
+        return VsoAzureAuthority.parsePersonalAccessTokenFromJson(SessionTokenResponse);
+    }
+
+    @Benchmark public String parseInstanceIdFromJson()
+    {
+        return VsoAzureAuthority.parseInstanceIdFromJson(connectionData);
+    }
+
+    @Benchmark public URI parseLocationFromJson()
+    {
+        return VsoAzureAuthority.parseLocationFromJson(LocationResponse);
+    }
+
+    @Benchmark public Calendar parseIso8601()
+    {
+        return VsoAzureAuthority.parseIso8601("2017-06-14T18:57:07.87+02:00");
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(VsoAzureAuthorityBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,151 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long Git waits for credentials when the cache server isn't running yet and
+ * systemd starts it on the first request, as its socket unit does.  systemd-socket-activate
+ * plays the part of systemd: it listens to the socket and, once a client connects, starts a
+ * new JVM running the {@code serve} command and passes the socket on to it.
+ * <p>
+ * For each run, the first request is timed from the moment the client connects until it has
+ * its response, which includes starting the JVM and reading the credentials from the secret
+ * store; the second request, answered from memory, is timed for comparison.
+ *
+ * <pre>
+ * mvn -Pactivation verify -DskipTests [-Dactivation.runs=20]
+ * </pre>
+ */
+public class ActivationLatencyBenchmark
+{
+    private static final String ServeArgument = "--serve";
+    private static final String Activator = "systemd-socket-activate";
+    private static final long StartTimeoutMillis = 10000;
+    private static final String[] Requests = {"first", "second"};
+
+    public static void main(final String[] args) throws Exception
+    {
+        if (args.length == 2 && ServeArgument.equals(args[0]))
+        {
+            serve(new File(args[1]));
+            return;
+        }
+
+        final int runs = Integer.getInteger("activation.runs", 10);
+        if (!isActivatorAvailable())
+            throw new IllegalStateException(Activator + " is needed to start the server like systemd does.");
+
+        final File workFolder = ProgramLatencyBenchmark.createWorkFolder();
+        ProgramLatencyBenchmark.seedSecrets(workFolder);
+
+        final Map<String, TraceAnalyzer.PhaseSummary> results = new LinkedHashMap<String, TraceAnalyzer.PhaseSummary>();
+        for (final String request : Requests)
+        {
+            results.put(request, new TraceAnalyzer.PhaseSummary(request));
+        }
+        for (int i = 0; i < runs; i++)
+        {
+            measure(workFolder, results);
+        }
+        print(runs, results, System.out);
+    }
+
+    static boolean isActivatorAvailable()
+    {
+        try
+        {
+            return new ProcessBuilder(Activator, "--help").start().waitFor() == 0;
+        }
+        catch (final Exception e)
+        {
+            return false;
+        }
+    }
+
+    static void measure(final File workFolder, final Map<String, TraceAnalyzer.PhaseSummary> results) throws IOException, InterruptedException
+    {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        final String classPath = System.getProperty("java.class.path");
+        // socket paths are limited to about a hundred bytes, so the folder must be short
+        final File socketFolder = File.createTempFile("gcm", "");
+        if (!socketFolder.delete() || !socketFolder.mkdir())
+            throw new IOException("Unable to create " + socketFolder);
+        final File socketPath = new File(socketFolder, "socket");
+
+        final ProcessBuilder builder = new ProcessBuilder(Activator,
+            "--listen=" + socketPath.getAbsolutePath(),
+            java,
+            "-Duser.home=" + workFolder.getAbsolutePath(),
+            "-cp", classPath,
+            ActivationLatencyBenchmark.class.getName(),
+            ServeArgument, workFolder.getAbsolutePath());
+        builder.directory(workFolder);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        final ProgramLatencyBenchmark.StreamCollector output = new ProgramLatencyBenchmark.StreamCollector(process.getInputStream());
+        output.start();
+        try
+        {
+            final long deadline = System.currentTimeMillis() + StartTimeoutMillis;
+            while (!socketPath.exists())
+            {
+                if (System.currentTimeMillis() > deadline)
+                    throw new IllegalStateException(Activator + " didn't create its socket:\n" + output.getText());
+                Thread.sleep(5);
+            }
+
+            final String request = ProgramLatencyBenchmark.Scenario.Basic.getRequest();
+            for (final String name : Requests)
+            {
+                final long startNanos = System.nanoTime();
+                final String response = CredentialCacheServerTest.request(socketPath, "action=get\ntimeout=900\n" + request);
+                final long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+                if (!response.contains("password="))
+                    throw new IllegalStateException("The " + name + " request returned no credentials:\n" + response + output.getText());
+                results.get(name).add(micros, "");
+            }
+
+            CredentialCacheServerTest.request(socketPath, "action=exit\ntimeout=-1\n\n");
+            process.waitFor();
+        }
+        finally
+        {
+            process.destroy();
+            output.join();
+            socketPath.delete();
+            socketFolder.delete();
+        }
+    }
+
+    static void print(final int runs, final Map<String, TraceAnalyzer.PhaseSummary> results, final PrintStream out)
+    {
+        out.println(String.format("%1$d run(s); durations in milliseconds", runs));
+        out.println(String.format("%1$-8s %2$10s %3$10s %4$10s", "request", "p50", "p95", "max"));
+        for (final TraceAnalyzer.PhaseSummary summary : results.values())
+        {
+            out.println(String.format("%1$-8s %2$10.3f %3$10.3f %4$10.3f",
+                summary.Phase,
+                summary.getPercentile(50) / 1000.0,
+                summary.getPercentile(95) / 1000.0,
+                summary.getPercentile(100) / 1000.0));
+        }
+    }
+
+    /**
+     * Runs the server the way the service unit does, except that secrets are read from the
+     * benchmark's file instead of the keyring.
+     */
+    static void serve(final File workFolder) throws Exception
+    {
+        final Program program = new Program(System.in, System.out, new ProgramLatencyBenchmark.ComponentFactory(workFolder));
+        program.innerMain(new String[]{"serve"});
+    }
+}
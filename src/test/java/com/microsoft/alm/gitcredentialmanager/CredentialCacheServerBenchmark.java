@@ -0,0 +1,132 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.secret.Credential;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many {@code get} requests the credential cache server answers from memory,
+ * through its socket as Git's credential-cache client sends them, and without the socket,
+ * which is the cost of the protocol and of the lookup alone.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CredentialCacheServerBenchmark
+{
+    private static final String Charset = "UTF-8";
+
+    /**
+     * The number of cached credentials, the one looked up being the last.
+     */
+    @Param({"1", "100"})
+    public int entries;
+
+    private CredentialCacheServer server;
+    private RequestScheduler scheduler;
+    private Thread acceptThread;
+    private File socketFolder;
+    private File socketPath;
+    private String getRequest;
+    private byte[] getRequestBytes;
+
+    @Setup public void startServer() throws IOException
+    {
+        server = new CredentialCacheServer(new CredentialCacheServer.Backend()
+        {
+            @Override public Credential get(final OperationArguments operationArguments)
+            {
+                return null;
+            }
+
+            @Override public void store(final OperationArguments operationArguments)
+            {
+            }
+
+            @Override public void erase(final OperationArguments operationArguments)
+            {
+            }
+        });
+        for (int i = 0; i < entries; i++)
+        {
+            final String store = "action=store\ntimeout=3600\nprotocol=https\nhost=account" + i + ".visualstudio.com\nusername=PersonalAccessToken\npassword=7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c" + i + "\n\n";
+            server.handle(new ByteArrayInputStream(store.getBytes(Charset)), new ByteArrayOutputStream());
+        }
+        getRequest = "action=get\ntimeout=3600\nprotocol=https\nhost=account" + (entries - 1) + ".visualstudio.com\n\n";
+        getRequestBytes = getRequest.getBytes(Charset);
+
+        socketFolder = File.createTempFile("gcm", "");
+        socketFolder.delete();
+        socketPath = new File(socketFolder, "socket");
+        final UnixDomainSocket listener = CredentialCacheServer.listen(socketPath, 64);
+        scheduler = new RequestScheduler(8, 8, 1);
+        acceptThread = new Thread()
+        {
+            @Override public void run()
+            {
+                server.run(listener, socketPath, scheduler);
+            }
+        };
+        acceptThread.start();
+    }
+
+    @TearDown public void stopServer() throws InterruptedException
+    {
+        server.stop();
+        acceptThread.join(5000);
+        scheduler.shutdown();
+        socketFolder.delete();
+    }
+
+    @Benchmark public byte[] handle() throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(128);
+        server.handle(new ByteArrayInputStream(getRequestBytes), output);
+        return output.toByteArray();
+    }
+
+    @Benchmark @Threads(1) public String socketSingleClient() throws IOException
+    {
+        return CredentialCacheServerTest.request(socketPath, getRequest);
+    }
+
+    @Benchmark @Threads(8) public String socketConcurrentClients() throws IOException
+    {
+        return CredentialCacheServerTest.request(socketPath, getRequest);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(CredentialCacheServerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
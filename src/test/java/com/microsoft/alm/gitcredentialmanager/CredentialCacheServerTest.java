@@ -0,0 +1,584 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.secret.Credential;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class CredentialCacheServerTest
+{
+    private static final String Charset = "UTF-8";
+
+    private File socketFolder;
+    private File socketPath;
+
+    @Before public void createSocketFolder() throws IOException
+    {
+        socketFolder = File.createTempFile("gcm", "");
+        socketFolder.delete();
+        socketPath = new File(socketFolder, "socket");
+    }
+
+    @After public void deleteSocketFolder()
+    {
+        socketPath.delete();
+        socketFolder.delete();
+    }
+
+    static class RecordingBackend implements CredentialCacheServer.Backend
+    {
+        final List<String> Calls = new ArrayList<String>();
+        Credential Result;
+
+        @Override public synchronized Credential get(final OperationArguments operationArguments)
+        {
+            Calls.add("get " + operationArguments.TargetUri);
+            return Result;
+        }
+
+        @Override public synchronized void store(final OperationArguments operationArguments)
+        {
+            Calls.add("store " + operationArguments.TargetUri + " " + operationArguments.getPassword());
+        }
+
+        @Override public synchronized void erase(final OperationArguments operationArguments)
+        {
+            Calls.add("erase " + operationArguments.TargetUri);
+        }
+    }
+
+    private static String handle(final CredentialCacheServer cut, final String request) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        cut.handle(new ByteArrayInputStream(request.getBytes(Charset)), output);
+        return output.toString(Charset);
+    }
+
+    @Test public void get_storedCredentialIsAnsweredFromMemory() throws IOException
+    {
+        final RecordingBackend backend = new RecordingBackend();
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+
+        Assert.assertEquals("", handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n"));
+        final String actual = handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n");
+
+        Assert.assertEquals("username=alice\npassword=secret\n", actual);
+        Assert.assertEquals(1, backend.Calls.size());
+        Assert.assertEquals("store https://example.com/ secret", backend.Calls.get(0));
+    }
+
+    @Test public void get_missIsPassedOnAndCached() throws IOException
+    {
+        final RecordingBackend backend = new RecordingBackend();
+        backend.Result = new Credential("PersonalAccessToken", "minted");
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+        final String request = "action=get\ntimeout=900\nprotocol=https\nhost=contoso.visualstudio.com\n";
+
+        Assert.assertEquals("username=PersonalAccessToken\npassword=minted\n", handle(cut, request));
+        Assert.assertEquals("username=PersonalAccessToken\npassword=minted\n", handle(cut, request));
+
+        Assert.assertEquals(1, backend.Calls.size());
+    }
+
+    @Test public void get_unknownCredentialHasAnEmptyResponse() throws IOException
+    {
+        final RecordingBackend backend = new RecordingBackend();
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+
+        Assert.assertEquals("", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n"));
+        Assert.assertEquals(0, cut.size());
+    }
+
+    @Test public void get_matchesLikeGit() throws IOException
+    {
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\npath=team/repo.git\nusername=alice\npassword=secret\n\n");
+
+        // fields the request leaves out match anything
+        Assert.assertEquals("username=alice\npassword=secret\n", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n"));
+        Assert.assertEquals("", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\npath=other/repo.git\n\n"));
+        Assert.assertEquals("", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\nusername=bob\n\n"));
+        Assert.assertEquals("", handle(cut, "action=get\ntimeout=900\nprotocol=http\nhost=example.com\n\n"));
+    }
+
+    @Test public void store_timeoutExpires() throws IOException
+    {
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+
+        handle(cut, "action=store\ntimeout=0\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+
+        Assert.assertEquals(0, cut.size());
+    }
+
+    @Test public void store_partialCredentialIsIgnored() throws IOException
+    {
+        final RecordingBackend backend = new RecordingBackend();
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+
+        handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\n\n");
+
+        Assert.assertEquals(0, cut.size());
+        Assert.assertEquals(0, backend.Calls.size());
+    }
+
+    @Test public void erase_matchesThePassword() throws IOException
+    {
+        final RecordingBackend backend = new RecordingBackend();
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+        handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+
+        handle(cut, "action=erase\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=stale\n\n");
+        Assert.assertEquals(1, cut.size());
+
+        handle(cut, "action=erase\ntimeout=900\nprotocol=https\nhost=example.com\n\n");
+        Assert.assertEquals(0, cut.size());
+        Assert.assertEquals("erase https://example.com/", backend.Calls.get(backend.Calls.size() - 1));
+    }
+
+    @Test public void trim_dropsTheCredentialsThatExpireSoonest() throws IOException
+    {
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        for (int i = 1; i <= 4; i++)
+        {
+            handle(cut, "action=store\ntimeout=" + i * 100 + "\nprotocol=https\nhost=host" + i + ".example.com\nusername=alice\npassword=secret" + i + "\n\n");
+        }
+
+        Assert.assertEquals(2, cut.trim());
+
+        Assert.assertEquals(2, cut.size());
+        Assert.assertEquals("", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=host2.example.com\n\n"));
+        Assert.assertEquals("username=alice\npassword=secret3\n", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=host3.example.com\n\n"));
+        Assert.assertEquals("username=alice\npassword=secret4\n", handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=host4.example.com\n\n"));
+    }
+
+    @Test public void handle_metricsAreWrittenForPrometheus() throws IOException
+    {
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+        handle(cut, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n");
+
+        final String actual = handle(cut, "action=metrics\ntimeout=0\n\n");
+
+        Assert.assertTrue(actual, actual.contains("# TYPE gcm_cache_server_requests_total counter\n"));
+        Assert.assertTrue(actual, actual.contains(CredentialCacheServer.CacheHits + " "));
+        Assert.assertTrue(actual, actual.contains("# TYPE gcm_cache_server_request_duration_seconds histogram\n"));
+    }
+
+    @Test public void readResidentBytes_isPositive()
+    {
+        Assert.assertTrue(CredentialCacheServer.readResidentBytes() > 0);
+    }
+
+    @Test public void handle_exitAndBogusRequests() throws IOException
+    {
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+
+        Assert.assertFalse(cut.handle(new ByteArrayInputStream("action=exit\ntimeout=-1\n\n".getBytes(Charset)), new ByteArrayOutputStream()));
+        Assert.assertTrue(cut.handle(new ByteArrayInputStream("protocol=https\n".getBytes(Charset)), new ByteArrayOutputStream()));
+        Assert.assertTrue(cut.handle(new ByteArrayInputStream("action=get\nprotocol=https\n".getBytes(Charset)), new ByteArrayOutputStream()));
+        Assert.assertEquals("", handle(cut, "action=frobnicate\ntimeout=900\nprotocol=https\nhost=example.com\n\n"));
+    }
+
+    static String request(final File socketPath, final String request) throws IOException
+    {
+        final UnixDomainSocket socket = UnixDomainSocket.connect(socketPath);
+        try
+        {
+            final OutputStream output = socket.getOutputStream();
+            output.write(request.getBytes(Charset));
+            // like Git's client, which then reads the response up to the end of the stream
+            socket.shutdownOutput();
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[256];
+            int count;
+            while ((count = input.read(buffer, 0, buffer.length)) != -1)
+            {
+                response.write(buffer, 0, count);
+            }
+            return response.toString(Charset);
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    private Thread startServer(final CredentialCacheServer cut, final RequestScheduler scheduler) throws IOException
+    {
+        final UnixDomainSocket listener = CredentialCacheServer.listen(socketPath, 16);
+        final Thread thread = new Thread()
+        {
+            @Override public void run()
+            {
+                cut.run(listener, socketPath, scheduler);
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    @Test public void run_overUnixDomainSocket() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        final RequestScheduler scheduler = new RequestScheduler(2, 2, 1);
+        final Thread thread = startServer(cut, scheduler);
+        try
+        {
+            Assert.assertTrue(CredentialCacheServer.isListening(socketPath));
+
+            request(socketPath, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+            final String actual = request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n");
+            Assert.assertEquals("username=alice\npassword=secret\n", actual);
+
+            request(socketPath, "action=exit\ntimeout=-1\n\n");
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+            Assert.assertFalse(socketPath.exists());
+        }
+        finally
+        {
+            cut.stop();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void listen_refusesToStealALiveSocket() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+        final Thread thread = startServer(cut, scheduler);
+        try
+        {
+            CredentialCacheServer.listen(socketPath, 16);
+            Assert.fail("A second server should not have been able to listen.");
+        }
+        catch (final IOException expected)
+        {
+            Assert.assertTrue(socketPath.exists());
+        }
+        finally
+        {
+            cut.stop();
+            thread.join(5000);
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void run_slowHostDoesNotHoldUpOthers() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CountDownLatch slowHostStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlowHost = new CountDownLatch(1);
+        final RecordingBackend backend = new RecordingBackend()
+        {
+            @Override public Credential get(final OperationArguments operationArguments)
+            {
+                if ("slow.example.com".equals(operationArguments.Host))
+                {
+                    slowHostStarted.countDown();
+                    try
+                    {
+                        releaseSlowHost.await();
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        throw new Error(e);
+                    }
+                }
+                return new Credential("PersonalAccessToken", "minted-for-" + operationArguments.Host);
+            }
+        };
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+        // one thread per lane: only the hand-over to the network lane keeps the others moving
+        final RequestScheduler scheduler = new RequestScheduler(1, 2, 1);
+        final Thread thread = startServer(cut, scheduler);
+        final ExecutorService clients = Executors.newSingleThreadExecutor();
+        try
+        {
+            request(socketPath, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+            final Future<String> slow = clients.submit(new Callable<String>()
+            {
+                @Override public String call() throws IOException
+                {
+                    return request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=slow.example.com\n\n");
+                }
+            });
+            Assert.assertTrue(slowHostStarted.await(5, TimeUnit.SECONDS));
+
+            Assert.assertEquals("username=alice\npassword=secret\n", request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n"));
+            Assert.assertEquals("username=PersonalAccessToken\npassword=minted-for-fast.example.com\n", request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=fast.example.com\n\n"));
+            Assert.assertFalse(slow.isDone());
+
+            releaseSlowHost.countDown();
+            Assert.assertEquals("username=PersonalAccessToken\npassword=minted-for-slow.example.com\n", slow.get(5, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            releaseSlowHost.countDown();
+            clients.shutdownNow();
+            cut.stop();
+            thread.join(5000);
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void run_exitsOnceIdle() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        cut.setIdleTimeout(300);
+        final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+        final Thread thread = startServer(cut, scheduler);
+        try
+        {
+            // a request starts the timeout over
+            Thread.sleep(150);
+            request(socketPath, "action=store\ntimeout=900\nprotocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+            Thread.sleep(200);
+            Assert.assertTrue(thread.isAlive());
+
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+            Assert.assertFalse(socketPath.exists());
+        }
+        finally
+        {
+            cut.stop();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void run_trimsOverMemoryLimit() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        for (int i = 1; i <= 4; i++)
+        {
+            handle(cut, "action=store\ntimeout=900\nprotocol=https\nhost=host" + i + ".example.com\nusername=alice\npassword=secret\n\n");
+        }
+        cut.setMemoryLimit(1);
+        final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+        final Thread thread = startServer(cut, scheduler);
+        try
+        {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (cut.size() > 2 && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(2, cut.size());
+        }
+        finally
+        {
+            cut.stop();
+            thread.join(5000);
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void stop_leavesSystemdSocketInPlace() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final CredentialCacheServer cut = new CredentialCacheServer(new RecordingBackend());
+        final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+        // like a socket passed on by systemd: the server neither knows nor owns its path
+        final UnixDomainSocket listener = CredentialCacheServer.listen(socketPath, 16);
+        final Thread thread = new Thread()
+        {
+            @Override public void run()
+            {
+                cut.run(listener, null, scheduler);
+            }
+        };
+        thread.start();
+        try
+        {
+            Assert.assertEquals("", request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n"));
+
+            cut.stop();
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+            Assert.assertTrue(socketPath.exists());
+        }
+        finally
+        {
+            cut.stop();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test public void inherit_onlyTakesOverSocketsMeantForThisProcess()
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+
+        Assert.assertNull(UnixDomainSocket.inherit(null, null));
+        Assert.assertNull(UnixDomainSocket.inherit("1", "1"));
+        Assert.assertNull(UnixDomainSocket.inherit("not-a-pid", "1"));
+    }
+
+    /**
+     * Runs the launcher the packages install the way the socket unit does, through
+     * systemd-socket-activate, with a stand-in for java that reports whether the socket was
+     * meant for it, which it only is if the launcher didn't start java as a child.
+     */
+    @Test public void launcher_passesSystemdSocketOnToJava() throws Exception
+    {
+        final File launcher = new File(System.getProperty("basedir", System.getProperty("user.dir")), "templates/git-credential-manager");
+        if (!UnixDomainSocket.isSupported() || !launcher.isFile() || !ActivationLatencyBenchmark.isActivatorAvailable())
+            return;
+        final File javaHome = new File(socketFolder, "jre");
+        final File java = new File(new File(javaHome, "bin"), "java");
+        Assert.assertTrue(java.getParentFile().mkdirs());
+        final FileOutputStream script = new FileOutputStream(java);
+        try
+        {
+            script.write(("#!/bin/sh\n"
+                + "if [ \"$LISTEN_PID\" = \"$$\" ]; then echo \"socket passed on: $*\"; else echo \"socket lost: $*\"; fi\n").getBytes(Charset));
+        }
+        finally
+        {
+            script.close();
+        }
+        Assert.assertTrue(java.setExecutable(true));
+
+        // like systemd, systemd-socket-activate only passes on the environment it's told to
+        final ProcessBuilder builder = new ProcessBuilder("systemd-socket-activate",
+            "--listen=" + socketPath.getAbsolutePath(),
+            "--setenv=JAVA_HOME=" + javaHome.getAbsolutePath(),
+            "sh", launcher.getAbsolutePath(), "serve");
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        try
+        {
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (!socketPath.exists() && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(5);
+            }
+            try
+            {
+                // the stand-in exits without answering
+                request(socketPath, "action=get\ntimeout=900\nprotocol=https\nhost=example.com\n\n");
+            }
+            catch (final IOException ignored)
+            {
+            }
+            final String output = readAll(process.getInputStream());
+            process.waitFor();
+
+            Assert.assertTrue(output, output.contains("socket passed on: "));
+            Assert.assertTrue(output, output.contains(" serve"));
+        }
+        finally
+        {
+            process.destroy();
+            java.delete();
+            java.getParentFile().delete();
+            javaHome.delete();
+        }
+    }
+
+    private static String readAll(final InputStream stream) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try
+        {
+            final byte[] buffer = new byte[256];
+            int count;
+            while ((count = stream.read(buffer)) != -1)
+            {
+                output.write(buffer, 0, count);
+            }
+        }
+        finally
+        {
+            IOHelper.closeQuietly(stream);
+        }
+        return output.toString(Charset);
+    }
+
+    private static String runGit(final File socketPath, final String action, final String input) throws IOException, InterruptedException
+    {
+        final ProcessBuilder builder = new ProcessBuilder("git", "credential-cache", "--socket", socketPath.getPath(), action);
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        final OutputStream stdin = process.getOutputStream();
+        stdin.write(input.getBytes(Charset));
+        stdin.close();
+        final String output = readAll(process.getInputStream());
+        process.waitFor();
+        return output;
+    }
+
+    private static boolean isGitAvailable()
+    {
+        try
+        {
+            return new ProcessBuilder("git", "--version").start().waitFor() == 0;
+        }
+        catch (final Exception e)
+        {
+            return false;
+        }
+    }
+
+    @Test public void run_answersGitsOwnClient() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported() || !isGitAvailable())
+            return;
+        final RecordingBackend backend = new RecordingBackend();
+        final CredentialCacheServer cut = new CredentialCacheServer(backend);
+        final RequestScheduler scheduler = new RequestScheduler(2, 2, 1);
+        final Thread thread = startServer(cut, scheduler);
+        try
+        {
+            runGit(socketPath, "store", "protocol=https\nhost=example.com\nusername=alice\npassword=secret\n\n");
+            final String actual = runGit(socketPath, "get", "protocol=https\nhost=example.com\n\n");
+            Assert.assertTrue(actual, actual.contains("username=alice\n"));
+            Assert.assertTrue(actual, actual.contains("password=secret\n"));
+
+            runGit(socketPath, "erase", "protocol=https\nhost=example.com\n\n");
+            Assert.assertEquals("", runGit(socketPath, "get", "protocol=https\nhost=example.com\n\n"));
+
+            runGit(socketPath, "exit", "");
+            thread.join(5000);
+            Assert.assertFalse(thread.isAlive());
+        }
+        finally
+        {
+            cut.stop();
+            scheduler.shutdown();
+        }
+    }
+}
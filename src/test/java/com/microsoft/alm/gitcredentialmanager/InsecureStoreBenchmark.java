@@ -0,0 +1,82 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Token;
+import com.microsoft.alm.secret.TokenType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures serializing the insecure store's file, which is rewritten on every change,
+ * and reading it back, which happens on every operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InsecureStoreBenchmark
+{
+    /**
+     * The number of tokens and of credentials in the store.
+     */
+    @Param({"1", "20"})
+    public int entries;
+
+    private InsecureStore store;
+    private byte[] xml;
+
+    @Setup public void populate()
+    {
+        store = new InsecureStore(null);
+        for (int i = 0; i < entries; i++)
+        {
+            store.writeToken("git:https://account" + i + ".visualstudio.com", new Token("7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c" + i, TokenType.Personal));
+            store.writeCredential("git:https://server" + i + ".example.com", new Credential("douglas.adams", "42"));
+        }
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        store.toXml(baos);
+        xml = baos.toByteArray();
+    }
+
+    @Benchmark public byte[] toXml()
+    {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream(xml.length);
+        store.toXml(baos);
+        return baos.toByteArray();
+    }
+
+    @Benchmark public InsecureStore fromXml()
+    {
+        return InsecureStore.fromXml(new ByteArrayInputStream(xml));
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(InsecureStoreBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
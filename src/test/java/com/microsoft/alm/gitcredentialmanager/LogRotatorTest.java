@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+public class LogRotatorTest
+{
+    private File directory;
+
+    @Before public void createDirectory() throws IOException
+    {
+        directory = File.createTempFile("LogRotatorTest", "");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After public void deleteDirectory()
+    {
+        final File[] children = directory.listFiles();
+        if (children != null)
+        {
+            for (final File child : children)
+            {
+                child.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static void writeLog(final File file, final String content) throws IOException
+    {
+        final FileOutputStream stream = new FileOutputStream(file);
+        try
+        {
+            stream.write(content.getBytes("UTF-8"));
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+
+    @Test public void rotateIfNeeded_smallLogStays() throws IOException
+    {
+        final LogRotator cut = new LogRotator(directory, "credential", ".log", 3, 16, false);
+        writeLog(cut.getLogFile(), "short");
+
+        Assert.assertEquals(-1, cut.rotateIfNeeded());
+
+        Assert.assertTrue(cut.getLogFile().isFile());
+        Assert.assertFalse(cut.getSlotFile(1).exists());
+    }
+
+    @Test public void rotateIfNeeded_reusesSlotsInTurn() throws IOException
+    {
+        final LogRotator cut = new LogRotator(directory, "credential", ".log", 3, 16, false);
+
+        for (int i = 1; i <= 5; i++)
+        {
+            writeLog(cut.getLogFile(), "generation number " + i);
+            Assert.assertEquals((i - 1) % 3 + 1, cut.rotateIfNeeded());
+            Assert.assertFalse(cut.getLogFile().exists());
+        }
+
+        // 4 and 5 overwrote 1 and 2, the oldest generations
+        Assert.assertEquals("generation number 4", readFirstLine(cut.getSlotFile(1)));
+        Assert.assertEquals("generation number 5", readFirstLine(cut.getSlotFile(2)));
+        Assert.assertEquals("generation number 3", readFirstLine(cut.getSlotFile(3)));
+        Assert.assertFalse(cut.getSlotFile(4).exists());
+        // the index is shared with the next process
+        final LogRotator next = new LogRotator(directory, "credential", ".log", 3, 16, false);
+        writeLog(next.getLogFile(), "generation number 6");
+        Assert.assertEquals(3, next.rotateIfNeeded());
+    }
+
+    @Test public void rotateIfNeeded_noGenerationsDeletes() throws IOException
+    {
+        final LogRotator cut = new LogRotator(directory, "credential", ".jsonl", 0, 16, false);
+        writeLog(cut.getLogFile(), "{\"event\":\"message\",\"message\":\"long enough\"}");
+
+        Assert.assertEquals(0, cut.rotateIfNeeded());
+
+        Assert.assertFalse(cut.getLogFile().exists());
+        Assert.assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test public void rotateIfNeeded_compressesInBackground() throws IOException
+    {
+        final LogRotator cut = new LogRotator(directory, "credential", ".log", 2, 16, true);
+        writeLog(cut.getLogFile(), "generation number 1");
+
+        Assert.assertEquals(1, cut.rotateIfNeeded());
+        cut.awaitCompression(10000);
+
+        Assert.assertFalse(cut.isCompressing());
+        Assert.assertFalse(cut.getSlotFile(1).exists());
+        final File compressed = new File(cut.getSlotFile(1).getPath() + LogRotator.CompressedExtension);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(compressed)), "UTF-8"));
+        try
+        {
+            Assert.assertEquals("generation number 1", reader.readLine());
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    private static String readFirstLine(final File file) throws IOException
+    {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            return reader.readLine();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URISyntaxException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures parsing the request Git writes to the helper's standard input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OperationArgumentsBenchmark
+{
+    private static final String GetRequest = "protocol=https\n" +
+            "host=example.visualstudio.com\n" +
+            "path=DefaultCollection/_git/example\n" +
+            "\n";
+    private static final String StoreRequest = "protocol=https\n" +
+            "host=example.visualstudio.com\n" +
+            "path=DefaultCollection/_git/example\n" +
+            "username=PersonalAccessToken\n" +
+            "password=7b8c9d0e1f2a3b4c5d6e7f8a9b0c1d2e3f4a5b6c7d8e9f0a1b2c\n" +
+            "\n";
+
+    @Benchmark public OperationArguments get() throws IOException, URISyntaxException
+    {
+        return new OperationArguments(new BufferedReader(new StringReader(GetRequest)));
+    }
+
+    @Benchmark public OperationArguments store() throws IOException, URISyntaxException
+    {
+        return new OperationArguments(new BufferedReader(new StringReader(StoreRequest)));
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(OperationArgumentsBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -50,6 +50,23 @@ public class OperationArgumentsTest
         Assert.assertThat(actual, is(expected));
     }
 
+    @Test
+    public void useHttpPath() throws IOException, URISyntaxException
+    {
+        final String input = "protocol=https\n" +
+                "host=dev.azure.com\n" +
+                "path=contoso/project/_git/my repository\n" +
+                "";
+        final OperationArguments cut = new OperationArguments(new BufferedReader(new StringReader(input)));
+        Assert.assertEquals("https://dev.azure.com/", cut.TargetUri.toString());
+
+        cut.useHttpPath();
+
+        Assert.assertTrue(cut.UseHttpPath);
+        Assert.assertEquals("https://dev.azure.com/contoso/project/_git/my%20repository", cut.TargetUri.toString());
+        Assert.assertEquals("contoso/project/_git/my repository", cut.Path);
+    }
+
     private static List<String> readLines(final String input) throws IOException
     {
         final ArrayList<String> result = new ArrayList<String>();
@@ -0,0 +1,134 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.authentication.Configuration;
+import com.microsoft.alm.helpers.Func;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetcherTest
+{
+    private static Configuration createConfiguration(final String content) throws IOException
+    {
+        final File file = File.createTempFile("config", null);
+        try
+        {
+            final FileOutputStream stream = new FileOutputStream(file);
+            try
+            {
+                stream.write(content.getBytes("UTF-8"));
+            }
+            finally
+            {
+                stream.close();
+            }
+            return Configuration.fromFile(file.getPath());
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    @Test public void findRepositoryUrls_remotesAndSubmodules() throws Exception
+    {
+        final Configuration localConfig = createConfiguration("[core]\n" +
+                "    bare = false\n" +
+                "[remote \"origin\"]\n" +
+                "    url = https://dev.azure.com/contoso/project/_git/super\n" +
+                "[remote \"mirror\"]\n" +
+                "    url = git@github.com:contoso/super.git\n" +
+                "[submodule \"overridden\"]\n" +
+                "    url = https://git.example.com/overridden.git\n");
+        final Configuration gitModules = createConfiguration("[submodule \"sibling\"]\n" +
+                "    path = libs/sibling\n" +
+                "    url = ../sibling\n" +
+                "[submodule \"overridden\"]\n" +
+                "    url = https://github.com/contoso/overridden.git\n" +
+                "[submodule \"duplicate\"]\n" +
+                "    url = https://dev.azure.com/contoso/project/_git/super\n");
+
+        final List<URI> actual = Prefetcher.findRepositoryUrls(localConfig, gitModules);
+
+        Assert.assertEquals(Arrays.asList(
+                URI.create("https://dev.azure.com/contoso/project/_git/super"),
+                URI.create("https://git.example.com/overridden.git"),
+                URI.create("https://dev.azure.com/contoso/project/_git/sibling")), actual);
+    }
+
+    @Test public void toCredentialRequest_typical()
+    {
+        final String actual = Prefetcher.toCredentialRequest(URI.create("https://alice@git.example.com:8443/team/repo.git"));
+
+        Assert.assertEquals("protocol=https\n" +
+                "host=git.example.com:8443\n" +
+                "path=team/repo.git\n" +
+                "username=alice\n", actual);
+    }
+
+    @Test public void groupByHost_typical()
+    {
+        final Map<String, List<URI>> actual = Prefetcher.groupByHost(Arrays.asList(
+                URI.create("https://dev.azure.com/contoso/_git/one"),
+                URI.create("https://github.com/contoso/one.git"),
+                URI.create("https://DEV.azure.com/fabrikam/_git/two")));
+
+        Assert.assertEquals(Arrays.asList("https://dev.azure.com", "https://github.com"), Arrays.asList(actual.keySet().toArray()));
+        Assert.assertEquals(2, actual.get("https://dev.azure.com").size());
+    }
+
+    @Test public void run_boundsConcurrencyAndCountsReadyUrls()
+    {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        final Func<URI, Boolean> acquire = new Func<URI, Boolean>()
+        {
+            @Override public Boolean call(final URI url)
+            {
+                final int now = running.incrementAndGet();
+                synchronized (maxRunning)
+                {
+                    maxRunning.set(Math.max(maxRunning.get(), now));
+                }
+                try
+                {
+                    Thread.sleep(50);
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                if (url.getPath().contains("fail"))
+                    throw new Error("unreachable");
+                return !url.getPath().contains("missing");
+            }
+        };
+        final Prefetcher cut = new Prefetcher(acquire, 2);
+
+        final List<Prefetcher.HostResult> actual = cut.run(Arrays.asList(
+                URI.create("https://one.example.com/a"),
+                URI.create("https://two.example.com/a"),
+                URI.create("https://two.example.com/missing"),
+                URI.create("https://three.example.com/a"),
+                URI.create("https://four.example.com/fail")));
+
+        Assert.assertEquals(4, actual.size());
+        Assert.assertEquals("https://two.example.com", actual.get(1).Host);
+        Assert.assertEquals(2, actual.get(1).Urls);
+        Assert.assertEquals(1, actual.get(1).Ready);
+        Assert.assertEquals(0, actual.get(3).Ready);
+        Assert.assertTrue(maxRunning.get() <= 2);
+    }
+}
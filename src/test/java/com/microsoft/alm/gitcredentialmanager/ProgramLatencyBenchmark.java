@@ -0,0 +1,489 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.github.tomakehurst.wiremock.WireMockServer;
+import com.microsoft.alm.authentication.Configuration;
+import com.microsoft.alm.authentication.IAuthentication;
+import com.microsoft.alm.authentication.ISecureStore;
+import com.microsoft.alm.authentication.SecretStore;
+import com.microsoft.alm.helpers.Guid;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.SimpleJson;
+import com.microsoft.alm.helpers.Trace;
+import com.microsoft.alm.helpers.TraceSpan;
+import com.microsoft.alm.secret.Credential;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.net.URLStreamHandlerFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.aResponse;
+import static com.github.tomakehurst.wiremock.client.WireMock.any;
+import static com.github.tomakehurst.wiremock.client.WireMock.get;
+import static com.github.tomakehurst.wiremock.client.WireMock.urlEqualTo;
+import static com.github.tomakehurst.wiremock.core.WireMockConfiguration.wireMockConfig;
+
+/**
+ * Measures a complete {@code git credential get}, as seen by Git, for the Basic, MSA and AAD
+ * authorities.  Every HTTPS request is sent to a local WireMock server instead, which answers
+ * after an optional delay, so the numbers don't depend on the network or on a real account.
+ * <p>
+ * Each request is made cold, by a new JVM, and warm, by {@link Program#innerMain(String[])}
+ * in this JVM once it has made a few of them.  The wall time of each request is split into
+ * the phases recorded by the {@link com.microsoft.alm.helpers.TraceSpan}s: JVM start (cold only),
+ * configuration, secret store and network; whatever remains is reported as "other".
+ *
+ * <pre>
+ * mvn -Platency verify -DskipTests [-Dlatency.delayMillis=50] [-Dlatency.runs=20]
+ * </pre>
+ */
+public class ProgramLatencyBenchmark
+{
+    private static final String InvokeArgument = "--invoke";
+    private static final String AadTenant = "d8e8fca2-dc0f-4b8c-a6e5-1c1f1e4b2a9d";
+    private static final String ResourceTenantHeader = "X-VSS-ResourceTenant";
+    // see Program.SecretsNamespace
+    private static final String SecretsNamespace = "git";
+    private static final String[] Phases = {"jvm", "config", "store", "network", "other", "total"};
+
+    enum Scenario
+    {
+        Basic("git.example.com"),
+        MSA("msa-benchmark.visualstudio.com"),
+        AAD("aad-benchmark.visualstudio.com");
+
+        final String Host;
+
+        Scenario(final String host)
+        {
+            this.Host = host;
+        }
+
+        URI getTargetUri()
+        {
+            return URI.create("https://" + Host + "/");
+        }
+
+        String getRequest()
+        {
+            return "protocol=https\n" +
+                "host=" + Host + "\n" +
+                "path=\n" +
+                "\n";
+        }
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        if (args.length == 4 && InvokeArgument.equals(args[0]))
+        {
+            invoke(Integer.parseInt(args[1]), new File(args[2]), Long.parseLong(args[3]));
+            return;
+        }
+
+        final int runs = Integer.getInteger("latency.runs", 10);
+        final int warmups = Integer.getInteger("latency.warmups", 5);
+        final int delayMillis = Integer.getInteger("latency.delayMillis", 0);
+
+        final File workFolder = createWorkFolder();
+        final WireMockServer server = new WireMockServer(wireMockConfig().port(0));
+        server.start();
+        try
+        {
+            stubAuthorities(server, delayMillis);
+            seedSecrets(workFolder);
+
+            final Map<String, Map<String, TraceAnalyzer.PhaseSummary>> results = new LinkedHashMap<String, Map<String, TraceAnalyzer.PhaseSummary>>();
+            for (final Scenario scenario : Scenario.values())
+            {
+                results.put(scenario + " cold", measureCold(scenario, server.port(), workFolder, runs));
+            }
+
+            // from here on, this JVM behaves like the cold ones did
+            System.setProperty("user.home", workFolder.getAbsolutePath());
+            URL.setURLStreamHandlerFactory(new LocalAuthorityHandlerFactory(server.port()));
+            for (final Scenario scenario : Scenario.values())
+            {
+                results.put(scenario + " warm", measureWarm(scenario, workFolder, warmups, runs));
+            }
+
+            print(runs, delayMillis, results, System.out);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
+    static File createWorkFolder() throws IOException
+    {
+        final File result = File.createTempFile("gcm-latency", "");
+        if (!result.delete() || !result.mkdir())
+            throw new IOException("Unable to create " + result);
+
+        // the helper runs from a repository, whose configuration is read on every request
+        final File dotGit = new File(result, ".git");
+        if (!dotGit.mkdir())
+            throw new IOException("Unable to create " + dotGit);
+        final OutputStream config = new FileOutputStream(new File(dotGit, "config"));
+        try
+        {
+            config.write(("[core]\n" +
+                "\trepositoryformatversion = 0\n" +
+                "\tbare = false\n" +
+                "[credential]\n" +
+                "\tinteractive = never\n").getBytes("UTF-8"));
+        }
+        finally
+        {
+            IOHelper.closeQuietly(config);
+        }
+        return result;
+    }
+
+    private static File getStoreFile(final File workFolder)
+    {
+        return new File(workFolder, "insecureStore.xml");
+    }
+
+    static void stubAuthorities(final WireMockServer server, final int delayMillis)
+    {
+        // authority detection only contacts visualstudio.com hosts and Basic doesn't validate
+        server.stubFor(any(urlEqualTo("/" + Scenario.MSA.Host + "/"))
+            .willReturn(aResponse().withStatus(200).withHeader(ResourceTenantHeader, Guid.Empty.toString()).withFixedDelay(delayMillis)));
+        server.stubFor(any(urlEqualTo("/" + Scenario.AAD.Host + "/"))
+            .willReturn(aResponse().withStatus(200).withHeader(ResourceTenantHeader, AadTenant).withFixedDelay(delayMillis)));
+        for (final Scenario scenario : new Scenario[]{Scenario.MSA, Scenario.AAD})
+        {
+            server.stubFor(get(urlEqualTo("/" + scenario.Host + "/_apis/connectiondata"))
+                .willReturn(aResponse().withStatus(200).withBody("{}").withFixedDelay(delayMillis)));
+        }
+    }
+
+    static void seedSecrets(final File workFolder) throws IOException
+    {
+        final File storeFile = getStoreFile(workFolder);
+        final InsecureStore secureStore = new InsecureStore(storeFile);
+        final SecretStore secrets = new SecretStore(secureStore, SecretsNamespace, null, null, Program.createUriNameConversion());
+        for (final Scenario scenario : Scenario.values())
+        {
+            secrets.writeCredentials(scenario.getTargetUri(), new Credential("PersonalAccessToken", "latency-benchmark-" + scenario.Host));
+        }
+
+        // every request then reads the file again, like it would read the keyring
+        final OutputStream destination = new FileOutputStream(storeFile);
+        try
+        {
+            secureStore.toXml(destination);
+        }
+        finally
+        {
+            IOHelper.closeQuietly(destination);
+        }
+    }
+
+    static Map<String, TraceAnalyzer.PhaseSummary> createSummaries()
+    {
+        final Map<String, TraceAnalyzer.PhaseSummary> result = new LinkedHashMap<String, TraceAnalyzer.PhaseSummary>();
+        for (final String phase : Phases)
+        {
+            result.put(phase, new TraceAnalyzer.PhaseSummary(phase));
+        }
+        return result;
+    }
+
+    static Map<String, TraceAnalyzer.PhaseSummary> measureCold(final Scenario scenario, final int port, final File workFolder, final int runs) throws IOException, InterruptedException
+    {
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        final String classPath = System.getProperty("java.class.path");
+        final Map<String, TraceAnalyzer.PhaseSummary> result = createSummaries();
+        for (int i = 0; i < runs; i++)
+        {
+            final long startNanos = System.nanoTime();
+            final ProcessBuilder builder = new ProcessBuilder(java,
+                "-Duser.home=" + workFolder.getAbsolutePath(),
+                "-cp", classPath,
+                ProgramLatencyBenchmark.class.getName(),
+                InvokeArgument, Integer.toString(port), workFolder.getAbsolutePath(), Long.toString(System.currentTimeMillis()));
+            builder.directory(workFolder);
+            final Process process = builder.start();
+            final StreamCollector output = new StreamCollector(process.getInputStream());
+            final StreamCollector trace = new StreamCollector(process.getErrorStream());
+            output.start();
+            trace.start();
+            final OutputStream stdin = process.getOutputStream();
+            try
+            {
+                stdin.write(scenario.getRequest().getBytes("UTF-8"));
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stdin);
+            }
+            final int exitCode = process.waitFor();
+            output.join();
+            trace.join();
+            final long totalMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+
+            final String response = output.getText();
+            if (exitCode != 0 || !response.contains("password="))
+                throw new IllegalStateException(scenario + " returned no credentials (exit code " + exitCode + "):\n" + response + trace.getText());
+            addRun(trace.getText(), totalMicros, result);
+        }
+        return result;
+    }
+
+    static Map<String, TraceAnalyzer.PhaseSummary> measureWarm(final Scenario scenario, final File workFolder, final int warmups, final int runs) throws Exception
+    {
+        final ByteArrayOutputStream traceBuffer = new ByteArrayOutputStream();
+        final PrintStream listener = new PrintStream(traceBuffer, true, "UTF-8");
+        Trace.getListeners().add(listener);
+        Trace.setStructured(true);
+        try
+        {
+            final Map<String, TraceAnalyzer.PhaseSummary> result = createSummaries();
+            for (int i = 0; i < warmups + runs; i++)
+            {
+                traceBuffer.reset();
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                final Program program = new Program(new ByteArrayInputStream(scenario.getRequest().getBytes("UTF-8")), new PrintStream(output, true, "UTF-8"), new ComponentFactory(workFolder));
+
+                final long startNanos = System.nanoTime();
+                program.innerMain(new String[]{"get"});
+                final long totalMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+
+                final String response = output.toString("UTF-8");
+                if (!response.contains("password="))
+                    throw new IllegalStateException(scenario + " returned no credentials:\n" + response);
+                if (i >= warmups)
+                {
+                    Trace.flush();
+                    addRun(traceBuffer.toString("UTF-8"), totalMicros, result);
+                }
+            }
+            return result;
+        }
+        finally
+        {
+            Trace.setStructured(false);
+            Trace.getListeners().remove(listener);
+        }
+    }
+
+    /**
+     * Adds up the spans of one request, by phase, and adds the sums to the summaries.
+     */
+    static void addRun(final String trace, final long totalMicros, final Map<String, TraceAnalyzer.PhaseSummary> summaries) throws IOException
+    {
+        final Map<String, Long> sums = new LinkedHashMap<String, Long>();
+        for (final String phase : Phases)
+        {
+            sums.put(phase, 0L);
+        }
+
+        final BufferedReader lines = new BufferedReader(new StringReader(trace));
+        String line;
+        while ((line = lines.readLine()) != null)
+        {
+            if (!line.startsWith("{\"event\":\"span\""))
+                continue;
+            final Map<String, Object> event = SimpleJson.parse(line);
+            final String phase = toPhase((String) event.get("phase"));
+            if (phase != null)
+            {
+                sums.put(phase, sums.get(phase) + ((Number) event.get("durationMicros")).longValue());
+            }
+        }
+
+        long accounted = 0;
+        for (final Map.Entry<String, Long> entry : sums.entrySet())
+        {
+            accounted += entry.getValue();
+        }
+        sums.put("other", Math.max(0, totalMicros - accounted));
+        sums.put("total", totalMicros);
+
+        for (final Map.Entry<String, Long> entry : sums.entrySet())
+        {
+            summaries.get(entry.getKey()).add(entry.getValue(), "");
+        }
+    }
+
+    /**
+     * @return The phase a span counts towards; null for spans that only group other spans.
+     */
+    static String toPhase(final String span)
+    {
+        if (span == null)
+            return null;
+        if ("jvm".equals(span) || "config".equals(span))
+            return span;
+        if (span.startsWith("store."))
+            return "store";
+        if (span.startsWith("http."))
+            return "network";
+        // i.e. authority.detection, which is made of an http.detection span
+        return null;
+    }
+
+    static void print(final int runs, final int delayMillis, final Map<String, Map<String, TraceAnalyzer.PhaseSummary>> results, final PrintStream out)
+    {
+        out.println(String.format("%1$d run(s) per scenario, %2$d ms of injected latency; durations in milliseconds", runs, delayMillis));
+        out.println(String.format("%1$-12s %2$-8s %3$10s %4$10s %5$10s", "scenario", "phase", "p50", "p95", "max"));
+        for (final Map.Entry<String, Map<String, TraceAnalyzer.PhaseSummary>> result : results.entrySet())
+        {
+            for (final TraceAnalyzer.PhaseSummary summary : result.getValue().values())
+            {
+                if (summary.getPercentile(100) == 0 && !"total".equals(summary.Phase))
+                    continue;
+                out.println(String.format("%1$-12s %2$-8s %3$10.3f %4$10.3f %5$10.3f",
+                    result.getKey(),
+                    summary.Phase,
+                    summary.getPercentile(50) / 1000.0,
+                    summary.getPercentile(95) / 1000.0,
+                    summary.getPercentile(100) / 1000.0));
+            }
+        }
+    }
+
+    /**
+     * Answers one request from stdin, the way the helper does when Git launches it,
+     * writing the trace to stderr, preceded by how long the JVM took to get here.
+     */
+    static void invoke(final int port, final File workFolder, final long launchMillis) throws Exception
+    {
+        final long jvmMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - launchMillis);
+        URL.setURLStreamHandlerFactory(new LocalAuthorityHandlerFactory(port));
+        Trace.getListeners().add(System.err);
+        Trace.setStructured(true);
+        System.err.println("{\"event\":\"span\",\"phase\":\"jvm\",\"durationMicros\":" + jvmMicros + ",\"outcome\":\"success\"}");
+
+        final Program program = new Program(System.in, System.out, new ComponentFactory(workFolder));
+        program.innerMain(new String[]{"get"});
+        System.out.flush();
+        Trace.flush();
+    }
+
+    /**
+     * Sends what would go to an HTTPS host to the local WireMock server instead,
+     * prefixing the path with the host name so the stubs can tell the hosts apart.
+     */
+    static class LocalAuthorityHandlerFactory implements URLStreamHandlerFactory
+    {
+        private final int port;
+
+        LocalAuthorityHandlerFactory(final int port)
+        {
+            this.port = port;
+        }
+
+        @Override public URLStreamHandler createURLStreamHandler(final String protocol)
+        {
+            if (!"https".equals(protocol))
+                return null;
+            return new URLStreamHandler()
+            {
+                @Override protected URLConnection openConnection(final URL url) throws IOException
+                {
+                    final URL localUrl = new URL("http", "localhost", port, "/" + url.getHost() + url.getFile());
+                    return localUrl.openConnection();
+                }
+            };
+        }
+    }
+
+    /**
+     * Like {@link Program.ComponentFactory}, except that it reads the benchmark's repository
+     * configuration and keeps secrets in a file instead of the operating system's keyring.
+     */
+    static class ComponentFactory implements IComponentFactory
+    {
+        private final File workFolder;
+
+        ComponentFactory(final File workFolder)
+        {
+            this.workFolder = workFolder;
+        }
+
+        @Override public IAuthentication createAuthentication(final OperationArguments operationArguments, final ISecureStore secureStore)
+        {
+            return Program.createAuthentication(operationArguments, secureStore);
+        }
+
+        @Override public Configuration createConfiguration() throws IOException
+        {
+            return new Configuration(workFolder.getAbsolutePath());
+        }
+
+        @Override public ISecureStore createSecureStore(final OperationArguments operationArguments)
+        {
+            // opening the keyring isn't timed by the helper itself
+            final TraceSpan span = TraceSpan.start("store.open");
+            try
+            {
+                final ISecureStore result = new InsecureStore(getStoreFile(workFolder));
+                span.end(TraceSpan.Success);
+                return result;
+            }
+            finally
+            {
+                span.close();
+            }
+        }
+    }
+
+    static class StreamCollector extends Thread
+    {
+        private final InputStream stream;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        StreamCollector(final InputStream stream)
+        {
+            this.stream = stream;
+            setDaemon(true);
+        }
+
+        @Override public void run()
+        {
+            final byte[] chunk = new byte[4096];
+            try
+            {
+                int read;
+                while ((read = stream.read(chunk)) != -1)
+                {
+                    buffer.write(chunk, 0, read);
+                }
+            }
+            catch (final IOException ignored)
+            {
+                // the process is gone; keep what was read
+            }
+            finally
+            {
+                IOHelper.closeQuietly(stream);
+            }
+        }
+
+        String getText() throws IOException
+        {
+            return buffer.toString("UTF-8");
+        }
+    }
+}
@@ -0,0 +1,813 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.authentication.Configuration;
+import com.microsoft.alm.authentication.IAuthentication;
+import com.microsoft.alm.authentication.ISecureStore;
+import com.microsoft.alm.authentication.SecretStore;
+import com.microsoft.alm.helpers.Func;
+import com.microsoft.alm.helpers.IOHelper;
+import com.microsoft.alm.helpers.LatencyHistogram;
+import com.microsoft.alm.secret.Credential;
+import com.microsoft.alm.secret.Secret;
+import com.microsoft.alm.secret.Token;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Simulates the parallel {@code get}, {@code store} and {@code erase} requests that
+ * {@code git submodule update --jobs} or {@code git fetch --multiple} send to the helper,
+ * against a handful of hosts so that the requests collide.  Basic hosts are used, so that
+ * nothing but the configuration and the secret stores is exercised.
+ * <p>
+ * In-process, many threads call {@link Program#innerMain(String[])} on one shared store:
+ * an {@link InsecureStore}, a stub keyring that serializes its calls and takes a while
+ * to answer them, or nothing at all, leaving only the {@code SecretCache} in front of them.
+ * Then many threads each start one JVM per request, like Git does, against a file that
+ * processes lock while they use it.
+ * <p>
+ * Each run reports throughput, latency percentiles and how long threads waited for locks,
+ * and checks that no response carried another host's password and that, once the requests
+ * have completed, the cache agrees with the store and a store followed by a get round-trips.
+ *
+ * <pre>
+ * mvn -Pstress verify -DskipTests [-Dstress.workers=64] [-Dstress.processes=0]
+ * </pre>
+ */
+public class ProgramStressHarness
+{
+    private static final String InvokeArgument = "--invoke";
+    // see Program.SecretsNamespace
+    private static final String SecretsNamespace = "git";
+    private static final String UserName = "stress";
+    private static final int MaxReportedViolations = 10;
+
+    enum StoreKind
+    {
+        /** An {@link InsecureStore}, i.e. what users who opted out of the keyring have. */
+        Insecure(true),
+        /** A keyring whose calls are serialized and take a while. */
+        Keyring(true),
+        /** Nothing is stored, so only the cache in front of the store holds anything. */
+        CacheOnly(false),
+        /** A file locked by the process that uses it; used across processes. */
+        LockedFile(true);
+
+        final boolean Persists;
+
+        StoreKind(final boolean persists)
+        {
+            this.Persists = persists;
+        }
+    }
+
+    enum Operation
+    {
+        Get("get"), Store("store"), Erase("erase");
+
+        final String Command;
+
+        Operation(final String command)
+        {
+            this.Command = command;
+        }
+    }
+
+    static class RunResult
+    {
+        final String Name;
+        final LatencyHistogram Latencies = new LatencyHistogram();
+        final AtomicLong BlockedMillis = new AtomicLong();
+        final AtomicLong LockWaitNanos = new AtomicLong();
+        final AtomicInteger ViolationCount = new AtomicInteger();
+        final Queue<String> Violations = new ConcurrentLinkedQueue<String>();
+        long ElapsedNanos;
+
+        RunResult(final String name)
+        {
+            this.Name = name;
+        }
+
+        void addViolation(final String violation)
+        {
+            if (ViolationCount.incrementAndGet() <= MaxReportedViolations)
+            {
+                Violations.add(violation);
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        if (args.length == 3 && InvokeArgument.equals(args[0]))
+        {
+            invoke(Operation.valueOf(args[1]), new File(args[2]));
+            return;
+        }
+
+        final int workers = Integer.getInteger("stress.workers", 32);
+        final int operations = Integer.getInteger("stress.operations", 50);
+        final int hosts = Integer.getInteger("stress.hosts", 4);
+        final int keyringDelayMillis = Integer.getInteger("stress.keyringDelayMillis", 2);
+        final int processes = Integer.getInteger("stress.processes", 8);
+        final int processOperations = Integer.getInteger("stress.processOperations", 5);
+
+        final File workFolder = ProgramLatencyBenchmark.createWorkFolder();
+        System.setProperty("user.home", workFolder.getAbsolutePath());
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads.isThreadContentionMonitoringSupported())
+        {
+            threads.setThreadContentionMonitoringEnabled(true);
+        }
+
+        final List<RunResult> results = new ArrayList<RunResult>();
+        for (final StoreKind kind : new StoreKind[]{StoreKind.Insecure, StoreKind.Keyring, StoreKind.CacheOnly})
+        {
+            final ISecureStore secureStore = createStore(kind, workFolder, keyringDelayMillis);
+            results.add(runInProcess(kind, secureStore, workFolder, workers, operations, hosts));
+        }
+        if (processes > 0)
+        {
+            results.add(runProcesses(workFolder, processes, processOperations, hosts));
+        }
+
+        final int violations = print(workers, operations, processes, processOperations, hosts, results, System.out);
+        if (violations > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    static ISecureStore createStore(final StoreKind kind, final File workFolder, final int keyringDelayMillis)
+    {
+        switch (kind)
+        {
+            case Insecure:
+                // never written back to the file; the store is shared by all threads instead
+                return new InsecureStore(new File(workFolder, "insecureStore.xml"));
+            case Keyring:
+                return new KeyringStub(keyringDelayMillis);
+            case CacheOnly:
+                return new NullSecureStore();
+            case LockedFile:
+            default:
+                return new LockedFileStore(workFolder);
+        }
+    }
+
+    static URI getTargetUri(final int host)
+    {
+        return URI.create("https://repo" + host + ".example.com/");
+    }
+
+    static String createRequest(final URI targetUri, final Operation operation, final String password)
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("protocol=").append(targetUri.getScheme()).append('\n');
+        sb.append("host=").append(targetUri.getHost()).append('\n');
+        sb.append("path=\n");
+        if (operation != Operation.Get)
+        {
+            sb.append("username=").append(UserName).append('\n');
+            sb.append("password=").append(password).append('\n');
+        }
+        sb.append('\n');
+        return sb.toString();
+    }
+
+    /**
+     * Passwords name the host they were stored for, so a response for another host stands out.
+     */
+    static String createPassword(final URI targetUri, final int worker, final int sequence)
+    {
+        return "pw:" + targetUri.getHost() + ":" + worker + ":" + sequence;
+    }
+
+    /**
+     * @return A description of what's wrong with the response to a get; null if nothing is.
+     */
+    static String checkGetResponse(final URI targetUri, final String response)
+    {
+        final String expectedStart = "protocol=" + targetUri.getScheme() + "\nhost=" + targetUri.getHost() + "\n";
+        if (!response.startsWith(expectedStart))
+            return "malformed response for " + targetUri + ": " + response;
+        final int passwordStart = response.indexOf("password=");
+        if (passwordStart == -1)
+            return null;
+        final int valueStart = passwordStart + "password=".length();
+        final int valueEnd = response.indexOf('\n', valueStart);
+        final String password = response.substring(valueStart, valueEnd == -1 ? response.length() : valueEnd);
+        if (!password.startsWith("pw:" + targetUri.getHost() + ":"))
+            return targetUri + " was given " + password;
+        return null;
+    }
+
+    static RunResult runInProcess(final StoreKind kind, final ISecureStore secureStore, final File workFolder, final int workers, final int operations, final int hosts) throws Exception
+    {
+        final RunResult result = new RunResult("threads/" + kind);
+        final SecretStore secrets = new SecretStore(secureStore, SecretsNamespace, null, null, Program.createUriNameConversion());
+        // the cache in front of the store is shared by the whole JVM; start from nothing
+        for (int h = 0; h < hosts; h++)
+        {
+            secrets.deleteCredentials(getTargetUri(h));
+        }
+
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final IComponentFactory componentFactory = new ComponentFactory(workFolder, secureStore);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(workers);
+        for (int w = 0; w < workers; w++)
+        {
+            final int worker = w;
+            final Thread thread = new Thread("stress-" + w)
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        final Random random = new Random(worker);
+                        for (int i = 0; i < operations; i++)
+                        {
+                            final URI targetUri = getTargetUri(random.nextInt(hosts));
+                            final Operation operation = chooseOperation(random);
+                            final String request = createRequest(targetUri, operation, createPassword(targetUri, worker, i));
+                            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                            final Program program = new Program(new ByteArrayInputStream(request.getBytes("UTF-8")), new PrintStream(output, true, "UTF-8"), componentFactory);
+
+                            final long startNanos = System.nanoTime();
+                            try
+                            {
+                                program.innerMain(new String[]{operation.Command});
+                            }
+                            catch (final Throwable throwable)
+                            {
+                                result.addViolation(operation + " for " + targetUri + " threw " + throwable);
+                                continue;
+                            }
+                            result.Latencies.recordNanos(System.nanoTime() - startNanos);
+
+                            if (operation == Operation.Get)
+                            {
+                                final String violation = checkGetResponse(targetUri, output.toString("UTF-8"));
+                                if (violation != null)
+                                {
+                                    result.addViolation(violation);
+                                }
+                            }
+                        }
+                    }
+                    catch (final Exception e)
+                    {
+                        result.addViolation(getName() + " failed: " + e);
+                    }
+                    finally
+                    {
+                        final ThreadInfo info = threadBean.getThreadInfo(getId());
+                        if (info != null && info.getBlockedTime() > 0)
+                        {
+                            result.BlockedMillis.addAndGet(info.getBlockedTime());
+                        }
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        result.ElapsedNanos = System.nanoTime() - startNanos;
+        if (secureStore instanceof KeyringStub)
+        {
+            result.LockWaitNanos.addAndGet(((KeyringStub) secureStore).getLockWaitNanos());
+        }
+
+        if (kind.Persists)
+        {
+            checkQuiescent(secureStore, secrets, hosts, result);
+        }
+        checkRoundTrips(componentFactory, hosts, result);
+        return result;
+    }
+
+    static Operation chooseOperation(final Random random)
+    {
+        // mostly fetches; some pushes store new credentials and some logons are rejected
+        final int roll = random.nextInt(100);
+        return roll < 60 ? Operation.Get : roll < 85 ? Operation.Store : Operation.Erase;
+    }
+
+    /**
+     * Once every request has completed, the cache must not remember something the store doesn't.
+     */
+    static void checkQuiescent(final ISecureStore secureStore, final SecretStore secrets, final int hosts, final RunResult result)
+    {
+        final Secret.IUriNameConversion conversion = Program.createUriNameConversion();
+        for (int h = 0; h < hosts; h++)
+        {
+            final URI targetUri = getTargetUri(h);
+            final AtomicReference<Credential> cached = new AtomicReference<Credential>();
+            secrets.readCredentials(targetUri, cached);
+            final Credential stored = secureStore.readCredentials(conversion.convert(targetUri, SecretsNamespace));
+            final String cachedPassword = cached.get() == null ? null : cached.get().Password;
+            final String storedPassword = stored == null ? null : stored.Password;
+            if (cachedPassword == null ? storedPassword != null : !cachedPassword.equals(storedPassword))
+            {
+                result.addViolation(targetUri + ": cache has " + cachedPassword + " but the store has " + storedPassword);
+            }
+        }
+    }
+
+    /**
+     * Once every request has completed, storing and then getting must return what was stored.
+     */
+    static void checkRoundTrips(final IComponentFactory componentFactory, final int hosts, final RunResult result) throws Exception
+    {
+        for (int h = 0; h < hosts; h++)
+        {
+            final URI targetUri = getTargetUri(h);
+            final String password = createPassword(targetUri, -1, h);
+            run(componentFactory, Operation.Store, createRequest(targetUri, Operation.Store, password));
+            final String response = run(componentFactory, Operation.Get, createRequest(targetUri, Operation.Get, null));
+            if (!response.contains("password=" + password + "\n"))
+            {
+                result.addViolation(targetUri + " returned " + response.replace('\n', ' ') + "right after storing " + password);
+            }
+        }
+    }
+
+    private static String run(final IComponentFactory componentFactory, final Operation operation, final String request) throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Program program = new Program(new ByteArrayInputStream(request.getBytes("UTF-8")), new PrintStream(output, true, "UTF-8"), componentFactory);
+        program.innerMain(new String[]{operation.Command});
+        return output.toString("UTF-8");
+    }
+
+    static RunResult runProcesses(final File workFolder, final int processes, final int operations, final int hosts) throws Exception
+    {
+        final RunResult result = new RunResult("processes/" + StoreKind.LockedFile);
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        final String classPath = System.getProperty("java.class.path");
+        final LockedFileStore secureStore = new LockedFileStore(workFolder);
+        secureStore.clear();
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(processes);
+        for (int w = 0; w < processes; w++)
+        {
+            final int worker = w;
+            final Thread thread = new Thread("stress-process-" + w)
+            {
+                @Override public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        final Random random = new Random(worker);
+                        for (int i = 0; i < operations; i++)
+                        {
+                            final URI targetUri = getTargetUri(random.nextInt(hosts));
+                            final Operation operation = chooseOperation(random);
+                            final String request = createRequest(targetUri, operation, createPassword(targetUri, worker, i));
+
+                            final long startNanos = System.nanoTime();
+                            final ProcessBuilder builder = new ProcessBuilder(java,
+                                "-Duser.home=" + workFolder.getAbsolutePath(),
+                                "-cp", classPath,
+                                ProgramStressHarness.class.getName(),
+                                InvokeArgument, operation.name(), workFolder.getAbsolutePath());
+                            builder.directory(workFolder);
+                            final Process process = builder.start();
+                            final ProgramLatencyBenchmark.StreamCollector output = new ProgramLatencyBenchmark.StreamCollector(process.getInputStream());
+                            final ProgramLatencyBenchmark.StreamCollector error = new ProgramLatencyBenchmark.StreamCollector(process.getErrorStream());
+                            output.start();
+                            error.start();
+                            final OutputStream stdin = process.getOutputStream();
+                            try
+                            {
+                                stdin.write(request.getBytes("UTF-8"));
+                            }
+                            finally
+                            {
+                                IOHelper.closeQuietly(stdin);
+                            }
+                            final int exitCode = process.waitFor();
+                            output.join();
+                            error.join();
+                            result.Latencies.recordNanos(System.nanoTime() - startNanos);
+
+                            final String errorText = error.getText();
+                            if (exitCode != 0)
+                            {
+                                result.addViolation(operation + " for " + targetUri + " exited with " + exitCode + ": " + errorText);
+                                continue;
+                            }
+                            result.LockWaitNanos.addAndGet(parseLockWait(errorText));
+                            if (operation == Operation.Get)
+                            {
+                                final String violation = checkGetResponse(targetUri, output.getText());
+                                if (violation != null)
+                                {
+                                    result.addViolation(violation);
+                                }
+                            }
+                        }
+                    }
+                    catch (final Exception e)
+                    {
+                        result.addViolation(getName() + " failed: " + e);
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        final long startNanos = System.nanoTime();
+        start.countDown();
+        done.await();
+        result.ElapsedNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    private static long parseLockWait(final String errorText)
+    {
+        final String prefix = "lockWaitNanos=";
+        final int start = errorText.lastIndexOf(prefix);
+        if (start == -1)
+            return 0;
+        int end = start + prefix.length();
+        while (end < errorText.length() && Character.isDigit(errorText.charAt(end)))
+        {
+            end++;
+        }
+        return Long.parseLong(errorText.substring(start + prefix.length(), end));
+    }
+
+    /**
+     * Answers one request from stdin, like the helper does when Git launches it,
+     * then reports how long it waited for the store's lock on stderr.
+     */
+    static void invoke(final Operation operation, final File workFolder) throws Exception
+    {
+        final LockedFileStore secureStore = new LockedFileStore(workFolder);
+        final Program program = new Program(System.in, System.out, new ComponentFactory(workFolder, secureStore));
+        program.innerMain(new String[]{operation.Command});
+        System.out.flush();
+        System.err.println("lockWaitNanos=" + secureStore.getLockWaitNanos());
+    }
+
+    static int print(final int workers, final int operations, final int processes, final int processOperations, final int hosts, final List<RunResult> results, final PrintStream out)
+    {
+        out.println(String.format("%1$d thread(s) x %2$d request(s), %3$d process thread(s) x %4$d request(s), %5$d host(s); durations in milliseconds",
+            workers, operations, processes, processOperations, hosts));
+        out.println(String.format("%1$-22s %2$10s %3$9s %4$9s %5$9s %6$9s %7$11s %8$11s %9$10s",
+            "run", "requests/s", "p50", "p99", "p99.9", "max", "blocked", "lock wait", "violations"));
+        int violations = 0;
+        for (final RunResult result : results)
+        {
+            final double seconds = result.ElapsedNanos / 1e9;
+            out.println(String.format("%1$-22s %2$10.1f %3$9.3f %4$9.3f %5$9.3f %6$9.3f %7$11d %8$11.3f %9$10d",
+                result.Name,
+                seconds > 0 ? result.Latencies.getCount() / seconds : 0.0,
+                result.Latencies.getValueAtPercentile(50) / 1000.0,
+                result.Latencies.getValueAtPercentile(99) / 1000.0,
+                result.Latencies.getValueAtPercentile(99.9) / 1000.0,
+                result.Latencies.getMaxMicros() / 1000.0,
+                result.BlockedMillis.get(),
+                TimeUnit.NANOSECONDS.toMicros(result.LockWaitNanos.get()) / 1000.0,
+                result.ViolationCount.get()));
+            violations += result.ViolationCount.get();
+        }
+        for (final RunResult result : results)
+        {
+            for (final String violation : result.Violations)
+            {
+                out.println(result.Name + ": " + violation);
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Like {@link Program.ComponentFactory}, except that every request uses the same store
+     * and the benchmark's repository configuration.
+     */
+    static class ComponentFactory implements IComponentFactory
+    {
+        private final File workFolder;
+        private final ISecureStore secureStore;
+
+        ComponentFactory(final File workFolder, final ISecureStore secureStore)
+        {
+            this.workFolder = workFolder;
+            this.secureStore = secureStore;
+        }
+
+        @Override public IAuthentication createAuthentication(final OperationArguments operationArguments, final ISecureStore secureStore)
+        {
+            return Program.createAuthentication(operationArguments, secureStore);
+        }
+
+        @Override public Configuration createConfiguration() throws IOException
+        {
+            return new Configuration(workFolder.getAbsolutePath());
+        }
+
+        @Override public ISecureStore createSecureStore(final OperationArguments operationArguments)
+        {
+            return secureStore;
+        }
+    }
+
+    /**
+     * Stands in for an operating system keyring, which answers one call at a time, after a while.
+     */
+    static class KeyringStub implements ISecureStore
+    {
+        private final Map<String, Secret> secrets = new HashMap<String, Secret>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final AtomicLong lockWaitNanos = new AtomicLong();
+        private final long delayMillis;
+
+        KeyringStub(final long delayMillis)
+        {
+            this.delayMillis = delayMillis;
+        }
+
+        long getLockWaitNanos()
+        {
+            return lockWaitNanos.get();
+        }
+
+        private <R> R call(final Func<Map<String, Secret>, R> operation)
+        {
+            final long startNanos = System.nanoTime();
+            lock.lock();
+            try
+            {
+                lockWaitNanos.addAndGet(System.nanoTime() - startNanos);
+                Thread.sleep(delayMillis);
+                return operation.call(secrets);
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new Error(e);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        @Override public void delete(final String targetName)
+        {
+            call(new Func<Map<String, Secret>, Void>()
+            {
+                @Override public Void call(final Map<String, Secret> secrets)
+                {
+                    secrets.remove(targetName);
+                    return null;
+                }
+            });
+        }
+
+        @Override public Credential readCredentials(final String targetName)
+        {
+            return call(new Func<Map<String, Secret>, Credential>()
+            {
+                @Override public Credential call(final Map<String, Secret> secrets)
+                {
+                    final Secret secret = secrets.get(targetName);
+                    return secret instanceof Credential ? (Credential) secret : null;
+                }
+            });
+        }
+
+        @Override public Token readToken(final String targetName)
+        {
+            return call(new Func<Map<String, Secret>, Token>()
+            {
+                @Override public Token call(final Map<String, Secret> secrets)
+                {
+                    final Secret secret = secrets.get(targetName);
+                    return secret instanceof Token ? (Token) secret : null;
+                }
+            });
+        }
+
+        @Override public void writeCredential(final String targetName, final Credential credentials)
+        {
+            call(new Func<Map<String, Secret>, Void>()
+            {
+                @Override public Void call(final Map<String, Secret> secrets)
+                {
+                    secrets.put(targetName, credentials);
+                    return null;
+                }
+            });
+        }
+
+        @Override public void writeToken(final String targetName, final Token token)
+        {
+            call(new Func<Map<String, Secret>, Void>()
+            {
+                @Override public Void call(final Map<String, Secret> secrets)
+                {
+                    secrets.put(targetName, token);
+                    return null;
+                }
+            });
+        }
+    }
+
+    /**
+     * Stores nothing, so that every secret that's found comes from the cache in front of it.
+     */
+    static class NullSecureStore implements ISecureStore
+    {
+        @Override public void delete(final String targetName)
+        {
+        }
+
+        @Override public Credential readCredentials(final String targetName)
+        {
+            return null;
+        }
+
+        @Override public Token readToken(final String targetName)
+        {
+            return null;
+        }
+
+        @Override public void writeCredential(final String targetName, final Credential credentials)
+        {
+        }
+
+        @Override public void writeToken(final String targetName, final Token token)
+        {
+        }
+    }
+
+    /**
+     * Keeps secrets in a file that's locked, then read and written again, by every call,
+     * so that processes see each other's changes, as they would with a keyring.
+     */
+    static class LockedFileStore implements ISecureStore
+    {
+        private final File storeFile;
+        private final File lockFile;
+        private long lockWaitNanos;
+
+        LockedFileStore(final File workFolder)
+        {
+            this.storeFile = new File(workFolder, "lockedStore.xml");
+            this.lockFile = new File(workFolder, "lockedStore.xml.lock");
+        }
+
+        long getLockWaitNanos()
+        {
+            return lockWaitNanos;
+        }
+
+        void clear()
+        {
+            if (storeFile.isFile() && !storeFile.delete())
+                throw new Error("Unable to delete " + storeFile);
+        }
+
+        private synchronized <R> R call(final boolean write, final Func<InsecureStore, R> operation)
+        {
+            RandomAccessFile file = null;
+            try
+            {
+                file = new RandomAccessFile(lockFile, "rw");
+                final long startNanos = System.nanoTime();
+                final FileLock lock = file.getChannel().lock();
+                lockWaitNanos += System.nanoTime() - startNanos;
+                try
+                {
+                    final InsecureStore store = new InsecureStore(storeFile);
+                    final R result = operation.call(store);
+                    if (write)
+                    {
+                        final OutputStream destination = new FileOutputStream(storeFile);
+                        try
+                        {
+                            store.toXml(destination);
+                        }
+                        finally
+                        {
+                            IOHelper.closeQuietly(destination);
+                        }
+                    }
+                    return result;
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+            catch (final IOException e)
+            {
+                throw new Error(e);
+            }
+            finally
+            {
+                IOHelper.closeQuietly(file);
+            }
+        }
+
+        @Override public void delete(final String targetName)
+        {
+            call(true, new Func<InsecureStore, Void>()
+            {
+                @Override public Void call(final InsecureStore store)
+                {
+                    store.delete(targetName);
+                    return null;
+                }
+            });
+        }
+
+        @Override public Credential readCredentials(final String targetName)
+        {
+            return call(false, new Func<InsecureStore, Credential>()
+            {
+                @Override public Credential call(final InsecureStore store)
+                {
+                    return store.readCredentials(targetName);
+                }
+            });
+        }
+
+        @Override public Token readToken(final String targetName)
+        {
+            return call(false, new Func<InsecureStore, Token>()
+            {
+                @Override public Token call(final InsecureStore store)
+                {
+                    return store.readToken(targetName);
+                }
+            });
+        }
+
+        @Override public void writeCredential(final String targetName, final Credential credentials)
+        {
+            call(true, new Func<InsecureStore, Void>()
+            {
+                @Override public Void call(final InsecureStore store)
+                {
+                    store.writeCredential(targetName, credentials);
+                    return null;
+                }
+            });
+        }
+
+        @Override public void writeToken(final String targetName, final Token token)
+        {
+            call(true, new Func<InsecureStore, Void>()
+            {
+                @Override public Void call(final InsecureStore store)
+                {
+                    store.writeToken(targetName, token);
+                    return null;
+                }
+            });
+        }
+    }
+}
@@ -3,6 +3,9 @@
 
 package com.microsoft.alm.gitcredentialmanager;
 
+import com.microsoft.alm.authentication.Configuration;
+import com.microsoft.alm.authentication.IAuthentication;
+import com.microsoft.alm.authentication.ISecureStore;
 import com.microsoft.alm.helpers.Func;
 import com.microsoft.alm.helpers.Trace;
 import com.microsoft.alm.oauth2.useragent.Provider;
@@ -12,6 +15,7 @@ import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -19,6 +23,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URL;
@@ -57,6 +62,82 @@ public class ProgramTest
         }
     }
 
+    private static class CountingComponentFactory implements IComponentFactory
+    {
+        int configurations;
+        int secureStores;
+
+        @Override public IAuthentication createAuthentication(final OperationArguments operationArguments, final ISecureStore secureStore)
+        {
+            return Program.createAuthentication(operationArguments, secureStore);
+        }
+
+        @Override public Configuration createConfiguration() throws IOException
+        {
+            configurations++;
+            return new Configuration();
+        }
+
+        @Override public ISecureStore createSecureStore(final OperationArguments operationArguments)
+        {
+            secureStores++;
+            return new InsecureStore(null);
+        }
+    }
+
+    @Test public void batch_answersEachRequestAndSharesTheStore() throws Exception
+    {
+        final String input = "action=store\n" +
+            "protocol=https\n" +
+            "host=batch.example.com\n" +
+            "username=alice\n" +
+            "password=secret\n" +
+            "\n" +
+            "protocol=https\n" +
+            "host=batch.example.com\n" +
+            "\n" +
+            "action=frobnicate\n" +
+            "protocol=https\n" +
+            "host=batch.example.com\n" +
+            "\n" +
+            "path=no/host\n" +
+            "";
+        final InputStream inputStream = new ByteArrayInputStream(input.getBytes("UTF-8"));
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final CountingComponentFactory componentFactory = new CountingComponentFactory();
+        final Program program = new Program(inputStream, new PrintStream(outputStream), componentFactory);
+
+        program.innerMain(new String[]{"batch"});
+
+        final String output = outputStream.toString("UTF-8");
+        final String expected = "\n" +
+            "protocol=https\n" +
+            "host=batch.example.com\n" +
+            "path=\n" +
+            "username=alice\n" +
+            "password=secret\n" +
+            "\n" +
+            "quit=true\n" +
+            "\n" +
+            "quit=true\n" +
+            "\n";
+        Assert.assertEquals(expected, output);
+        Assert.assertEquals(1, componentFactory.configurations);
+        Assert.assertEquals(1, componentFactory.secureStores);
+    }
+
+    @Test public void readBatchRequest_skipsExtraBlankLines() throws Exception
+    {
+        final BufferedReader reader = new BufferedReader(new StringReader("\nprotocol=https\nhost=example.com\n\n\naction=erase\nhost=example.org"));
+
+        Assert.assertEquals("protocol=https\nhost=example.com\n", Program.readBatchRequest(reader));
+        final String second = Program.readBatchRequest(reader);
+        Assert.assertEquals("action=erase\nhost=example.org\n", second);
+        Assert.assertEquals("erase", Program.findBatchAction(second));
+        Assert.assertEquals("get", Program.findBatchAction("host=example.org\n"));
+        Assert.assertNull(Program.readBatchRequest(reader));
+    }
+
     @Test public void isValidGitVersion_happy()
     {
         // greater version
@@ -324,4 +405,70 @@ public class ProgramTest
         Assert.assertNotNull(actual);
         Assert.assertEquals(expectedPath, actual.getAbsolutePath());
     }
+
+    /**
+     * Runs the {@code serve} command the way {@link #serve_savesSnapshotWhenStopped} starts it,
+     * with a secure store that only lives in memory.
+     */
+    static final class ServeProcess
+    {
+        public static void main(final String[] args) throws Exception
+        {
+            final Program program = new Program(System.in, System.out, new CountingComponentFactory());
+            program.innerMain(args);
+        }
+    }
+
+    @Test public void serve_savesSnapshotWhenStopped() throws Exception
+    {
+        if (!UnixDomainSocket.isSupported())
+            return;
+        final File home = File.createTempFile("gcm-home", "");
+        Assert.assertTrue(home.delete());
+        final File socketPath = new File(home, "socket");
+        final File snapshotFile = new File(new File(home, "git-credential-manager"), "cache-snapshot.bin");
+        final File metricsFile = new File(snapshotFile.getParentFile(), "metrics.properties");
+        final String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath();
+        final ProcessBuilder builder = new ProcessBuilder(java,
+            "-Duser.home=" + home.getAbsolutePath(),
+            "-cp", System.getProperty("java.class.path"),
+            ServeProcess.class.getName(),
+            "serve", Program.SocketOption, socketPath.getAbsolutePath());
+        builder.environment().remove("APPDATA");
+        builder.environment().remove("LOCALAPPDATA");
+        builder.redirectErrorStream(true);
+        final Process process = builder.start();
+        try
+        {
+            final long deadline = System.currentTimeMillis() + 30000;
+            while (!socketPath.exists() && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(socketPath.exists());
+            CredentialCacheServerTest.request(socketPath, "action=metrics\ntimeout=0\n\n");
+            final String metrics = CredentialCacheServerTest.request(socketPath, "action=metrics\ntimeout=0\n\n");
+            Assert.assertTrue(metrics, metrics.contains("gcm_cache_server_request_duration_seconds_count{action=\"metrics\"} 1\n"));
+            Assert.assertTrue(metrics, metrics.contains("gcm_scheduler_queue_depth{lane=\"network\"} 0\n"));
+
+            // what systemctl stop sends
+            process.destroy();
+            process.waitFor();
+
+            Assert.assertTrue(snapshotFile.isFile());
+            Assert.assertTrue(metricsFile.isFile());
+            Assert.assertFalse(socketPath.exists());
+        }
+        finally
+        {
+            process.destroy();
+            snapshotFile.delete();
+            new File(snapshotFile.getPath() + ".lock").delete();
+            metricsFile.delete();
+            new File(metricsFile.getPath() + ".lock").delete();
+            snapshotFile.getParentFile().delete();
+            socketPath.delete();
+            home.delete();
+        }
+    }
 }
@@ -0,0 +1,167 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import com.microsoft.alm.helpers.Metrics;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class RequestSchedulerTest
+{
+    private RequestScheduler cut;
+
+    @After public void shutdown()
+    {
+        if (cut != null)
+        {
+            cut.shutdown();
+        }
+    }
+
+    private static Runnable await(final CountDownLatch started, final CountDownLatch release)
+    {
+        return new Runnable()
+        {
+            @Override public void run()
+            {
+                started.countDown();
+                try
+                {
+                    release.await();
+                }
+                catch (final InterruptedException e)
+                {
+                    throw new Error(e);
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String name, final CountDownLatch done)
+    {
+        return new Runnable()
+        {
+            @Override public void run()
+            {
+                synchronized (order)
+                {
+                    order.add(name);
+                }
+                done.countDown();
+            }
+        };
+    }
+
+    @Test public void executeNetwork_slowHostDoesNotHoldUpOthers() throws Exception
+    {
+        cut = new RequestScheduler(1, 2, 1);
+        final CountDownLatch slowStarted = new CountDownLatch(1);
+        final CountDownLatch releaseSlow = new CountDownLatch(1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(2);
+
+        cut.executeNetwork("slow.example.com", await(slowStarted, releaseSlow));
+        Assert.assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+        cut.executeNetwork("slow.example.com", record(order, "slow", done));
+        cut.executeNetwork("fast.example.com", record(order, "fast", done));
+
+        // the second worker is free, but the slow host is at its limit
+        Assert.assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(Arrays.asList("fast"), order);
+        Assert.assertEquals(1, cut.getQueueDepth(RequestScheduler.NetworkLane));
+        final ByteArrayOutputStream metrics = new ByteArrayOutputStream();
+        cut.writePrometheus(new PrintStream(metrics, true, "UTF-8"));
+        Assert.assertEquals("# TYPE gcm_scheduler_queue_depth gauge\n"
+            + "gcm_scheduler_queue_depth{lane=\"fast\"} 0\n"
+            + "gcm_scheduler_queue_depth{lane=\"network\"} 1\n", metrics.toString("UTF-8"));
+
+        releaseSlow.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("fast", "slow"), order);
+        Assert.assertEquals(0, cut.getQueueDepth(RequestScheduler.NetworkLane));
+    }
+
+    @Test public void executeNetwork_hostsTakeTurns() throws InterruptedException
+    {
+        cut = new RequestScheduler(1, 1, 1);
+        final CountDownLatch gateStarted = new CountDownLatch(1);
+        final CountDownLatch releaseGate = new CountDownLatch(1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(5);
+
+        cut.executeNetwork("gate", await(gateStarted, releaseGate));
+        Assert.assertTrue(gateStarted.await(5, TimeUnit.SECONDS));
+        cut.executeNetwork("a", record(order, "a1", done));
+        cut.executeNetwork("a", record(order, "a2", done));
+        cut.executeNetwork("a", record(order, "a3", done));
+        cut.executeNetwork("b", record(order, "b1", done));
+        cut.executeNetwork(null, record(order, "c1", done));
+        releaseGate.countDown();
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList("a1", "b1", "c1", "a2", "a3"), order);
+    }
+
+    @Test public void executeFast_notHeldUpByNetworkLane() throws InterruptedException
+    {
+        cut = new RequestScheduler(1, 1, 1);
+        final CountDownLatch networkStarted = new CountDownLatch(1);
+        final CountDownLatch releaseNetwork = new CountDownLatch(1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long waitsBefore = Metrics.getRegistry().histogram(Metrics.series(RequestScheduler.WaitDurations, "lane", RequestScheduler.FastLane)).getCount();
+
+        cut.executeNetwork("slow.example.com", await(networkStarted, releaseNetwork));
+        Assert.assertTrue(networkStarted.await(5, TimeUnit.SECONDS));
+        cut.executeFast(record(order, "hit", done));
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        releaseNetwork.countDown();
+        Assert.assertEquals(waitsBefore + 1, Metrics.getRegistry().histogram(Metrics.series(RequestScheduler.WaitDurations, "lane", RequestScheduler.FastLane)).getCount());
+    }
+
+    @Test public void executeNetwork_failingTaskDoesNotStopTheLane() throws InterruptedException
+    {
+        cut = new RequestScheduler(1, 1, 1);
+        final List<String> order = new ArrayList<String>();
+        final CountDownLatch done = new CountDownLatch(1);
+
+        cut.executeNetwork("example.com", new Runnable()
+        {
+            @Override public void run()
+            {
+                throw new Error("HTTP request failed");
+            }
+        });
+        cut.executeNetwork("example.com", record(order, "next", done));
+
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test public void shutdown_rejectsNewTasks()
+    {
+        final RequestScheduler scheduler = new RequestScheduler(1, 1, 1);
+        scheduler.shutdown();
+
+        try
+        {
+            scheduler.executeNetwork("example.com", record(new ArrayList<String>(), "late", new CountDownLatch(1)));
+            Assert.fail("A task was accepted after the scheduler was shut down.");
+        }
+        catch (final RejectedExecutionException expected)
+        {
+            Assert.assertEquals(0, scheduler.getQueueDepth(RequestScheduler.NetworkLane));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.gitcredentialmanager;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TraceAnalyzerTest
+{
+    private static String span(final String phase, final long durationMicros, final String outcome)
+    {
+        return "{\"event\":\"span\",\"phase\":\"" + phase + "\",\"startMicros\":10,\"durationMicros\":" + durationMicros + ",\"outcome\":\"" + outcome + "\",\"thread\":\"main\"}\n";
+    }
+
+    @Test public void analyze_percentilesPerPhase() throws IOException
+    {
+        final StringBuilder log = new StringBuilder();
+        log.append("{\"event\":\"start\",\"timeMicros\":1,\"epochMillis\":1466000000000}\n");
+        for (int i = 1; i <= 100; i++)
+        {
+            log.append(span("http.token", i * 1000L, i == 100 ? "SocketTimeoutException" : "HTTP 200"));
+        }
+        log.append("{\"event\":\"message\",\"timeMicros\":2,\"message\":\"Program::get\"}\n");
+        log.append(span("store.read", 250, "found"));
+        // a line cut short by a killed process
+        log.append("{\"event\":\"span\",\"phase\":\"output\",\"startMi");
+        final Map<String, TraceAnalyzer.PhaseSummary> summaries = new TreeMap<String, TraceAnalyzer.PhaseSummary>();
+
+        TraceAnalyzer.analyze(new StringReader(log.toString()), summaries);
+
+        Assert.assertEquals(2, summaries.size());
+        final TraceAnalyzer.PhaseSummary token = summaries.get("http.token");
+        Assert.assertEquals(100, token.getCount());
+        Assert.assertEquals(50000, token.getPercentile(50));
+        Assert.assertEquals(95000, token.getPercentile(95));
+        Assert.assertEquals(99000, token.getPercentile(99));
+        Assert.assertEquals(100000, token.getPercentile(100));
+        Assert.assertEquals(Integer.valueOf(99), token.getOutcomeCounts().get("HTTP 200"));
+        Assert.assertEquals(Integer.valueOf(1), token.getOutcomeCounts().get("SocketTimeoutException"));
+        Assert.assertEquals(250, summaries.get("store.read").getPercentile(99));
+    }
+
+    @Test public void print_oneLinePerPhase() throws IOException
+    {
+        final Map<String, TraceAnalyzer.PhaseSummary> summaries = new TreeMap<String, TraceAnalyzer.PhaseSummary>();
+        TraceAnalyzer.analyze(new StringReader(span("config", 1500, "success") + span("output", 20, "success")), summaries);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        TraceAnalyzer.print(1, summaries, new PrintStream(baos, true, "UTF-8"));
+
+        final String[] lines = toString(baos).split(System.getProperty("line.separator"));
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(lines[2], lines[2].startsWith("config "));
+        Assert.assertTrue(lines[2], lines[2].endsWith("[success=1]"));
+        Assert.assertTrue(lines[3], lines[3].startsWith("output "));
+    }
+
+    private static String toString(final ByteArrayOutputStream baos) throws UnsupportedEncodingException
+    {
+        return baos.toString("UTF-8");
+    }
+}
@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class FileHelperTest
+{
+    private File folder;
+
+    @Before public void createFolder() throws IOException
+    {
+        folder = File.createTempFile("file-helper", "");
+        folder.delete();
+    }
+
+    @After public void deleteFolder()
+    {
+        final File[] files = folder.listFiles();
+        if (files != null)
+        {
+            for (final File file : files)
+            {
+                file.delete();
+            }
+        }
+        folder.delete();
+    }
+
+    private static FileHelper.Content write(final String text)
+    {
+        return new FileHelper.Content()
+        {
+            @Override public void writeTo(final OutputStream stream) throws IOException
+            {
+                stream.write(text.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    @Test public void replace_overwritesExistingFile() throws IOException
+    {
+        final File file = new File(folder, "index.properties");
+        FileHelper.replace(file, false, write("first"));
+
+        FileHelper.replace(file, false, write("second"));
+
+        Assert.assertEquals("second", IOHelper.readFileToString(file).trim());
+        Assert.assertEquals(1, folder.listFiles().length);
+    }
+
+    @Test public void replace_failureKeepsFileAndCleansUp() throws IOException
+    {
+        final File file = new File(folder, "index.properties");
+        FileHelper.replace(file, false, write("first"));
+
+        try
+        {
+            FileHelper.replace(file, false, new FileHelper.Content()
+            {
+                @Override public void writeTo(final OutputStream stream) throws IOException
+                {
+                    stream.write('x');
+                    throw new IOException("disk full");
+                }
+            });
+            Assert.fail("The IOException should have been rethrown.");
+        }
+        catch (final IOException expected)
+        {
+            Assert.assertEquals("disk full", expected.getMessage());
+        }
+
+        Assert.assertEquals("first", IOHelper.readFileToString(file).trim());
+        Assert.assertEquals(1, folder.listFiles().length);
+    }
+
+    @Test public void replace_createsMissingFolder() throws IOException
+    {
+        final File file = new File(folder, "key.bin");
+
+        FileHelper.replace(file, true, write("secret"));
+
+        Assert.assertEquals("secret", IOHelper.readFileToString(file).trim());
+        Assert.assertEquals(1, folder.listFiles().length);
+    }
+}
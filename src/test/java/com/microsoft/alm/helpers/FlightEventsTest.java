@@ -0,0 +1,55 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+public class FlightEventsTest
+{
+    @Test public void load_nothingRequested()
+    {
+        Assert.assertNull(FlightEvents.load(null));
+        Assert.assertNull(FlightEvents.load(" "));
+    }
+
+    @Test public void load_recordsEventsToDestination() throws IOException
+    {
+        Assume.assumeTrue(isFlightRecorderAvailable());
+        final File destination = File.createTempFile("FlightEventsTest", ".jfr");
+        destination.delete();
+        try
+        {
+            final FlightEvents.Sink cut = FlightEvents.load(destination.getAbsolutePath());
+            Assert.assertNotNull(cut);
+
+            cut.commitSecureStoreAccess(cut.beginSecureStoreAccess(), "readToken", "git:https://example.visualstudio.com", true);
+            cut.commitAuthorityRequest(cut.beginAuthorityRequest(), "token", "login.microsoftonline.com", 1, 200, null);
+            cut.stopRecording();
+
+            Assert.assertTrue(destination.length() > 0);
+        }
+        finally
+        {
+            destination.delete();
+        }
+    }
+
+    private static boolean isFlightRecorderAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        }
+        catch (final ClassNotFoundException ignored)
+        {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+    @Test public void indexOf_bucketsAreContiguous()
+    {
+        Assert.assertEquals(31, LatencyHistogram.indexOf(31));
+        Assert.assertEquals(32, LatencyHistogram.indexOf(32));
+        Assert.assertEquals(32, LatencyHistogram.indexOf(33));
+        Assert.assertEquals(47, LatencyHistogram.indexOf(63));
+        Assert.assertEquals(48, LatencyHistogram.indexOf(64));
+
+        long previousHighest = -1;
+        for (int i = 0; i < LatencyHistogram.BucketCount; i++)
+        {
+            final long highest = LatencyHistogram.highestEquivalentValue(i);
+            Assert.assertEquals(i, LatencyHistogram.indexOf(previousHighest + 1));
+            Assert.assertEquals(i, LatencyHistogram.indexOf(highest));
+            previousHighest = highest;
+        }
+        Assert.assertEquals(LatencyHistogram.MaxValue, previousHighest);
+    }
+
+    @Test public void getValueAtPercentile_withinPrecision()
+    {
+        final LatencyHistogram cut = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++)
+        {
+            cut.recordMicros(i * 1000L);
+        }
+
+        Assert.assertEquals(1000, cut.getCount());
+        Assert.assertEquals(1000000L, cut.getMaxMicros());
+        assertWithin(500000, cut.getValueAtPercentile(50));
+        assertWithin(950000, cut.getValueAtPercentile(95));
+        assertWithin(990000, cut.getValueAtPercentile(99));
+        Assert.assertEquals(1000000L, cut.getValueAtPercentile(100));
+    }
+
+    @Test public void encode_roundTripsAndAdds()
+    {
+        final LatencyHistogram first = new LatencyHistogram();
+        first.recordMicros(5);
+        first.recordMicros(70000);
+        final LatencyHistogram second = new LatencyHistogram();
+        second.recordMicros(3000000);
+
+        final LatencyHistogram decoded = LatencyHistogram.decode(first.encode());
+        decoded.add(second);
+
+        Assert.assertEquals(3, decoded.getCount());
+        Assert.assertEquals(3070005L, decoded.getSumMicros());
+        Assert.assertEquals(3000000L, decoded.getMaxMicros());
+        Assert.assertEquals(5L, decoded.getValueAtPercentile(30));
+        Assert.assertEquals(2, decoded.getCountAtOrBelow(100000));
+        Assert.assertNull(LatencyHistogram.decode("garbage"));
+        Assert.assertNull(LatencyHistogram.decode("1,1,1;99999:1"));
+    }
+
+    private static void assertWithin(final long expected, final long actual)
+    {
+        // one part in 16, the width of a sub-bucket
+        Assert.assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
@@ -0,0 +1,131 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+
+public class MetricsRegistryTest
+{
+    private static final String GetDuration = Metrics.series("gcm_action_duration_seconds", "action", "get");
+    private static final String CacheHits = Metrics.series("gcm_secret_cache_reads_total", "result", "hit");
+
+    @Test public void addTo_accumulatesAcrossProcesses() throws IOException
+    {
+        final File file = File.createTempFile("metrics", ".properties");
+        file.delete();
+        try
+        {
+            for (int i = 1; i <= 3; i++)
+            {
+                final MetricsRegistry process = new MetricsRegistry();
+                process.counter(CacheHits).addAndGet(i);
+                process.histogram(GetDuration).recordMicros(i * 1000L);
+                process.addTo(file);
+            }
+
+            final MetricsRegistry actual = MetricsRegistry.load(file);
+
+            Assert.assertEquals(Long.valueOf(6), actual.getCounters().get(CacheHits));
+            Assert.assertEquals(3, actual.histogram(GetDuration).getCount());
+            Assert.assertEquals(3000L, actual.histogram(GetDuration).getMaxMicros());
+        }
+        finally
+        {
+            file.delete();
+            new File(file.getPath() + ".lock").delete();
+        }
+    }
+
+    @Test public void addTo_keptAsideWhileAnotherProcessAdds() throws Exception
+    {
+        final File folder = File.createTempFile("metrics", "");
+        folder.delete();
+        final File file = new File(folder, "metrics.properties");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        // the lock is the same for the threads of a process as for other processes
+        final Thread otherProcess = new Thread(new Runnable()
+        {
+            @Override public void run()
+            {
+                try
+                {
+                    final Closeable lock = FileHelper.lock(file);
+                    locked.countDown();
+                    done.await();
+                    lock.close();
+                }
+                catch (final Exception e)
+                {
+                    throw new Error(e);
+                }
+            }
+        });
+        otherProcess.start();
+        try
+        {
+            locked.await();
+            final MetricsRegistry process = new MetricsRegistry();
+            process.counter(CacheHits).incrementAndGet();
+
+            process.addTo(file);
+            Assert.assertFalse(file.exists());
+            Assert.assertEquals(Long.valueOf(1), MetricsRegistry.load(file).getCounters().get(CacheHits));
+
+            done.countDown();
+            otherProcess.join();
+            final MetricsRegistry nextProcess = new MetricsRegistry();
+            nextProcess.counter(CacheHits).addAndGet(2);
+            nextProcess.addTo(file);
+            Assert.assertEquals(Long.valueOf(3), MetricsRegistry.load(file).getCounters().get(CacheHits));
+            Assert.assertEquals(2, folder.listFiles().length);
+        }
+        finally
+        {
+            done.countDown();
+            final File[] files = folder.listFiles();
+            if (files != null)
+            {
+                for (final File leftOver : files)
+                {
+                    leftOver.delete();
+                }
+            }
+            folder.delete();
+        }
+    }
+
+    @Test public void load_missingFileIsEmpty()
+    {
+        Assert.assertTrue(MetricsRegistry.load(new File("does/not/exist.properties")).isEmpty());
+    }
+
+    @Test public void writePrometheus_textFormat() throws IOException
+    {
+        final MetricsRegistry cut = new MetricsRegistry();
+        cut.counter(CacheHits).addAndGet(2);
+        cut.histogram(GetDuration).recordMicros(3000);
+        cut.histogram(GetDuration).recordMicros(2000000);
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        cut.writePrometheus(new PrintStream(baos, true, "UTF-8"));
+
+        final String actual = baos.toString("UTF-8");
+        Assert.assertTrue(actual, actual.startsWith("# TYPE gcm_secret_cache_reads_total counter\ngcm_secret_cache_reads_total{result=\"hit\"} 2\n# TYPE gcm_action_duration_seconds histogram\n"));
+        Assert.assertTrue(actual, actual.contains("gcm_action_duration_seconds_bucket{action=\"get\",le=\"0.001\"} 0\n"));
+        Assert.assertTrue(actual, actual.contains("gcm_action_duration_seconds_bucket{action=\"get\",le=\"0.005\"} 1\n"));
+        Assert.assertTrue(actual, actual.contains("gcm_action_duration_seconds_bucket{action=\"get\",le=\"2.5\"} 2\n"));
+        Assert.assertTrue(actual, actual.contains("gcm_action_duration_seconds_bucket{action=\"get\",le=\"+Inf\"} 2\n"));
+        Assert.assertTrue(actual, actual.contains("gcm_action_duration_seconds_sum{action=\"get\"} 2.003\n"));
+        Assert.assertTrue(actual, actual.endsWith("gcm_action_duration_seconds_count{action=\"get\"} 2\n"));
+    }
+}
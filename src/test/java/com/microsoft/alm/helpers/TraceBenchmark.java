@@ -0,0 +1,99 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures what a typical trace call costs with tracing disabled, and with a listener
+ * attached both synchronously and through the ring buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceBenchmark
+{
+    /**
+     * "none" leaves tracing disabled; "sync" and "async" attach a listener that discards its output.
+     */
+    @Param({"none", "sync", "async"})
+    public String mode;
+
+    private final URI targetUri = URI.create("https://example.visualstudio.com/");
+
+    @Setup(Level.Trial) public void attachListener()
+    {
+        if (!"none".equals(mode))
+        {
+            Trace.getListeners().add(new PrintStream(new OutputStream()
+            {
+                @Override public void write(final int b) throws IOException
+                {
+                    // discard
+                }
+
+                @Override public void write(final byte[] b, final int off, final int len) throws IOException
+                {
+                    // discard
+                }
+            }));
+            Trace.setAsynchronous("async".equals(mode));
+        }
+    }
+
+    @TearDown(Level.Trial) public void detachListener()
+    {
+        Trace.flush();
+        Trace.setAsynchronous(false);
+        Trace.getListeners().clear();
+    }
+
+    @Benchmark public void concatenated()
+    {
+        Trace.writeLine("   targetUri = " + targetUri);
+    }
+
+    @Benchmark public void formatArguments()
+    {
+        Trace.writeLine("   targetUri = %1$s", targetUri);
+    }
+
+    @Benchmark public void constant()
+    {
+        Trace.writeLine("SecretStore::readCredentials");
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        final Options options = new OptionsBuilder()
+                .include(TraceBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package com.microsoft.alm.helpers;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+public class TraceTest
+{
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    @After public void detachListeners()
+    {
+        Trace.setAsynchronous(false);
+        Trace.setStructured(false);
+        Trace.getListeners().clear();
+    }
+
+    private void attachListener() throws UnsupportedEncodingException
+    {
+        Trace.getListeners().add(new PrintStream(output, true, "UTF-8"));
+    }
+
+    @Test public void writeLine_formatArgumentsNotFormattedWhenDisabled()
+    {
+        final Object argument = new Object()
+        {
+            @Override public String toString()
+            {
+                throw new AssertionError("The argument should not have been formatted.");
+            }
+        };
+
+        Assert.assertFalse(Trace.isEnabled());
+        Trace.writeLine("   value = %1$s", argument);
+    }
+
+    @Test public void writeLine_formatArguments() throws UnsupportedEncodingException
+    {
+        attachListener();
+
+        Trace.writeLine("   %1$s = %2$s", "key", 42);
+
+        Assert.assertEquals("   key = 42" + System.getProperty("line.separator"), output.toString("UTF-8"));
+    }
+
+    @Test public void setAsynchronous_preservesOrderAcrossTheRing() throws UnsupportedEncodingException
+    {
+        attachListener();
+        Trace.setAsynchronous(true);
+        final int count = AsyncTraceWriter.DefaultCapacity * 3;
+
+        for (int i = 0; i < count; i++)
+        {
+            Trace.writeLine("line %1$d", i);
+        }
+        Trace.flush();
+
+        final String[] lines = output.toString("UTF-8").split(System.getProperty("line.separator"));
+        Assert.assertEquals(count, lines.length);
+        for (int i = 0; i < count; i++)
+        {
+            Assert.assertEquals("line " + i, lines[i]);
+        }
+    }
+
+    @Test public void setAsynchronous_falseWritesOutPendingMessages() throws UnsupportedEncodingException
+    {
+        attachListener();
+        Trace.setAsynchronous(true);
+
+        Trace.writeLine("queued");
+        Trace.setAsynchronous(false);
+        Trace.writeLine("direct");
+
+        Assert.assertEquals("queued" + System.getProperty("line.separator") + "direct" + System.getProperty("line.separator"), output.toString("UTF-8"));
+    }
+
+    @Test public void setStructured_writesMessagesAsJsonLines() throws UnsupportedEncodingException
+    {
+        attachListener();
+
+        Trace.setStructured(true);
+        Trace.writeLine("say \"hi\"\tnow\\");
+
+        final String[] lines = output.toString("UTF-8").split(System.getProperty("line.separator"));
+        Assert.assertEquals(2, lines.length);
+        Assert.assertTrue(lines[0], lines[0].matches("\\{\"event\":\"start\",\"timeMicros\":\\d+,\"epochMillis\":\\d+\\}"));
+        Assert.assertTrue(lines[1], lines[1].matches("\\{\"event\":\"message\",\"timeMicros\":\\d+,\"message\":\"say \\\\\"hi\\\\\"\\\\tnow\\\\\\\\\"\\}"));
+    }
+
+    @Test public void traceSpan_writesOnceWithOutcome() throws UnsupportedEncodingException
+    {
+        attachListener();
+        Trace.setStructured(true);
+        output.reset();
+
+        final TraceSpan cut = TraceSpan.start("store.read");
+        try
+        {
+            cut.end("found");
+        }
+        finally
+        {
+            cut.close();
+        }
+
+        final String[] lines = output.toString("UTF-8").split(System.getProperty("line.separator"));
+        Assert.assertEquals(1, lines.length);
+        Assert.assertTrue(lines[0], lines[0].matches("\\{\"event\":\"span\",\"phase\":\"store.read\",\"startMicros\":\\d+,\"durationMicros\":\\d+,\"outcome\":\"found\",\"thread\":\".+\"\\}"));
+    }
+
+    @Test public void traceSpan_closeWithoutEndIsAnError() throws UnsupportedEncodingException
+    {
+        final TraceSpan cut = TraceSpan.start("config");
+        // tracing can start while the span is in progress
+        attachListener();
+
+        cut.close();
+
+        Assert.assertTrue(output.toString("UTF-8").startsWith("   [config] "));
+        Assert.assertTrue(output.toString("UTF-8").trim().endsWith(" ms, " + TraceSpan.Error));
+    }
+}
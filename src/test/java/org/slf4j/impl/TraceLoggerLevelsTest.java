@@ -0,0 +1,95 @@
+// Copyright (c) Microsoft. All rights reserved.
+// Licensed under the MIT license. See License.txt in the project root.
+
+package org.slf4j.impl;
+
+import com.microsoft.alm.helpers.Trace;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.spi.LocationAwareLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+public class TraceLoggerLevelsTest
+{
+    private static final String Specification = "warn, com.microsoft.alm=info, com.microsoft.alm.storage.SecretStore=trace, org.apache=off";
+
+    @After public void resetLevels()
+    {
+        TraceLoggerLevels.reset(null);
+        Trace.getListeners().clear();
+    }
+
+    @Test public void resolve_defaultsToDebug()
+    {
+        Assert.assertEquals(LocationAwareLogger.DEBUG_INT, TraceLoggerLevels.resolve("com.microsoft.alm.storage.SecretStore"));
+    }
+
+    @Test public void resolve_closestAncestorWins()
+    {
+        TraceLoggerLevels.reset(Specification);
+
+        Assert.assertEquals(LocationAwareLogger.TRACE_INT, TraceLoggerLevels.resolve("com.microsoft.alm.storage.SecretStore"));
+        Assert.assertEquals(LocationAwareLogger.INFO_INT, TraceLoggerLevels.resolve("com.microsoft.alm.storage.SecretCache"));
+        Assert.assertEquals(LocationAwareLogger.INFO_INT, TraceLoggerLevels.resolve("com.microsoft.alm"));
+        Assert.assertEquals(LocationAwareLogger.WARN_INT, TraceLoggerLevels.resolve("com.microsoft.almost"));
+        Assert.assertEquals(TraceLoggerLevels.OffLevel, TraceLoggerLevels.resolve("org.apache.http.wire"));
+    }
+
+    @Test public void parse_ignoresUnknownLevels()
+    {
+        TraceLoggerLevels.reset("loud,com.example=verbose,com.example.Thing=ERROR");
+
+        Assert.assertEquals(LocationAwareLogger.DEBUG_INT, TraceLoggerLevels.resolve("com.example.Other"));
+        Assert.assertEquals(LocationAwareLogger.ERROR_INT, TraceLoggerLevels.resolve("com.example.Thing"));
+    }
+
+    @Test public void isLevelEnabled_followsReconfiguration()
+    {
+        final TraceLogger cut = new TraceLogger("com.microsoft.alm.storage.SecretCache");
+        Assert.assertTrue(cut.isDebugEnabled());
+
+        TraceLoggerLevels.reset(Specification);
+
+        Assert.assertFalse(cut.isDebugEnabled());
+        Assert.assertTrue(cut.isInfoEnabled());
+    }
+
+    @Test public void debug_argumentsNotFormattedWhenFilteredOut() throws UnsupportedEncodingException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Trace.getListeners().add(new PrintStream(output, true, "UTF-8"));
+        TraceLoggerLevels.reset("info");
+        final TraceLogger cut = new TraceLogger("com.example.Thing");
+        final Object argument = new Object()
+        {
+            @Override public String toString()
+            {
+                throw new AssertionError("The argument should not have been formatted.");
+            }
+        };
+
+        cut.debug("value = {}", argument);
+        cut.info("value = {}", 42);
+
+        Assert.assertEquals("value = 42" + System.getProperty("line.separator"), output.toString("UTF-8"));
+    }
+
+    @Test public void info_argumentsNotFormattedWithoutListeners()
+    {
+        final TraceLogger cut = new TraceLogger("com.example.Thing");
+        final Object argument = new Object()
+        {
+            @Override public String toString()
+            {
+                throw new AssertionError("The argument should not have been formatted.");
+            }
+        };
+
+        Assert.assertFalse(Trace.isEnabled());
+        cut.info("value = {}", argument);
+    }
+}